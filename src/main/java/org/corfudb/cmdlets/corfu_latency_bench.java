@@ -0,0 +1,185 @@
+package org.corfudb.cmdlets;
+
+import com.google.common.collect.ImmutableMap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.infrastructure.CorfuServer;
+import org.corfudb.infrastructure.LogUnitServer;
+import org.corfudb.infrastructure.NettyServerRouter;
+import org.corfudb.infrastructure.SequencerServer;
+import org.corfudb.runtime.clients.BaseClient;
+import org.corfudb.runtime.clients.LogUnitClient;
+import org.corfudb.runtime.clients.NettyClientRouter;
+import org.corfudb.runtime.clients.SequencerClient;
+import org.corfudb.util.CFUtils;
+import org.corfudb.util.GitRepositoryState;
+import org.corfudb.util.NettyTransport;
+import org.corfudb.util.Utils;
+import org.docopt.Docopt;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.fusesource.jansi.Ansi.ansi;
+import static org.fusesource.jansi.Ansi.Color.WHITE;
+
+/**
+ * Benchmarks the round trip latency of requests to a server over each Netty transport.
+ *
+ * For each transport, and for handlers which run either on a separate group of threads or on the I/O event loop,
+ * the benchmark starts an in-memory sequencer and log unit server and connects a single client to it with the
+ * same configuration. The client then issues PING, TOKEN_REQ and WRITE requests one at a time, so that each
+ * request measures a full round trip, and the latency percentiles of each request type are printed.
+ */
+@Slf4j
+public class corfu_latency_bench implements ICmdlet {
+
+    private static final String USAGE =
+            "corfu_latency_bench, benchmarks the request latency of each Netty transport.\n"
+                    + "\n"
+                    + "Usage:\n"
+                    + "\tcorfu_latency_bench [-p <port>] [--transports=<transports>] [--modes=<modes>] [-n <requests>]\n"
+                    + "\t\t[-w <requests>] [-s <size>] [-d <level>]\n"
+                    + "\n"
+                    + "Options:\n"
+                    + " -p <port>, --port=<port>                       The port to run the server on [default: 9100].\n"
+                    + " --transports=<transports>                      The transports to benchmark, comma separated\n"
+                    + "                                                [default: nio,epoll].\n"
+                    + " --modes=<modes>                                Where the handlers run, comma separated: on a\n"
+                    + "                                                separate group of threads (executor), or on the\n"
+                    + "                                                I/O event loop (io-loop) [default: executor,io-loop].\n"
+                    + " -n <requests>, --requests=<requests>           The number of requests of each type to measure\n"
+                    + "                                                [default: 100000].\n"
+                    + " -w <requests>, --warmup=<requests>             The number of requests of each type to issue\n"
+                    + "                                                before measuring [default: 20000].\n"
+                    + " -s <size>, --size=<size>                       The size of each write, in bytes [default: 128].\n"
+                    + " -d <level>, --log-level=<level>                Set the logging level, valid levels are: \n"
+                    + "                                                ERROR,WARN,INFO,DEBUG,TRACE [default: WARN].\n"
+                    + " -h, --help  Show this screen\n"
+                    + " --version  Show version\n";
+
+    @Override
+    public void main(String[] args) {
+        // Parse the options given, using docopt.
+        Map<String, Object> opts =
+                new Docopt(USAGE).withVersion(GitRepositoryState.getRepositoryState().describe).parse(args);
+
+        // Configure base options
+        configureBase(opts);
+
+        int port = Integer.parseInt((String) opts.get("--port"));
+        int requests = (int) Utils.parseLong(opts.get("--requests"));
+        int warmup = (int) Utils.parseLong(opts.get("--warmup"));
+        int size = (int) Utils.parseLong(opts.get("--size"));
+
+        System.out.println(ansi().a("Benchmarking ").fg(WHITE).a("request latency").reset()
+                .a(": " + requests + " requests of each type, " + size + " byte writes, latencies in us"));
+
+        Set<NettyTransport> transports = new LinkedHashSet<>();
+        for (String transport : ((String) opts.get("--transports")).split(","))
+        {
+            transports.add(NettyTransport.get(transport.trim()));
+        }
+        for (NettyTransport transport : transports)
+        {
+            for (String mode : ((String) opts.get("--modes")).split(","))
+            {
+                run(port, transport, mode.trim().equals("io-loop"), requests, warmup, size);
+            }
+        }
+    }
+
+    /** Run the benchmark against a server with the given transport and handler placement. */
+    void run(int port, NettyTransport transport, boolean onEventLoop, int requests, int warmup, int size)
+    {
+        Map<String, Object> serverOpts = new ImmutableMap.Builder<String, Object>()
+                .put("--initial-token", "0")
+                .put("--memory", true)
+                .put("--sync", false)
+                .put("--max-cache", "1000000000")
+                .build();
+        LogUnitServer logUnit = new LogUnitServer(serverOpts);
+        NettyServerRouter router = new NettyServerRouter();
+        router.addServer(new SequencerServer(serverOpts));
+        router.addServer(logUnit);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        EventLoopGroup bossGroup = transport.getEventLoopGroup(1, Executors.defaultThreadFactory());
+        EventLoopGroup workerGroup = transport.getEventLoopGroup(threads, Executors.defaultThreadFactory());
+        EventExecutorGroup ee = onEventLoop ? null : new DefaultEventExecutorGroup(threads);
+        NettyClientRouter client = new NettyClientRouter("localhost", port);
+        try {
+            Channel server = CorfuServer.configureBootstrap(router, transport, bossGroup, workerGroup, ee)
+                    .bind(port).sync().channel();
+
+            client.setTransport(transport);
+            client.setHandlersOnEventLoop(onEventLoop);
+            client.addClient(new SequencerClient())
+                    .addClient(new LogUnitClient())
+                    .start();
+
+            String name = String.format("%-6s %-8s", transport.name().toLowerCase(),
+                    onEventLoop ? "io-loop" : "executor");
+            byte[] payload = new byte[size];
+            Set<UUID> streams = Collections.singleton(UUID.nameUUIDFromBytes("bench".getBytes()));
+            AtomicLong address = new AtomicLong();
+
+            measure(name, "PING", requests, warmup,
+                    () -> client.getClient(BaseClient.class).ping());
+            measure(name, "TOKEN_REQ", requests, warmup,
+                    () -> client.getClient(SequencerClient.class).nextToken(streams, 1));
+            measure(name, "WRITE", requests, warmup,
+                    () -> client.getClient(LogUnitClient.class).write(address.getAndIncrement(), streams, 0L,
+                            payload, Collections.emptyMap()));
+
+            server.close().sync();
+        } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+        } finally {
+            client.stop();
+            client.workerGroup.shutdownGracefully();
+            if (client.ee != null) {
+                client.ee.shutdownGracefully();
+            }
+            bossGroup.shutdownGracefully().syncUninterruptibly();
+            workerGroup.shutdownGracefully().syncUninterruptibly();
+            if (ee != null) {
+                ee.shutdownGracefully().syncUninterruptibly();
+            }
+            logUnit.shutdown();
+        }
+    }
+
+    /** Issue requests one at a time, and print the percentiles of their latency. */
+    void measure(String name, String type, int requests, int warmup, Supplier<CompletableFuture<?>> request)
+    {
+        for (int i = 0; i < warmup; i++)
+        {
+            CFUtils.getUninterruptibly(request.get());
+        }
+        long[] latencies = new long[requests];
+        for (int i = 0; i < requests; i++)
+        {
+            long start = System.nanoTime();
+            CFUtils.getUninterruptibly(request.get());
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        double mean = Arrays.stream(latencies).average().orElse(0) / 1000.0;
+        System.out.println(ansi().fg(WHITE).a(name).reset().a(String.format(
+                " %-9s mean %8.1f  p50 %8.1f  p99 %8.1f  p99.9 %8.1f", type, mean,
+                percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999))));
+    }
+
+    /** Get a percentile of sorted latencies, in microseconds. */
+    static double percentile(long[] sorted, double percentile)
+    {
+        return sorted[(int) Math.min(sorted.length - 1, percentile * sorted.length)] / 1000.0;
+    }
+}
@@ -0,0 +1,180 @@
+package org.corfudb.cmdlets;
+
+import com.google.common.collect.ImmutableMap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.infrastructure.CorfuServer;
+import org.corfudb.infrastructure.NettyServerRouter;
+import org.corfudb.infrastructure.SequencerServer;
+import org.corfudb.runtime.clients.NettyClientRouter;
+import org.corfudb.runtime.clients.SequencerClient;
+import org.corfudb.util.GitRepositoryState;
+import org.corfudb.util.Utils;
+import org.docopt.Docopt;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.fusesource.jansi.Ansi.ansi;
+import static org.fusesource.jansi.Ansi.Color.WHITE;
+
+/**
+ * Benchmarks the token throughput of a sequencer server as the number of server threads increases.
+ *
+ * For each thread count, the benchmark starts an in-memory sequencer server whose I/O event loops and message
+ * handlers each use that many threads. Several clients connect to it, and each client keeps a number of token
+ * requests outstanding on randomly chosen streams for the duration of the run. The number of tokens issued per
+ * second is printed for each thread count.
+ */
+@Slf4j
+public class corfu_sequencer_bench implements ICmdlet {
+
+    private static final String USAGE =
+            "corfu_sequencer_bench, benchmarks the token throughput of a sequencer server.\n"
+                    + "\n"
+                    + "Usage:\n"
+                    + "\tcorfu_sequencer_bench [-p <port>] [-w <threads>] [-c <clients>] [-o <outstanding>]\n"
+                    + "\t\t[-s <streams>] [-k <streams-per-request>] [-t <seconds>] [-d <level>]\n"
+                    + "\n"
+                    + "Options:\n"
+                    + " -p <port>, --port=<port>                       The port to run the sequencer on [default: 9100].\n"
+                    + " -w <threads>, --threads=<threads>              The server thread counts to benchmark, comma\n"
+                    + "                                                separated [default: 1,2,4,8].\n"
+                    + " -c <clients>, --clients=<clients>              The number of client connections [default: 4].\n"
+                    + " -o <outstanding>, --outstanding=<outstanding>  The number of outstanding requests of each\n"
+                    + "                                                client [default: 64].\n"
+                    + " -s <streams>, --streams=<streams>              The number of streams to request tokens on,\n"
+                    + "                                                or 0 for none [default: 64].\n"
+                    + " -k <streams-per-request>, --streams-per-request=<streams-per-request>\n"
+                    + "                                                The number of streams in each request\n"
+                    + "                                                [default: 1].\n"
+                    + " -t <seconds>, --time=<seconds>                 The duration of each run, in seconds [default: 5].\n"
+                    + " -d <level>, --log-level=<level>                Set the logging level, valid levels are: \n"
+                    + "                                                ERROR,WARN,INFO,DEBUG,TRACE [default: WARN].\n"
+                    + " -h, --help  Show this screen\n"
+                    + " --version  Show version\n";
+
+    @Override
+    public void main(String[] args) {
+        // Parse the options given, using docopt.
+        Map<String, Object> opts =
+                new Docopt(USAGE).withVersion(GitRepositoryState.getRepositoryState().describe).parse(args);
+
+        // Configure base options
+        configureBase(opts);
+
+        int port = Integer.parseInt((String) opts.get("--port"));
+        int clients = (int) Utils.parseLong(opts.get("--clients"));
+        int outstanding = (int) Utils.parseLong(opts.get("--outstanding"));
+        int streamCount = (int) Utils.parseLong(opts.get("--streams"));
+        int streamsPerRequest = (int) Utils.parseLong(opts.get("--streams-per-request"));
+        long seconds = Utils.parseLong(opts.get("--time"));
+
+        List<UUID> streams = IntStream.range(0, streamCount)
+                .mapToObj(i -> UUID.nameUUIDFromBytes(("bench-" + i).getBytes()))
+                .collect(Collectors.toList());
+
+        System.out.println(ansi().a("Benchmarking ").fg(WHITE).a("SequencerServer").reset()
+                .a(": " + clients + " clients, " + outstanding + " outstanding requests each, "
+                        + streamCount + " streams, " + streamsPerRequest + " per request"));
+
+        for (String threads : ((String) opts.get("--threads")).split(","))
+        {
+            run(port, Integer.parseInt(threads.trim()), clients, outstanding, streams, streamsPerRequest, seconds);
+        }
+    }
+
+    /** Run the benchmark against a sequencer server with the given number of threads. */
+    void run(int port, int threads, int clients, int outstanding, List<UUID> streams,
+             int streamsPerRequest, long seconds)
+    {
+        NettyServerRouter router = new NettyServerRouter();
+        router.addServer(new SequencerServer(new ImmutableMap.Builder<String, Object>()
+                .put("--initial-token", "0")
+                .put("--memory", true)
+                .build()));
+
+        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
+        EventLoopGroup workerGroup = new NioEventLoopGroup(threads);
+        EventExecutorGroup ee = new DefaultEventExecutorGroup(threads);
+        List<NettyClientRouter> routers = new ArrayList<>();
+        try {
+            Channel server = CorfuServer.configureBootstrap(router, bossGroup, workerGroup, ee)
+                    .bind(port).sync().channel();
+
+            for (int i = 0; i < clients; i++)
+            {
+                NettyClientRouter r = new NettyClientRouter("localhost", port);
+                r.addClient(new SequencerClient());
+                r.start();
+                routers.add(r);
+            }
+
+            AtomicLong issued = new AtomicLong();
+            AtomicLong failed = new AtomicLong();
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            long start = System.nanoTime();
+            for (NettyClientRouter r : routers)
+            {
+                for (int i = 0; i < outstanding; i++)
+                {
+                    request(r.getClient(SequencerClient.class), streams, streamsPerRequest, end, issued, failed);
+                }
+            }
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()));
+            double elapsed = (System.nanoTime() - start) / 1_000_000_000.0;
+
+            String result = String.format(" %12.0f tokens/s", issued.get() / elapsed);
+            if (failed.get() > 0) {
+                result += ", " + failed.get() + " requests failed";
+            }
+            System.out.println(ansi().fg(WHITE).a(String.format("%3d threads", threads)).reset().a(result));
+
+            // Let the last requests drain before the server goes away.
+            Thread.sleep(500);
+            server.close().sync();
+        } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+        } finally {
+            routers.forEach(r -> {
+                r.stop();
+                r.workerGroup.shutdownGracefully();
+                if (r.ee != null) {
+                    r.ee.shutdownGracefully();
+                }
+            });
+            bossGroup.shutdownGracefully().syncUninterruptibly();
+            workerGroup.shutdownGracefully().syncUninterruptibly();
+            ee.shutdownGracefully().syncUninterruptibly();
+        }
+    }
+
+    /** Request a token, and request another once it is issued until the run ends. */
+    void request(SequencerClient client, List<UUID> streams, int streamsPerRequest, long end,
+                 AtomicLong issued, AtomicLong failed)
+    {
+        Set<UUID> requestStreams = new HashSet<>();
+        while (requestStreams.size() < Math.min(streamsPerRequest, streams.size()))
+        {
+            requestStreams.add(streams.get(ThreadLocalRandom.current().nextInt(streams.size())));
+        }
+        client.nextToken(requestStreams, 1).whenComplete((r, e) -> {
+            if (e != null || r == null) {
+                failed.incrementAndGet();
+            } else if (System.nanoTime() < end) {
+                issued.incrementAndGet();
+            }
+            if (System.nanoTime() < end) {
+                request(client, streams, streamsPerRequest, end, issued, failed);
+            }
+        });
+    }
+}
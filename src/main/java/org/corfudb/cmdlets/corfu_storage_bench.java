@@ -0,0 +1,182 @@
+package org.corfudb.cmdlets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.infrastructure.LogUnitServer.LogUnitEntry;
+import org.corfudb.infrastructure.LogUnitStorage;
+import org.corfudb.protocols.wireprotocol.IMetadata;
+import org.corfudb.util.GitRepositoryState;
+import org.corfudb.util.Utils;
+import org.docopt.Docopt;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import static org.fusesource.jansi.Ansi.ansi;
+import static org.fusesource.jansi.Ansi.Color.WHITE;
+
+/**
+ * Benchmarks a log unit storage engine directly, without a log unit server or the network.
+ *
+ * The benchmark appends entries from several threads and waits for them to be durable, then reads entries at
+ * random addresses, reads the entries back in batches, and finally trims every entry. The throughput of each
+ * phase is printed, so that storage engines (and their options) can be compared on the same workload.
+ */
+@Slf4j
+public class corfu_storage_bench implements ICmdlet {
+
+    private static final String USAGE =
+            "corfu_storage_bench, benchmarks a log unit storage engine.\n"
+                    + "\n"
+                    + "Usage:\n"
+                    + "\tcorfu_storage_bench (-l <path>|-m) [-f] [--storage=<class>] [-n <entries>] [-s <size>] [-t <threads>]\n"
+                    + "\t\t[-b <batch>] [--map-window=<bytes>] [--commit-window=<us>] [-c <size>] [-d <level>]\n"
+                    + "\n"
+                    + "Options:\n"
+                    + " -l <path>, --log-path=<path>                   The path to store log files in.\n"
+                    + " -m, --memory                                   Benchmark the in-memory storage engine.\n"
+                    + " -f, --sync                                     Make each append durable before it completes.\n"
+                    + " --storage=<class>                              The class of the storage engine to benchmark.\n"
+                    + " -n <entries>, --entries=<entries>              The number of entries to append [default: 100000].\n"
+                    + " -s <size>, --size=<size>                       The size of each entry, in bytes [default: 1024].\n"
+                    + " -t <threads>, --threads=<threads>              The number of threads to use [default: 4].\n"
+                    + " -b <batch>, --batch=<batch>                    The number of entries in each batch read [default: 100].\n"
+                    + " --map-window=<bytes>                           The size of each memory mapped window of a log file.\n"
+                    + " --commit-window=<us>                           The group commit window, in microseconds.\n"
+                    + " -c <size>, --max-cache=<size>                  The maximum size of the in-memory storage engine\n"
+                    + "                                                [default: 4000000000].\n"
+                    + " -d <level>, --log-level=<level>                Set the logging level, valid levels are: \n"
+                    + "                                                ERROR,WARN,INFO,DEBUG,TRACE [default: WARN].\n"
+                    + " -h, --help  Show this screen\n"
+                    + " --version  Show version\n";
+
+    @Override
+    public void main(String[] args) {
+        // Parse the options given, using docopt.
+        Map<String, Object> opts =
+                new Docopt(USAGE).withVersion(GitRepositoryState.getRepositoryState().describe).parse(args);
+
+        // Configure base options
+        configureBase(opts);
+
+        long entries = Utils.parseLong(opts.get("--entries"));
+        int size = (int) Utils.parseLong(opts.get("--size"));
+        int threads = (int) Utils.parseLong(opts.get("--threads"));
+        int batch = (int) Utils.parseLong(opts.get("--batch"));
+
+        LogUnitStorage storage = LogUnitStorage.fromOptions(opts,
+                address -> log.warn("Entry at {} was dropped, the storage engine is full", address));
+        System.out.println(ansi().a("Benchmarking ").fg(WHITE).a(storage.getClass().getSimpleName()).reset()
+                .a(": " + entries + " entries of " + size + " bytes, " + threads + " threads"));
+
+        // Entries which were recovered are left alone, and the benchmark appends after them.
+        AtomicLong recovered = new AtomicLong(-1L);
+        long start = System.nanoTime();
+        storage.recover((address, streams) -> recovered.accumulateAndGet(address, Math::max));
+        report("recover", recovered.get() + 1, 0, start);
+        long first = recovered.get() + 1;
+
+        byte[] payload = new byte[size];
+        ThreadLocalRandom.current().nextBytes(payload);
+        Set<UUID> streams = Collections.singleton(UUID.nameUUIDFromBytes("bench".getBytes()));
+
+        start = System.nanoTime();
+        runThreads(threads, t -> {
+            List<CompletableFuture<Void>> syncs = new ArrayList<>();
+            for (long address = first + t; address < first + entries; address += threads)
+            {
+                ByteBuf data = PooledByteBufAllocator.DEFAULT.directBuffer(size);
+                data.writeBytes(payload);
+                LogUnitEntry entry = new LogUnitEntry(address, data,
+                        new EnumMap<>(IMetadata.LogUnitMetadataType.class), false);
+                entry.setStreams(streams);
+                try {
+                    storage.append(address, entry);
+                } finally {
+                    data.release();
+                }
+                syncs.add(storage.sync(address, size));
+            }
+            CompletableFuture.allOf(syncs.toArray(new CompletableFuture[syncs.size()])).join();
+        });
+        report("append", entries, entries * size, start);
+
+        start = System.nanoTime();
+        runThreads(threads, t -> {
+            for (long i = t; i < entries; i += threads)
+            {
+                release(storage.read(first + ThreadLocalRandom.current().nextLong(entries)));
+            }
+        });
+        report("random read", entries, entries * size, start);
+
+        start = System.nanoTime();
+        runThreads(threads, t -> {
+            for (long from = first + (long) t * batch; from < first + entries; from += (long) threads * batch)
+            {
+                List<Long> addresses = LongStream.range(from, Math.min(from + batch, first + entries))
+                        .boxed().collect(Collectors.toList());
+                storage.readAll(addresses).values().forEach(this::release);
+            }
+        });
+        report("batch read", entries, entries * size, start);
+
+        start = System.nanoTime();
+        long trimmed = storage.trim(first + entries - 1, (address, s) -> address >= first, address -> {});
+        report("trim", trimmed, 0, start);
+
+        storage.close();
+    }
+
+    /** A task run by each benchmark thread, which is given the number of the thread. */
+    @FunctionalInterface
+    interface BenchTask {
+        void run(int thread) throws Exception;
+    }
+
+    /** Run a task on a number of threads, and wait for all of them to complete. */
+    void runThreads(int threads, BenchTask task)
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CompletableFuture.allOf(IntStream.range(0, threads)
+                    .mapToObj(t -> CompletableFuture.runAsync(() -> {
+                        try {
+                            task.run(t);
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }, executor))
+                    .toArray(CompletableFuture[]::new))
+                    .join();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    void release(LogUnitEntry entry)
+    {
+        if (entry != null && entry.getBuffer() != null) {
+            entry.getBuffer().release();
+        }
+    }
+
+    /** Print the throughput of a phase of the benchmark. */
+    void report(String phase, long ops, long bytes, long startNanos)
+    {
+        double seconds = Math.max(1L, System.nanoTime() - startNanos) / 1_000_000_000.0;
+        String throughput = String.format(" %10d ops in %8.3f s, %12.0f ops/s", ops, seconds, ops / seconds);
+        if (bytes > 0) {
+            throughput += ", " + Utils.convertToByteStringRepresentation((long) (bytes / seconds)) + "/s";
+        }
+        System.out.println(ansi().fg(WHITE).a(String.format("%-12s", phase)).reset().a(throughput));
+    }
+}
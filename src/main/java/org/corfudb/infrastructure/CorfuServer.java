@@ -8,11 +8,8 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
-import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.util.concurrent.DefaultEventExecutorGroup;
@@ -20,7 +17,10 @@ import io.netty.util.concurrent.EventExecutorGroup;
 import lombok.extern.slf4j.Slf4j;
 import org.corfudb.protocols.wireprotocol.NettyCorfuMessageDecoder;
 import org.corfudb.protocols.wireprotocol.NettyCorfuMessageEncoder;
+import org.corfudb.protocols.wireprotocol.NettyFlushConsolidationHandler;
 import org.corfudb.util.GitRepositoryState;
+import org.corfudb.util.NettyTransport;
+import org.corfudb.util.Utils;
 import org.corfudb.util.Version;
 import org.docopt.Docopt;
 import org.fusesource.jansi.AnsiConsole;
@@ -60,7 +60,12 @@ public class CorfuServer {
             "Corfu Server, the server for the Corfu Infrastructure.\n"
             + "\n"
             + "Usage:\n"
-            + "\tcorfu_server (-l <path>|-m) [-fs] [-a <address>] [-t <token>] [-c <size>] [-k seconds] [-d <level>] [-p <seconds>] <port>\n"
+            + "\tcorfu_server (-l <path>|-m) [-fs] [-a <address>] [-t <token>] [-c <size>] [-k seconds] [-d <level>] [-p <seconds>]\n"
+            + "\t\t[--commit-window=<us>] [--commit-batch=<bytes>] [--map-window=<bytes>]\n"
+            + "\t\t[--reclaim-ratio=<ratio>] [--reclaim-rate=<bytes>] [--stream-cache=<bytes>]\n"
+            + "\t\t[--storage=<class>] [--sequencer-shard=<index>] [--sequencer-shards=<count>]\n"
+            + "\t\t[--transport=<transport>] [--handlers-on-io-loop] [--flush-messages=<count>]\n"
+            + "\t\t[--flush-delay=<us>] [--max-pending-pushes=<count>] <port>\n"
             + "\n"
             + "Options:\n"
             + " -l <path>, --log-path=<path>            Set the path to the storage file for the log unit.\n"
@@ -77,8 +82,43 @@ public class CorfuServer {
             + "                                         from the log. [default: -1].\n"
             + " -k <seconds>, --checkpoint=<seconds>    The rate the sequencer should checkpoint its state to disk,\n"
             + "                                         in seconds [default: 60].\n"
-            + " -p <seconds>, --compact=<seconds>       The rate the log unit should compact entries (find the,\n"
-            + "                                         contiguous tail) in seconds [default: 60].\n"
+            + " -p <seconds>, --compact=<seconds>       Deprecated and ignored: the log unit now advances the\n"
+            + "                                         contiguous tail on every write [default: 60].\n"
+            + " --commit-window=<us>                    In sync mode, the maximum time the log unit waits to group\n"
+            + "                                         writes into a single sync, in microseconds [default: 500].\n"
+            + " --commit-batch=<bytes>                  In sync mode, the number of bytes which causes a group of\n"
+            + "                                         writes to be synced immediately [default: 4194304].\n"
+            + " --map-window=<bytes>                    The size of each memory mapped window of a log file\n"
+            + "                                         [default: 67108864].\n"
+            + " --reclaim-ratio=<ratio>                 The ratio of live entries below which a log file is compacted\n"
+            + "                                         to reclaim the space used by trimmed entries [default: 0.5].\n"
+            + " --reclaim-rate=<bytes>                  The maximum rate at which compaction copies entries,\n"
+            + "                                         in bytes per second [default: 33554432].\n"
+            + " --stream-cache=<bytes>                  The maximum size of the stream address index the log unit\n"
+            + "                                         keeps in memory, in bytes [default: 67108864].\n"
+            + " --storage=<class>                       The class of the storage engine the log unit stores entries\n"
+            + "                                         in, which implements LogUnitStorage. By default, entries are\n"
+            + "                                         stored in memory mapped log files, or in memory with -m.\n"
+            + " --sequencer-shard=<index>               The shard of the address space the sequencer issues tokens\n"
+            + "                                         from, which is its index in the sequencers of a layout with\n"
+            + "                                         partitioned sequencers [default: 0].\n"
+            + " --sequencer-shards=<count>              The number of sequencers the address space is partitioned\n"
+            + "                                         across [default: 1].\n"
+            + " --transport=<transport>                 The Netty transport to serve clients with, nio or epoll.\n"
+            + "                                         epoll is only available on Linux, elsewhere nio is used\n"
+            + "                                         [default: nio].\n"
+            + " --handlers-on-io-loop                   Decode, route and encode messages on the I/O event loop of\n"
+            + "                                         each connection, rather than handing them off to a separate\n"
+            + "                                         group of threads.\n"
+            + " --flush-messages=<count>                The maximum number of responses written to a connection\n"
+            + "                                         before it is flushed. Responses to a burst of requests are\n"
+            + "                                         flushed together at the end of the burst [default: 64].\n"
+            + " --flush-delay=<us>                      How long responses sent outside of a burst of requests are\n"
+            + "                                         held back to be flushed together, in microseconds, or 0 to\n"
+            + "                                         flush them once the pending I/O tasks have run [default: 0].\n"
+            + " --max-pending-pushes=<count>            The maximum number of new entries a client subscribed to a\n"
+            + "                                         stream may fall behind before its subscription is closed\n"
+            + "                                         [default: 65536].\n"
             + " -d <level>, --log-level=<level>         Set the logging level, valid levels are: \n"
             + "                                         ERROR,WARN,INFO,DEBUG,TRACE [default: INFO].\n"
             + " -h, --help  Show this screen\n"
@@ -164,13 +204,18 @@ public class CorfuServer {
         router.addServer(new SequencerServer(opts));
         router.addServer(new LayoutServer(opts, router));
         router.addServer(new LogUnitServer(opts));
+        router.setFlushMessages(Utils.getOption(opts, "--flush-messages", Integer.class, 64));
+        router.setFlushDelayMicros(Utils.getOption(opts, "--flush-delay", Long.class, 0L));
 
         // Create the event loops responsible for servicing inbound messages.
         EventLoopGroup bossGroup;
         EventLoopGroup workerGroup;
         EventExecutorGroup ee;
 
-        bossGroup = new NioEventLoopGroup(1, new ThreadFactory() {
+        NettyTransport transport = NettyTransport.get(Utils.getOption(opts, "--transport", String.class, "nio"));
+        log.info("Using the {} transport", transport);
+
+        bossGroup = transport.getEventLoopGroup(1, new ThreadFactory() {
             final AtomicInteger threadNum = new AtomicInteger(0);
             @Override
             public Thread newThread(Runnable r) {
@@ -180,7 +225,7 @@ public class CorfuServer {
             }
         });
 
-        workerGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
+        workerGroup = transport.getEventLoopGroup(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
             final AtomicInteger threadNum = new AtomicInteger(0);
             @Override
             public Thread newThread(Runnable r) {
@@ -190,38 +235,26 @@ public class CorfuServer {
             }
         });
 
-        ee = new DefaultEventExecutorGroup(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
+        // Without a separate group, the handlers run on the I/O event loop of each connection.
+        if (Utils.getOption(opts, "--handlers-on-io-loop", Boolean.class, false)) {
+            ee = null;
+        } else {
+            ee = new DefaultEventExecutorGroup(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
 
-            final AtomicInteger threadNum = new AtomicInteger(0);
+                final AtomicInteger threadNum = new AtomicInteger(0);
 
-            @Override
-            public Thread newThread(Runnable r) {
-                Thread t = new Thread(r);
-                t.setName("event-" + threadNum.getAndIncrement());
-                return t;
-            }
-        });
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setName("event-" + threadNum.getAndIncrement());
+                    return t;
+                }
+            });
+        }
 
 
         try {
-            ServerBootstrap b = new ServerBootstrap();
-            b.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    .option(ChannelOption.SO_BACKLOG, 100)
-                    .childOption(ChannelOption.SO_KEEPALIVE, true)
-                    .childOption(ChannelOption.TCP_NODELAY, true)
-                    .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
-                    .handler(new LoggingHandler(LogLevel.INFO))
-                    .childHandler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        public void initChannel(io.netty.channel.socket.SocketChannel ch) throws Exception {
-                            ch.pipeline().addLast(new LengthFieldPrepender(4));
-                            ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4));
-                            ch.pipeline().addLast(ee, new NettyCorfuMessageDecoder());
-                            ch.pipeline().addLast(ee, new NettyCorfuMessageEncoder());
-                            ch.pipeline().addLast(ee, router);
-                        }
-                    });
+            ServerBootstrap b = configureBootstrap(router, transport, bossGroup, workerGroup, ee);
             ChannelFuture f = b.bind(port).sync();
             while (true)
             {
@@ -243,7 +276,62 @@ public class CorfuServer {
         finally {
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            if (ee != null) {
+                ee.shutdownGracefully();
+            }
         }
 
     }
+
+    /** Configure a server bootstrap which serves messages to a router, with the transport pinned to NIO.
+     * This overload only exists for callers which create NIO event loops, such as corfu_sequencer_bench;
+     * other callers should pass the transport which created their event loops.
+     *
+     * @param router        The router to serve messages to.
+     * @param bossGroup     The event loop which accepts connections.
+     * @param workerGroup   The event loops which service the I/O of each connection.
+     * @param ee            The executors which decode, encode and route the messages of each connection.
+     * @return              A server bootstrap, which is ready to be bound to a port.
+     */
+    public static ServerBootstrap configureBootstrap(NettyServerRouter router, EventLoopGroup bossGroup,
+                                                     EventLoopGroup workerGroup, EventExecutorGroup ee)
+    {
+        return configureBootstrap(router, NettyTransport.NIO, bossGroup, workerGroup, ee);
+    }
+
+    /** Configure a server bootstrap which serves messages to a router.
+     *
+     * @param router        The router to serve messages to.
+     * @param transport     The transport to serve messages over, which created the event loops.
+     * @param bossGroup     The event loop which accepts connections.
+     * @param workerGroup   The event loops which service the I/O of each connection.
+     * @param ee            The executors which decode, encode and route the messages of each connection,
+     *                      or null to run them on the I/O event loop of the connection.
+     * @return              A server bootstrap, which is ready to be bound to a port.
+     */
+    public static ServerBootstrap configureBootstrap(NettyServerRouter router, NettyTransport transport,
+                                                     EventLoopGroup bossGroup, EventLoopGroup workerGroup,
+                                                     EventExecutorGroup ee)
+    {
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup)
+                .channel(transport.getServerChannelClass())
+                .option(ChannelOption.SO_BACKLOG, 100)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .handler(new LoggingHandler(LogLevel.INFO))
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(io.netty.channel.socket.SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4));
+                        ch.pipeline().addLast(new NettyFlushConsolidationHandler(router.getFlushMessages(),
+                                router.getFlushDelayMicros(), router.getFlushStats()));
+                        ch.pipeline().addLast(ee, new NettyCorfuMessageDecoder());
+                        ch.pipeline().addLast(ee, new NettyCorfuMessageEncoder());
+                        ch.pipeline().addLast(ee, router);
+                    }
+                });
+        return b;
+    }
 }
@@ -0,0 +1,177 @@
+package org.corfudb.infrastructure;
+
+import lombok.Data;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A group committer, which makes writes durable in batches instead of one at a time.
+ *
+ * A writer first writes its data to the target (for example, a memory mapped log file), then calls commit(), which
+ * returns a future that completes once the write is durable. A single committer thread collects the pending commits
+ * until either the commit window has passed since the batch started, or the batch has reached the maximum number
+ * of bytes. It then syncs every target in the batch exactly once, and completes the futures of all writes in the
+ * batch. If the sync fails, the futures are completed exceptionally.
+ *
+ * @param <T>   The type of the target which is synced.
+ */
+@Slf4j
+public class GroupCommitter<T> {
+
+    /** A function which makes all the writes to a target durable. */
+    @FunctionalInterface
+    public interface SyncFunction<T> {
+        void sync(T target) throws IOException;
+    }
+
+    @Data
+    static class PendingCommit<T> {
+        final T target;
+        final long bytes;
+        final CompletableFuture<Void> future;
+    }
+
+    /** The function used to sync a target. */
+    final SyncFunction<T> syncFunction;
+
+    /** The maximum amount of time to wait for a batch to fill, in nanoseconds. */
+    final long commitWindowNanos;
+
+    /** The number of bytes which will cause a batch to be committed before the window closes. */
+    final long maxBatchBytes;
+
+    /** The commits waiting for the next batch. */
+    final Queue<PendingCommit<T>> pending = new ConcurrentLinkedQueue<>();
+
+    /** The number of commits and bytes waiting for the next batch. */
+    final AtomicInteger pendingCount = new AtomicInteger();
+    final AtomicLong pendingBytes = new AtomicLong();
+
+    /** The number of batches (syncs) and commits which have been completed. */
+    @Getter
+    final AtomicLong batchCount = new AtomicLong();
+    @Getter
+    final AtomicLong commitCount = new AtomicLong();
+
+    final Thread committerThread;
+
+    volatile boolean running = true;
+
+    /** Create a new group committer.
+     *
+     * @param name              The name of the committer thread.
+     * @param syncFunction      The function used to sync a target.
+     * @param commitWindow      The maximum amount of time to wait for a batch to fill, in microseconds.
+     * @param maxBatchBytes     The number of bytes which will cause a batch to be committed immediately.
+     */
+    public GroupCommitter(String name, SyncFunction<T> syncFunction, long commitWindow, long maxBatchBytes)
+    {
+        this.syncFunction = syncFunction;
+        this.commitWindowNanos = TimeUnit.MICROSECONDS.toNanos(commitWindow);
+        this.maxBatchBytes = maxBatchBytes;
+        committerThread = new Thread(this::run);
+        committerThread.setName(name);
+        committerThread.setDaemon(true);
+        committerThread.start();
+    }
+
+    /** Request that a write to a target be made durable.
+     *
+     * @param target    The target which was written to.
+     * @param bytes     The number of bytes written.
+     * @return          A future which completes once the write is durable.
+     */
+    public CompletableFuture<Void> commit(T target, long bytes)
+    {
+        CompletableFuture<Void> cf = new CompletableFuture<>();
+        pending.add(new PendingCommit<>(target, bytes, cf));
+        long batchBytes = pendingBytes.addAndGet(bytes);
+        // Wake the committer if this is the first commit of a batch, or if the batch is full.
+        if (pendingCount.getAndIncrement() == 0 || batchBytes >= maxBatchBytes) {
+            LockSupport.unpark(committerThread);
+        }
+        return cf;
+    }
+
+    /** The main loop of the committer thread. */
+    void run()
+    {
+        while (running)
+        {
+            if (pendingCount.get() <= 0)
+            {
+                LockSupport.park(this);
+                continue;
+            }
+            // Wait for the batch to fill, or for the commit window to close.
+            long deadline = System.nanoTime() + commitWindowNanos;
+            long remaining;
+            while (running && pendingBytes.get() < maxBatchBytes
+                    && (remaining = deadline - System.nanoTime()) > 0)
+            {
+                LockSupport.parkNanos(this, remaining);
+            }
+            commitBatch();
+        }
+        commitBatch();
+    }
+
+    /** Sync every target with a pending commit, then complete the pending commits. */
+    void commitBatch()
+    {
+        List<PendingCommit<T>> batch = new ArrayList<>();
+        PendingCommit<T> p;
+        long bytes = 0;
+        while ((p = pending.poll()) != null)
+        {
+            batch.add(p);
+            bytes += p.getBytes();
+        }
+        if (batch.isEmpty())
+        {
+            return;
+        }
+        pendingCount.addAndGet(-batch.size());
+        pendingBytes.addAndGet(-bytes);
+
+        Set<T> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+        batch.forEach(x -> targets.add(x.getTarget()));
+        try {
+            for (T target : targets)
+            {
+                syncFunction.sync(target);
+            }
+        } catch (Exception e)
+        {
+            log.error("Group commit of {} writes failed!", batch.size(), e);
+            batch.forEach(x -> x.getFuture().completeExceptionally(e));
+            return;
+        }
+        batchCount.incrementAndGet();
+        commitCount.addAndGet(batch.size());
+        log.trace("Group committed {} writes ({} bytes) to {} targets", batch.size(), bytes, targets.size());
+        batch.forEach(x -> x.getFuture().complete(null));
+    }
+
+    /** Commit any remaining writes and stop the committer thread. */
+    public void shutdown()
+    {
+        running = false;
+        LockSupport.unpark(committerThread);
+        try {
+            committerThread.join();
+        } catch (InterruptedException ie)
+        {
+            log.warn("Interrupted while waiting for group committer to shut down.");
+        }
+    }
+}
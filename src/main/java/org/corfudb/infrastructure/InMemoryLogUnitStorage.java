@@ -0,0 +1,132 @@
+package org.corfudb.infrastructure;
+
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.infrastructure.LogUnitServer.LogUnitEntry;
+import org.corfudb.runtime.exceptions.OverwriteException;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.LongConsumer;
+
+/**
+ * A storage engine which keeps entries in memory, and loses them when the log unit exits.
+ *
+ * The engine holds a reference to the buffer of each entry, so the entries it stores share their data with the
+ * cache of the log unit. It holds at most maxBytes of data: once it is full, the entries at the lowest addresses
+ * are dropped, and reported as lost so that the log unit can trim them.
+ */
+@Slf4j
+public class InMemoryLogUnitStorage implements LogUnitStorage {
+
+    /** The entries, by address. */
+    final ConcurrentSkipListMap<Long, LogUnitEntry> entries = new ConcurrentSkipListMap<>();
+
+    /** The number of bytes of data held. */
+    final AtomicLong bytes = new AtomicLong();
+
+    /** The maximum number of bytes of data to hold. */
+    final long maxBytes;
+
+    /** The consumer which is given the address of every entry which is dropped. */
+    final LongConsumer lost;
+
+    /** Create a new in-memory storage engine.
+     *
+     * @param maxBytes  The maximum number of bytes of data to hold.
+     * @param lost      A consumer which is given the address of every entry which is dropped because the
+     *                  engine is full. It is called from append, and so from within the cache writer of
+     *                  the log unit, so it must not modify the cache itself.
+     */
+    public InMemoryLogUnitStorage(long maxBytes, LongConsumer lost)
+    {
+        this.maxBytes = maxBytes;
+        this.lost = lost;
+    }
+
+    @Override
+    public void append(long address, LogUnitEntry entry)
+        throws OverwriteException
+    {
+        LogUnitEntry stored = new LogUnitEntry(address, entry.getBuffer().duplicate().retain(),
+                entry.getMetadataMap(), false, true);
+        if (entries.putIfAbsent(address, stored) != null) {
+            stored.getBuffer().release();
+            throw new OverwriteException();
+        }
+        long total = bytes.addAndGet(stored.getBuffer().readableBytes());
+        while (total > maxBytes)
+        {
+            Map.Entry<Long, LogUnitEntry> first = entries.pollFirstEntry();
+            if (first == null) {
+                break;
+            }
+            log.warn("In-memory log unit is full, data@{} will be trimmed and lost!", first.getKey());
+            total = bytes.addAndGet(-release(first.getValue()));
+            lost.accept(first.getKey());
+        }
+    }
+
+    @Override
+    public LogUnitEntry read(long address)
+    {
+        LogUnitEntry stored = entries.get(address);
+        if (stored == null) {
+            return null;
+        }
+        return new LogUnitEntry(address, stored.getBuffer().duplicate().retain(),
+                stored.getMetadataMap(), false, true);
+    }
+
+    @Override
+    public CompletableFuture<Void> sync(long address, long bytes)
+    {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public long trim(long tail, BiPredicate<Long, Set<UUID>> isTrimmable, LongConsumer trimmed)
+    {
+        long count = 0;
+        for (LogUnitEntry entry : entries.headMap(tail, true).values())
+        {
+            if (isTrimmable.test(entry.getAddress(), entry.getStreams())
+                    && entries.remove(entry.getAddress(), entry)) {
+                bytes.addAndGet(-release(entry));
+                trimmed.accept(entry.getAddress());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void recover(RecoveryListener listener)
+    {
+        // Nothing survives a restart.
+    }
+
+    @Override
+    public void close()
+    {
+        entries.values().forEach(this::release);
+        entries.clear();
+        bytes.set(0L);
+    }
+
+    /** Release the buffer of a stored entry.
+     *
+     * @param entry The entry to release.
+     * @return      The number of bytes released.
+     */
+    long release(LogUnitEntry entry)
+    {
+        long size = entry.getBuffer().readableBytes();
+        entry.getBuffer().release();
+        return size;
+    }
+}
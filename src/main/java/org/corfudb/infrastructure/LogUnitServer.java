@@ -1,37 +1,41 @@
 package org.corfudb.infrastructure;
 
+import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.CacheWriter;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableRangeSet;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeSet;
 import com.google.common.collect.TreeRangeSet;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
 import lombok.*;
 import lombok.extern.slf4j.Slf4j;
 import org.corfudb.protocols.wireprotocol.*;
+import org.corfudb.util.LockUtils;
 import org.corfudb.util.Utils;
 import org.corfudb.util.retry.IRetry;
 import org.corfudb.util.retry.IntervalAndSentinelRetry;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.Charset;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg.ReadResultType;
 import org.corfudb.util.serializer.Serializers;
@@ -41,48 +45,31 @@ import org.corfudb.util.serializer.Serializers;
  *
  * A Log Unit Server, which is responsible for providing the persistent storage for the Corfu Distributed Shared Log.
  *
- * All reads and writes go through a cache. If the sync flag (--sync) is set, the cache is configured in write-through
- * mode, otherwise the cache is configured in write-back mode. For persistence, every 10,000 log entries are written
- * to individual files (logs), which are represented as FileHandles. Each FileHandle contains a pointer to the tail
- * of the file, a memory-mapped file channel, and a set of addresses known to be in the file. To write an entry, the
- * pointer to the tail is first extended to the length of the entry, and the entry is added to the set of known
- * addresses. A header is written, which consists of the ASCII characters LE, followed by a set of flags,
- * the log unit address, the size of the entry, then the metadata size, metadata and finally the entry itself.
- * When the entry is complete, a written flag is set in the flags field.
+ * All reads and writes go through a cache, which is backed by a storage engine (LogUnitStorage). A log unit with a
+ * log path stores entries in memory mapped log files (MappedLogUnitStorage), and a log unit in memory keeps them in
+ * an InMemoryLogUnitStorage, which trims the oldest entries once it is full. Another engine can be selected with
+ * --storage. Written entries are appended to the storage engine, and in sync mode (--sync), a write is only
+ * acknowledged once the engine has made it durable. Entries which are not in the cache are read from the engine.
+ *
+ * On startup, the storage engine recovers its entries to rebuild the contiguous tail and stream address sets.
+ * The addresses of each stream are kept in a StreamIndex, which holds up to --stream-cache bytes in memory and
+ * appends changes to a file per stream (stream<id>) in the log path.
+ *
+ * The garbage collector trims entries whose streams have all been trimmed past them, and persists the trim state
+ * (in the trim file of the log path). The storage engine then reclaims the space used by trimmed entries.
  */
 @Slf4j
 public class LogUnitServer implements IServer {
 
+    /** The maximum number of entries in each response to a ranged read. */
+    public static final int READ_RANGE_CHUNK = 256;
+
     /** The options map. */
     Map<String,Object> opts;
 
     /** The log file prefix, which can be null if the server is in memory. */
     String prefix;
 
-    @Data
-    class FileHandle {
-        final AtomicLong filePointer;
-        final FileChannel channel;
-        final Set<Long> knownAddresses = Collections.newSetFromMap(new ConcurrentHashMap<>());
-        @Getter(lazy=true)
-        private final MappedByteBuffer byteBuffer = getMappedBuffer();
-        public ByteBuffer getMapForRegion(int offset, int size)
-        {
-            ByteBuffer o = getByteBuffer().duplicate();
-            o.position(offset);
-            return o.slice();
-        }
-        private MappedByteBuffer getMappedBuffer() {
-            try {
-                return channel.map(FileChannel.MapMode.READ_WRITE, 0L, Integer.MAX_VALUE);
-            }
-            catch (IOException ie)
-            {
-                log.error("Failed to map buffer for channel.");
-                throw new RuntimeException(ie);
-            }
-        }
-    }
 
     @Data
     @RequiredArgsConstructor
@@ -105,56 +92,44 @@ public class LogUnitServer implements IServer {
         }
     }
 
-    /** A map mapping to file channels. */
-    Map<Long, FileHandle> channelMap;
 
     /** The garbage collection thread. */
     Thread gcThread;
 
+    /**
+     * An executor, which invalidates the cached entries of addresses the storage engine has lost. The storage
+     * engine reports losses while appending, from within the cache writer, which must not modify the cache.
+     */
+    final ExecutorService lossExecutor =
+            Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("LogUnit-Loss-%d")
+                            .build());
+
     /**
      * The contiguous head of the log (that is, the lowest address which has NOT been trimmed yet).
      */
     @Getter
     long contiguousHead;
 
-    @Getter
-    long contiguousTail;
-
     /**
-     * The addresses that this unit has seen, temporarily until they are integrated into the contiguousTail.
+     * Tracks the contiguous tail, which is advanced as addresses are written.
      */
-    Set<Address> seenAddressesTemp;
-
-    @Data
-    class Address implements Comparable<Address> {
-        final long logAddress;
-        final Set<UUID> StreamIDs;
-
-        @Override
-        public int compareTo(Address o) {
-            return Long.compare(logAddress, o.logAddress);
-        }
-
-        @Override
-        public int hashCode()
-        {
-            return Long.hashCode(logAddress);
-        }
-
-        @Override
-        public boolean equals(Object obj)
-        {
-            return obj instanceof Address && logAddress == ((Address)obj).logAddress;
-        }
-    }
+    TailTracker tailTracker;
 
     /**
-     * A range set representing trimmed addresses on the log unit.
+     * A range set representing trimmed addresses on the log unit. It is modified by the GC thread and the cache
+     * writer, and read by the request handlers, so every access goes through trimRangeLock.
      */
-    RangeSet<Long> trimRange;
+    private final RangeSet<Long> trimRange = TreeRangeSet.create();
+
+    /** Guards trimRange. */
+    private final ReadWriteLock trimRangeLock = new ReentrantReadWriteLock();
 
     ConcurrentHashMap<UUID, Long> trimMap;
 
+
     IntervalAndSentinelRetry gcRetry;
 
     AtomicBoolean running = new AtomicBoolean(true);
@@ -167,20 +142,19 @@ public class LogUnitServer implements IServer {
 
     long maxCacheSize;
 
-    /** This cache services requests for stream addresses.
+    /** This index services requests for stream addresses.
      */
-    LoadingCache<UUID, RangeSet<Long>> streamCache;
+    StreamIndex streamIndex;
+
+    /** The subscriptions of clients to the new entries of streams. */
+    @Getter
+    StreamSubscriptions subscriptions;
 
     /**
-     * A scheduler, which is used to schedule periodic tasks like garbage collection.
+     * The storage engine, which persists the entries of the log unit.
      */
-    private final ScheduledExecutorService scheduler =
-            Executors.newScheduledThreadPool(
-                    1,
-                    new ThreadFactoryBuilder()
-                            .setDaemon(true)
-                            .setNameFormat("LogUnit-Maintenance-%d")
-                            .build());
+    @Getter
+    LogUnitStorage storage;
 
     public LogUnitServer(Map<String, Object> opts)
     {
@@ -193,218 +167,110 @@ public class LogUnitServer implements IServer {
                     "This should be run for testing purposes only. " +
                     "If you exceed the maximum size of the unit, old entries will be AUTOMATICALLY trimmed. " +
                     "The unit WILL LOSE ALL DATA if it exits.", Utils.convertToByteStringRepresentation(maxCacheSize));
-            reset();
         }
         else {
-            channelMap = new ConcurrentHashMap<>();
             prefix = opts.get("--log-path") + File.separator + "log";
         }
 
         reset();
 
-        scheduler.scheduleAtFixedRate(this::compactTail,
-                Utils.getOption(opts, "--compact", Long.class, 60L),
-                Utils.getOption(opts, "--compact", Long.class, 60L),
-                TimeUnit.SECONDS);
+        storage = LogUnitStorage.fromOptions(opts, this::handleLoss);
+        if (prefix != null) {
+            loadTrimState();
+        }
+        recover();
 
         gcThread = new Thread(this::runGC);
         gcThread.start();
     }
 
-    @Data
-    static class LogFileHeader {
-        static final String magic = "CORFULOG";
-        final int version;
-        final long flags;
-        ByteBuffer getBuffer()
-        {
-            ByteBuffer b = ByteBuffer.allocate(64);
-            // 0: "CORFULOG" header(8)
-            b.put(magic.getBytes(Charset.forName("UTF-8")),0, 8);
-            // 8: Version number(4)
-            b.putInt(version);
-            // 12: Flags (8)
-            b.putLong(flags);
-            // 20: Reserved (54)
-            b.position(64);
-            b.flip();
-            return b;
-        }
-        static LogFileHeader fromBuffer(ByteBuffer buffer)
-        {
-            byte[] bMagic = new byte[8];
-            buffer.get(bMagic, 0, 8);
-            if (!new String(bMagic).equals(magic))
-            {
-                log.warn("Encountered invalid magic, expected {}, got {}", magic, new String(bMagic));
-                throw new RuntimeException("Invalid header magic!");
-            }
-            return new LogFileHeader(buffer.getInt(), buffer.getLong());
+    /** Recover the state of the log unit from its storage engine.
+     *
+     * The storage engine reports the streams of each entry it recovers. The contiguous tail and the stream address
+     * sets are then rebuilt from the recovered entries, and the entries past the contiguous tail are kept until
+     * the tail reaches them. Trimmed addresses count as written, since compaction may have removed their entries
+     * and they can never be written again, but they are no longer part of any stream.
+     */
+    public void recover() {
+        long startTime = System.currentTimeMillis();
+        Map<Long, Set<UUID>> recovered = new ConcurrentHashMap<>();
+        storage.recover(recovered::put);
+        RangeSet<Long> trimmedRanges = getTrimmedRanges();
+        if (recovered.isEmpty() && trimmedRanges.isEmpty()) {
+            return;
         }
-    }
 
-    public synchronized void compactTail() {
-        long numEntries = 0;
-        List<Address> setCopy = new ArrayList<>(seenAddressesTemp);
-        Collections.sort(setCopy);
-        for (Address i : setCopy)
-        {
-            if (i.getLogAddress() == contiguousTail + 1)
-            {
-                contiguousTail = i.getLogAddress();
-                seenAddressesTemp.remove(i);
-                numEntries++;
-
-                if (i.getStreamIDs().size() > 0)
-                {
-                    for (UUID stream : i.getStreamIDs())
-                    {
-                        RangeSet<Long> currentSet = streamCache.get(stream);
-                        currentSet.add(Range.singleton(i.getLogAddress()));
-                        streamCache.put(stream, currentSet);
-                    }
+        // Rebuild the contiguous tail and the stream address sets from the recovered entries and trimmed ranges.
+        long[] addresses = recovered.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+        long tail = -1L;
+        int i = 0;
+        while (true) {
+            Range<Long> trimmed = trimmedRanges.rangeContaining(tail + 1);
+            if (trimmed != null) {
+                tail = trimmed.upperEndpoint() - 1;
+                while (i < addresses.length && addresses[i] <= tail) {
+                    i++;
                 }
-            }
-            else {
+            } else if (i < addresses.length && addresses[i] == tail + 1) {
+                for (UUID stream : recovered.get(addresses[i])) {
+                    streamIndex.append(stream, addresses[i]);
+                }
+                tail = addresses[i++];
+            } else {
                 break;
             }
         }
-        if (numEntries > 0) {
-            log.debug("Completed tail compaction, compacted {} entries, tail is now at {}", numEntries, contiguousTail);
+        tailTracker.setTail(tail);
+        for (; i < addresses.length; i++) {
+            tailTracker.markWritten(addresses[i], trimmedRanges.contains(addresses[i])
+                    ? Collections.emptySet() : recovered.get(addresses[i]));
         }
+
+        long duration = Math.max(1, System.currentTimeMillis() - startTime);
+        log.info("Recovery: recovered {} entries in {} ms ({} entries/s), contiguous tail is {}",
+                recovered.size(), duration, recovered.size() * 1000L / duration, getContiguousTail());
     }
 
-    /** Write the header for a Corfu log file.
+
+    /** Get the contiguous tail of the log unit.
      *
-     * @param fc            The filechannel to use.
-     * @param pointer       The pointer to increment to the start position.
-     * @param version       The version number to write to the header.
-     * @param flags         Flags, if any to write to the header.
-     * @throws IOException
+     * @return  The highest address below which every address has been written.
      */
-    public void writeHeader(FileChannel fc, AtomicLong pointer, int version, long flags)
-            throws IOException
-    {
-        LogFileHeader lfg = new LogFileHeader(version, flags);
-        ByteBuffer b = lfg.getBuffer();
-        pointer.getAndAdd(b.remaining());
-        fc.write(b);
-        fc.force(true);
+    public long getContiguousTail() {
+        return tailTracker.getTail();
     }
 
-    /** Read the header for a Corfu log file.
+    /** Get the highest address written to the log unit.
      *
-     * @param fc            The filechannel to use.
-     * @throws IOException
+     * @return  The highest address written, above which every address is unwritten.
      */
-    public LogFileHeader readHeader(FileChannel fc)
-            throws IOException
-    {
-        ByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, 0, 64);
-        return LogFileHeader.fromBuffer(b);
+    public long getMaxAddress() {
+        return tailTracker.getMaxAddress();
     }
 
-    /** Write a log entry to a file.
-     *
-     * @param fh            The file handle to use.
-     * @param address       The address of the entry.
-     * @param entry         The LogUnitEntry to write.
+    /** Advance the contiguous tail over any addresses which are waiting for it. The tail is advanced on
+     * every write, so this is only needed to force the tracker to catch up with addresses it could not fit
+     * in its ring when they were written.
      */
-    public void writeEntry(FileHandle fh, long address, LogUnitEntry entry)
-        throws IOException
-    {
-        ByteBuf metadataBuffer = Unpooled.buffer();
-        LogUnitMetadataMsg.bufferFromMap(metadataBuffer, entry.getMetadataMap());
-        int entrySize = entry.getBuffer().writerIndex() + metadataBuffer.writerIndex() + 24;
-        long pos = fh.getFilePointer().getAndAdd(entrySize);
-        ByteBuffer o = fh.getMapForRegion((int)pos, entrySize);
-        o.putInt(0x4C450000); // Flags
-        o.putLong(address); // the log unit address
-        o.putInt(entrySize); // Size
-        o.putInt(metadataBuffer.writerIndex()); // the metadata size
-        o.put(metadataBuffer.nioBuffer());
-        o.put(entry.buffer.nioBuffer());
-        metadataBuffer.release();
-        o.putShort(2, (short) 1); // written flag
-        o.flip();
+    public void compactTail() {
+        long prevTail = getContiguousTail();
+        tailTracker.advance();
+        log.debug("Completed tail compaction, tail is now at {} (was {})", getContiguousTail(), prevTail);
     }
 
-    /** Find a log entry in a file.
-     * @param fh            The file handle to use.
-     * @param address       The address of the entry.
-     * @return              The log unit entry at that address, or NULL if there was no entry.
+    /** Append an address to the address sets of the streams written at it. This is called by the tail
+     * tracker exactly once for each address, as the contiguous tail passes it.
+     *
+     * @param address   The address the tail has passed.
+     * @param streams   The streams written at that address.
      */
-    public LogUnitEntry readEntry(FileHandle fh, long address)
-        throws IOException
-    {
-        ByteBuffer o = fh.getMapForRegion(64, (int)fh.getChannel().size());
-        while (o.hasRemaining())
+    void appendToStreams(long address, Set<UUID> streams) {
+        for (UUID stream : streams)
         {
-            short magic = o.getShort();
-            if (magic != 0x4C45)
-            {
-                return null;
-            }
-            short flags = o.getShort();
-            long addr = o.getLong();
-            if (address == -1) {
-            fh.knownAddresses.add(addr); }
-            int size = o.getInt();
-            if (addr != address)
-            {
-                o.position(o.position() + size-16); //skip over (size-20 is what we haven't read).
-                log.trace("Read address {}, not match {}, skipping. (remain={})", addr, address, o.remaining());
-            }
-            else {
-                log.debug("Entry at {} hit, reading (size={}).", address, size);
-                if (flags % 2 == 0) {
-                    log.error("Read a log entry but the write was torn, aborting!");
-                    throw new IOException("Torn write detected!");
-                }
-                int metadataMapSize = o.getInt();
-                ByteBuf mBuf = Unpooled.wrappedBuffer(o.slice());
-                o.position(o.position() + metadataMapSize);
-                ByteBuffer dBuf = o.slice();
-                dBuf.limit(size - metadataMapSize - 24);
-                return new LogUnitEntry(address, Unpooled.wrappedBuffer(dBuf),
-                        LogUnitMetadataMsg.mapFromBuffer(mBuf),
-                        false,
-                        true);
-            }
+            streamIndex.append(stream, address);
         }
-        return null;
     }
 
-    /** Gets the file channel for a particular address, creating it
-     * if is not present in the map.
-     * @param address   The address to open.
-     * @return          The FileChannel for that address.
-     */
-    public FileHandle getChannelForAddress(long address)
-    {
-        return channelMap.computeIfAbsent(address/10000, a -> {
-            String filePath = prefix + a.toString();
-            try {
-                FileChannel fc = FileChannel.open(FileSystems.getDefault().getPath(filePath),
-                        EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE,
-                                StandardOpenOption.CREATE, StandardOpenOption.SPARSE));
-
-                AtomicLong fp = new AtomicLong();
-                writeHeader(fc, fp, 1, 0);
-                log.info("Opened new log file at {}", filePath);
-                FileHandle fh = new FileHandle(fp, fc);
-                // The first time we open a file we should read to the end, to load the
-                // map of entries we already have.
-                readEntry(fh, -1);
-                return fh;
-            }
-            catch (IOException e)
-            {
-                log.error("Error opening file {}", a, e);
-                throw new RuntimeException(e);
-            }
-        });
-    }
 
     @Override
     public void handleMessage(CorfuMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
@@ -442,7 +308,11 @@ public class LogUnitServer implements IServer {
             {
                 LogUnitFillHoleMsg m = (LogUnitFillHoleMsg) msg;
                 log.debug("Hole fill requested at {}", m.getAddress());
-                dataCache.get(m.getAddress(), (address) -> new LogUnitEntry(address));
+                dataCache.get(m.getAddress(), (address) -> {
+                    // Loads are not seen by the cache writer, but a filled hole counts as written.
+                    tailTracker.markWritten(address, Collections.emptySet());
+                    return new LogUnitEntry(address);
+                });
                 r.sendResponse(ctx, m, new CorfuMsg(CorfuMsg.CorfuMsgType.ACK));
             }
             break;
@@ -463,18 +333,35 @@ public class LogUnitServer implements IServer {
             case GET_CONTIGUOUS_TAIL: {
                 CorfuUUIDMsg m = (CorfuUUIDMsg) msg;
                 if (m.getId() == null) {
-                    r.sendResponse(ctx, m, new LogUnitTailMsg(contiguousTail));
+                    r.sendResponse(ctx, m, new LogUnitTailMsg(getContiguousTail(), getMaxAddress()));
                 } else {
-                    r.sendResponse(ctx, m, new LogUnitTailMsg(contiguousTail, streamCache.get(m.getId())));
+                    r.sendResponse(ctx, m, new LogUnitTailMsg(getContiguousTail(), getMaxAddress(),
+                            streamIndex.getAddresses(m.getId())));
                 }
             }
             break;
+            case STREAM_SUBSCRIBE: {
+                LogUnitSubscribeMsg m = (LogUnitSubscribeMsg) msg;
+                subscriptions.subscribe(m, ctx, r);
+                r.sendResponse(ctx, m, new CorfuMsg(CorfuMsg.CorfuMsgType.ERROR_OK));
+            }
+            break;
+            case STREAM_CREDIT: {
+                LogUnitSubscribeMsg m = (LogUnitSubscribeMsg) msg;
+                subscriptions.credit(m.getSubscriptionID(), m.getCredits());
+            }
+            break;
+            case STREAM_UNSUBSCRIBE: {
+                LogUnitSubscribeMsg m = (LogUnitSubscribeMsg) msg;
+                subscriptions.unsubscribe(m.getSubscriptionID());
+            }
+            break;
             case STREAM_READ: {
                 CorfuUUIDMsg m = (CorfuUUIDMsg) msg;
                 if (m.getId() == null) {
                     r.sendResponse(ctx, m, new CorfuMsg(CorfuMsg.CorfuMsgType.NACK));
                 } else {
-                    CorfuRangeMsg rm = new CorfuRangeMsg(streamCache.get(m.getId()));
+                    CorfuRangeMsg rm = new CorfuRangeMsg(streamIndex.getAddresses(m.getId()));
                     rm.copyBaseFields(m);
                     read(rm, ctx, r);
                 }
@@ -486,20 +373,27 @@ public class LogUnitServer implements IServer {
     @Override
     public void reset() {
         contiguousHead = 0L;
-        contiguousTail = -1L;
-        trimRange = TreeRangeSet.create();
-        seenAddressesTemp = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        try (LockUtils.AutoCloseRWLock l = new LockUtils.AutoCloseRWLock(trimRangeLock).writeLock()) {
+            trimRange.clear();
+        }
+        tailTracker = new TailTracker(TailTracker.DEFAULT_CAPACITY, this::appendToStreams);
+        subscriptions = new StreamSubscriptions(address -> dataCache.get(address),
+                Utils.getOption(opts, "--max-pending-pushes", Integer.class, 65_536));
 
         if (dataCache != null)
         {
             /** Free all references */
-            dataCache.asMap().values().parallelStream()
-                    .map(m -> m.buffer.release());
+            dataCache.asMap().values().forEach(m -> {
+                if (m.buffer != null) {
+                    m.buffer.release();
+                }
+            });
         }
 
         dataCache = Caffeine.newBuilder()
                 .<Long, LogUnitEntry>weigher((k, v) -> v.buffer == null ? 1 : v.buffer.readableBytes())
                 .maximumWeight(maxCacheSize)
+                .recordStats()
                 .removalListener(this::handleEviction)
                 .writer(new CacheWriter<Long, LogUnitEntry>() {
                     @Override
@@ -507,71 +401,37 @@ public class LogUnitServer implements IServer {
                         if (dataCache.getIfPresent(address) != null) {// || seenAddresses.contains(address)) {
                             throw new RuntimeException("overwrite");
                         }
-                        seenAddressesTemp.add(new Address(address, entry.getStreams()));
-                        if (!entry.isPersisted && prefix != null) { //don't persist an entry twice.
-                            //evict the data by getting the next pointer.
+                        if (!entry.isPersisted) { //don't persist an entry twice.
                             try {
-                                // make sure the entry doesn't currently exist...
-                                // (probably need a faster way to do this - high watermark?)
-                                FileHandle fh = getChannelForAddress(address);
-                                if (!fh.getKnownAddresses().contains(address)) {
-                                    fh.getKnownAddresses().add(address);
-                                    if ((Boolean) opts.get("--sync")) {
-                                        writeEntry(fh, address, entry);
-                                    } else {
-                                        CompletableFuture.runAsync(() -> {
-                                            try {
-                                                writeEntry(fh, address, entry);
-                                            } catch (Exception e) {
-                                                log.error("Disk_write[{}]: Exception", address, e);
-                                            }
-                                        });
-                                    }
-                                } else {
-                                    throw new Exception("overwrite");
-                                }
-                                log.info("Disk_write[{}]: Written to disk.", address);
+                                storage.append(address, entry);
                             } catch (Exception e) {
                                 log.error("Disk_write[{}]: Exception", address, e);
                                 throw new RuntimeException(e);
                             }
                         }
+                        // Only an address which was appended counts as written, so a failed append leaves the
+                        // tail and the stream slots as they were.
+                        tailTracker.markWritten(address, entry.getStreams());
                     }
 
                     @Override
                     public void delete(Long aLong, LogUnitEntry logUnitEntry, RemovalCause removalCause) {
                         // never need to delete
                     }
-                }).build(this::handleRetrieval);
-
-       streamCache = Caffeine.newBuilder()
-                .maximumSize(Utils.getOption(opts, "--stream-cache", Long.class, 5L))
-                .writer(new CacheWriter<UUID, RangeSet<Long>>() {
+                }).build(new CacheLoader<Long, LogUnitEntry>() {
                     @Override
-                    public void write(UUID streamID, RangeSet<Long> entry) {
-                        if (prefix != null) {
-                            try {
-                                ByteBuf b = Unpooled.buffer();
-                                Set<Range<Long>> rs = entry.asRanges();
-                                b.writeInt(rs.size());
-                                for (Range<Long> r : rs)
-                                {
-                                    Serializers
-                                            .getSerializer(Serializers.SerializerType.JAVA).serialize(r, b);
-                                }
-                                com.google.common.io.Files.write(b.array(), new File(prefix + File.pathSeparator +
-                                        "stream" + streamID.toString()));
-                            } catch (IOException ie) {
-                                log.error("IOException while writing stream range for stream {}", streamID);
-                            }
-                        }
+                    public LogUnitEntry load(Long address) throws Exception {
+                        return handleRetrieval(address);
                     }
 
                     @Override
-                    public void delete(UUID streamID, RangeSet<Long> entry, RemovalCause removalCause) {
-                        // never need to delete
+                    public Map<Long, LogUnitEntry> loadAll(Iterable<? extends Long> addresses) throws Exception {
+                        return storage.readAll(addresses);
                     }
-                }).build(this::handleStreamRetrieval);
+                });
+
+        streamIndex = new StreamIndex(prefix == null ? null : FileSystems.getDefault().getPath(prefix).getParent(),
+                Utils.getOption(opts, "--stream-cache", Long.class, 67_108_864L));
 
         // Hints are always in memory and never persisted.
         /*
@@ -579,36 +439,11 @@ public class LogUnitServer implements IServer {
                 .weakKeys()
                 .build();
 */
-        // Trim map is set to empty on start
-        // TODO: persist trim map - this is optional since trim is just a hint.
+        // Trim map is set to empty on start, and restored from the trim file if the log unit has a log path.
         trimMap = new ConcurrentHashMap<>();
     }
 
-    @SuppressWarnings("unchecked")
-    public RangeSet<Long> handleStreamRetrieval(UUID stream) {
-        if (prefix != null) {
-            Path p = FileSystems.getDefault().getPath(prefix + File.pathSeparator +
-                    "stream" + stream.toString());
-            try {
-                if (Files.exists(p)) {
-                    ByteBuf b = Unpooled.wrappedBuffer(Files.readAllBytes(p));
-                    RangeSet rs = TreeRangeSet.create();
-                    int ranges = b.readInt();
-                    for (int i = 0; i < ranges; i++)
-                    {
-                        Range r = (Range) Serializers
-                                .getSerializer(Serializers.SerializerType.JAVA).deserialize(b, null);
-                        rs.add(r);
-                    }
-                }
-            } catch (IOException ie) {
-                log.error("IO Exception reading from stream file {}", p);
-            }
-        }
-        return TreeRangeSet.create();
-    }
-
-    /** Retrieve the LogUnitEntry from disk, given an address.
+    /** Retrieve the LogUnitEntry from the storage engine, given an address.
      *
      * @param address   The address to retrieve the entry from.
      * @return          The log unit entry to retrieve into the cache.
@@ -616,40 +451,42 @@ public class LogUnitServer implements IServer {
      *                  the read() and write(). Any address that cannot be retrieved should be returned as
      *                  unwritten (null).
      */
-    public synchronized LogUnitEntry handleRetrieval(Long address) {
+    public LogUnitEntry handleRetrieval(Long address) {
         log.trace("Retrieve[{}]", address);
-        if (prefix == null)
-        {
-            log.trace("This is an in-memory log unit, but a load was requested.");
-            return null;
-        }
-        FileHandle fh = getChannelForAddress(address);
         try {
-            log.info("Got header {}", readHeader(fh.getChannel()));
-            return readEntry(getChannelForAddress(address), address);
+            return storage.read(address);
         } catch (Exception e)
         {
             throw new RuntimeException(e);
         }
     }
 
-    public synchronized void handleEviction(Long address, LogUnitEntry entry, RemovalCause cause) {
+    public void handleEviction(Long address, LogUnitEntry entry, RemovalCause cause) {
         log.trace("Eviction[{}]: {}", address, cause);
         if (entry.buffer != null) {
-            if (prefix == null) {
-                log.warn("This is an in-memory log unit, data@{} will be trimmed and lost due to {}!", address, cause);
-                trimRange.add(Range.closed(address, address));
-            }
             // Free the internal buffer once the data has been evicted (in the case the server is not sync).
             entry.buffer.release();
         }
     }
 
+    /** Trim an address whose entry the storage engine has dropped, because it has run out of space.
+     *
+     * The address is trimmed at once, so reads answer it as trimmed, but its cached entry is invalidated by the
+     * loss executor, since this is called from within the cache writer, and modifying the cache from there could
+     * deadlock.
+     *
+     * @param address   The address of the lost entry.
+     */
+    public void handleLoss(long address) {
+        addTrimmed(Range.closedOpen(address, address + 1));
+        lossExecutor.execute(() -> dataCache.invalidate(address));
+    }
+
     /** Service an incoming read request. */
     public void read(LogUnitReadRequestMsg msg, ChannelHandlerContext ctx, IServerRouter r)
     {
         log.trace("Read[{}]", msg.getAddress());
-        if (trimRange.contains (msg.getAddress()))
+        if (isTrimmed(msg.getAddress()))
         {
             r.sendResponse(ctx, msg, new LogUnitReadResponseMsg(ReadResultType.TRIMMED));
         }
@@ -669,21 +506,37 @@ public class LogUnitServer implements IServer {
         }
     }
 
-    /** Service an incoming ranged read request. */
+    /** Service an incoming ranged read request. The addresses are read in chunks of at most READ_RANGE_CHUNK,
+     * each loaded from the storage engine with a single batched read, and the entries of each chunk are sent
+     * in a response of their own, so that a read of a large range never holds the whole range.
+     */
     public void read(CorfuRangeMsg msg, ChannelHandlerContext ctx, IServerRouter r)
     {
         log.trace("ReadRange[{}]", msg.getRanges());
-        Set<Long> total = new HashSet<>();
-        for (Range<Long> range : msg.getRanges().asRanges())
-        {
-            total.addAll(Utils.discretizeRange(range));
-        }
-
-        Map<Long, LogUnitEntry> e = dataCache.getAll(total);
-        Map<Long, LogUnitReadResponseMsg> o = new ConcurrentHashMap<>();
-        e.entrySet().parallelStream()
-                .forEach(rv -> o.put(rv.getKey(), new LogUnitReadResponseMsg(rv.getValue())));
-        r.sendResponse(ctx, msg, new LogUnitReadRangeResponseMsg(o));
+        PrimitiveIterator.OfLong addresses = Utils.rangeSetStream(msg.getRanges()).iterator();
+        List<Long> chunk = new ArrayList<>(READ_RANGE_CHUNK);
+        boolean last;
+        do {
+            chunk.clear();
+            while (chunk.size() < READ_RANGE_CHUNK && addresses.hasNext())
+            {
+                chunk.add(addresses.nextLong());
+            }
+            last = !addresses.hasNext();
+            Map<Long, LogUnitEntry> entries = chunk.isEmpty() ? Collections.emptyMap() : dataCache.getAll(chunk);
+            Map<Long, LogUnitReadResponseMsg> o = new LinkedHashMap<>();
+            for (Long address : chunk)
+            {
+                LogUnitEntry e = entries.get(address);
+                if (e != null) {
+                    o.put(address, new LogUnitReadResponseMsg(e));
+                }
+            }
+            // Chunks without entries are not sent, except the last, which completes the read.
+            if (last || !o.isEmpty()) {
+                r.sendResponse(ctx, msg, new LogUnitReadRangeResponseMsg(o, last));
+            }
+        } while (!last);
     }
 
     /** Service an incoming write request. */
@@ -691,20 +544,39 @@ public class LogUnitServer implements IServer {
     {
         long address = msg.getAddress();
         log.trace("Write[{}]", address);
-        //TODO: locking of trimRange.
-        if (trimRange.contains (address))
+        if (isTrimmed(address))
         {
             r.sendResponse(ctx, msg, new CorfuMsg(CorfuMsg.CorfuMsgType.ERROR_TRIMMED));
         }
         else {
+            CorfuMsg.CorfuMsgType rankError = msg.getRank() > 0 ? checkRank(address, msg.getRank()) : null;
+            if (rankError != null) {
+                log.debug("Write[{}]: rejected write of rank {} with {}", address, msg.getRank(), rankError);
+                msg.getData().release();
+                r.sendResponse(ctx, msg, new CorfuMsg(rankError));
+                return;
+            }
             // The payload in the message is a view of a larger buffer allocated
-            // by netty, thus direct memory can leak. Copy the view and release the
-            // underlying buffer
-            LogUnitEntry e = new LogUnitEntry(address, msg.getData().copy(), msg.getMetadataMap(), false);
-            msg.getData().release();
+            // by netty, thus direct memory can leak. Copy the view into a buffer
+            // from the pooled off-heap allocator and release the underlying buffer.
+            // The cache holds the only reference to the copy until it is read.
+            ByteBuf data = msg.getData();
+            ByteBuf copy = PooledByteBufAllocator.DEFAULT.directBuffer(data.readableBytes());
+            copy.writeBytes(data);
+            data.release();
+            LogUnitEntry e = new LogUnitEntry(address, copy, msg.getMetadataMap(), false);
             try {
                 dataCache.put(e.getAddress(), e);
-                r.sendResponse(ctx, msg, new CorfuMsg(CorfuMsg.CorfuMsgType.ERROR_OK));
+                // Only acknowledge the write once the storage engine has made it durable.
+                storage.sync(address, e.getBuffer().readableBytes())
+                        .whenComplete((v, ex) -> {
+                            if (ex == null) {
+                                r.sendResponse(ctx, msg, new CorfuMsg(CorfuMsg.CorfuMsgType.ERROR_OK));
+                                subscriptions.written(address, e.getStreams());
+                            } else {
+                                log.error("Write[{}]: Failed to sync write, not acknowledging.", address, ex);
+                            }
+                        });
             } catch (Exception ex)
             {
                 r.sendResponse(ctx, msg, new CorfuMsg(CorfuMsg.CorfuMsgType.ERROR_OVERWRITE));
@@ -713,6 +585,31 @@ public class LogUnitServer implements IServer {
         }
     }
 
+    /** Check whether a ranked write may proceed. Ranked writes are used by quorum replication to repair replicas
+     * which missed a write. A ranked write replaces a hole of a lower rank, which is only kept in memory, but data
+     * is durable and is never replaced.
+     *
+     * @param address   The address of the write.
+     * @param rank      The rank of the write.
+     * @return          ERROR_RANK if the address holds an entry of an equal or higher rank, ERROR_OVERWRITE if it
+     *                  holds data of a lower rank, or null if the write may proceed.
+     */
+    CorfuMsg.CorfuMsgType checkRank(long address, long rank)
+    {
+        LogUnitEntry existing = dataCache.getIfPresent(address);
+        if (existing == null) {
+            return null;
+        }
+        if (existing.getRank() >= rank) {
+            return CorfuMsg.CorfuMsgType.ERROR_RANK;
+        }
+        if (existing.isHole() && dataCache.asMap().remove(address, existing)) {
+            log.debug("Write[{}]: replacing hole with write of rank {}", address, rank);
+            return null;
+        }
+        return CorfuMsg.CorfuMsgType.ERROR_OVERWRITE;
+    }
+
     public void runGC()
     {
         Thread.currentThread().setName("LogUnit-GC");
@@ -731,7 +628,7 @@ public class LogUnitServer implements IServer {
         log.info("Garbage collector starting...");
         long freedEntries = 0;
 
-        log.trace("Trim range is {}", trimRange);
+        log.trace("Trim range is {}", getTrimmedRanges());
 
         /* Pick a non-compacted region or just scan the cache */
         Map<Long, LogUnitEntry> map = dataCache.asMap();
@@ -739,49 +636,165 @@ public class LogUnitServer implements IServer {
         for (long address : addresses)
         {
             LogUnitEntry buffer = dataCache.getIfPresent(address);
-            if (buffer != null)
+            if (buffer != null && isTrimmable(address, buffer.getStreams()))
             {
-                Set<UUID> streams = buffer.getStreams();
-                // this is a normal entry
-                if (streams.size() > 0) {
-                    boolean trimmable = true;
-                    for (java.util.UUID stream : streams)
-                    {
-                        Long trimMark = trimMap.getOrDefault(stream, null);
-                        // if the stream has not been trimmed, or has not been trimmed to this point
-                        if (trimMark == null || address > trimMark) {
-                            trimmable = false;
-                            break;
-                        }
-                        // it is not trimmable.
-                    }
-                    if (trimmable) {
-                        log.trace("Trimming entry at {}", address);
-                        trimEntry(address, streams, buffer);
-                        freedEntries++;
-                    }
-                }
-                else {
-                    //this is an entry which belongs in all streams
-                }
+                log.trace("Trimming entry at {}", address);
+                trimEntry(address, buffer.getStreams(), buffer);
+                freedEntries++;
             }
         }
 
+        freedEntries += storage.trim(getContiguousTail(), this::isTrimmable, address -> {
+            addTrimmed(Range.closedOpen(address, address + 1));
+            dataCache.invalidate(address);
+        });
+
+        if (prefix != null) {
+            writeTrimState();
+            streamIndex.flush();
+        }
+
         log.info("Garbage collection pass complete. Freed {} entries", freedEntries);
+        log.info("Data cache: {} entries, {}", dataCache.estimatedSize(), getCacheStats());
+        return true;
+    }
+
+    /** Check whether an entry can be trimmed, which is the case if every stream it belongs to has been
+     * trimmed past its address. Entries which belong to no stream (entries in all streams) are never trimmed.
+     *
+     * @param address   The address of the entry.
+     * @param streams   The streams the entry belongs to.
+     * @return          True, if the entry can be trimmed.
+     */
+    boolean isTrimmable(long address, Set<UUID> streams)
+    {
+        if (streams.size() == 0) {
+            return false;
+        }
+        for (UUID stream : streams)
+        {
+            Long trimMark = trimMap.get(stream);
+            // if the stream has not been trimmed, or has not been trimmed to this point
+            if (trimMark == null || address > trimMark) {
+                return false;
+            }
+        }
         return true;
     }
 
     public void trimEntry(long address, Set<java.util.UUID> streams, LogUnitEntry entry)
     {
         // Add this entry to the trimmed range map.
-        trimRange.add(Range.closed(address, address));
-        // Invalidate this entry from the cache. This will cause the CacheLoader to free the entry from the disk
-        // assuming the entry is back by disk
+        addTrimmed(Range.closedOpen(address, address + 1));
+        // Invalidate this entry from the cache, which frees any references the buffer might have.
+        // The space on disk is reclaimed when the log file containing the entry is compacted.
         dataCache.invalidate(address);
-        //and free any references the buffer might have
-        if (entry.getBuffer() != null)
+    }
+
+
+    /** Check whether an address has been trimmed.
+     *
+     * @param address   The address to check.
+     * @return          True, if the address is in the trim range.
+     */
+    boolean isTrimmed(long address)
+    {
+        try (LockUtils.AutoCloseRWLock l = new LockUtils.AutoCloseRWLock(trimRangeLock).readLock()) {
+            return trimRange.contains(address);
+        }
+    }
+
+    /** Add a range of addresses to the trim range.
+     *
+     * @param range     The range of trimmed addresses.
+     */
+    void addTrimmed(Range<Long> range)
+    {
+        try (LockUtils.AutoCloseRWLock l = new LockUtils.AutoCloseRWLock(trimRangeLock).writeLock()) {
+            trimRange.add(range);
+        }
+    }
+
+    /** Get a snapshot of the trim range.
+     *
+     * @return          An immutable copy of the trim range.
+     */
+    RangeSet<Long> getTrimmedRanges()
+    {
+        try (LockUtils.AutoCloseRWLock l = new LockUtils.AutoCloseRWLock(trimRangeLock).readLock()) {
+            return ImmutableRangeSet.copyOf(trimRange);
+        }
+    }
+
+    /** Persist the trim map and the trim range.
+     *
+     * The trim state is written to a temporary file, which then replaces the previous state. The file contains
+     * the number of trimmed streams, followed by the stream ID(16) and trim prefix(8) of each stream, then the
+     * number of trimmed ranges, followed by the start (inclusive) and end (exclusive) of each range.
+     */
+    public synchronized void writeTrimState()
+    {
+        Map<UUID, Long> trimMapCopy = new HashMap<>(trimMap);
+        Set<Range<Long>> ranges = getTrimmedRanges().asRanges();
+        ByteBuffer b = ByteBuffer.allocate(8 + trimMapCopy.size() * 24 + ranges.size() * 16);
+        b.putInt(trimMapCopy.size());
+        trimMapCopy.forEach((stream, trimPrefix) -> {
+            b.putLong(stream.getMostSignificantBits());
+            b.putLong(stream.getLeastSignificantBits());
+            b.putLong(trimPrefix);
+        });
+        b.putInt(ranges.size());
+        for (Range<Long> r : ranges)
         {
-            entry.getBuffer().release();
+            b.putLong(r.lowerEndpoint());
+            b.putLong(r.upperEndpoint());
+        }
+        b.flip();
+        Path path = getTrimStatePath();
+        Path tmp = path.resolveSibling("trim.tmp");
+        try {
+            try (FileChannel fc = FileChannel.open(tmp, EnumSet.of(StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+                while (b.hasRemaining()) {
+                    fc.write(b);
+                }
+                fc.force(true);
+            }
+            Files.move(tmp, path,
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ie) {
+            log.error("Failed to persist trim state", ie);
+        }
+    }
+
+    /** Get the path of the file which holds the trim state, in the log directory. */
+    Path getTrimStatePath()
+    {
+        return FileSystems.getDefault().getPath(prefix).resolveSibling("trim");
+    }
+
+    /** Load the trim map and the trim range persisted by writeTrimState(). */
+    public void loadTrimState()
+    {
+        Path p = getTrimStatePath();
+        if (!Files.exists(p)) {
+            return;
+        }
+        try {
+            ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(p));
+            int streams = b.getInt();
+            for (int i = 0; i < streams; i++)
+            {
+                trimMap.put(new UUID(b.getLong(), b.getLong()), b.getLong());
+            }
+            int ranges = b.getInt();
+            for (int i = 0; i < ranges; i++)
+            {
+                addTrimmed(Range.closedOpen(b.getLong(), b.getLong()));
+            }
+            log.info("Loaded trim state with {} streams and {} trimmed ranges", streams, ranges);
+        } catch (IOException ie) {
+            log.error("Failed to load trim state", ie);
         }
     }
 
@@ -790,11 +803,26 @@ public class LogUnitServer implements IServer {
      */
     @Override
     public void shutdown() {
-        scheduler.shutdownNow();
+        // Stop the garbage collector, which would otherwise keep the process alive.
+        running.set(false);
+        gcThread.interrupt();
+        lossExecutor.shutdownNow();
+        storage.close();
+        if (prefix != null) {
+            streamIndex.flush();
+        }
+    }
+
+    /** Get the statistics of the data cache: hits, misses, loads from disk and evictions.
+     *
+     * @return  A snapshot of the data cache statistics.
+     */
+    public CacheStats getCacheStats() {
+        return dataCache.stats();
     }
 
     @VisibleForTesting
     LoadingCache<Long, LogUnitEntry> getDataCache(){
         return dataCache;
     }
-}
+}
\ No newline at end of file
@@ -0,0 +1,124 @@
+package org.corfudb.infrastructure;
+
+import org.corfudb.infrastructure.LogUnitServer.LogUnitEntry;
+import org.corfudb.runtime.exceptions.OverwriteException;
+import org.corfudb.util.Utils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiPredicate;
+import java.util.function.LongConsumer;
+
+/**
+ * A storage engine, which stores the entries of a log unit by address.
+ *
+ * The log unit server serves reads and writes through its cache. It appends entries to the storage engine as they
+ * are written, reads entries which are not in the cache from it, and asks it to reclaim the space used by trimmed
+ * entries during garbage collection. Implementations must be thread-safe.
+ *
+ * The log unit uses a MappedLogUnitStorage if it has a log path, and an InMemoryLogUnitStorage if it runs in memory.
+ * Another engine can be selected with --storage, which takes the name of a class which implements this interface
+ * and has a public constructor which takes the options map.
+ */
+public interface LogUnitStorage {
+
+    /** A listener which is called for each entry found while recovering the storage engine. */
+    @FunctionalInterface
+    interface RecoveryListener {
+        void recovered(long address, Set<UUID> streams);
+    }
+
+    /** Append an entry. Depending on the engine, the entry may only be durable once sync() completes.
+     * The caller keeps its reference to the buffer of the entry, so an engine which uses the buffer
+     * after append returns must retain it.
+     *
+     * @param address   The address of the entry.
+     * @param entry     The entry to append.
+     * @throws OverwriteException   If an entry was already appended at the address.
+     */
+    void append(long address, LogUnitEntry entry)
+            throws IOException, OverwriteException;
+
+    /** Read an entry.
+     *
+     * @param address   The address of the entry.
+     * @return          The entry at the address, or null if there is no entry. The caller owns the
+     *                  buffer of the entry, and must release it.
+     */
+    LogUnitEntry read(long address)
+            throws IOException;
+
+    /** Read a batch of entries. Engines can override this to order the reads by their layout.
+     *
+     * @param addresses The addresses of the entries.
+     * @return          A map of the entries which were found, by address.
+     */
+    default Map<Long, LogUnitEntry> readAll(Iterable<? extends Long> addresses)
+            throws IOException
+    {
+        Map<Long, LogUnitEntry> entries = new HashMap<>();
+        for (Long address : addresses)
+        {
+            LogUnitEntry entry = read(address);
+            if (entry != null) {
+                entries.put(address, entry);
+            }
+        }
+        return entries;
+    }
+
+    /** Make an appended entry durable.
+     *
+     * @param address   The address of the entry.
+     * @param bytes     The size of the entry.
+     * @return          A future which completes once the entry is durable.
+     */
+    CompletableFuture<Void> sync(long address, long bytes);
+
+    /** Trim the entries which can be trimmed, and reclaim the space they use. Only entries at or below the
+     * contiguous tail, which will no longer be written to, are considered.
+     *
+     * @param tail          The contiguous tail of the log unit.
+     * @param isTrimmable   A predicate which is given the address and streams of an entry, and decides
+     *                      whether the entry can be trimmed.
+     * @param trimmed       A consumer which is given the address of every entry this engine trims.
+     * @return              The number of entries trimmed.
+     */
+    long trim(long tail, BiPredicate<Long, Set<UUID>> isTrimmable, LongConsumer trimmed);
+
+    /** Recover the entries of the storage engine, for example after a restart.
+     *
+     * @param listener  The listener to call with each recovered entry. It may be called concurrently.
+     */
+    void recover(RecoveryListener listener);
+
+    /** Make all appended entries durable, and release the resources of the engine. */
+    void close();
+
+    /** Create the storage engine for a log unit.
+     *
+     * @param opts      The options map of the log unit.
+     * @param lost      A consumer which is given the address of every entry an in-memory engine drops
+     *                  because it has run out of space.
+     * @return          The storage engine selected by the options.
+     */
+    static LogUnitStorage fromOptions(Map<String, Object> opts, LongConsumer lost)
+    {
+        if (opts.get("--storage") != null) {
+            try {
+                return (LogUnitStorage) Class.forName(opts.get("--storage").toString())
+                        .getConstructor(Map.class).newInstance(opts);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Unable to create storage engine " + opts.get("--storage"), e);
+            }
+        }
+        if ((Boolean) opts.get("--memory")) {
+            return new InMemoryLogUnitStorage(Utils.parseLong(opts.get("--max-cache")), lost);
+        }
+        return new MappedLogUnitStorage(opts);
+    }
+}
@@ -0,0 +1,835 @@
+package org.corfudb.infrastructure;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.infrastructure.LogUnitServer.LogUnitEntry;
+import org.corfudb.protocols.wireprotocol.IMetadata;
+import org.corfudb.protocols.wireprotocol.LogUnitMetadataMsg;
+import org.corfudb.runtime.exceptions.OverwriteException;
+import org.corfudb.util.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.LongConsumer;
+
+/**
+ * A storage engine which stores entries in memory mapped log files.
+ *
+ * Every 10,000 log entries are written to individual files (logs), which are represented as FileHandles. Each
+ * FileHandle contains a pointer to the tail of the file, a file channel which is memory mapped in fixed size windows
+ * (--map-window), and a set of addresses known to be in the file. Offsets in a file are longs, so a file is not
+ * limited to the size of a single mapping, and an entry which does not fit in a single window is written and read
+ * through the file channel. To write an entry, the pointer to the tail is first extended to the length of the entry,
+ * and the entry is added to the set of known addresses. A header is written, which consists of the ASCII characters
+ * LE, followed by a set of flags, the log unit address, the size of the entry, then the metadata size, metadata and
+ * finally the entry itself. When the entry is complete, a written flag is set in the flags field.
+ *
+ * Next to each log file, an index file (log<N>.index) records the address, offset and size of each entry, so that
+ * a read can locate an entry without scanning the log file. The index is loaded the first time a log file is opened,
+ * and any entries missing from it are recovered by scanning the log file from the end of the indexed entries.
+ *
+ * If the sync flag (--sync) is set, entries are written before append returns, and made durable by a group
+ * committer, which syncs the files written to once per batch (--commit-window, --commit-batch). Otherwise, entries
+ * are written in the background. Log files which are sealed and whose ratio of live entries has fallen below
+ * --reclaim-ratio are rewritten with only their live entries, or deleted if none remain, at a rate limited by
+ * --reclaim-rate.
+ */
+@Slf4j
+public class MappedLogUnitStorage implements LogUnitStorage {
+
+    /** The number of addresses stored in each log file. */
+    static final long ADDRESSES_PER_FILE = 10000;
+
+    /** The size of a record in the address index: the address(8), the offset(8) and the size(4) of the entry. */
+    static final int INDEX_RECORD_SIZE = 20;
+
+    @Data
+    class FileHandle {
+        final AtomicLong filePointer;
+        final FileChannel channel;
+        /** The channel for the address index stored next to the log file. */
+        final FileChannel indexChannel;
+        /** The position the next index record will be appended at. */
+        final AtomicLong indexPointer = new AtomicLong();
+        final Set<Long> knownAddresses = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        /** A map from an address to the offset of its entry in the log file. */
+        final Map<Long, Long> addressIndex = new ConcurrentHashMap<>();
+        /** The addresses in the log file which have been trimmed, but not yet reclaimed. */
+        final Set<Long> trimmedAddresses = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        /** The windows of the log file which have been mapped, by window number. */
+        final Map<Long, MappedByteBuffer> windows = new ConcurrentHashMap<>();
+        /** The windows which have been written to since the last sync. */
+        final Set<Long> dirtyWindows = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+        /** Get a buffer for a region of the log file, backed by the mapped window which contains the region.
+         *
+         * @param offset    The offset of the region in the log file.
+         * @param size      The size of the region.
+         * @return          A buffer for the region, or null if the region does not fit in a single window.
+         */
+        public ByteBuffer getMapForRegion(long offset, int size)
+        {
+            long windowOffset = offset % mapWindowSize;
+            if (windowOffset + size > mapWindowSize)
+            {
+                return null;
+            }
+            ByteBuffer o = getWindow(offset / mapWindowSize).duplicate();
+            o.position((int) windowOffset);
+            o.limit((int) windowOffset + size);
+            return o.slice();
+        }
+
+        /** Read a region of the log file. If the region fits in a single mapped window, the
+         * returned buffer is backed by the mapping, otherwise the region is read into a new buffer.
+         *
+         * @param offset    The offset of the region in the log file.
+         * @param size      The size of the region.
+         * @return          A buffer containing the region, which may be shorter than size at the end of the file.
+         */
+        public ByteBuffer readRegion(long offset, int size)
+            throws IOException
+        {
+            ByteBuffer o = getMapForRegion(offset, size);
+            if (o == null)
+            {
+                o = ByteBuffer.allocate(size);
+                while (o.hasRemaining() && channel.read(o, offset + o.position()) > 0) {}
+                o.flip();
+            }
+            return o;
+        }
+
+        /** Write a buffer to the log file through the file channel.
+         *
+         * @param offset    The offset to write at.
+         * @param b         The buffer to write.
+         */
+        public void writeRegion(long offset, ByteBuffer b)
+            throws IOException
+        {
+            int start = b.position();
+            while (b.hasRemaining())
+            {
+                channel.write(b, offset + b.position() - start);
+            }
+        }
+
+        /** Make all writes to the log file and its index durable. */
+        public void sync()
+            throws IOException
+        {
+            for (Long window : dirtyWindows)
+            {
+                dirtyWindows.remove(window);
+                windows.get(window).force();
+            }
+            channel.force(false);
+            indexChannel.force(false);
+        }
+
+        /** Close the log file and its index, and drop the references to the mapped windows. */
+        public void close()
+            throws IOException
+        {
+            windows.clear();
+            channel.close();
+            indexChannel.close();
+        }
+
+        private MappedByteBuffer getWindow(long window) {
+            return windows.computeIfAbsent(window, w -> {
+                try {
+                    return channel.map(FileChannel.MapMode.READ_WRITE, w * mapWindowSize, mapWindowSize);
+                }
+                catch (IOException ie)
+                {
+                    log.error("Failed to map window {} for channel.", w);
+                    throw new RuntimeException(ie);
+                }
+            });
+        }
+    }
+
+    @Data
+    static class LogFileHeader {
+        static final String magic = "CORFULOG";
+        final int version;
+        final long flags;
+        ByteBuffer getBuffer()
+        {
+            ByteBuffer b = ByteBuffer.allocate(64);
+            // 0: "CORFULOG" header(8)
+            b.put(magic.getBytes(Charset.forName("UTF-8")),0, 8);
+            // 8: Version number(4)
+            b.putInt(version);
+            // 12: Flags (8)
+            b.putLong(flags);
+            // 20: Reserved (54)
+            b.position(64);
+            b.flip();
+            return b;
+        }
+        static LogFileHeader fromBuffer(ByteBuffer buffer)
+        {
+            byte[] bMagic = new byte[8];
+            buffer.get(bMagic, 0, 8);
+            if (!new String(bMagic).equals(magic))
+            {
+                log.warn("Encountered invalid magic, expected {}, got {}", magic, new String(bMagic));
+                throw new RuntimeException("Invalid header magic!");
+            }
+            return new LogFileHeader(buffer.getInt(), buffer.getLong());
+        }
+    }
+
+    /** The log file prefix. */
+    final String prefix;
+
+    /** A map mapping to file channels. */
+    final Map<Long, FileHandle> channelMap = new ConcurrentHashMap<>();
+
+    /** The size of each window of a log file which is memory mapped. */
+    final long mapWindowSize;
+
+    /** Whether entries are written before append returns. */
+    final boolean sync;
+
+    /** The ratio of live (untrimmed) entries below which a log file is compacted. */
+    final double reclaimRatio;
+
+    /** Limits the rate, in bytes per second, at which compaction copies entries. */
+    final RateLimiter reclaimLimiter;
+
+    /**
+     * In sync mode, makes writes to the log files durable in batches before they are acknowledged.
+     * Null if not in sync mode.
+     */
+    GroupCommitter<FileHandle> groupCommitter;
+
+    /**
+     * A scheduler, which is used to close log files which have been replaced.
+     */
+    private final ScheduledExecutorService scheduler =
+            Executors.newScheduledThreadPool(
+                    1,
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("LogUnit-Storage-%d")
+                            .build());
+
+    public MappedLogUnitStorage(Map<String, Object> opts)
+    {
+        prefix = opts.get("--log-path") + File.separator + "log";
+        mapWindowSize = Utils.getOption(opts, "--map-window", Long.class, 67_108_864L);
+        if (mapWindowSize <= 0 || mapWindowSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Map window size must be between 1 and " + Integer.MAX_VALUE);
+        }
+        reclaimRatio = Double.parseDouble(opts.getOrDefault("--reclaim-ratio", "0.5").toString());
+        reclaimLimiter = RateLimiter.create(Utils.getOption(opts, "--reclaim-rate", Long.class, 33_554_432L));
+        sync = Utils.getOption(opts, "--sync", Boolean.class, false);
+        if (sync) {
+            groupCommitter = new GroupCommitter<>("LogUnit-GroupCommit", FileHandle::sync,
+                Utils.getOption(opts, "--commit-window", Long.class, 500L),
+                Utils.getOption(opts, "--commit-batch", Long.class, 4_194_304L));
+        }
+    }
+
+    /** Recover the log files on disk.
+     *
+     * Every log file is opened in parallel on a fork-join pool, which validates its header and loads (or rebuilds)
+     * its address index. The header of each entry is then checked for torn writes, and each intact entry is
+     * reported to the listener.
+     */
+    @Override
+    public void recover(RecoveryListener listener) {
+        File[] leftovers = new File(prefix).getParentFile().listFiles((dir, name) -> name.contains(".compact"));
+        if (leftovers != null) {
+            for (File f : leftovers) {
+                log.warn("Recovery: deleting incomplete compaction file {}", f);
+                f.delete();
+            }
+        }
+
+        File[] files = new File(prefix).getParentFile().listFiles((dir, name) ->
+                name.matches(new File(prefix).getName() + "[0-9]+"));
+        if (files == null || files.length == 0) {
+            return;
+        }
+
+        log.info("Recovery: starting recovery of {} log files", files.length);
+        AtomicLong filesDone = new AtomicLong();
+        AtomicLong entries = new AtomicLong();
+        AtomicLong tornEntries = new AtomicLong();
+        long progressInterval = Math.max(1, files.length / 10);
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            pool.submit(() -> Arrays.stream(files).parallel().forEach(f -> {
+                long fileNumber = Long.parseLong(f.getName().substring(new File(prefix).getName().length()));
+                FileHandle fh = getChannelForAddress(fileNumber * ADDRESSES_PER_FILE);
+                for (Long address : fh.getAddressIndex().keySet()) {
+                    try {
+                        LogUnitEntry entry = readEntry(fh, address);
+                        listener.recovered(address, entry.getStreams());
+                        entries.incrementAndGet();
+                    } catch (IOException ie) {
+                        log.warn("Recovery: skipping entry at address {}: {}", address, ie.getMessage());
+                        tornEntries.incrementAndGet();
+                    }
+                }
+                long done = filesDone.incrementAndGet();
+                if (done % progressInterval == 0) {
+                    log.info("Recovery: {}/{} log files recovered, {} entries", done, files.length,
+                            entries.get());
+                }
+            })).get();
+        } catch (InterruptedException | ExecutionException e) {
+            log.error("Recovery: failed to recover log files!", e);
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+        log.info("Recovery: recovered {} entries ({} torn) from {} log files", entries.get(), tornEntries.get(),
+                files.length);
+    }
+
+    @Override
+    public void append(long address, LogUnitEntry entry)
+        throws IOException, OverwriteException
+    {
+        FileHandle fh = getChannelForAddress(address);
+        if (!fh.getKnownAddresses().add(address)) {
+            throw new OverwriteException();
+        }
+        if (sync) {
+            writeEntry(fh, address, entry);
+        } else {
+            // The entry is written in the background, so hold a reference to its data until it is written.
+            entry.getBuffer().retain();
+            CompletableFuture.runAsync(() -> {
+                try {
+                    writeEntry(fh, address, entry);
+                } catch (Exception e) {
+                    log.error("Disk_write[{}]: Exception", address, e);
+                } finally {
+                    entry.getBuffer().release();
+                }
+            });
+        }
+    }
+
+    @Override
+    public LogUnitEntry read(long address)
+        throws IOException
+    {
+        FileHandle fh = getExistingChannelForAddress(address);
+        return fh == null ? null : readEntry(fh, address);
+    }
+
+    /** {@inheritDoc}
+     *
+     * The entries are read in the order they are stored in each log file.
+     */
+    @Override
+    public Map<Long, LogUnitEntry> readAll(Iterable<? extends Long> addresses)
+        throws IOException
+    {
+        Map<Long, List<Long>> byFile = new TreeMap<>();
+        for (Long address : addresses)
+        {
+            byFile.computeIfAbsent(address / ADDRESSES_PER_FILE, k -> new ArrayList<>()).add(address);
+        }
+        Map<Long, LogUnitEntry> entries = new HashMap<>();
+        for (List<Long> fileAddresses : byFile.values())
+        {
+            FileHandle fh = getExistingChannelForAddress(fileAddresses.get(0));
+            if (fh == null) {
+                continue;
+            }
+            fileAddresses.sort(Comparator.comparing(a -> fh.getAddressIndex().getOrDefault(a, -1L)));
+            for (Long address : fileAddresses)
+            {
+                LogUnitEntry entry = readEntry(fh, address);
+                if (entry != null) {
+                    entries.put(address, entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public CompletableFuture<Void> sync(long address, long bytes)
+    {
+        if (groupCommitter == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return groupCommitter.commit(getChannelForAddress(address), bytes);
+    }
+
+    /** Write the header for a Corfu log file.
+     *
+     * @param fc            The filechannel to use.
+     * @param pointer       The pointer to increment to the start position.
+     * @param version       The version number to write to the header.
+     * @param flags         Flags, if any to write to the header.
+     * @throws IOException
+     */
+    public void writeHeader(FileChannel fc, AtomicLong pointer, int version, long flags)
+            throws IOException
+    {
+        LogFileHeader lfg = new LogFileHeader(version, flags);
+        ByteBuffer b = lfg.getBuffer();
+        pointer.getAndAdd(b.remaining());
+        fc.write(b);
+        fc.force(true);
+    }
+
+    /** Read the header for a Corfu log file.
+     *
+     * @param fc            The filechannel to use.
+     * @throws IOException
+     */
+    public LogFileHeader readHeader(FileChannel fc)
+            throws IOException
+    {
+        ByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, 0, 64);
+        return LogFileHeader.fromBuffer(b);
+    }
+
+    /** Write a log entry to a file.
+     *
+     * @param fh            The file handle to use.
+     * @param address       The address of the entry.
+     * @param entry         The LogUnitEntry to write.
+     */
+    public void writeEntry(FileHandle fh, long address, LogUnitEntry entry)
+        throws IOException
+    {
+        ByteBuf metadataBuffer = Unpooled.buffer();
+        LogUnitMetadataMsg.bufferFromMap(metadataBuffer, entry.getMetadataMap());
+        int entrySize = entry.getBuffer().writerIndex() + metadataBuffer.writerIndex() + 24;
+        long pos = fh.getFilePointer().getAndAdd(entrySize);
+        ByteBuffer o = fh.getMapForRegion(pos, entrySize);
+        boolean mapped = o != null;
+        if (!mapped) {
+            // The entry spans more than one mapped window, so it is written through the file channel.
+            o = ByteBuffer.allocate(entrySize);
+        }
+        o.putInt(0x4C450000); // Flags
+        o.putLong(address); // the log unit address
+        o.putInt(entrySize); // Size
+        o.putInt(metadataBuffer.writerIndex()); // the metadata size
+        o.put(metadataBuffer.nioBuffer());
+        o.put(entry.buffer.nioBuffer());
+        metadataBuffer.release();
+        if (mapped) {
+            o.putShort(2, (short) 1); // written flag
+            fh.getDirtyWindows().add(pos / mapWindowSize);
+        } else {
+            o.flip();
+            fh.writeRegion(pos, o);
+            ByteBuffer flag = ByteBuffer.allocate(2);
+            flag.putShort(0, (short) 1); // written flag
+            fh.writeRegion(pos + 2, flag);
+        }
+        writeIndexEntry(fh, address, pos, entrySize);
+        log.trace("Disk_write[{}]: Written to disk.", address);
+    }
+
+    /** Append a record to the address index of a log file.
+     *
+     * @param fh            The file handle to use.
+     * @param address       The address of the entry.
+     * @param offset        The offset of the entry in the log file.
+     * @param size          The size of the entry in the log file.
+     */
+    public void writeIndexEntry(FileHandle fh, long address, long offset, int size)
+        throws IOException
+    {
+        ByteBuffer b = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+        b.putLong(address);
+        b.putLong(offset);
+        b.putInt(size);
+        b.flip();
+        long pos = fh.getIndexPointer().getAndAdd(INDEX_RECORD_SIZE);
+        while (b.hasRemaining())
+        {
+            fh.getIndexChannel().write(b, pos + b.position());
+        }
+        fh.getAddressIndex().put(address, offset);
+    }
+
+    /** Load the address index of a log file. Any entries in the log file which are missing
+     * from the index (for example, if the index was lost or the server crashed before the
+     * index record was written) are scanned and appended to the index.
+     *
+     * @param fh            The file handle to load the index for.
+     */
+    public void loadIndex(FileHandle fh)
+        throws IOException
+    {
+        FileChannel ic = fh.getIndexChannel();
+        ByteBuffer b = ByteBuffer.allocate((int)(ic.size() - (ic.size() % INDEX_RECORD_SIZE)));
+        while (b.hasRemaining() && ic.read(b, b.position()) > 0) {}
+        b.flip();
+
+        long indexEnd = 0L;
+        long logEnd = 64L;
+        while (b.remaining() >= INDEX_RECORD_SIZE)
+        {
+            long address = b.getLong();
+            long offset = b.getLong();
+            int size = b.getInt();
+            if (!isEntryAt(fh, address, offset, size))
+            {
+                log.warn("Index record for address {} does not match the log file, rebuilding index from offset {}",
+                        address, logEnd);
+                break;
+            }
+            fh.getKnownAddresses().add(address);
+            fh.getAddressIndex().put(address, offset);
+            indexEnd += INDEX_RECORD_SIZE;
+            logEnd = Math.max(logEnd, offset + size);
+        }
+        // Drop any partially written or invalid records at the end of the index.
+        ic.truncate(indexEnd);
+        fh.getIndexPointer().set(indexEnd);
+        fh.getFilePointer().set(scanEntries(fh, logEnd));
+    }
+
+    /** Check whether the entry header at an offset matches the given address and size.
+     *
+     * @param fh            The file handle to use.
+     * @param address       The address the entry should contain.
+     * @param offset        The offset of the entry in the log file.
+     * @param size          The size the entry should have.
+     * @return              True, if the header at the offset matches.
+     */
+    boolean isEntryAt(FileHandle fh, long address, long offset, int size)
+        throws IOException
+    {
+        if (offset < 64 || offset + size > fh.getChannel().size())
+        {
+            return false;
+        }
+        ByteBuffer o = fh.readRegion(offset, 16);
+        return o.remaining() == 16 && o.getShort(0) == 0x4C45 && o.getLong(4) == address && o.getInt(12) == size;
+    }
+
+    /** Scan the entries of a log file starting at a given offset, adding each entry to the
+     * set of known addresses and to the address index.
+     *
+     * @param fh            The file handle to use.
+     * @param offset        The offset to start scanning from.
+     * @return              The offset after the last entry in the file.
+     */
+    long scanEntries(FileHandle fh, long offset)
+        throws IOException
+    {
+        long scanned = 0;
+        while (true)
+        {
+            ByteBuffer o = fh.readRegion(offset, 16);
+            if (o.remaining() < 16 || o.getShort(0) != 0x4C45 || o.getInt(12) < 24)
+            {
+                break;
+            }
+            long addr = o.getLong(4);
+            int size = o.getInt(12);
+            fh.getKnownAddresses().add(addr);
+            writeIndexEntry(fh, addr, offset, size);
+            log.trace("Indexed address {} at offset {} (size={}).", addr, offset, size);
+            offset += size;
+            scanned++;
+        }
+        if (scanned > 0) {
+            log.info("Indexed {} entries missing from the index, log file ends at {}", scanned, offset);
+        }
+        return offset;
+    }
+
+    /** Find a log entry in a file.
+     * @param fh            The file handle to use.
+     * @param address       The address of the entry.
+     * @return              The log unit entry at that address, or NULL if there was no entry.
+     */
+    public LogUnitEntry readEntry(FileHandle fh, long address)
+        throws IOException
+    {
+        Long offset = fh.getAddressIndex().get(address);
+        if (offset == null)
+        {
+            return null;
+        }
+        ByteBuffer h = fh.readRegion(offset, 16);
+        short magic = h.getShort();
+        short flags = h.getShort();
+        long addr = h.getLong();
+        int size = h.getInt();
+        if (magic != 0x4C45 || addr != address)
+        {
+            log.error("Index entry for address {} points to offset {} which contains address {}!",
+                    address, offset, addr);
+            throw new IOException("Index does not match log file!");
+        }
+        log.debug("Entry at {} hit, reading (size={}).", address, size);
+        if (flags % 2 == 0) {
+            log.error("Read a log entry but the write was torn, aborting!");
+            throw new IOException("Torn write detected!");
+        }
+        ByteBuffer o = fh.readRegion(offset, size);
+        o.position(16);
+        int metadataMapSize = o.getInt();
+        ByteBuf mBuf = Unpooled.wrappedBuffer(o.slice());
+        o.position(o.position() + metadataMapSize);
+        ByteBuffer dBuf = o.slice();
+        dBuf.limit(size - metadataMapSize - 24);
+        return new LogUnitEntry(address, Unpooled.wrappedBuffer(dBuf),
+                LogUnitMetadataMsg.mapFromBuffer(mBuf),
+                false,
+                true);
+    }
+
+    /** Read the streams of a log entry for compaction, without reading its payload. The bytes read are
+     * throttled by the reclaim rate, like the copies made by compaction.
+     * @param fh            The file handle to use.
+     * @param address       The address of the entry, which must be in the index of the file.
+     * @return              The streams the entry belongs to.
+     */
+    @SuppressWarnings("unchecked")
+    Set<UUID> readStreams(FileHandle fh, long address)
+        throws IOException
+    {
+        long offset = fh.getAddressIndex().get(address);
+        ByteBuffer h = fh.readRegion(offset, 20);
+        short magic = h.getShort();
+        short flags = h.getShort();
+        long addr = h.getLong();
+        h.getInt();
+        int metadataMapSize = h.getInt();
+        if (magic != 0x4C45 || addr != address || flags % 2 == 0)
+        {
+            throw new IOException("Entry at offset " + offset + " is not a complete entry for address " + address);
+        }
+        reclaimLimiter.acquire(20 + metadataMapSize);
+        ByteBuf mBuf = Unpooled.wrappedBuffer(fh.readRegion(offset + 20, metadataMapSize));
+        return (Set<UUID>) LogUnitMetadataMsg.mapFromBuffer(mBuf)
+                .getOrDefault(IMetadata.LogUnitMetadataType.STREAM, Collections.EMPTY_SET);
+    }
+
+    /** Gets the file channel for a particular address, creating it
+     * if is not present in the map.
+     * @param address   The address to open.
+     * @return          The FileChannel for that address.
+     */
+    public FileHandle getChannelForAddress(long address)
+    {
+        return channelMap.computeIfAbsent(address / ADDRESSES_PER_FILE, a -> openFile(prefix + a.toString()));
+    }
+
+    /** Gets the file channel for a particular address, without creating its log file if it does not exist, so
+     * that reads of a log file which was deleted once all of its entries were trimmed do not recreate it.
+     * Such addresses read as unwritten, and the log unit answers them as trimmed.
+     * @param address   The address to open.
+     * @return          The file handle for that address, or null if there is no log file for it.
+     */
+    FileHandle getExistingChannelForAddress(long address)
+    {
+        return channelMap.computeIfAbsent(address / ADDRESSES_PER_FILE, a ->
+                Files.exists(FileSystems.getDefault().getPath(prefix + a.toString()))
+                        ? openFile(prefix + a.toString()) : null);
+    }
+
+    /** Open a log file and its index, creating them if they do not exist.
+     *
+     * @param filePath  The path of the log file.
+     * @return          A FileHandle for the log file.
+     */
+    FileHandle openFile(String filePath)
+    {
+        try {
+            FileChannel fc = FileChannel.open(FileSystems.getDefault().getPath(filePath),
+                    EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE, StandardOpenOption.SPARSE));
+            FileChannel ic = FileChannel.open(FileSystems.getDefault().getPath(filePath + ".index"),
+                    EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE));
+
+            AtomicLong fp = new AtomicLong();
+            if (fc.size() == 0) {
+                writeHeader(fc, fp, 1, 0);
+                log.info("Opened new log file at {}", filePath);
+            } else {
+                log.info("Opened existing log file at {}, header {}", filePath, readHeader(fc));
+            }
+            FileHandle fh = new FileHandle(fp, fc, ic);
+            // The first time we open a file we load the index, so that we know which
+            // entries we already have and where they are.
+            loadIndex(fh);
+            return fh;
+        }
+        catch (IOException e)
+        {
+            log.error("Error opening file {}", filePath, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Reclaim the space used by trimmed entries in the log files.
+     *
+     * Only sealed log files (files whose addresses are all below the contiguous tail, and which will no
+     * longer be written to) are considered. If the ratio of live entries in a file falls below the reclaim ratio,
+     * the file is deleted if no live entries remain, otherwise the live entries are copied to a new file which
+     * replaces it. Copying is throttled by the reclaim rate, so that compaction does not starve foreground reads
+     * and writes. Deciding which entries are trimmable only reads their metadata, and is throttled in the same way.
+     */
+    @Override
+    public long trim(long tail, BiPredicate<Long, Set<UUID>> isTrimmable, LongConsumer trimmed)
+    {
+        long count = 0;
+        for (Long fileNumber : new TreeSet<>(channelMap.keySet()))
+        {
+            if ((fileNumber + 1) * ADDRESSES_PER_FILE - 1 > tail) {
+                break;
+            }
+            FileHandle fh = channelMap.get(fileNumber);
+            List<Long> live = new ArrayList<>();
+            for (Long address : fh.getAddressIndex().keySet())
+            {
+                if (fh.getTrimmedAddresses().contains(address)) {
+                    continue;
+                }
+                try {
+                    if (isTrimmable.test(address, readStreams(fh, address))) {
+                        fh.getTrimmedAddresses().add(address);
+                        trimmed.accept(address);
+                        count++;
+                        continue;
+                    }
+                } catch (IOException ie) {
+                    log.warn("Compaction: unable to read entry at address {}, keeping it", address, ie);
+                }
+                live.add(address);
+            }
+
+            int total = fh.getAddressIndex().size();
+            if (total == 0 || (double) live.size() / total >= reclaimRatio) {
+                continue;
+            }
+            try {
+                if (live.isEmpty()) {
+                    deleteLogFile(fileNumber, fh);
+                } else {
+                    rewriteLogFile(fileNumber, fh, live);
+                }
+            } catch (IOException ie) {
+                log.error("Compaction: failed to compact log file {}", fileNumber, ie);
+            }
+        }
+        return count;
+    }
+
+    /** Delete a log file which contains no live entries.
+     *
+     * @param fileNumber    The number of the log file.
+     * @param fh            The file handle of the log file.
+     */
+    void deleteLogFile(long fileNumber, FileHandle fh)
+        throws IOException
+    {
+        // The files are deleted before the handle is removed, so that a concurrent read either uses the
+        // handle or finds no log file, and never reopens the file before it is deleted.
+        Files.deleteIfExists(FileSystems.getDefault().getPath(prefix + fileNumber + ".index"));
+        Files.deleteIfExists(FileSystems.getDefault().getPath(prefix + fileNumber));
+        channelMap.remove(fileNumber);
+        closeLater(fh);
+        log.info("Compaction: deleted log file {}, all {} entries were trimmed",
+                fileNumber, fh.getAddressIndex().size());
+    }
+
+    /** Rewrite a log file, so that it only contains its live entries.
+     *
+     * @param fileNumber    The number of the log file.
+     * @param fh            The file handle of the log file.
+     * @param live          The addresses of the live entries in the file.
+     */
+    void rewriteLogFile(long fileNumber, FileHandle fh, List<Long> live)
+        throws IOException
+    {
+        String filePath = prefix + fileNumber;
+        FileHandle compacted = openFile(filePath + ".compact");
+        Collections.sort(live);
+        for (Long address : live)
+        {
+            long offset = fh.getAddressIndex().get(address);
+            int size = fh.readRegion(offset, 16).getInt(12);
+            reclaimLimiter.acquire(size);
+            long pos = compacted.getFilePointer().getAndAdd(size);
+            compacted.writeRegion(pos, fh.readRegion(offset, size));
+            writeIndexEntry(compacted, address, pos, size);
+        }
+        compacted.getKnownAddresses().addAll(fh.getKnownAddresses());
+        compacted.sync();
+
+        // Replace the index first: if we crash before the log file is replaced, the index
+        // will not match the old log file, and it will be rebuilt by scanning the log file.
+        Files.move(FileSystems.getDefault().getPath(filePath + ".compact.index"),
+                FileSystems.getDefault().getPath(filePath + ".index"),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(FileSystems.getDefault().getPath(filePath + ".compact"),
+                FileSystems.getDefault().getPath(filePath),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channelMap.put(fileNumber, compacted);
+        closeLater(fh);
+        log.info("Compaction: rewrote log file {}, kept {} of {} entries",
+                fileNumber, live.size(), fh.getAddressIndex().size());
+    }
+
+    /** Close a file handle which has been replaced, once any reads in progress on it have completed.
+     *
+     * @param fh    The file handle to close.
+     */
+    void closeLater(FileHandle fh)
+    {
+        scheduler.schedule(() -> {
+            try {
+                fh.close();
+            } catch (IOException ie) {
+                log.warn("Error closing compacted log file", ie);
+            }
+        }, 60, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        if (groupCommitter != null) {
+            groupCommitter.shutdown();
+        }
+        for (FileHandle fh : channelMap.values()) {
+            try {
+                fh.close();
+            } catch (IOException ie) {
+                log.warn("Error closing log file during shutdown!", ie);
+            }
+        }
+    }
+}
@@ -8,6 +8,7 @@ import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.corfudb.protocols.wireprotocol.CorfuMsg;
 import org.corfudb.protocols.wireprotocol.CorfuSetEpochMsg;
+import org.corfudb.protocols.wireprotocol.NettyFlushConsolidationHandler;
 
 import java.util.Arrays;
 import java.util.Map;
@@ -34,6 +35,22 @@ implements IServerRouter {
     @Setter
     long serverEpoch;
 
+    /** The maximum number of responses held back before a channel is flushed. */
+    @Getter
+    @Setter
+    int flushMessages = 64;
+
+    /** How long responses sent outside of a read burst are held back, in microseconds, or 0 to hold them back
+     * only until the tasks queued on the event loop have run.
+     */
+    @Getter
+    @Setter
+    long flushDelayMicros = 0;
+
+    /** Counters of the flushes of the channels of this router. */
+    @Getter
+    final NettyFlushConsolidationHandler.FlushStats flushStats = new NettyFlushConsolidationHandler.FlushStats();
+
     public NettyServerRouter()
     {
         handlerMap = new ConcurrentHashMap<>();
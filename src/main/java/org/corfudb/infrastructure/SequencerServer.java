@@ -7,6 +7,10 @@ import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.corfudb.protocols.wireprotocol.CorfuMsg;
+import org.corfudb.protocols.wireprotocol.SequencerTailsMsg;
+import org.corfudb.protocols.wireprotocol.TokenBatchRequestMsg;
+import org.corfudb.protocols.wireprotocol.TokenBatchResponseMsg;
+import org.corfudb.protocols.wireprotocol.TokenPinMsg;
 import org.corfudb.protocols.wireprotocol.TokenRequestMsg;
 import org.corfudb.protocols.wireprotocol.TokenResponseMsg;
 import org.corfudb.util.Utils;
@@ -14,25 +18,54 @@ import org.corfudb.util.Utils;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 
 /**
  * This server implements the sequencer functionality of Corfu.
  *
- * It currently supports a single operation, which is a incoming request:
+ * It currently supports the following incoming requests:
  *
  * TOKEN_REQ - Request the next token.
+ * TOKEN_BATCH_REQ - Request tokens for several requests at once, which are served in order.
+ * TOKEN_PIN - Record a token issued by another shard as the last token of some streams.
+ * SEQUENCER_TAILS - Move the global index and stream tails forward to tails reconstructed from the log.
+ *
+ * Token requests are not serialized on the server: requests which do not name any streams only increment the
+ * global index, and requests which name streams lock only the stripes their streams hash to. While the stripes are
+ * held, the tokens are issued and the last issued token of each stream is updated, so the backpointer returned for
+ * a stream is always the last token issued to that stream before this one, even when several requests for the
+ * same stream arrive at once.
+ *
+ * The address space can be partitioned across several sequencers, each configured with --sequencer-shard and
+ * --sequencer-shards. A sequencer then only issues the tokens of its shard, which are interleaved with the tokens
+ * of the other shards, and only serves the streams which hash to its shard (see Layout.getSequencerIndex).
+ *
+ * The sequencer checkpoints the global index, and appends the last token issued to each stream which changed
+ * since the previous checkpoint to the stream checkpoint. On recovery, the stream checkpoint is read in parallel,
+ * so that clients keep receiving backpointers after a failover. Tokens issued after the last checkpoint are not
+ * known to a recovered sequencer; SequencerView.recoverTails reconstructs them from the log units.
  *
  * Created by mwei on 12/8/15.
  */
@@ -45,17 +78,48 @@ public class SequencerServer implements IServer {
     @Getter
     long epoch;
 
+    /** The next token this sequencer will issue. */
     AtomicLong globalIndex;
 
+    /** The shard of the address space this sequencer issues tokens from. */
+    final long shard;
+
+    /** The number of shards the address space is partitioned into. This sequencer only issues the tokens
+     * which are congruent to its shard, modulo the number of shards.
+     */
+    final long shards;
+
     /** The file channel. */
     FileChannel fc;
 
+    /** The size of a record in the stream checkpoint: the stream ID, and the last token issued to it. */
+    static final int STREAM_RECORD_SIZE = 24;
+
+    /** The number of records the stream checkpoint may hold before it is compacted, beyond two records per
+     * stream. */
+    static final int STREAM_COMPACT_SLACK = 1024;
+
+    /** The file channel of the stream checkpoint, to which the last token issued to each stream is appended. */
+    FileChannel streamChannel;
+
+    /** The streams which were issued tokens since the last checkpoint. */
+    final Set<UUID> dirtyStreams = ConcurrentHashMap.newKeySet();
+
+    /** Whether a stream tail was rolled back since the last checkpoint. Recovery keeps the latest token of each
+     * stream, so a rolled back tail can only be checkpointed by rewriting the stream checkpoint.
+     */
+    final AtomicBoolean rewriteStreams = new AtomicBoolean();
+
     /**
      * A simple map of the most recently issued token for any given stream.
      */
     ConcurrentHashMap<UUID, Long> lastIssuedMap;
 
+    /** The number of lock stripes which streams are hashed to. */
+    static final int LOCK_STRIPES = 64;
 
+    /** The locks which serialize token requests for the streams which hash to each stripe. */
+    final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
 
     /**
      * A scheduler, which is used to schedule checkpoints and lease renewal
@@ -71,8 +135,14 @@ public class SequencerServer implements IServer {
     public SequencerServer(Map<String,Object> opts)
     {
         this.opts = opts;
+        shard = Utils.getOption(opts, "--sequencer-shard", Long.class, 0L);
+        shards = Utils.getOption(opts, "--sequencer-shards", Long.class, 1L);
         lastIssuedMap = new ConcurrentHashMap<>();
         globalIndex = new AtomicLong();
+        for (int i = 0; i < LOCK_STRIPES; i++)
+        {
+            stripes[i] = new ReentrantLock();
+        }
 
         try {
             if (!(Boolean) opts.get("--memory"))
@@ -81,6 +151,7 @@ public class SequencerServer implements IServer {
                                 + File.separator + "sequencer_checkpoint"),
                         EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE,
                                 StandardOpenOption.CREATE, StandardOpenOption.SPARSE));
+                streamChannel = openStreamCheckpoint();
                 // schedule checkpointing.
                 scheduler.scheduleAtFixedRate(this::checkpointState,
                         Utils.parseLong(opts.get("--checkpoint")),
@@ -96,12 +167,13 @@ public class SequencerServer implements IServer {
                     ByteBuffer b = ByteBuffer.allocate((int)fc.size());
                     fc.read(b);
                     if (fc.size() >= 8) {
-                        globalIndex.set(b.getLong(0));
+                        globalIndex.set(align(b.getLong(0)));
                     }
                     else {
                         log.warn("Sequencer recovery requested but checkpoint not set, defaulting to 0");
                         globalIndex.set(0);
                     }
+                    recoverStreams();
                 }
                 else {
                     log.warn("Sequencer recovery requested but has no meaning for a in-memory server, defaulting to 0");
@@ -110,7 +182,11 @@ public class SequencerServer implements IServer {
             }
             else
             {
-                globalIndex.set(newIndex);
+                globalIndex.set(align(newIndex));
+                // The sequencer starts over, so the tails of the streams checkpointed before are stale.
+                if (streamChannel != null) {
+                    streamChannel.truncate(0L);
+                }
             }
             log.info("Sequencer initial token set to {}", globalIndex.get());
         }
@@ -120,67 +196,173 @@ public class SequencerServer implements IServer {
         }
     }
 
+    /** Get the path of the stream checkpoint. */
+    Path getStreamCheckpointPath()
+    {
+        return FileSystems.getDefault().getPath(opts.get("--log-path") + File.separator + "sequencer_streams");
+    }
+
+    /** Open the stream checkpoint, dropping any partially written record at its end. */
+    FileChannel openStreamCheckpoint()
+            throws IOException
+    {
+        FileChannel channel = FileChannel.open(getStreamCheckpointPath(),
+                EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+        channel.truncate(channel.size() - (channel.size() % STREAM_RECORD_SIZE));
+        channel.position(channel.size());
+        return channel;
+    }
+
+    /** Recover the last token issued to each stream from the stream checkpoint. The records are read in
+     * parallel, and the latest token of each stream wins.
+     */
+    void recoverStreams()
+            throws IOException
+    {
+        long startTime = System.currentTimeMillis();
+        long records = streamChannel.size() / STREAM_RECORD_SIZE;
+        if (records == 0) {
+            return;
+        }
+        MappedByteBuffer map = streamChannel.map(FileChannel.MapMode.READ_ONLY, 0L,
+                records * STREAM_RECORD_SIZE);
+        LongStream.range(0, records).parallel().forEach(i -> {
+            int offset = (int) (i * STREAM_RECORD_SIZE);
+            lastIssuedMap.merge(new UUID(map.getLong(offset), map.getLong(offset + 8)),
+                    map.getLong(offset + 16), Math::max);
+        });
+        // A stream may have been checkpointed after the global index was.
+        lastIssuedMap.values().stream().max(Long::compare)
+                .ifPresent(last -> globalIndex.accumulateAndGet(align(last + 1), Math::max));
+        log.info("Sequencer recovered the tails of {} streams from {} records in {} ms",
+                lastIssuedMap.size(), records, System.currentTimeMillis() - startTime);
+    }
+
     /** Checkpoints the state of the sequencer.
      *
+     * The last token issued to each stream which was issued tokens since the previous checkpoint is appended
+     * to the stream checkpoint, followed by the global index. Once the stream checkpoint holds many more
+     * records than there are streams, it is compacted into a single record per stream.
      */
-    public void checkpointState() {
+    public synchronized void checkpointState() {
         ByteBuffer b = ByteBuffer.allocate(8);
         long checkpointAddress = globalIndex.get();
-        b.putLong(globalIndex.get());
+        b.putLong(checkpointAddress);
         b.flip();
         try {
+            checkpointStreams();
             fc.write(b, 0L);
             fc.force(true);
             log.debug("Sequencer state successfully checkpointed at {}", checkpointAddress);
-        } catch (IOException ie)
+        } catch (IOException | RuntimeException ie)
         {
+            // Checkpoints are scheduled at a fixed rate, and an exception would cancel every later checkpoint.
             log.warn("Sequencer checkpoint failed due to exception", ie);
         }
     }
 
-    @Override
-    public synchronized void handleMessage(CorfuMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
-        switch (msg.getMsgType())
+    /** Append the last token issued to each dirty stream to the stream checkpoint. */
+    void checkpointStreams()
+            throws IOException
+    {
+        if (dirtyStreams.isEmpty()) {
+            return;
+        }
+        if (rewriteStreams.getAndSet(false) || streamChannel.size() / STREAM_RECORD_SIZE + dirtyStreams.size()
+                > 2L * lastIssuedMap.size() + STREAM_COMPACT_SLACK) {
+            compactStreams();
+            return;
+        }
+        ByteBuffer records = ByteBuffer.allocate(dirtyStreams.size() * STREAM_RECORD_SIZE);
+        Iterator<UUID> it = dirtyStreams.iterator();
+        while (it.hasNext() && records.hasRemaining())
         {
-            case TOKEN_REQ: {
-                TokenRequestMsg req = (TokenRequestMsg) msg;
-                if (req.getNumTokens() == 0)
-                {
-                    long max = 0L;
-                    boolean hit = false;
-                    for (UUID id : req.getStreamIDs()) {
-                        Long lastIssued = lastIssuedMap.get(id);
-                        if (lastIssued != null) {hit = true;}
-                        max = Math.max(max, lastIssued == null ? Long.MIN_VALUE : lastIssued);
-                    }
-                    if (!hit) {
-                        max = -1L; //no token ever issued
-                    }
-                    if (req.getStreamIDs().size() == 0)
-                    {
-                        max = globalIndex.get() - 1;
-                    }
-                    r.sendResponse(ctx, msg,
-                            new TokenResponseMsg(max, Collections.emptyMap()));
-                }
-                else {
-                    long thisIssue = globalIndex.getAndAdd(req.getNumTokens());
-                    ImmutableMap.Builder<UUID,Long> mb  = ImmutableMap.builder();
-                    for (UUID id : req.getStreamIDs()) {
-                        lastIssuedMap.compute(id, (k, v) ->{
-                                if (v == null)
-                                {
-                                    mb.put(k, -1L);
-                                    return thisIssue + req.getNumTokens() -1;
-                                }
-                                mb.put(k, v);
-                                return Math.max(thisIssue + req.getNumTokens()-1, v);
-                        });
+            UUID id = it.next();
+            // Remove the stream before reading its tail, so that a token issued meanwhile marks it dirty again.
+            it.remove();
+            Long lastIssued = lastIssuedMap.get(id);
+            if (lastIssued != null) {
+                putStreamRecord(records, id, lastIssued);
+            }
+        }
+        records.flip();
+        while (records.hasRemaining())
+        {
+            streamChannel.write(records);
+        }
+        streamChannel.force(true);
+    }
+
+    /** Rewrite the stream checkpoint with a single record per stream, and atomically replace the old one. */
+    void compactStreams()
+            throws IOException
+    {
+        dirtyStreams.clear();
+        Path tmp = getStreamCheckpointPath().resolveSibling("sequencer_streams.tmp");
+        try (FileChannel out = FileChannel.open(tmp, EnumSet.of(StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            ByteBuffer records = ByteBuffer.allocate(STREAM_RECORD_SIZE * 1024);
+            for (Map.Entry<UUID, Long> e : lastIssuedMap.entrySet())
+            {
+                putStreamRecord(records, e.getKey(), e.getValue());
+                if (!records.hasRemaining()) {
+                    records.flip();
+                    while (records.hasRemaining()) {
+                        out.write(records);
                     }
-                    r.sendResponse(ctx, msg,
-                            new TokenResponseMsg(thisIssue, mb.build()));
+                    records.clear();
                 }
             }
+            records.flip();
+            while (records.hasRemaining()) {
+                out.write(records);
+            }
+            out.force(true);
+        }
+        streamChannel.close();
+        Files.move(tmp, getStreamCheckpointPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        streamChannel = openStreamCheckpoint();
+        log.debug("Sequencer stream checkpoint compacted to {} streams", lastIssuedMap.size());
+    }
+
+    /** Write the record of a stream to a buffer. */
+    void putStreamRecord(ByteBuffer buffer, UUID id, long lastIssued)
+    {
+        buffer.putLong(id.getMostSignificantBits());
+        buffer.putLong(id.getLeastSignificantBits());
+        buffer.putLong(lastIssued);
+    }
+
+    @Override
+    public void handleMessage(CorfuMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
+        switch (msg.getMsgType())
+        {
+            case TOKEN_REQ:
+                r.sendResponse(ctx, msg, handleTokenRequest((TokenRequestMsg) msg));
+                break;
+            case TOKEN_BATCH_REQ:
+                r.sendResponse(ctx, msg, new TokenBatchResponseMsg(((TokenBatchRequestMsg) msg).getRequests()
+                        .stream()
+                        .map(this::handleTokenRequest)
+                        .collect(Collectors.toList())));
+                break;
+            case TOKEN_PIN: {
+                TokenPinMsg m = (TokenPinMsg) msg;
+                r.sendResponse(ctx, msg, pinToken(m.getStreamIDs(), m.getAddress()));
+            }
+            break;
+            case TOKEN_UNPIN: {
+                SequencerTailsMsg m = (SequencerTailsMsg) msg;
+                unpinToken(m.getTail(), m.getStreamTails());
+                r.sendResponse(ctx, msg, new CorfuMsg(CorfuMsg.CorfuMsgType.ACK));
+            }
+            break;
+            case SEQUENCER_TAILS: {
+                SequencerTailsMsg m = (SequencerTailsMsg) msg;
+                mergeTails(m.getTail(), m.getStreamTails());
+                r.sendResponse(ctx, msg, new CorfuMsg(CorfuMsg.CorfuMsgType.ACK));
+            }
             break;
             default:
                 log.warn("Unknown message type {} passed to handler!", msg.getMsgType());
@@ -188,6 +370,189 @@ public class SequencerServer implements IServer {
         }
     }
 
+    /** Serve a token request, which either issues tokens or, if no tokens are requested, returns the
+     * last token issued.
+     *
+     * @param req   The token request.
+     * @return      The response to the request.
+     */
+    TokenResponseMsg handleTokenRequest(TokenRequestMsg req)
+    {
+        if (req.getNumTokens() == 0)
+        {
+            long max = 0L;
+            boolean hit = false;
+            for (UUID id : req.getStreamIDs()) {
+                Long lastIssued = lastIssuedMap.get(id);
+                if (lastIssued != null) {hit = true;}
+                max = Math.max(max, lastIssued == null ? Long.MIN_VALUE : lastIssued);
+            }
+            if (!hit) {
+                max = -1L; //no token ever issued
+            }
+            if (req.getStreamIDs().size() == 0)
+            {
+                max = Math.max(-1L, globalIndex.get() - shards);
+            }
+            return new TokenResponseMsg(max, Collections.emptyMap());
+        }
+        return issueTokens(req.getStreamIDs(), req.getNumTokens());
+    }
+
+    /** Issue tokens, and update the last issued token of each stream.
+     *
+     * @param streams   The streams the tokens are issued for.
+     * @param numTokens The number of tokens to issue.
+     * @return          A response with the first token issued, and the backpointer of each stream.
+     */
+    TokenResponseMsg issueTokens(Set<UUID> streams, long numTokens)
+    {
+        if (streams.isEmpty()) {
+            return new TokenResponseMsg(globalIndex.getAndAdd(numTokens * shards), Collections.emptyMap());
+        }
+
+        int[] locked = lockStripes(streams);
+        try {
+            long thisIssue = globalIndex.getAndAdd(numTokens * shards);
+            long lastIssue = thisIssue + (numTokens - 1) * shards;
+            ImmutableMap.Builder<UUID, Long> mb = ImmutableMap.builder();
+            for (UUID id : streams) {
+                Long last = lastIssuedMap.get(id);
+                mb.put(id, last == null ? -1L : last);
+                lastIssuedMap.put(id, last == null ? lastIssue : Math.max(lastIssue, last));
+                dirtyStreams.add(id);
+            }
+            return new TokenResponseMsg(thisIssue, mb.build());
+        } finally {
+            unlockStripes(locked);
+        }
+    }
+
+    /** Record a token issued by another shard as the last token issued to streams of this shard. This is how
+     * a request for streams of several shards is served: the token is issued by one shard, and pinned on
+     * the shards of the other streams. The token is rejected if any of the streams was already issued a
+     * later token, since the backpointers of the stream would then no longer be ordered.
+     *
+     * @param streams   The streams to pin the token to.
+     * @param address   The token to pin.
+     * @return          A response with the pinned token and the backpointer of each stream, or, if the token
+     *                  was rejected, with the latest token issued to the streams and no backpointers.
+     */
+    TokenResponseMsg pinToken(Set<UUID> streams, long address)
+    {
+        int[] locked = lockStripes(streams);
+        try {
+            long latest = streams.stream()
+                    .map(lastIssuedMap::get)
+                    .filter(Objects::nonNull)
+                    .mapToLong(Long::longValue)
+                    .max().orElse(-1L);
+            if (latest >= address) {
+                return new TokenResponseMsg(latest, Collections.emptyMap());
+            }
+            ImmutableMap.Builder<UUID, Long> mb = ImmutableMap.builder();
+            for (UUID id : streams) {
+                Long last = lastIssuedMap.put(id, address);
+                mb.put(id, last == null ? -1L : last);
+                dirtyStreams.add(id);
+            }
+            // Tokens issued to the streams after the pin must come after it, as their backpointer is the pin.
+            globalIndex.accumulateAndGet(align(address + 1), Math::max);
+            return new TokenResponseMsg(address, mb.build());
+        } finally {
+            unlockStripes(locked);
+        }
+    }
+
+    /** Roll back a pinned token which was rejected by the sequencer of another shard, and will be hole filled.
+     * The last token issued to each stream is restored, unless a later token was issued to it since.
+     *
+     * @param address       The pinned token.
+     * @param previous      The last token issued to each stream before the pin, or -1 if there was none.
+     */
+    void unpinToken(long address, Map<UUID, Long> previous)
+    {
+        int[] locked = lockStripes(previous.keySet());
+        try {
+            previous.forEach((id, last) -> {
+                Long current = lastIssuedMap.get(id);
+                if (current != null && current == address) {
+                    if (last == -1L) {
+                        lastIssuedMap.remove(id);
+                    } else {
+                        lastIssuedMap.put(id, last);
+                    }
+                    // The checkpoint may already hold the pinned token, so the next one is rewritten.
+                    rewriteStreams.set(true);
+                    dirtyStreams.add(id);
+                }
+            });
+        } finally {
+            unlockStripes(locked);
+        }
+    }
+
+    /** Get the first token at or after an address which this sequencer's shard issues.
+     *
+     * @param address   The address to align.
+     * @return          The first address of this shard at or after the given address.
+     */
+    long align(long address)
+    {
+        return address + Math.floorMod(shard - address, shards);
+    }
+
+    /** Merge stream tails reconstructed from the log into the state of the sequencer. Tails are only ever
+     * moved forward, so tails which are older than those the sequencer knows of are ignored.
+     *
+     * @param tail          The highest address found in the log.
+     * @param streamTails   The highest address of each stream found in the log.
+     */
+    void mergeTails(long tail, Map<UUID, Long> streamTails)
+    {
+        int[] locked = lockStripes(streamTails.keySet());
+        try {
+            globalIndex.accumulateAndGet(align(tail + 1), Math::max);
+            streamTails.forEach((id, last) -> {
+                lastIssuedMap.merge(id, last, Math::max);
+                dirtyStreams.add(id);
+            });
+        } finally {
+            unlockStripes(locked);
+        }
+        log.info("Sequencer merged the tails of {} streams, global index is {}",
+                streamTails.size(), globalIndex.get());
+    }
+
+    /** Lock the stripes of a set of streams. The stripes are locked in order, so that requests which share
+     * stripes cannot deadlock.
+     *
+     * @param streams   The streams to lock.
+     * @return          The stripes which were locked, in order.
+     */
+    int[] lockStripes(Set<UUID> streams)
+    {
+        int[] locked = streams.stream()
+                .mapToInt(id -> (id.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES)
+                .distinct()
+                .sorted()
+                .toArray();
+        for (int stripe : locked)
+        {
+            stripes[stripe].lock();
+        }
+        return locked;
+    }
+
+    /** Unlock stripes locked by lockStripes, in reverse order. */
+    void unlockStripes(int[] locked)
+    {
+        for (int i = locked.length - 1; i >= 0; i--)
+        {
+            stripes[locked[i]].unlock();
+        }
+    }
+
     @Override
     public void reset() {
         globalIndex.set(0L);
@@ -200,8 +565,11 @@ public class SequencerServer implements IServer {
     public void shutdown() {
         try {
             scheduler.shutdownNow();
-            checkpointState();
-            fc.close();
+            if (fc != null) {
+                checkpointState();
+                fc.close();
+                streamChannel.close();
+            }
         } catch (IOException ie)
         {
             log.warn("Error checkpointing server during shutdown!", ie);
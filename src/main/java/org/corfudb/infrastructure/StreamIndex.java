@@ -0,0 +1,384 @@
+package org.corfudb.infrastructure;
+
+import com.github.benmanes.caffeine.cache.CacheWriter;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.UUID;
+
+/**
+ * An index of the addresses which belong to each stream on a log unit.
+ *
+ * The addresses of each stream are kept as a sorted array of runs of consecutive addresses, packed into a long[]
+ * as (first, last) pairs, so appending the next address of a stream is O(1) and a lookup is a binary search.
+ * The index is a cache bounded by the number of bytes the address sets use. If the index is persistent, the
+ * address set of a stream is stored in its own file in the log directory as a sequence of (first, last) records,
+ * and a stream which is evicted or flushed only appends the runs which changed since it was last flushed.
+ * Evicted streams are loaded back from their file on the next access.
+ */
+@Slf4j
+public class StreamIndex {
+
+    /** The size of a run record in a stream file. */
+    static final int RUN_RECORD_SIZE = 16;
+
+    /** The address set of a stream. */
+    static class AddressSet {
+
+        /** Runs of consecutive addresses, as (first, last) pairs, in ascending order. */
+        long[] runs = new long[4];
+
+        /** The number of longs used in runs. */
+        int size;
+
+        /** The number of longs in runs which have been persisted. */
+        int persistedSize;
+
+        /** The last address of the last persisted run, when it was persisted. */
+        long persistedLast = -1L;
+
+        /** Whether a persisted run other than the last one has changed, so the file must be rewritten. */
+        boolean rewrite;
+
+        /** Whether this set has been evicted from the cache, so it must no longer be changed. */
+        boolean evicted;
+
+        /** Add an address to the set.
+         *
+         * @param address   The address to add.
+         * @return          False, if the set has been evicted and the address was not added.
+         */
+        synchronized boolean add(long address)
+        {
+            if (evicted) {
+                return false;
+            }
+            if (size == 0 || address > runs[size - 1] + 1) {
+                appendRun(address, address);
+            } else if (address == runs[size - 1] + 1) {
+                runs[size - 1] = address;
+            } else if (address < runs[size - 2]) {
+                insert(address);
+            }
+            return true;
+        }
+
+        /** Add a run of addresses, which should generally follow the runs already in the set.
+         *
+         * @param first The first address of the run.
+         * @param last  The last address of the run.
+         */
+        synchronized void addRun(long first, long last)
+        {
+            if (size == 0 || first > runs[size - 1] + 1) {
+                appendRun(first, last);
+            } else if (first >= runs[size - 2]) {
+                runs[size - 1] = Math.max(runs[size - 1], last);
+            } else {
+                for (long address = first; address <= last; address++) {
+                    add(address);
+                }
+            }
+        }
+
+        /** Check whether the set contains an address.
+         *
+         * @param address   The address to check.
+         * @return          True, if the address is in the set.
+         */
+        synchronized boolean contains(long address)
+        {
+            int run = findRun(address);
+            return run >= 0 && runs[run + 1] >= address;
+        }
+
+        /** Get the addresses in the set as a range set of closed ranges.
+         *
+         * @return  A new range set containing the addresses in the set.
+         */
+        synchronized RangeSet<Long> toRangeSet()
+        {
+            RangeSet<Long> rs = TreeRangeSet.create();
+            for (int i = 0; i < size; i += 2)
+            {
+                rs.add(Range.closed(runs[i], runs[i + 1]));
+            }
+            return rs;
+        }
+
+        /** Get the number of bytes this set uses, which is its weight in the cache.
+         *
+         * @return  The approximate size of the set in bytes.
+         */
+        synchronized int getWeight()
+        {
+            return 64 + runs.length * 8;
+        }
+
+        /** Get the capacity of the runs array, which changes when the set is resized. */
+        synchronized int getCapacity()
+        {
+            return runs.length;
+        }
+
+        /** Find the index of the run with the greatest first address not greater than the address.
+         *
+         * @param address   The address to search for.
+         * @return          The index of the run, or -1 if the address precedes every run.
+         */
+        int findRun(long address)
+        {
+            int lo = 0;
+            int hi = size / 2 - 1;
+            while (lo <= hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                if (runs[mid * 2] <= address) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return hi * 2;
+        }
+
+        /** Insert an address which precedes the last run. */
+        void insert(long address)
+        {
+            int prev = findRun(address);
+            if (prev >= 0 && runs[prev + 1] >= address) {
+                return;
+            }
+            int next = prev + 2;
+            boolean joinPrev = prev >= 0 && runs[prev + 1] + 1 == address;
+            boolean joinNext = runs[next] - 1 == address;
+            if (joinPrev && joinNext) {
+                runs[prev + 1] = runs[next + 1];
+                System.arraycopy(runs, next + 2, runs, next, size - next - 2);
+                size -= 2;
+            } else if (joinPrev) {
+                runs[prev + 1] = address;
+            } else if (joinNext) {
+                runs[next] = address;
+            } else {
+                ensureCapacity();
+                System.arraycopy(runs, next, runs, next + 2, size - next);
+                runs[next] = address;
+                runs[next + 1] = address;
+                size += 2;
+            }
+            if (next < persistedSize) {
+                rewrite = true;
+            }
+        }
+
+        void appendRun(long first, long last)
+        {
+            ensureCapacity();
+            runs[size] = first;
+            runs[size + 1] = last;
+            size += 2;
+        }
+
+        void ensureCapacity()
+        {
+            if (size + 2 > runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+        }
+
+        /** Write the runs which changed since the last flush to the file of the stream.
+         *
+         * @param path  The path of the stream file.
+         */
+        synchronized void flush(Path path)
+            throws IOException
+        {
+            if (rewrite) {
+                Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+                Files.deleteIfExists(tmp);
+                writeRuns(tmp, 0);
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                // The last persisted run may have been extended, in which case it is appended again.
+                int from = persistedSize > 0 && runs[persistedSize - 1] != persistedLast
+                        ? persistedSize - 2 : persistedSize;
+                if (from == size) {
+                    return;
+                }
+                writeRuns(path, from);
+            }
+            rewrite = false;
+            persistedSize = size;
+            persistedLast = size > 0 ? runs[size - 1] : -1L;
+        }
+
+        void writeRuns(Path path, int from)
+            throws IOException
+        {
+            ByteBuffer b = ByteBuffer.allocate((size - from) * 8);
+            for (int i = from; i < size; i++)
+            {
+                b.putLong(runs[i]);
+            }
+            b.flip();
+            try (FileChannel fc = FileChannel.open(path, EnumSet.of(StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+                while (b.hasRemaining()) {
+                    fc.write(b);
+                }
+            }
+        }
+    }
+
+    /** The directory stream files are kept in, or null if the index is in memory. */
+    final Path directory;
+
+    /** The address sets of the streams. */
+    final LoadingCache<UUID, AddressSet> streams;
+
+    /** Create a new stream index.
+     *
+     * @param directory The directory to keep stream files in, or null to keep the index in memory only.
+     * @param maxBytes  The maximum number of bytes of address sets to cache. Ignored if the index is in
+     *                  memory, since an in-memory index cannot evict streams.
+     */
+    public StreamIndex(Path directory, long maxBytes)
+    {
+        this.directory = directory;
+        this.streams = Caffeine.newBuilder()
+                .<UUID, AddressSet>weigher((k, v) -> v.getWeight())
+                .maximumWeight(directory == null ? Long.MAX_VALUE : maxBytes)
+                .writer(new CacheWriter<UUID, AddressSet>() {
+                    @Override
+                    public void write(UUID stream, AddressSet set) {
+                        // Streams are written to disk when they are evicted or flushed.
+                    }
+
+                    @Override
+                    public void delete(UUID stream, AddressSet set, RemovalCause cause) {
+                        // This is called atomically with the removal, so a concurrent load of the stream
+                        // waits until its file is up to date.
+                        if (cause.wasEvicted()) {
+                            synchronized (set) {
+                                set.evicted = true;
+                                flush(stream, set);
+                            }
+                        }
+                    }
+                })
+                .build(this::load);
+    }
+
+    /** Get the path of the file of a stream.
+     *
+     * @param stream    The stream.
+     * @return          The path of the stream file.
+     */
+    Path getStreamPath(UUID stream)
+    {
+        return directory.resolve("stream" + stream.toString());
+    }
+
+    /** Load the address set of a stream from its file.
+     *
+     * @param stream    The stream to load.
+     * @return          The address set of the stream, which is empty if the stream has no file.
+     */
+    AddressSet load(UUID stream)
+    {
+        AddressSet set = new AddressSet();
+        if (directory != null) {
+            Path p = getStreamPath(stream);
+            try {
+                if (Files.exists(p)) {
+                    ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(p));
+                    while (b.remaining() >= RUN_RECORD_SIZE)
+                    {
+                        set.addRun(b.getLong(), b.getLong());
+                    }
+                    set.persistedSize = set.size;
+                    set.persistedLast = set.size > 0 ? set.runs[set.size - 1] : -1L;
+                }
+            } catch (IOException ie) {
+                log.error("IOException reading stream file {}", p, ie);
+            }
+        }
+        return set;
+    }
+
+    void flush(UUID stream, AddressSet set)
+    {
+        if (directory != null) {
+            try {
+                set.flush(getStreamPath(stream));
+            } catch (IOException ie) {
+                log.error("IOException writing stream file for stream {}", stream, ie);
+            }
+        }
+    }
+
+    /** Append an address to a stream.
+     *
+     * @param stream    The stream.
+     * @param address   The address which belongs to the stream.
+     */
+    public void append(UUID stream, long address)
+    {
+        while (true)
+        {
+            AddressSet set = streams.get(stream);
+            int capacity = set.getCapacity();
+            if (set.add(address)) {
+                if (set.getCapacity() != capacity) {
+                    // Replace the set with itself, so that the cache updates its weight. This must not
+                    // put the set back if it was evicted in the meantime.
+                    streams.asMap().replace(stream, set, set);
+                }
+                return;
+            }
+            // The set was evicted while we were adding to it, so add to the reloaded set instead.
+        }
+    }
+
+    /** Check whether an address belongs to a stream.
+     *
+     * @param stream    The stream.
+     * @param address   The address to check.
+     * @return          True, if the address belongs to the stream.
+     */
+    public boolean contains(UUID stream, long address)
+    {
+        return streams.get(stream).contains(address);
+    }
+
+    /** Get the addresses of a stream.
+     *
+     * @param stream    The stream.
+     * @return          A new range set of the addresses which belong to the stream.
+     */
+    public RangeSet<Long> getAddresses(UUID stream)
+    {
+        return streams.get(stream).toRangeSet();
+    }
+
+    /** Write the changes to every cached stream to its file. */
+    public void flush()
+    {
+        streams.asMap().forEach(this::flush);
+    }
+}
@@ -0,0 +1,179 @@
+package org.corfudb.infrastructure;
+
+import io.netty.channel.ChannelHandlerContext;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.protocols.wireprotocol.CorfuMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitStreamPushMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitSubscribeMsg;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongFunction;
+
+/**
+ * The subscriptions of clients to the new entries of streams on a log unit.
+ *
+ * Once an entry is durable, its address is queued on every subscription to one of its streams, and the entries
+ * queued are pushed to the client over the channel it subscribed on. Each entry pushed consumes a credit, which
+ * the client grants back once it has consumed the entry, so a slow client only costs the log unit the addresses
+ * queued for it: the entries themselves are read when they are pushed. A subscription which falls more than
+ * maxPending addresses behind is closed, and the client told with STREAM_UNSUBSCRIBE, so that it can catch up by
+ * reading the stream instead.
+ */
+@Slf4j
+public class StreamSubscriptions {
+
+    /** A subscription of a client to a stream. */
+    static class Subscription {
+
+        /** The subscribe request, whose base fields address the pushes to the client. */
+        final LogUnitSubscribeMsg msg;
+
+        final ChannelHandlerContext ctx;
+
+        final IServerRouter router;
+
+        /** The number of entries which may be pushed before the client grants more credits. */
+        int credits;
+
+        /** The addresses written since the last push. */
+        final ArrayDeque<Long> pending = new ArrayDeque<>();
+
+        Subscription(LogUnitSubscribeMsg msg, ChannelHandlerContext ctx, IServerRouter router) {
+            this.msg = msg;
+            this.ctx = ctx;
+            this.router = router;
+            this.credits = msg.getCredits();
+        }
+    }
+
+    /** Reads the entry at an address, or returns null if it is unwritten. */
+    final LongFunction<LogUnitServer.LogUnitEntry> reader;
+
+    /** The maximum number of addresses queued on a subscription before it is closed. */
+    final int maxPending;
+
+    /** The subscriptions, by their ID. */
+    final Map<UUID, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    /** The subscriptions to each stream. */
+    final Map<UUID, Set<Subscription>> streamSubscriptions = new ConcurrentHashMap<>();
+
+    public StreamSubscriptions(LongFunction<LogUnitServer.LogUnitEntry> reader, int maxPending) {
+        this.reader = reader;
+        this.maxPending = maxPending;
+    }
+
+    /** Open a subscription, which is closed when the channel it was opened on closes.
+     *
+     * @param msg       The subscribe request.
+     * @param ctx       The context of the channel to push entries on.
+     * @param router    The router to push entries through.
+     */
+    public void subscribe(LogUnitSubscribeMsg msg, ChannelHandlerContext ctx, IServerRouter router) {
+        Subscription s = new Subscription(msg, ctx, router);
+        subscriptions.put(msg.getSubscriptionID(), s);
+        streamSubscriptions.computeIfAbsent(msg.getStreamID(), k -> ConcurrentHashMap.newKeySet()).add(s);
+        if (ctx != null) {
+            ctx.channel().closeFuture().addListener(f -> unsubscribe(msg.getSubscriptionID()));
+        }
+        log.debug("Subscribe[{}]: client {} subscribed to stream {}", msg.getSubscriptionID(), msg.getClientID(),
+                msg.getStreamID());
+    }
+
+    /** Grant credits to a subscription, pushing the entries they allow.
+     *
+     * @param subscriptionID    The ID of the subscription.
+     * @param credits           The number of credits granted.
+     */
+    public void credit(UUID subscriptionID, int credits) {
+        Subscription s = subscriptions.get(subscriptionID);
+        if (s != null) {
+            synchronized (s) {
+                s.credits += credits;
+                push(s);
+            }
+        }
+    }
+
+    /** Close a subscription.
+     *
+     * @param subscriptionID    The ID of the subscription.
+     * @return                  True, if the subscription was open.
+     */
+    public boolean unsubscribe(UUID subscriptionID) {
+        Subscription s = subscriptions.remove(subscriptionID);
+        if (s == null) {
+            return false;
+        }
+        streamSubscriptions.computeIfPresent(s.msg.getStreamID(), (k, v) -> {
+            v.remove(s);
+            return v.isEmpty() ? null : v;
+        });
+        synchronized (s) {
+            s.pending.clear();
+        }
+        log.debug("Unsubscribe[{}]: closed subscription to stream {}", subscriptionID, s.msg.getStreamID());
+        return true;
+    }
+
+    /** Push a durable entry to the subscriptions to its streams.
+     *
+     * @param address   The address of the entry.
+     * @param streams   The streams of the entry.
+     */
+    public void written(long address, Set<UUID> streams) {
+        if (subscriptions.isEmpty() || streams == null) {
+            return;
+        }
+        for (UUID stream : streams) {
+            Set<Subscription> subs = streamSubscriptions.get(stream);
+            if (subs == null) {
+                continue;
+            }
+            for (Subscription s : subs) {
+                boolean overflow;
+                synchronized (s) {
+                    s.pending.add(address);
+                    overflow = s.pending.size() > maxPending;
+                    if (!overflow) {
+                        push(s);
+                    }
+                }
+                if (overflow && unsubscribe(s.msg.getSubscriptionID())) {
+                    log.warn("Subscribe[{}]: client fell more than {} entries behind, closing subscription",
+                            s.msg.getSubscriptionID(), maxPending);
+                    s.router.sendResponse(s.ctx, s.msg, new LogUnitSubscribeMsg(
+                            CorfuMsg.CorfuMsgType.STREAM_UNSUBSCRIBE, s.msg.getSubscriptionID(),
+                            s.msg.getStreamID(), 0));
+                }
+            }
+        }
+    }
+
+    /** Push as many pending entries as the credits of a subscription allow, in a single message. */
+    void push(Subscription s) {
+        Map<Long, LogUnitReadResponseMsg> entries = new LinkedHashMap<>();
+        while (s.credits > 0 && !s.pending.isEmpty()) {
+            long address = s.pending.poll();
+            LogUnitServer.LogUnitEntry e = reader.apply(address);
+            if (e != null && !e.isHole()) {
+                entries.put(address, new LogUnitReadResponseMsg(e));
+                s.credits--;
+            }
+        }
+        if (!entries.isEmpty()) {
+            s.router.sendResponse(s.ctx, s.msg, new LogUnitStreamPushMsg(s.msg.getSubscriptionID(), entries));
+        }
+    }
+
+    /** Get the number of open subscriptions. */
+    public int size() {
+        return subscriptions.size();
+    }
+}
@@ -0,0 +1,192 @@
+package org.corfudb.infrastructure;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tracks the contiguous tail of a log unit, that is, the highest address below which every address has been written.
+ *
+ * Written addresses are recorded in a ring of slots indexed by address. A slot holds the address last written to it,
+ * so a slot can be reused once the tail has passed the address it held, without ever being cleared. Every write
+ * tries to advance the tail with a CAS for as long as the slot after the tail holds the next address; the thread
+ * which wins the CAS for an address reports it (and its streams) to the listener, so each address is reported
+ * exactly once, and the tail can be read at any time in O(1).
+ *
+ * Addresses too far ahead of the tail to fit in the ring are kept in an overflow map until the tail catches up.
+ * Writes which fit in the ring allocate nothing.
+ */
+@Slf4j
+public class TailTracker {
+
+    /** A listener which is called once for each address the tail advances over. */
+    @FunctionalInterface
+    public interface AdvanceListener {
+        void advanced(long address, Set<UUID> streams);
+    }
+
+    /** The default number of slots in the ring. */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /** The address of each slot, or -1 if the slot has never been written. */
+    final AtomicLongArray slots;
+
+    /** The streams written at the address held by each slot. */
+    final AtomicReferenceArray<Set<UUID>> slotStreams;
+
+    /** The mask used to map an address to its slot. */
+    final int mask;
+
+    /** The contiguous tail. */
+    final AtomicLong tail = new AtomicLong(-1L);
+
+    /** The highest address written. */
+    final AtomicLong maxAddress = new AtomicLong(-1L);
+
+    /** Addresses which were too far ahead of the tail to fit in the ring. */
+    final ConcurrentSkipListMap<Long, Set<UUID>> overflow = new ConcurrentSkipListMap<>();
+
+    final AdvanceListener listener;
+
+    /** Create a new tail tracker.
+     *
+     * @param capacity  The number of slots in the ring, which is rounded up to a power of two.
+     * @param listener  The listener to call as the tail advances over each address.
+     */
+    public TailTracker(int capacity, AdvanceListener listener)
+    {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        long[] initial = new long[size];
+        Arrays.fill(initial, -1L);
+        this.slots = new AtomicLongArray(initial);
+        this.slotStreams = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.listener = listener;
+    }
+
+    /** Get the contiguous tail.
+     *
+     * @return  The highest address below which every address has been written, or -1 if address 0
+     *          has not been written.
+     */
+    public long getTail()
+    {
+        return tail.get();
+    }
+
+    /** Get the highest address which has been written. Every address above it is known to be unwritten.
+     *
+     * @return  The highest address written, or -1 if no address has been written.
+     */
+    public long getMaxAddress()
+    {
+        return Math.max(maxAddress.get(), tail.get());
+    }
+
+    /** Set the contiguous tail, for example after recovering the log. Any addresses the tracker was
+     * waiting for which are at or below the new tail are dropped without being reported.
+     *
+     * @param newTail   The new contiguous tail.
+     */
+    public void setTail(long newTail)
+    {
+        tail.set(newTail);
+        overflow.headMap(newTail, true).clear();
+        advance();
+    }
+
+    /** Get the number of addresses which have been written, but are still waiting for the tail to reach them.
+     * This requires a scan of the ring, so it should only be used for diagnostics.
+     *
+     * @return  The number of written addresses above the tail.
+     */
+    public long getPendingCount()
+    {
+        long t = tail.get();
+        long count = overflow.size();
+        for (int i = 0; i < slots.length(); i++)
+        {
+            if (slots.get(i) > t) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Record that an address has been written, and advance the tail as far as possible.
+     *
+     * @param address   The address which was written.
+     * @param streams   The streams written at that address.
+     */
+    public void markWritten(long address, Set<UUID> streams)
+    {
+        if (address > maxAddress.get()) {
+            maxAddress.accumulateAndGet(address, Math::max);
+        }
+        if (address <= tail.get()) {
+            return;
+        }
+        if (address - tail.get() > slots.length()) {
+            overflow.put(address, streams);
+            // The tail may have moved past the point where the address fits in the ring while we were adding it.
+            drainOverflow();
+        } else {
+            int slot = (int) (address & mask);
+            // The streams must be visible before the address, since the address is what publishes the slot.
+            slotStreams.set(slot, streams);
+            slots.set(slot, address);
+        }
+        advance();
+    }
+
+    /** Advance the tail over every consecutive written address, reporting each address to the listener. */
+    public void advance()
+    {
+        while (true)
+        {
+            long t = tail.get();
+            long next = t + 1;
+            int slot = (int) (next & mask);
+            if (slots.get(slot) != next)
+            {
+                if (overflow.isEmpty() || !drainOverflow()) {
+                    return;
+                }
+                continue;
+            }
+            Set<UUID> streams = slotStreams.get(slot);
+            if (tail.compareAndSet(t, next))
+            {
+                listener.advanced(next, streams);
+            }
+        }
+    }
+
+    /** Move the overflowed addresses which now fit in the ring into the ring.
+     *
+     * @return  True, if any address was moved.
+     */
+    boolean drainOverflow()
+    {
+        boolean moved = false;
+        Map.Entry<Long, Set<UUID>> e;
+        while ((e = overflow.firstEntry()) != null && e.getKey() - tail.get() <= slots.length())
+        {
+            if (overflow.remove(e.getKey(), e.getValue()) && e.getKey() > tail.get())
+            {
+                int slot = (int) (e.getKey() & mask);
+                slotStreams.set(slot, e.getValue());
+                slots.set(slot, e.getKey());
+                moved = true;
+            }
+        }
+        return moved;
+    }
+}
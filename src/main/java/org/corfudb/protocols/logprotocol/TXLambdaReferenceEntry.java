@@ -2,7 +2,6 @@ package org.corfudb.protocols.logprotocol;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.buffer.ByteBuf;
-import javafx.scene.effect.Reflection;
 import lombok.Data;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
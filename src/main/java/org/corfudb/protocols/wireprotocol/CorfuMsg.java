@@ -61,6 +61,11 @@ public class CorfuMsg {
         // Sequencer Messages
         TOKEN_REQ(20, TokenRequestMsg.class, SequencerServer.class),
         TOKEN_RES(21, TokenResponseMsg.class, SequencerServer.class),
+        TOKEN_BATCH_REQ(22, TokenBatchRequestMsg.class, SequencerServer.class),
+        TOKEN_BATCH_RES(23, TokenBatchResponseMsg.class, SequencerServer.class),
+        SEQUENCER_TAILS(24, SequencerTailsMsg.class, SequencerServer.class),
+        TOKEN_PIN(25, TokenPinMsg.class, SequencerServer.class),
+        TOKEN_UNPIN(26, SequencerTailsMsg.class, SequencerServer.class),
 
         // Logging Unit Messages
         WRITE(30, LogUnitWriteMsg.class, LogUnitServer.class),
@@ -76,6 +81,10 @@ public class CorfuMsg {
         READ_RANGE(40, CorfuRangeMsg.class, LogUnitServer.class),
         READ_RANGE_RESPONSE(41, LogUnitReadRangeResponseMsg.class, LogUnitServer.class),
         STREAM_READ(42, CorfuUUIDMsg.class, LogUnitServer.class),
+        STREAM_SUBSCRIBE(43, LogUnitSubscribeMsg.class, LogUnitServer.class),
+        STREAM_CREDIT(44, LogUnitSubscribeMsg.class, LogUnitServer.class),
+        STREAM_UNSUBSCRIBE(45, LogUnitSubscribeMsg.class, LogUnitServer.class),
+        STREAM_PUSH(46, LogUnitStreamPushMsg.class, LogUnitServer.class),
 
         // Logging Unit Error Codes
         ERROR_OK(50, CorfuMsg.class, LogUnitServer.class),
@@ -171,11 +180,21 @@ public class CorfuMsg {
         return msg;
     }
 
-    /** Release the underlying buffer, if present. */
+    /** Release any buffers this message holds a reference to. This is called once a message has been sent,
+     * so messages which hold reference counted buffers should override it to release them. The underlying
+     * buffer a message was deserialized from is owned (and released) by the decoder, so it is not released here.
+     */
     public void release() {
-        if (buf != null) {
-            buf.release();
-        }
+        // the base message holds no references.
+    }
+
+    /** Whether this message carries data large enough to be added to a composite buffer instead of being copied
+     * when it is serialized. Only such messages are encoded into a composite buffer.
+     *
+     * @return  True, if the message carries data at or above the zero copy threshold.
+     */
+    public boolean hasZeroCopyData() {
+        return false;
     }
 
     /** Constructor which generates a message based only the message type.
@@ -1,5 +1,6 @@
 package org.corfudb.protocols.wireprotocol;
 
+import com.google.common.collect.BoundType;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeSet;
 import com.google.common.collect.TreeRangeSet;
@@ -8,7 +9,6 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import lombok.ToString;
-import org.corfudb.util.serializer.Serializers;
 
 import java.util.Set;
 
@@ -42,12 +42,7 @@ public class CorfuRangeMsg extends CorfuMsg {
     @Override
     public void serialize(ByteBuf buffer) {
         super.serialize(buffer);
-        Set<Range<Long>> ranges = this.ranges.asRanges();
-        buffer.writeInt(ranges.size());
-        for (Range i : ranges)
-        {
-            Serializers.getSerializer(Serializers.SerializerType.JAVA).serialize(i, buffer);
-        }
+        bufferFromRangeSet(buffer, ranges);
     }
 
     /**
@@ -57,15 +52,73 @@ public class CorfuRangeMsg extends CorfuMsg {
      * @param buffer
      */
     @Override
-    @SuppressWarnings("unchecked")
     public void fromBuffer(ByteBuf buffer) {
         super.fromBuffer(buffer);
-        this.ranges = TreeRangeSet.create();
+        this.ranges = rangeSetFromBuffer(buffer);
+    }
+
+    /* Utility functions */
+
+    /* Flags which describe the bounds of a serialized range. */
+    static final byte HAS_LOWER_BOUND = 1;
+    static final byte LOWER_BOUND_CLOSED = 2;
+    static final byte HAS_UPPER_BOUND = 4;
+    static final byte UPPER_BOUND_CLOSED = 8;
+
+    /** Write a range set to a bytebuf. Each range is written as a byte of flags describing its bounds,
+     * followed by its lower and upper endpoints, if it has them.
+     *
+     * @param buffer    The bytebuf to write to.
+     * @param rangeSet  The range set to write.
+     */
+    public static void bufferFromRangeSet(ByteBuf buffer, RangeSet<Long> rangeSet)
+    {
+        Set<Range<Long>> ranges = rangeSet.asRanges();
+        buffer.writeInt(ranges.size());
+        for (Range<Long> r : ranges)
+        {
+            byte flags = 0;
+            if (r.hasLowerBound()) {
+                flags |= HAS_LOWER_BOUND;
+                flags |= r.lowerBoundType() == BoundType.CLOSED ? LOWER_BOUND_CLOSED : 0;
+            }
+            if (r.hasUpperBound()) {
+                flags |= HAS_UPPER_BOUND;
+                flags |= r.upperBoundType() == BoundType.CLOSED ? UPPER_BOUND_CLOSED : 0;
+            }
+            buffer.writeByte(flags);
+            if (r.hasLowerBound()) {
+                buffer.writeLong(r.lowerEndpoint());
+            }
+            if (r.hasUpperBound()) {
+                buffer.writeLong(r.upperEndpoint());
+            }
+        }
+    }
+
+    /** Read a range set written by bufferFromRangeSet from a bytebuf.
+     *
+     * @param buffer    The bytebuf to read from.
+     * @return          The deserialized range set.
+     */
+    public static RangeSet<Long> rangeSetFromBuffer(ByteBuf buffer)
+    {
+        RangeSet<Long> rangeSet = TreeRangeSet.create();
         int ranges = buffer.readInt();
         for (int i = 0; i < ranges; i++)
         {
-            Range r = (Range) Serializers.getSerializer(Serializers.SerializerType.JAVA).deserialize(buffer, null);
-            this.ranges.add(r);
+            byte flags = buffer.readByte();
+            Range<Long> r = Range.all();
+            if ((flags & HAS_LOWER_BOUND) != 0) {
+                r = r.intersection(Range.downTo(buffer.readLong(),
+                        (flags & LOWER_BOUND_CLOSED) != 0 ? BoundType.CLOSED : BoundType.OPEN));
+            }
+            if ((flags & HAS_UPPER_BOUND) != 0) {
+                r = r.intersection(Range.upTo(buffer.readLong(),
+                        (flags & UPPER_BOUND_CLOSED) != 0 ? BoundType.CLOSED : BoundType.OPEN));
+            }
+            rangeSet.add(r);
         }
+        return rangeSet;
     }
 }
@@ -2,6 +2,7 @@ package org.corfudb.protocols.wireprotocol;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.UnpooledByteBufAllocator;
 import lombok.Getter;
 import lombok.Setter;
@@ -16,6 +17,9 @@ import org.corfudb.util.serializer.ISerializer;
 @ToString
 public class LogUnitPayloadMsg extends LogUnitMetadataMsg {
 
+    /** The size of data, in bytes, at or above which data is added to a composite buffer instead of being copied. */
+    public static final int ZERO_COPY_THRESHOLD = 1024;
+
     /** The default serializer to use */
     public static final ISerializer defaultSerializer = new CorfuSerializer();
 
@@ -57,6 +61,23 @@ public class LogUnitPayloadMsg extends LogUnitMetadataMsg {
         return data.duplicate();
     }
 
+    /** Whether the data buffer is large enough to be added to a composite buffer when serialized. */
+    @Override
+    public boolean hasZeroCopyData() {
+        return payload == null && data != null && data.readableBytes() >= ZERO_COPY_THRESHOLD;
+    }
+
+    /** Release the data buffer, if this message holds one. */
+    @Override
+    public void release() {
+        super.release();
+        if (data != null)
+        {
+            data.release();
+            data = null;
+        }
+    }
+
     /**
      * Serialize the message into the given bytebuffer.
      *
@@ -76,8 +97,19 @@ public class LogUnitPayloadMsg extends LogUnitMetadataMsg {
         else if (data != null)
         {
             ByteBuf o = data.duplicate();
-            buffer.writeBytes(o);
-            buffer.setInt(index, o.readerIndex());
+            if (buffer instanceof CompositeByteBuf && o.readableBytes() >= ZERO_COPY_THRESHOLD) {
+                // Add the data to the composite buffer instead of copying it.
+                // The composite buffer takes a reference, which it releases once it has been written out.
+                CompositeByteBuf c = (CompositeByteBuf) buffer;
+                int length = o.readableBytes();
+                c.capacity(c.writerIndex());
+                c.addComponent(o.retain());
+                c.writerIndex(c.writerIndex() + length);
+                buffer.setInt(index, length);
+            } else {
+                buffer.writeBytes(o);
+                buffer.setInt(index, o.readerIndex());
+            }
         }
     }
 
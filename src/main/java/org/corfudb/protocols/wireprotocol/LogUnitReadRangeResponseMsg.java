@@ -20,10 +20,29 @@ public class LogUnitReadRangeResponseMsg extends CorfuMsg {
 
     Map<Long, LogUnitReadResponseMsg> responseMap;
 
-    public LogUnitReadRangeResponseMsg(Map<Long, LogUnitReadResponseMsg> map)
+    /** Whether this is the last chunk of the response. A ranged read is answered by a chunk of responses at a
+     * time, all with the request ID of the read, so that no message holds the whole range.
+     */
+    boolean last;
+
+    public LogUnitReadRangeResponseMsg(Map<Long, LogUnitReadResponseMsg> map, boolean last)
     {
         this.msgType = CorfuMsgType.READ_RANGE_RESPONSE;
         this.responseMap = map;
+        this.last = last;
+    }
+
+    /** Whether any of the responses in this message is large enough to be added to a composite buffer. */
+    @Override
+    public boolean hasZeroCopyData() {
+        return responseMap.values().stream().anyMatch(LogUnitReadResponseMsg::hasZeroCopyData);
+    }
+
+    /** Release the data buffers of the responses in this message. */
+    @Override
+    public void release() {
+        super.release();
+        responseMap.values().forEach(LogUnitReadResponseMsg::release);
     }
 
     /**
@@ -40,6 +59,7 @@ public class LogUnitReadRangeResponseMsg extends CorfuMsg {
             buffer.writeLong(e.getKey());
             e.getValue().serialize(buffer);
         }
+        buffer.writeBoolean(last);
     }
 
     /**
@@ -60,5 +80,6 @@ public class LogUnitReadRangeResponseMsg extends CorfuMsg {
             LogUnitReadResponseMsg m = (LogUnitReadResponseMsg)(CorfuMsg.deserialize(buffer));
             responseMap.put(address, m);
         }
+        last = buffer.readBoolean();
     }
 }
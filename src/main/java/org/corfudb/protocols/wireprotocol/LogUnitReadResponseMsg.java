@@ -78,6 +78,13 @@ public class LogUnitReadResponseMsg extends LogUnitPayloadMsg {
             return o;
         }
 
+        /** Release the data buffer of the backing message. Results which are not returned to a caller (for
+         * example, responses which lost a race or only helped to decide a read) must be released.
+         */
+        public void release() {
+            msg.release();
+        }
+
         @Getter(lazy=true)
         private final int sizeEstimate = calculateSize();
 
@@ -101,12 +108,20 @@ public class LogUnitReadResponseMsg extends LogUnitPayloadMsg {
         this.result = result;
     }
 
+    /** Create a response for an entry read from a log unit. The response takes a reference to the buffer
+     * of the entry, which is released once the response is sent, so the data is sent without being copied,
+     * even if the entry is evicted in the meantime.
+     *
+     * @param entry The entry which was read.
+     */
     public LogUnitReadResponseMsg(LogUnitServer.LogUnitEntry entry)
     {
         this.msgType = CorfuMsgType.READ_RESPONSE;
         this.result = ReadResultType.DATA;
         this.setMetadataMap(entry.getMetadataMap());
-        this.setData(entry.getBuffer());
+        if (entry.getBuffer() != null) {
+            this.setData(entry.getBuffer().duplicate().retain());
+        }
     }
 
     /**
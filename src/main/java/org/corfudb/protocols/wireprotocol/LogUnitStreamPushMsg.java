@@ -0,0 +1,78 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * New entries of a stream, pushed by a log unit to a subscribed client in the order they were written.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@ToString(callSuper = true)
+public class LogUnitStreamPushMsg extends CorfuMsg {
+
+    /** The ID of the subscription the entries are pushed to. */
+    UUID subscriptionID;
+
+    /** The entries, by address, in the order they were written. */
+    Map<Long, LogUnitReadResponseMsg> entries;
+
+    public LogUnitStreamPushMsg(UUID subscriptionID, Map<Long, LogUnitReadResponseMsg> entries)
+    {
+        this.msgType = CorfuMsgType.STREAM_PUSH;
+        this.subscriptionID = subscriptionID;
+        this.entries = entries;
+    }
+
+    /** Release the data buffers of the entries in this message. */
+    @Override
+    public void release() {
+        super.release();
+        entries.values().forEach(LogUnitReadResponseMsg::release);
+    }
+
+    /**
+     * Serialize the message into the given bytebuffer.
+     *
+     * @param buffer The buffer to serialize to.
+     */
+    @Override
+    public void serialize(ByteBuf buffer) {
+        super.serialize(buffer);
+        buffer.writeLong(subscriptionID.getMostSignificantBits());
+        buffer.writeLong(subscriptionID.getLeastSignificantBits());
+        buffer.writeInt(entries.size());
+        for (Map.Entry<Long, LogUnitReadResponseMsg> e : entries.entrySet())
+        {
+            buffer.writeLong(e.getKey());
+            e.getValue().serialize(buffer);
+        }
+    }
+
+    /**
+     * Parse the rest of the message from the buffer. Classes that extend CorfuMsg
+     * should parse their fields in this method.
+     *
+     * @param buffer
+     */
+    @Override
+    public void fromBuffer(ByteBuf buffer) {
+        super.fromBuffer(buffer);
+        subscriptionID = new UUID(buffer.readLong(), buffer.readLong());
+        int size = buffer.readInt();
+        entries = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++)
+        {
+            long address = buffer.readLong();
+            entries.put(address, (LogUnitReadResponseMsg) CorfuMsg.deserialize(buffer));
+        }
+    }
+}
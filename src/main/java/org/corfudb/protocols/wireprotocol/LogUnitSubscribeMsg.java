@@ -0,0 +1,69 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.UUID;
+
+/**
+ * A message which manages a subscription of a client to the new entries of a stream on a log unit.
+ *
+ * STREAM_SUBSCRIBE opens a subscription with an initial number of credits, STREAM_CREDIT grants further credits
+ * to an open subscription, and STREAM_UNSUBSCRIBE closes it. Each entry the log unit pushes consumes one credit,
+ * so that a client never has more pushed entries in flight than it has granted.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@ToString(callSuper = true)
+public class LogUnitSubscribeMsg extends CorfuMsg {
+
+    /** The ID of the subscription, chosen by the client. */
+    UUID subscriptionID;
+
+    /** The stream subscribed to. */
+    UUID streamID;
+
+    /** The number of credits granted. */
+    int credits;
+
+    public LogUnitSubscribeMsg(CorfuMsgType msgType, UUID subscriptionID, UUID streamID, int credits)
+    {
+        this.msgType = msgType;
+        this.subscriptionID = subscriptionID;
+        this.streamID = streamID;
+        this.credits = credits;
+    }
+
+    /**
+     * Serialize the message into the given bytebuffer.
+     *
+     * @param buffer The buffer to serialize to.
+     */
+    @Override
+    public void serialize(ByteBuf buffer) {
+        super.serialize(buffer);
+        buffer.writeLong(subscriptionID.getMostSignificantBits());
+        buffer.writeLong(subscriptionID.getLeastSignificantBits());
+        buffer.writeLong(streamID.getMostSignificantBits());
+        buffer.writeLong(streamID.getLeastSignificantBits());
+        buffer.writeInt(credits);
+    }
+
+    /**
+     * Parse the rest of the message from the buffer. Classes that extend CorfuMsg
+     * should parse their fields in this method.
+     *
+     * @param buffer
+     */
+    @Override
+    public void fromBuffer(ByteBuf buffer) {
+        super.fromBuffer(buffer);
+        subscriptionID = new UUID(buffer.readLong(), buffer.readLong());
+        streamID = new UUID(buffer.readLong(), buffer.readLong());
+        credits = buffer.readInt();
+    }
+}
@@ -12,10 +12,8 @@ import lombok.NoArgsConstructor;
 import lombok.Setter;
 import lombok.ToString;
 import org.corfudb.runtime.view.Layout;
-import org.corfudb.util.serializer.Serializers;
 
 import java.nio.charset.StandardCharsets;
-import java.util.Set;
 
 /**
  * Created by mwei on 2/10/16.
@@ -28,18 +26,20 @@ public class LogUnitTailMsg extends CorfuMsg {
 
     Long contiguousTail;
 
+    /** The highest address written to the log unit. */
+    Long maxAddress;
+
     RangeSet<Long> streamAddresses;
 
-    public LogUnitTailMsg(Long contiguousTail, RangeSet<Long> streamAddresses) {
+    public LogUnitTailMsg(Long contiguousTail, Long maxAddress, RangeSet<Long> streamAddresses) {
         this.msgType = CorfuMsgType.CONTIGUOUS_TAIL;
         this.contiguousTail = contiguousTail;
+        this.maxAddress = maxAddress;
         this.streamAddresses = streamAddresses;
     }
 
-    public LogUnitTailMsg(Long contiguousTail) {
-        this.msgType = CorfuMsgType.CONTIGUOUS_TAIL;
-        this.contiguousTail = contiguousTail;
-        this.streamAddresses = TreeRangeSet.create();
+    public LogUnitTailMsg(Long contiguousTail, Long maxAddress) {
+        this(contiguousTail, maxAddress, TreeRangeSet.create());
     }
 
     /**
@@ -51,12 +51,8 @@ public class LogUnitTailMsg extends CorfuMsg {
     public void serialize(ByteBuf buffer) {
         super.serialize(buffer);
         buffer.writeLong(contiguousTail);
-        Set<Range<Long>> ranges = streamAddresses.asRanges();
-        buffer.writeInt(ranges.size());
-        for (Range i : ranges)
-        {
-            Serializers.getSerializer(Serializers.SerializerType.JAVA).serialize(i, buffer);
-        }
+        buffer.writeLong(maxAddress);
+        CorfuRangeMsg.bufferFromRangeSet(buffer, streamAddresses);
     }
 
     /**
@@ -66,16 +62,10 @@ public class LogUnitTailMsg extends CorfuMsg {
      * @param buffer
      */
     @Override
-    @SuppressWarnings("unchecked")
     public void fromBuffer(ByteBuf buffer) {
         super.fromBuffer(buffer);
         contiguousTail = buffer.readLong();
-        streamAddresses = TreeRangeSet.create();
-        int ranges = buffer.readInt();
-        for (int i = 0; i < ranges; i++)
-        {
-            Range r = (Range) Serializers.getSerializer(Serializers.SerializerType.JAVA).deserialize(buffer, null);
-            streamAddresses.add(r);
-        }
+        maxAddress = buffer.readLong();
+        streamAddresses = CorfuRangeMsg.rangeSetFromBuffer(buffer);
     }
 }
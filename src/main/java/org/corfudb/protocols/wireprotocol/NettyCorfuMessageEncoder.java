@@ -6,20 +6,42 @@ import io.netty.handler.codec.MessageToByteEncoder;
 import lombok.extern.slf4j.Slf4j;
 
 /**
+ * Encodes a CorfuMsg into a frame, which consists of the length of the message followed by the message.
+ *
+ * Messages which carry large payloads (such as entries read from a log unit, which may be slices of a memory
+ * mapped log file) are encoded into a composite buffer, so that the payloads are added to the frame as components
+ * instead of being copied, and are written directly from their own buffers to the channel. Other messages are
+ * encoded into an ordinary buffer.
+ *
  * Created by mwei on 10/1/15.
  */
 @Slf4j
 public class NettyCorfuMessageEncoder extends MessageToByteEncoder<CorfuMsg> {
 
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext channelHandlerContext,
+                                     CorfuMsg corfuMsg,
+                                     boolean preferDirect) throws Exception {
+        if (corfuMsg.hasZeroCopyData()) {
+            return channelHandlerContext.alloc().compositeDirectBuffer(Integer.MAX_VALUE);
+        }
+        return super.allocateBuffer(channelHandlerContext, corfuMsg, preferDirect);
+    }
+
     @Override
     protected void encode(ChannelHandlerContext channelHandlerContext,
                           CorfuMsg corfuMsg,
                           ByteBuf byteBuf) throws Exception {
         try {
+            int start = byteBuf.writerIndex();
+            byteBuf.writeInt(0);
             corfuMsg.serialize(byteBuf);
+            byteBuf.setInt(start, byteBuf.writerIndex() - start - 4);
         } catch (Exception e)
         {
             log.error("Error during serialization!", e);
+        } finally {
+            corfuMsg.release();
         }
     }
 }
@@ -0,0 +1,157 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import lombok.Getter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Consolidates the flushes of a channel, so that many small messages are written to the socket at once.
+ *
+ * Every message is sent with writeAndFlush, which would otherwise cost a system call per message. This handler
+ * holds back the flushes it sees, and flushes the channel once for all of them:
+ * - while messages are being read from the channel, at the end of the read burst, so that the responses to a
+ *   burst of requests are flushed together,
+ * - otherwise, once the tasks already queued on the event loop have run (or once a delay has passed, if one is
+ *   given), so that messages sent from other threads in the meantime are flushed together,
+ * - and at once, if a limit of held back flushes is reached.
+ *
+ * The handler must be added to the pipeline below the encoder, and run on the I/O event loop of the channel.
+ */
+public class NettyFlushConsolidationHandler extends ChannelDuplexHandler {
+
+    /** Counters of the flushes of channels, which can be shared by several channels. */
+    public static class FlushStats {
+
+        /** The number of messages flushed. */
+        final AtomicLong messages = new AtomicLong();
+
+        /** The number of flushes of the channel. */
+        final AtomicLong flushes = new AtomicLong();
+
+        /** Get the number of messages flushed. */
+        public long getMessages() {
+            return messages.get();
+        }
+
+        /** Get the number of flushes of the channel. */
+        public long getFlushes() {
+            return flushes.get();
+        }
+
+        /** Get the average number of messages written to the socket by each flush. */
+        public double getMessagesPerFlush() {
+            long f = flushes.get();
+            return f == 0 ? 0.0 : (double) messages.get() / f;
+        }
+    }
+
+    /** The maximum number of flushes held back before the channel is flushed. */
+    @Getter
+    final int maxMessages;
+
+    /** How long a flush is held back outside of a read burst, in nanoseconds, or 0 to hold it back only
+     * until the tasks queued on the event loop have run.
+     */
+    @Getter
+    final long maxDelayNanos;
+
+    @Getter
+    final FlushStats stats;
+
+    /** The number of flushes held back. */
+    int pending;
+
+    /** Whether messages are being read from the channel. */
+    boolean reading;
+
+    /** Whether a task which flushes the channel is queued. */
+    boolean flushQueued;
+
+    /** Create a new handler.
+     *
+     * @param maxMessages       The maximum number of flushes held back, or 1 to flush every message at once.
+     * @param maxDelayMicros    How long a flush is held back outside of a read burst, in microseconds, or 0 to
+     *                          hold it back only until the tasks queued on the event loop have run.
+     * @param stats             The counters to update.
+     */
+    public NettyFlushConsolidationHandler(int maxMessages, long maxDelayMicros, FlushStats stats) {
+        if (maxMessages <= 0) {
+            throw new IllegalArgumentException("The maximum number of messages per flush must be positive.");
+        }
+        this.maxMessages = maxMessages;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.stats = stats;
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        pending++;
+        if (pending >= maxMessages) {
+            flushPending(ctx);
+        } else if (!reading && !flushQueued) {
+            flushQueued = true;
+            Runnable task = () -> {
+                flushQueued = false;
+                flushPending(ctx);
+            };
+            if (maxDelayNanos > 0) {
+                ctx.executor().schedule(task, maxDelayNanos, TimeUnit.NANOSECONDS);
+            } else {
+                ctx.executor().execute(task);
+            }
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        reading = true;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        reading = false;
+        flushPending(ctx);
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // Messages held back must reach the socket before it can drain.
+        if (!ctx.channel().isWritable()) {
+            flushPending(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushPending(ctx);
+        ctx.disconnect(promise);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushPending(ctx);
+        ctx.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        flushPending(ctx);
+    }
+
+    /** Flush the channel, if any flushes were held back. */
+    void flushPending(ChannelHandlerContext ctx) {
+        if (pending > 0) {
+            stats.messages.addAndGet(pending);
+            stats.flushes.incrementAndGet();
+            pending = 0;
+            ctx.flush();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.corfudb.protocols.wireprotocol;
+
+import com.google.common.collect.ImmutableMap;
+import io.netty.buffer.ByteBuf;
+import lombok.*;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The tails of the log and of its streams, as reconstructed from the log units, which a sequencer merges into
+ * its state after a failover. A TOKEN_UNPIN carries a pinned token as the tail, and the tails of the streams
+ * before the pin, which the sequencer restores.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@ToString(callSuper = true)
+public class SequencerTailsMsg extends CorfuMsg {
+    /** The highest address found in the log. */
+    Long tail;
+
+    /** The highest address of each stream. */
+    Map<UUID, Long> streamTails;
+        /* The wire format of the SequencerTailsMsg message is below:
+            | client ID(16) | request ID(8) |  type(1)  |  tail(8) | numStreams(4) | stream ID(16) | tail(8) | ...
+            |  MSB  |  LSB  |               |           |          |               |  MSB  |  LSB  |         |
+            0       7       15              23          24         32              36
+         */
+
+    public SequencerTailsMsg(@NonNull Long tail, @NonNull Map<UUID, Long> streamTails)
+    {
+        this(CorfuMsgType.SEQUENCER_TAILS, tail, streamTails);
+    }
+
+    public SequencerTailsMsg(CorfuMsgType type, @NonNull Long tail, @NonNull Map<UUID, Long> streamTails)
+    {
+        this.msgType = type;
+        this.tail = tail;
+        this.streamTails = streamTails;
+    }
+
+    /**
+     * Serialize the message into the given bytebuffer.
+     *
+     * @param buffer The buffer to serialize to.
+     */
+    @Override
+    public void serialize(ByteBuf buffer) {
+        super.serialize(buffer);
+        buffer.writeLong(tail);
+        buffer.writeInt(streamTails.size());
+        streamTails.forEach((id, last) -> {
+            buffer.writeLong(id.getMostSignificantBits());
+            buffer.writeLong(id.getLeastSignificantBits());
+            buffer.writeLong(last);
+        });
+    }
+
+    /**
+     * Parse the rest of the message from the buffer. Classes that extend CorfuMsg
+     * should parse their fields in this method.
+     *
+     * @param buffer
+     */
+    @Override
+    public void fromBuffer(ByteBuf buffer) {
+        super.fromBuffer(buffer);
+        tail = buffer.readLong();
+        int numStreams = buffer.readInt();
+        ImmutableMap.Builder<UUID, Long> mb = ImmutableMap.builder();
+        for (int i = 0; i < numStreams; i++)
+        {
+            mb.put(new UUID(buffer.readLong(), buffer.readLong()), buffer.readLong());
+        }
+        streamTails = mb.build();
+    }
+}
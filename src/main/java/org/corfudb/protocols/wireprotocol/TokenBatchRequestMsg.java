@@ -0,0 +1,64 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of token requests, which the sequencer serves in order and answers with a single
+ * TOKEN_BATCH_RES.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@ToString(callSuper = true)
+public class TokenBatchRequestMsg extends CorfuMsg {
+    /** The requests in the batch. */
+    List<TokenRequestMsg> requests;
+
+        /* The wire format of the TokenBatchRequestMsg message is below:
+            | client ID(16) | request ID(8) |  type(1)  | numRequests(2) | flags(2) | numStreams(1) | ... |
+            |  MSB  |  LSB  |               |           |                |   each request, as a TOKEN_REQ  |
+            0       7       15              23          24               26
+         */
+
+    public TokenBatchRequestMsg(List<TokenRequestMsg> requests)
+    {
+        this.msgType = CorfuMsgType.TOKEN_BATCH_REQ;
+        this.requests = requests;
+    }
+
+    /**
+     * Serialize the message into the given bytebuffer.
+     *
+     * @param buffer The buffer to serialize to.
+     */
+    @Override
+    public void serialize(ByteBuf buffer) {
+        super.serialize(buffer);
+        buffer.writeShort(requests.size());
+        requests.forEach(r -> r.serializeRequest(buffer));
+    }
+
+    /**
+     * Parse the rest of the message from the buffer. Classes that extend CorfuMsg
+     * should parse their fields in this method.
+     *
+     * @param buffer
+     */
+    @Override
+    public void fromBuffer(ByteBuf buffer) {
+        super.fromBuffer(buffer);
+        int numRequests = buffer.readUnsignedShort();
+        requests = new ArrayList<>(numRequests);
+        for (int i = 0; i < numRequests; i++)
+        {
+            TokenRequestMsg r = new TokenRequestMsg();
+            r.setMsgType(CorfuMsgType.TOKEN_REQ);
+            r.parseRequest(buffer);
+            requests.add(r);
+        }
+    }
+}
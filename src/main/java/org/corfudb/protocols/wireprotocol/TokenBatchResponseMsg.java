@@ -0,0 +1,63 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The responses to a TOKEN_BATCH_REQ, in the order of its requests.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@ToString(callSuper = true)
+public class TokenBatchResponseMsg extends CorfuMsg {
+    /** The responses, one for each request of the batch. */
+    List<TokenResponseMsg> responses;
+
+        /* The wire format of the TokenBatchResponseMsg message is below:
+            | client ID(16) | request ID(8) |  type(1)  | numResponses(2) | token(8) | numEntries(2) | ... |
+            |  MSB  |  LSB  |               |           |                 |  each response, as a TOKEN_RES  |
+            0       7       15              23          24                26
+         */
+
+    public TokenBatchResponseMsg(List<TokenResponseMsg> responses)
+    {
+        this.msgType = CorfuMsgType.TOKEN_BATCH_RES;
+        this.responses = responses;
+    }
+
+    /**
+     * Serialize the message into the given bytebuffer.
+     *
+     * @param buffer The buffer to serialize to.
+     */
+    @Override
+    public void serialize(ByteBuf buffer) {
+        super.serialize(buffer);
+        buffer.writeShort(responses.size());
+        responses.forEach(r -> r.serializeResponse(buffer));
+    }
+
+    /**
+     * Parse the rest of the message from the buffer. Classes that extend CorfuMsg
+     * should parse their fields in this method.
+     *
+     * @param buffer
+     */
+    @Override
+    public void fromBuffer(ByteBuf buffer) {
+        super.fromBuffer(buffer);
+        int numResponses = buffer.readUnsignedShort();
+        responses = new ArrayList<>(numResponses);
+        for (int i = 0; i < numResponses; i++)
+        {
+            TokenResponseMsg r = new TokenResponseMsg();
+            r.setMsgType(CorfuMsgType.TOKEN_RES);
+            r.parseResponse(buffer);
+            responses.add(r);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A request to a sequencer to record a token, which was issued by the sequencer of another shard, as the last
+ * token issued to some streams. The sequencer answers with a TOKEN_RES.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@ToString(callSuper = true)
+public class TokenPinMsg extends CorfuMsg {
+    /** The streams to pin the token to. */
+    Set<UUID> streamIDs;
+
+    /** The token to pin. */
+    Long address;
+        /* The wire format of the TokenPinMsg message is below:
+            | client ID(16) | request ID(8) |  type(1)  |  address(8) | numStreams(1) | stream ID(16)... |
+            |  MSB  |  LSB  |               |           |             |               |  MSB   |  LSB    |
+            0       7       15              23          24            32              33
+         */
+
+    public TokenPinMsg(@NonNull Set<UUID> streamIDs, @NonNull Long address)
+    {
+        this.msgType = CorfuMsgType.TOKEN_PIN;
+        this.streamIDs = streamIDs;
+        this.address = address;
+    }
+
+    /**
+     * Serialize the message into the given bytebuffer.
+     *
+     * @param buffer The buffer to serialize to.
+     */
+    @Override
+    public void serialize(ByteBuf buffer) {
+        super.serialize(buffer);
+        buffer.writeLong(address);
+        buffer.writeByte((byte) streamIDs.size());
+        for (UUID sid : streamIDs)
+        {
+            buffer.writeLong(sid.getMostSignificantBits());
+            buffer.writeLong(sid.getLeastSignificantBits());
+        }
+    }
+
+    /**
+     * Parse the rest of the message from the buffer. Classes that extend CorfuMsg
+     * should parse their fields in this method.
+     *
+     * @param buffer
+     */
+    @Override
+    public void fromBuffer(ByteBuf buffer) {
+        super.fromBuffer(buffer);
+        address = buffer.readLong();
+        streamIDs = new HashSet<>();
+        byte numStreams = buffer.readByte();
+        for (int i = 0; i < numStreams; i++)
+        {
+            streamIDs.add(new UUID(buffer.readLong(), buffer.readLong()));
+        }
+    }
+}
@@ -87,6 +87,15 @@ public class TokenRequestMsg extends CorfuMsg {
     @Override
     public void serialize(ByteBuf buffer) {
         super.serialize(buffer);
+        serializeRequest(buffer);
+    }
+
+    /**
+     * Serialize the fields of the request, without the header of the message.
+     *
+     * @param buffer The buffer to serialize to.
+     */
+    void serializeRequest(ByteBuf buffer) {
         buffer.writeShort(shortFromFlags(tokenFlags));
         buffer.writeByte((byte) streamIDs.size());
         for(UUID sid : streamIDs)
@@ -106,6 +115,15 @@ public class TokenRequestMsg extends CorfuMsg {
     @Override
     public void fromBuffer(ByteBuf buffer) {
         super.fromBuffer(buffer);
+        parseRequest(buffer);
+    }
+
+    /**
+     * Parse the fields of the request, which follow the header of the message.
+     *
+     * @param buffer The buffer to parse from.
+     */
+    void parseRequest(ByteBuf buffer) {
         tokenFlags = flagsFromShort(buffer.readShort());
         streamIDs = new HashSet<UUID>();
         byte numStreams = buffer.readByte();
@@ -41,6 +41,15 @@ public class TokenResponseMsg extends CorfuMsg {
     @Override
     public void serialize(ByteBuf buffer) {
         super.serialize(buffer);
+        serializeResponse(buffer);
+    }
+
+    /**
+     * Serialize the fields of the response, without the header of the message.
+     *
+     * @param buffer The buffer to serialize to.
+     */
+    void serializeResponse(ByteBuf buffer) {
         buffer.writeLong(this.token);
         buffer.writeShort(backpointerMap.size());
         backpointerMap.entrySet().stream()
@@ -60,6 +69,15 @@ public class TokenResponseMsg extends CorfuMsg {
     @Override
     public void fromBuffer(ByteBuf buffer) {
         super.fromBuffer(buffer);
+        parseResponse(buffer);
+    }
+
+    /**
+     * Parse the fields of the response, which follow the header of the message.
+     *
+     * @param buffer The buffer to parse from.
+     */
+    void parseResponse(ByteBuf buffer) {
         this.token = buffer.readLong();
         short numEntries = buffer.readShort();
         ImmutableMap.Builder<UUID,Long> mb = ImmutableMap.builder();
@@ -6,6 +6,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.corfudb.runtime.clients.*;
 import org.corfudb.runtime.view.*;
 import org.corfudb.util.GitRepositoryState;
+import org.corfudb.util.NettyTransport;
 import org.corfudb.util.Version;
 
 import java.util.ArrayList;
@@ -42,10 +43,43 @@ public class CorfuRuntime {
     @Getter
     public boolean cacheDisabled = false;
 
-    /** The maximum size of the cache, in bytes. */
+    /** The maximum size of the payload tier of the cache, which holds entries with data, in bytes. */
     @Getter
     public int maxCacheSize = 100_000_000;
 
+    /** The maximum size of the metadata tier of the cache, which holds holes and empty entries, in bytes. */
+    @Getter
+    public long maxMetadataCacheSize = 10_000_000L;
+
+    /** The maximum size of the cache of stream addresses, in bytes. */
+    @Getter
+    public long maxStreamCacheSize = 10_000_000L;
+
+    /** The maximum size of the off-heap tier of the cache, in bytes, or 0 to disable it. */
+    @Getter
+    public long maxOffHeapCacheSize = 0L;
+
+    /**
+     * Set the sizes of the tiers of the cache. The sizes apply to caches built after this call,
+     * and can be applied to the current cache with {@link AddressSpaceView#resetCaches()}.
+     * @param payload   The maximum size of the payload tier, in bytes.
+     * @param metadata  The maximum size of the metadata tier, in bytes.
+     * @param streams   The maximum size of the cache of stream addresses, in bytes.
+     * @param offHeap   The maximum size of the off-heap tier, in bytes, or 0 to disable it.
+     * @return          A CorfuRuntime to support chaining.
+     */
+    public CorfuRuntime setCacheSizes(int payload, long metadata, long streams, long offHeap)
+    {
+        if (payload < 0 || metadata < 0 || streams < 0 || offHeap < 0) {
+            throw new IllegalArgumentException("Cache sizes must not be negative.");
+        }
+        this.maxCacheSize = payload;
+        this.maxMetadataCacheSize = metadata;
+        this.maxStreamCacheSize = streams;
+        this.maxOffHeapCacheSize = offHeap;
+        return this;
+    }
+
     //endregion Address Space Options
 
 
@@ -64,6 +98,80 @@ public class CorfuRuntime {
         return this;
     }
 
+    /** The default number of asynchronous writes each stream may have in flight. */
+    @Getter
+    public int writeWindow = 256;
+
+    /**
+     * Set the default number of asynchronous writes each stream may have in flight.
+     * @param window    The number of writes, which must be positive.
+     * @return          A CorfuRuntime to support chaining.
+     */
+    public CorfuRuntime setWriteWindow(int window)
+    {
+        if (window <= 0) {
+            throw new IllegalArgumentException("The write window must be positive.");
+        }
+        this.writeWindow = window;
+        return this;
+    }
+
+    /** The Netty transport which routers connect to servers over. */
+    @Getter
+    public NettyTransport transport = NettyTransport.NIO;
+
+    /**
+     * Set the Netty transport which routers connect to servers over.
+     * @param transport The name of the transport, nio or epoll. Where epoll is unavailable, nio is used.
+     * @return          A CorfuRuntime to support chaining.
+     */
+    public CorfuRuntime setTransport(String transport)
+    {
+        this.transport = NettyTransport.get(transport);
+        return this;
+    }
+
+    /** Whether routers decode, route and encode messages on their I/O event loop. */
+    @Getter
+    public boolean handlersOnEventLoop = false;
+
+    /**
+     * Whether routers decode, route and encode messages on their I/O event loop, rather than handing them off to
+     * a separate group of threads.
+     * @param onEventLoop   True, if the handlers should run on the I/O event loop, false otherwise.
+     * @return              A CorfuRuntime to support chaining.
+     */
+    public CorfuRuntime setHandlersOnEventLoop(boolean onEventLoop)
+    {
+        this.handlersOnEventLoop = onEventLoop;
+        return this;
+    }
+
+    /** The maximum number of requests a router holds back before it flushes its channel. */
+    @Getter
+    public int flushMessages = 64;
+
+    /** How long a router holds back requests to flush them together, in microseconds. */
+    @Getter
+    public long flushDelayMicros = 0;
+
+    /**
+     * Set how routers consolidate the flushes of their channels.
+     * @param messages      The maximum number of requests held back, or 1 to flush every request at once.
+     * @param delayMicros   How long requests are held back, in microseconds, or 0 to hold them back only until
+     *                      the tasks queued on the event loop have run.
+     * @return              A CorfuRuntime to support chaining.
+     */
+    public CorfuRuntime setFlushLimits(int messages, long delayMicros)
+    {
+        if (messages <= 0) {
+            throw new IllegalArgumentException("The number of requests per flush must be positive.");
+        }
+        this.flushMessages = messages;
+        this.flushDelayMicros = delayMicros;
+        return this;
+    }
+
     /**
      * Whether or not to disable the cache
      * @param disable   True, if the cache should be disabled, false otherwise.
@@ -103,6 +211,10 @@ public class CorfuRuntime {
         Integer port = Integer.parseInt(address.split(":")[1]);
         // Generate a new router, start it and add it to the table.
         NettyClientRouter router = new NettyClientRouter(host, port);
+        router.setTransport(transport);
+        router.setHandlersOnEventLoop(handlersOnEventLoop);
+        router.setFlushMessages(flushMessages);
+        router.setFlushDelayMicros(flushDelayMicros);
         log.debug("Connecting to new router {}:{}", host, port);
         try {
             router.addClient(new LayoutClient())
@@ -128,6 +240,10 @@ public class CorfuRuntime {
     @Getter(lazy=true)
     private final AddressSpaceView addressSpaceView = new AddressSpaceView(this);
 
+    /** Selects the replicas which serve reads, by the addresses they hold and their latency. */
+    @Getter(lazy=true)
+    private final ReplicaSelector replicaSelector = new ReplicaSelector(this);
+
     /** A view of streams in the Corfu server instance. */
     @Getter(lazy=true)
     private final StreamsView streamsView = new StreamsView(this);
@@ -1,5 +1,7 @@
 package org.corfudb.runtime.clients;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.RangeSet;
 import io.netty.buffer.ByteBuf;
@@ -18,6 +20,8 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /** A client to a LogUnit.
  *
@@ -28,6 +32,26 @@ public class LogUnitClient implements IClient {
     @Setter
     IClientRouter router;
 
+    /** The open subscriptions to streams on the log unit, by their ID. */
+    final Map<UUID, LogUnitSubscription> subscriptions = new ConcurrentHashMap<>();
+
+    /** The number of seconds after which the chunks of a ranged read which never completes are dropped. This
+     * is longer than the timeout of a request, so it only applies to chunks which arrive after the timeout.
+     */
+    static final long RANGE_READ_EXPIRY_SECONDS = 10;
+
+    /** The responses received for ranged reads whose last chunk has not been received, by request ID. The
+     * responses of a read which completes without its last chunk are released.
+     */
+    final Cache<Long, Map<Long, LogUnitReadResponseMsg>> rangeReads = Caffeine.newBuilder()
+            .expireAfterAccess(RANGE_READ_EXPIRY_SECONDS, TimeUnit.SECONDS)
+            .<Long, Map<Long, LogUnitReadResponseMsg>>removalListener((id, responses, cause) -> {
+                if (cause.wasEvicted()) {
+                    responses.values().forEach(LogUnitReadResponseMsg::release);
+                }
+            })
+            .build();
+
     /**
      * Handle a incoming message on the channel
      *
@@ -58,16 +82,44 @@ public class LogUnitClient implements IClient {
                 break;
             case READ_RANGE_RESPONSE: {
                 LogUnitReadRangeResponseMsg rmsg = (LogUnitReadRangeResponseMsg) msg;
-                Map<Long, ReadResult> lr = new ConcurrentHashMap<>();
-                rmsg.getResponseMap().entrySet().parallelStream()
-                    .forEach(e -> lr.put(e.getKey(), new ReadResult(e.getValue())));
+                if (!rmsg.isLast()) {
+                    rangeReads.asMap().merge(msg.getRequestID(), new HashMap<>(rmsg.getResponseMap()),
+                            (a, b) -> {
+                                a.putAll(b);
+                                return a;
+                            });
+                    break;
+                }
+                Map<Long, ReadResult> lr = new HashMap<>();
+                Map<Long, LogUnitReadResponseMsg> received = rangeReads.asMap().remove(msg.getRequestID());
+                if (received != null) {
+                    received.forEach((address, r) -> lr.put(address, new ReadResult(r)));
+                }
+                rmsg.getResponseMap().forEach((address, r) -> lr.put(address, new ReadResult(r)));
                 router.completeRequest(msg.getRequestID(), lr);
             }
             break;
             case CONTIGUOUS_TAIL: {
                 LogUnitTailMsg m = (LogUnitTailMsg) msg;
                 router.completeRequest(msg.getRequestID(), new ContiguousTailData(m.getContiguousTail(),
-                        m.getStreamAddresses()));
+                        m.getStreamAddresses(), m.getMaxAddress()));
+            }
+                break;
+            case STREAM_PUSH: {
+                LogUnitStreamPushMsg m = (LogUnitStreamPushMsg) msg;
+                LogUnitSubscription s = subscriptions.get(m.getSubscriptionID());
+                if (s == null) {
+                    m.release();
+                } else {
+                    s.push(m.getEntries());
+                }
+            }
+                break;
+            case STREAM_UNSUBSCRIBE: {
+                LogUnitSubscription s = subscriptions.get(((LogUnitSubscribeMsg) msg).getSubscriptionID());
+                if (s != null) {
+                    s.closed();
+                }
             }
                 break;
         }
@@ -90,6 +142,10 @@ public class LogUnitClient implements IClient {
                     .add(CorfuMsg.CorfuMsgType.READ_RANGE)
                     .add(CorfuMsg.CorfuMsgType.READ_RANGE_RESPONSE)
                     .add(CorfuMsg.CorfuMsgType.STREAM_READ)
+                    .add(CorfuMsg.CorfuMsgType.STREAM_SUBSCRIBE)
+                    .add(CorfuMsg.CorfuMsgType.STREAM_CREDIT)
+                    .add(CorfuMsg.CorfuMsgType.STREAM_UNSUBSCRIBE)
+                    .add(CorfuMsg.CorfuMsgType.STREAM_PUSH)
 
                     .add(CorfuMsg.CorfuMsgType.ERROR_OK)
                     .add(CorfuMsg.CorfuMsgType.ERROR_TRIMMED)
@@ -138,7 +194,8 @@ public class LogUnitClient implements IClient {
         w.setStreams(streams);
         w.setRank(rank);
         w.setBackpointerMap(backpointerMap);
-        w.setData(buffer);
+        // The message holds its own reference to the buffer, which is released once it is sent.
+        w.setData(buffer.duplicate().retain());
         return router.sendMessageAndGetCompletable(w);
     }
 
@@ -193,7 +250,16 @@ public class LogUnitClient implements IClient {
      * @param addresses The addresses to read.
      */
     public CompletableFuture<Map<Long,ReadResult>> readRange(RangeSet<Long> addresses) {
-        return router.sendMessageAndGetCompletable(new CorfuRangeMsg(CorfuMsg.CorfuMsgType.READ_RANGE, addresses));
+        CorfuRangeMsg msg = new CorfuRangeMsg(CorfuMsg.CorfuMsgType.READ_RANGE, addresses);
+        CompletableFuture<Map<Long,ReadResult>> cf = router.sendMessageAndGetCompletable(msg);
+        // If the read times out or fails before its last chunk, drop the chunks received so far.
+        cf.whenComplete((r, ex) -> {
+            Map<Long, LogUnitReadResponseMsg> received = rangeReads.asMap().remove(msg.getRequestID());
+            if (received != null) {
+                received.values().forEach(LogUnitReadResponseMsg::release);
+            }
+        });
+        return cf;
     }
 
     /**
@@ -205,11 +271,35 @@ public class LogUnitClient implements IClient {
         return router.sendMessageAndGetCompletable(new CorfuUUIDMsg(CorfuMsg.CorfuMsgType.STREAM_READ, streamID));
     }
 
+    /**
+     * Subscribe to the new entries of a stream. The log unit pushes each entry of the stream once it is durable,
+     * with at most window entries pushed which the listener has not consumed.
+     *
+     * @param streamID  The stream to subscribe to.
+     * @param window    The maximum number of entries in flight.
+     * @param listener  The listener which consumes the entries, in the order they were written.
+     * @return A CompletableFuture which will complete with the subscription once the log unit has opened it.
+     * Every entry which becomes durable after that is pushed to the listener.
+     */
+    public CompletableFuture<LogUnitSubscription> subscribe(UUID streamID, int window, Consumer<ReadResult> listener) {
+        LogUnitSubscription s = new LogUnitSubscription(this, streamID, window, listener);
+        subscriptions.put(s.getSubscriptionID(), s);
+        return router.<Boolean>sendMessageAndGetCompletable(new LogUnitSubscribeMsg(
+                CorfuMsg.CorfuMsgType.STREAM_SUBSCRIBE, s.getSubscriptionID(), streamID, window))
+                .whenComplete((ok, ex) -> {
+                    if (ex != null) {
+                        subscriptions.remove(s.getSubscriptionID());
+                    }
+                })
+                .thenApply(ok -> s);
+    }
 
     @Data
     public static class ContiguousTailData {
         final Long contiguousTail;
         final RangeSet<Long> range;
+        /** The highest address written to the log unit. */
+        final Long maxAddress;
     }
 
     /** Get the contiguous tail data for a particular stream.
@@ -0,0 +1,125 @@
+package org.corfudb.runtime.clients;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.protocols.wireprotocol.CorfuMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg.ReadResult;
+import org.corfudb.protocols.wireprotocol.LogUnitSubscribeMsg;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/** A subscription to the new entries of a stream on a log unit.
+ *
+ * The log unit pushes the entries of the stream as they become durable, as long as the subscription has credits.
+ * The entries pushed are delivered to the listener in order on a separate thread, so that a slow listener does not
+ * hold up the channel, and credits are granted back in batches of half the window once the listener has consumed
+ * the entries. A slow listener therefore holds at most window entries in memory, and the log unit stops pushing
+ * until it catches up.
+ */
+@Slf4j
+public class LogUnitSubscription implements AutoCloseable {
+
+    /** The ID of the subscription. */
+    @Getter
+    final UUID subscriptionID = UUID.randomUUID();
+
+    /** The stream subscribed to. */
+    @Getter
+    final UUID streamID;
+
+    /** The maximum number of entries pushed which the listener has not consumed. */
+    @Getter
+    final int window;
+
+    final LogUnitClient client;
+
+    final Consumer<ReadResult> listener;
+
+    /** The entries pushed, which have not been delivered to the listener. */
+    final Queue<Map.Entry<Long, LogUnitReadResponseMsg>> entries = new ConcurrentLinkedQueue<>();
+
+    /** Whether a thread is delivering entries to the listener. */
+    final AtomicBoolean delivering = new AtomicBoolean();
+
+    /** The number of entries consumed since credits were last granted, only accessed while delivering. */
+    int consumed;
+
+    /** A future which completes once the subscription is closed, by the client or the log unit. */
+    @Getter
+    final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+    LogUnitSubscription(LogUnitClient client, UUID streamID, int window, Consumer<ReadResult> listener) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("The window of a subscription must be positive.");
+        }
+        this.client = client;
+        this.streamID = streamID;
+        this.window = window;
+        this.listener = listener;
+    }
+
+    /** Queue entries pushed by the log unit for delivery. */
+    void push(Map<Long, LogUnitReadResponseMsg> pushed) {
+        entries.addAll(pushed.entrySet());
+        if (delivering.compareAndSet(false, true)) {
+            ForkJoinPool.commonPool().execute(this::deliver);
+        }
+    }
+
+    /** Deliver the queued entries to the listener, granting credits back as they are consumed. */
+    void deliver() {
+        while (true) {
+            Map.Entry<Long, LogUnitReadResponseMsg> e;
+            while ((e = entries.poll()) != null) {
+                if (closed.isDone()) {
+                    e.getValue().release();
+                    continue;
+                }
+                ReadResult r = new ReadResult(e.getValue());
+                r.setAddress(e.getKey());
+                try {
+                    listener.accept(r);
+                } catch (Exception ex) {
+                    log.warn("Subscribe[{}]: listener failed on entry at {}", subscriptionID, e.getKey(), ex);
+                }
+                if (++consumed >= Math.max(1, window / 2)) {
+                    client.router.sendMessage(new LogUnitSubscribeMsg(CorfuMsg.CorfuMsgType.STREAM_CREDIT,
+                            subscriptionID, streamID, consumed));
+                    consumed = 0;
+                }
+            }
+            delivering.set(false);
+            // Entries may have been pushed after the queue was drained, but before delivering was cleared.
+            if (entries.isEmpty() || !delivering.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /** Mark the subscription closed, without telling the log unit. */
+    void closed() {
+        client.subscriptions.remove(subscriptionID);
+        closed.complete(null);
+        if (delivering.compareAndSet(false, true)) {
+            ForkJoinPool.commonPool().execute(this::deliver);
+        }
+    }
+
+    /** Close the subscription, so that the log unit stops pushing entries. */
+    @Override
+    public void close() {
+        if (!closed.isDone()) {
+            client.router.sendMessage(new LogUnitSubscribeMsg(CorfuMsg.CorfuMsgType.STREAM_UNSUBSCRIBE,
+                    subscriptionID, streamID, 0));
+            closed();
+        }
+    }
+}
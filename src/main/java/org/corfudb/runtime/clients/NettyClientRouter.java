@@ -1,12 +1,10 @@
 package org.corfudb.runtime.clients;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
-import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.util.concurrent.DefaultEventExecutorGroup;
 import io.netty.util.concurrent.EventExecutorGroup;
 import lombok.Getter;
@@ -16,8 +14,10 @@ import org.corfudb.runtime.exceptions.NetworkException;
 import org.corfudb.runtime.exceptions.WrongEpochException;
 import org.corfudb.protocols.wireprotocol.NettyCorfuMessageDecoder;
 import org.corfudb.protocols.wireprotocol.NettyCorfuMessageEncoder;
+import org.corfudb.protocols.wireprotocol.NettyFlushConsolidationHandler;
 import org.corfudb.protocols.wireprotocol.CorfuMsg;
 import org.corfudb.util.CFUtils;
+import org.corfudb.util.NettyTransport;
 
 import java.net.ConnectException;
 import java.time.Duration;
@@ -80,9 +80,37 @@ implements IClientRouter {
     /** The worker group for this router. */
     public EventLoopGroup workerGroup;
 
-    /** The event executor group for this router. */
+    /** The event executor group for this router, or null if the handlers run on the worker group. */
     public EventExecutorGroup ee;
 
+    /** The transport this router connects over. */
+    @Getter
+    @Setter
+    public NettyTransport transport = NettyTransport.NIO;
+
+    /** Whether the handlers of this router run on the I/O event loop of its channel, rather than on
+     * a separate event executor group, which saves a thread hop per message.
+     */
+    @Getter
+    @Setter
+    public boolean handlersOnEventLoop = false;
+
+    /** The maximum number of requests held back before the channel is flushed. */
+    @Getter
+    @Setter
+    public int flushMessages = 64;
+
+    /** How long requests are held back, in microseconds, or 0 to hold them back only until the tasks queued
+     * on the event loop have run.
+     */
+    @Getter
+    @Setter
+    public long flushDelayMicros = 0;
+
+    /** Counters of the flushes of the channel of this router. */
+    @Getter
+    public final NettyFlushConsolidationHandler.FlushStats flushStats = new NettyFlushConsolidationHandler.FlushStats();
+
     /** Whether or not this router is shutdown. */
     volatile public boolean shutdown;
 
@@ -141,7 +169,7 @@ implements IClientRouter {
     public void start()
     {
         shutdown = false;
-        workerGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
+        workerGroup = transport.getEventLoopGroup(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
             final AtomicInteger threadNum = new AtomicInteger(0);
 
             @Override
@@ -153,31 +181,38 @@ implements IClientRouter {
             }
         });
 
-        ee = new DefaultEventExecutorGroup(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
+        // Without a separate group, the handlers run on the I/O event loop of the channel.
+        if (handlersOnEventLoop) {
+            ee = null;
+        } else {
+            ee = new DefaultEventExecutorGroup(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
 
-            final AtomicInteger threadNum = new AtomicInteger(0);
+                final AtomicInteger threadNum = new AtomicInteger(0);
 
-            @Override
-            public Thread newThread(Runnable r) {
-                Thread t = new Thread(r);
-                t.setName(this.getClass().getName() + "event-" + threadNum.getAndIncrement());
-                t.setDaemon(true);
-                return t;
-            }
-        });
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setName(this.getClass().getName() + "event-" + threadNum.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
 
 
         Bootstrap b = new Bootstrap();
         b.group(workerGroup);
-        b.channel(NioSocketChannel.class);
+        b.channel(transport.getChannelClass());
         b.option(ChannelOption.SO_KEEPALIVE, true);
         b.option(ChannelOption.TCP_NODELAY, true);
+        b.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
         NettyClientRouter router = this;
         b.handler(new ChannelInitializer<SocketChannel>() {
             @Override
             public void initChannel(SocketChannel ch) throws Exception {
-                ch.pipeline().addLast(new LengthFieldPrepender(4));
                 ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4));
+                ch.pipeline().addLast(new NettyFlushConsolidationHandler(flushMessages, flushDelayMicros,
+                        flushStats));
                 ch.pipeline().addLast(ee, new NettyCorfuMessageDecoder());
                 ch.pipeline().addLast(ee, new NettyCorfuMessageEncoder());
                 ch.pipeline().addLast(ee, router);
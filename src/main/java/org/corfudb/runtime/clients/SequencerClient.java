@@ -6,18 +6,34 @@ import lombok.Data;
 import lombok.Getter;
 import lombok.Setter;
 import org.corfudb.protocols.wireprotocol.CorfuMsg;
+import org.corfudb.protocols.wireprotocol.SequencerTailsMsg;
+import org.corfudb.protocols.wireprotocol.TokenBatchRequestMsg;
+import org.corfudb.protocols.wireprotocol.TokenBatchResponseMsg;
+import org.corfudb.protocols.wireprotocol.TokenPinMsg;
 import org.corfudb.protocols.wireprotocol.TokenRequestMsg;
 import org.corfudb.protocols.wireprotocol.TokenResponseMsg;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 /** A sequencer client.
  *
  * This client allows the client to obtain sequence numbers from a sequencer.
  *
+ * Token requests are coalesced: while a request to the sequencer is outstanding, further requests from any
+ * thread are queued, and once the outstanding request completes, every queued request is sent together in a
+ * single TOKEN_BATCH_REQ. Each request is completed with its own token and backpointer map from the batch
+ * response, so a client issues one round trip per batch instead of one per token.
+ *
  * Created by mwei on 12/10/15.
  */
 public class SequencerClient implements IClient {
@@ -25,8 +41,26 @@ public class SequencerClient implements IClient {
     @Setter
     IClientRouter router;
 
+    /** The maximum number of token requests to send in one batch, or 1 to send every request on its own. */
+    @Getter
+    @Setter
+    int maxBatchSize = 256;
+
+    /** A token request which is waiting to be sent. */
+    @Data
+    class PendingRequest {
+        final TokenRequestMsg request;
+        final CompletableFuture<TokenResponse> future;
+    }
+
+    /** Token requests which are waiting to be sent. */
+    final Queue<PendingRequest> pendingRequests = new ConcurrentLinkedQueue<>();
+
+    /** Whether a request is outstanding, in which case new requests are queued. */
+    final AtomicBoolean outstanding = new AtomicBoolean();
+
     @Data
-    public class TokenResponse {
+    public static class TokenResponse {
         public final Long token;
         public final Map<UUID, Long> backpointerMap;
     }
@@ -46,6 +80,12 @@ public class SequencerClient implements IClient {
                 router.completeRequest(msg.getRequestID(),
                         new TokenResponse(tmsg.getToken(), tmsg.getBackpointerMap()));
                 break;
+            case TOKEN_BATCH_RES:
+                router.completeRequest(msg.getRequestID(),
+                        ((TokenBatchResponseMsg) msg).getResponses().stream()
+                            .map(r -> new TokenResponse(r.getToken(), r.getBackpointerMap()))
+                            .collect(Collectors.toList()));
+                break;
         }
     }
 
@@ -55,13 +95,113 @@ public class SequencerClient implements IClient {
             new ImmutableSet.Builder<CorfuMsg.CorfuMsgType>()
                     .add(CorfuMsg.CorfuMsgType.TOKEN_REQ)
                     .add(CorfuMsg.CorfuMsgType.TOKEN_RES)
+                    .add(CorfuMsg.CorfuMsgType.TOKEN_BATCH_REQ)
+                    .add(CorfuMsg.CorfuMsgType.TOKEN_BATCH_RES)
+                    .add(CorfuMsg.CorfuMsgType.SEQUENCER_TAILS)
+                    .add(CorfuMsg.CorfuMsgType.TOKEN_PIN)
+                    .add(CorfuMsg.CorfuMsgType.TOKEN_UNPIN)
                     .build();
 
 
     public CompletableFuture<TokenResponse> nextToken(Set<UUID> streamIDs, long numTokens)
+    {
+        if (maxBatchSize <= 1) {
+            return router.sendMessageAndGetCompletable(
+                    new TokenRequestMsg(streamIDs, numTokens));
+        }
+        CompletableFuture<TokenResponse> future = new CompletableFuture<>();
+        pendingRequests.add(new PendingRequest(new TokenRequestMsg(streamIDs, numTokens), future));
+        sendPending();
+        return future;
+    }
+
+    /** Record a token issued by the sequencer of another shard as the last token issued to some streams.
+     *
+     * @param streamIDs     The streams to pin the token to.
+     * @param address       The token to pin.
+     * @return              A future which completes with the pinned token and the backpointers of the streams,
+     *                      or with a later token and no backpointers if the sequencer rejected the token.
+     */
+    public CompletableFuture<TokenResponse> pinToken(Set<UUID> streamIDs, long address)
+    {
+        return router.sendMessageAndGetCompletable(new TokenPinMsg(streamIDs, address));
+    }
+
+    /** Roll back a token pinned by pinToken, which another sequencer rejected.
+     *
+     * @param address       The pinned token.
+     * @param previous      The backpointers returned by the pin, which are restored as the last token issued
+     *                      to each stream, unless a later token was issued to it since.
+     * @return              A future which completes once the sequencer has rolled back the pin.
+     */
+    public CompletableFuture<Boolean> unpinToken(long address, Map<UUID, Long> previous)
     {
         return router.sendMessageAndGetCompletable(
-                new TokenRequestMsg(streamIDs, numTokens));
+                new SequencerTailsMsg(CorfuMsg.CorfuMsgType.TOKEN_UNPIN, address, previous));
+    }
+
+    /** Move the global index and stream tails of the sequencer forward to tails reconstructed from the log.
+     *
+     * @param tail          The highest address found in the log.
+     * @param streamTails   The highest address of each stream found in the log.
+     * @return              A future which completes once the sequencer has merged the tails.
+     */
+    public CompletableFuture<Boolean> recoverTails(long tail, Map<UUID, Long> streamTails)
+    {
+        return router.sendMessageAndGetCompletable(new SequencerTailsMsg(tail, streamTails));
+    }
+
+    /** Send the queued token requests, unless a request is already outstanding, in which case they are
+     * sent once it completes.
+     */
+    void sendPending()
+    {
+        while (!pendingRequests.isEmpty() && outstanding.compareAndSet(false, true))
+        {
+            List<PendingRequest> batch = new ArrayList<>();
+            PendingRequest next;
+            while (batch.size() < maxBatchSize && (next = pendingRequests.poll()) != null)
+            {
+                batch.add(next);
+            }
+
+            CompletableFuture<List<TokenResponse>> responses;
+            if (batch.size() == 1) {
+                responses = router.<TokenResponse>sendMessageAndGetCompletable(batch.get(0).getRequest())
+                        .thenApply(Collections::singletonList);
+            } else if (batch.size() > 1) {
+                responses = router.sendMessageAndGetCompletable(new TokenBatchRequestMsg(batch.stream()
+                        .map(PendingRequest::getRequest)
+                        .collect(Collectors.toList())));
+            } else {
+                responses = CompletableFuture.completedFuture(Collections.emptyList());
+            }
+
+            if (!responses.isDone()) {
+                // Send the requests queued in the meantime once the responses arrive.
+                responses.whenComplete((r, e) -> {
+                    completeBatch(batch, r, e);
+                    outstanding.set(false);
+                    sendPending();
+                });
+                return;
+            }
+            responses.whenComplete((r, e) -> completeBatch(batch, r, e));
+            outstanding.set(false);
+        }
+    }
+
+    /** Complete each request of a batch with its response. */
+    void completeBatch(List<PendingRequest> batch, List<TokenResponse> responses, Throwable cause)
+    {
+        for (int i = 0; i < batch.size(); i++)
+        {
+            if (cause != null) {
+                batch.get(i).getFuture().completeExceptionally(cause);
+            } else {
+                batch.get(i).getFuture().complete(responses.get(i));
+            }
+        }
     }
 
 }
@@ -3,6 +3,7 @@ package org.corfudb.runtime.view;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeSet;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
@@ -10,6 +11,7 @@ import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.corfudb.protocols.wireprotocol.ILogUnitEntry;
@@ -17,7 +19,9 @@ import org.corfudb.protocols.wireprotocol.IMetadata;
 import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
 import org.corfudb.runtime.CorfuRuntime;
 import org.corfudb.runtime.exceptions.OverwriteException;
+import org.corfudb.util.AutoCloseableByteBuf;
 import org.corfudb.util.Utils;
+import org.corfudb.util.serializer.Serializers;
 
 
 /** All replication views must inherit from this class.
@@ -36,9 +40,10 @@ public abstract class AbstractReplicationView {
         {
             case CHAIN_REPLICATION:
                 return new ChainReplicationView(l, ls);
+            case PIPELINED_CHAIN_REPLICATION:
+                return new ChainReplicationView(l, ls, true);
             case QUORUM_REPLICATION:
-                log.warn("Quorum replication is not yet supported!");
-                break;
+                return new QuorumReplicationView(l, ls);
         }
         log.error("Unknown replication mode {} selected.", mode);
         throw new RuntimeException("Unsupported replication mode.");
@@ -91,6 +96,21 @@ public abstract class AbstractReplicationView {
         this.segment = ls;
     }
 
+    /** Serialize the data of a write, to learn its size.
+     *
+     * @param data      The data to write.
+     * @return          The number of bytes the data takes once serialized.
+     */
+    protected static int getPayloadBytes(Object data)
+    {
+        try (AutoCloseableByteBuf b =
+                     new AutoCloseableByteBuf(ByteBufAllocator.DEFAULT.directBuffer())) {
+            Serializers.getSerializer(Serializers.SerializerType.CORFU)
+                    .serialize(data, b);
+            return b.readableBytes();
+        }
+    }
+
     /** Write the given object to an address and streams, using the replication method given.
      *
      * @param address   An address to write to.
@@ -115,6 +135,29 @@ public abstract class AbstractReplicationView {
     public abstract int write(long address, Set<UUID> stream, Object data, Map<UUID, Long> backpointerMap)
         throws OverwriteException;
 
+    /** Asynchronously write the given object to an address and streams, using the replication method given.
+     * Replication methods which do not override this write synchronously, and return a completed future.
+     *
+     * @param address           An address to write to.
+     * @param stream            The streams which will belong on this entry.
+     * @param data              The data to write.
+     * @param backpointerMap    The map of backpointers to write.
+     *
+     * @return A future which completes with the number of bytes that was remotely written, or
+     * exceptionally with an OverwriteException if the address was already written.
+     */
+    public CompletableFuture<Integer> writeAsync(long address, Set<UUID> stream, Object data,
+                                                 Map<UUID, Long> backpointerMap)
+    {
+        CompletableFuture<Integer> cf = new CompletableFuture<>();
+        try {
+            cf.complete(write(address, stream, data, backpointerMap));
+        } catch (OverwriteException | RuntimeException e) {
+            cf.completeExceptionally(e);
+        }
+        return cf;
+    }
+
     /** Read the given object from an address, using the replication method given.
      *
      * @param address   The address to read from.
@@ -129,8 +172,7 @@ public abstract class AbstractReplicationView {
      */
     public Map<Long, ILogUnitEntry> read(RangeSet<Long> addresses) {
         Map<Long, ILogUnitEntry> results = new ConcurrentHashMap<>();
-        Set<Long> total = Utils.discretizeRangeSet(addresses);
-        total.parallelStream()
+        Utils.rangeSetStream(addresses).parallel()
                 .forEach(i -> results.put(i, read(i)));
         return results;
     }
@@ -0,0 +1,254 @@
+package org.corfudb.runtime.view;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.protocols.wireprotocol.ILogUnitEntry;
+import org.corfudb.protocols.wireprotocol.IMetadata;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg.ReadResult;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg.ReadResultType;
+import org.corfudb.runtime.CorfuRuntime;
+import org.corfudb.util.serializer.Serializers;
+
+import java.util.EnumMap;
+import java.util.Set;
+import java.util.UUID;
+
+/** The client side cache of the address space of a runtime.
+ *
+ * Each runtime has its own cache, sized by its own options, which is split into tiers so that one kind of entry
+ * cannot evict another:
+ * - the payload tier holds entries which carry data, such as SMR updates, weighted by the size of their data,
+ * - the metadata tier holds entries without data (holes, trimmed and empty addresses), weighted by a fixed
+ *   estimate of their size,
+ * - the stream tier holds the addresses of each stream, weighted by an estimate of the size of each set,
+ * - and an optional off-heap tier holds the serialized data of entries evicted from the payload tier in direct
+ *   memory, so that they are deserialized again instead of being read from the log units.
+ *
+ * Every tier records statistics, which are available from the getters of this class.
+ */
+@Slf4j
+public class AddressSpaceCache {
+
+    /** The estimated size of an entry without data, in bytes. */
+    static final int METADATA_ENTRY_BYTES = 64;
+
+    /** The estimated size of each address of a stream, in bytes. */
+    static final int STREAM_ADDRESS_BYTES = 48;
+
+    /** The serialized data of an entry, held in direct memory. */
+    static class OffHeapEntry {
+
+        final ByteBuf data;
+
+        final EnumMap<IMetadata.LogUnitMetadataType, Object> metadataMap;
+
+        boolean released;
+
+        OffHeapEntry(ByteBuf data, EnumMap<IMetadata.LogUnitMetadataType, Object> metadataMap) {
+            this.data = data;
+            this.metadataMap = metadataMap;
+        }
+
+        /** Copy the data to the heap, so that it can be used once this entry is released.
+         *
+         * @return  A copy of the data, or null if this entry was released.
+         */
+        synchronized ByteBuf copy() {
+            return released ? null : Unpooled.copiedBuffer(data);
+        }
+
+        synchronized void release() {
+            if (!released) {
+                released = true;
+                data.release();
+            }
+        }
+    }
+
+    final CorfuRuntime runtime;
+
+    /** Entries which carry data, by address. */
+    final Cache<Long, ILogUnitEntry> payloadCache;
+
+    /** Entries without data, by address. */
+    final Cache<Long, ILogUnitEntry> metadataCache;
+
+    /** The serialized data of entries evicted from the payload tier, by address, or null if disabled. */
+    final Cache<Long, OffHeapEntry> offHeapCache;
+
+    /** The addresses of each stream. */
+    @Getter
+    final Cache<UUID, Set<Long>> streamCache;
+
+    public AddressSpaceCache(CorfuRuntime runtime) {
+        this.runtime = runtime;
+        metadataCache = Caffeine.newBuilder()
+                .<Long, ILogUnitEntry>weigher((k, v) -> METADATA_ENTRY_BYTES)
+                .maximumWeight(runtime.getMaxMetadataCacheSize())
+                .recordStats()
+                .build();
+        streamCache = Caffeine.newBuilder()
+                .<UUID, Set<Long>>weigher((k, v) -> STREAM_ADDRESS_BYTES * (v.size() + 1))
+                .maximumWeight(runtime.getMaxStreamCacheSize())
+                .recordStats()
+                .build();
+        if (runtime.getMaxOffHeapCacheSize() > 0) {
+            offHeapCache = Caffeine.newBuilder()
+                    .<Long, OffHeapEntry>weigher((k, v) -> v.data.capacity())
+                    .maximumWeight(runtime.getMaxOffHeapCacheSize())
+                    .<Long, OffHeapEntry>removalListener((k, v, cause) -> v.release())
+                    .recordStats()
+                    .build();
+            payloadCache = Caffeine.newBuilder()
+                    .<Long, ILogUnitEntry>weigher((k, v) -> v.getSizeEstimate())
+                    .maximumWeight(runtime.getMaxCacheSize())
+                    .<Long, ILogUnitEntry>removalListener((k, v, cause) -> {
+                        if (cause == RemovalCause.SIZE) {
+                            moveOffHeap(k, v);
+                        }
+                    })
+                    .recordStats()
+                    .build();
+        } else {
+            offHeapCache = null;
+            payloadCache = Caffeine.newBuilder()
+                    .<Long, ILogUnitEntry>weigher((k, v) -> v.getSizeEstimate())
+                    .maximumWeight(runtime.getMaxCacheSize())
+                    .recordStats()
+                    .build();
+        }
+    }
+
+    /** Get an entry from the cache.
+     *
+     * @param address   The address of the entry.
+     * @return          The entry, or null if it is not cached.
+     */
+    public ILogUnitEntry get(long address) {
+        ILogUnitEntry entry = payloadCache.getIfPresent(address);
+        if (entry == null) {
+            entry = metadataCache.getIfPresent(address);
+        }
+        if (entry == null && offHeapCache != null) {
+            entry = getOffHeap(address);
+        }
+        return entry;
+    }
+
+    /** Insert an entry into the tier which holds its kind of entry.
+     *
+     * @param address   The address of the entry.
+     * @param entry     The entry.
+     */
+    public void put(long address, ILogUnitEntry entry) {
+        if (entry.getResultType() == ReadResultType.DATA) {
+            payloadCache.put(address, entry);
+        } else {
+            metadataCache.put(address, entry);
+        }
+    }
+
+    /** Remove an entry from every tier.
+     *
+     * @param address   The address of the entry.
+     */
+    public void invalidate(long address) {
+        payloadCache.invalidate(address);
+        metadataCache.invalidate(address);
+        if (offHeapCache != null) {
+            offHeapCache.invalidate(address);
+        }
+    }
+
+    /** Remove every entry and stream from the cache. */
+    public void invalidateAll() {
+        payloadCache.invalidateAll();
+        metadataCache.invalidateAll();
+        streamCache.invalidateAll();
+        if (offHeapCache != null) {
+            offHeapCache.invalidateAll();
+        }
+    }
+
+    /** Serialize an entry evicted from the payload tier into the off-heap tier. */
+    void moveOffHeap(long address, ILogUnitEntry entry) {
+        ByteBuf data = UnpooledByteBufAllocator.DEFAULT.directBuffer();
+        try {
+            Serializers.getSerializer(Serializers.SerializerType.CORFU).serialize(entry.getPayload(), data);
+            offHeapCache.put(address, new OffHeapEntry(data, new EnumMap<>(entry.getMetadataMap())));
+        } catch (Exception e) {
+            log.debug("Failed to move entry at {} off-heap", address, e);
+            data.release();
+        }
+    }
+
+    /** Rebuild an entry from its serialized data in the off-heap tier. */
+    ILogUnitEntry getOffHeap(long address) {
+        OffHeapEntry offHeap = offHeapCache.getIfPresent(address);
+        ByteBuf data = offHeap == null ? null : offHeap.copy();
+        if (data == null) {
+            return null;
+        }
+        LogUnitReadResponseMsg msg = new LogUnitReadResponseMsg(ReadResultType.DATA);
+        msg.setMetadataMap(new EnumMap<>(offHeap.metadataMap));
+        msg.setData(data);
+        ReadResult entry = new ReadResult(msg);
+        entry.setAddress(address);
+        entry.setRuntime(runtime);
+        // The entry is deserialized again, so it is promoted back to the payload tier.
+        offHeapCache.invalidate(address);
+        payloadCache.put(address, entry);
+        return entry;
+    }
+
+    /** Get the statistics of the payload tier. */
+    public CacheStats getPayloadStats() {
+        return payloadCache.stats();
+    }
+
+    /** Get the statistics of the metadata tier. */
+    public CacheStats getMetadataStats() {
+        return metadataCache.stats();
+    }
+
+    /** Get the statistics of the stream tier. */
+    public CacheStats getStreamStats() {
+        return streamCache.stats();
+    }
+
+    /** Get the statistics of the off-heap tier, or empty statistics if it is disabled. */
+    public CacheStats getOffHeapStats() {
+        return offHeapCache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : offHeapCache.stats();
+    }
+
+    /** Get the estimated number of entries in the payload tier. */
+    public long getPayloadSize() {
+        return payloadCache.estimatedSize();
+    }
+
+    /** Get the estimated number of entries in the metadata tier. */
+    public long getMetadataSize() {
+        return metadataCache.estimatedSize();
+    }
+
+    /** Get the estimated number of entries in the off-heap tier. */
+    public long getOffHeapSize() {
+        return offHeapCache == null ? 0 : offHeapCache.estimatedSize();
+    }
+
+    @Override
+    public String toString() {
+        return "payload: " + getPayloadSize() + " entries, " + getPayloadStats()
+                + "; metadata: " + getMetadataSize() + " entries, " + getMetadataStats()
+                + "; streams: " + streamCache.estimatedSize() + " streams, " + getStreamStats()
+                + "; off-heap: " + getOffHeapSize() + " entries, " + getOffHeapStats();
+    }
+}
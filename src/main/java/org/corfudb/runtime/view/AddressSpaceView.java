@@ -1,9 +1,5 @@
 package org.corfudb.runtime.view;
 
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.CacheLoader;
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeSet;
 import com.google.common.collect.TreeRangeSet;
@@ -16,12 +12,13 @@ import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
 import org.corfudb.runtime.CorfuRuntime;
 import org.corfudb.runtime.clients.LogUnitClient;
 import org.corfudb.runtime.exceptions.OverwriteException;
-import org.corfudb.util.CFUtils;
 import org.corfudb.util.Utils;
 
 import java.time.Duration;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.PrimitiveIterator;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
@@ -34,50 +31,34 @@ import java.util.concurrent.ConcurrentHashMap;
 @Slf4j
 public class AddressSpaceView extends AbstractView {
 
-    /** A cache for read results. */
-    static LoadingCache<Long, ILogUnitEntry> readCache;
+    /** The cache of this runtime, for read results and stream addresses. */
+    @Getter
+    AddressSpaceCache cache;
 
-    /** A cache for stream addresses. */
-    static LoadingCache<UUID, Set<Long>> streamAddressCache;
+    /** The tails of each stripe, which answer reads of addresses known to be empty. */
+    @Getter
+    EmptyResultCache emptyCache;
 
-    /** Duration before retrying an empty read. */
+    /** How long the tail of a stripe is used to answer empty reads before it is learned again. */
     @Getter
     @Setter
-    Duration emptyDuration = Duration.ofMillis(5000L);
+    Duration emptyDuration = Duration.ofMillis(1L);
 
     public AddressSpaceView(CorfuRuntime runtime)
     {
         super(runtime);
-        // We don't lock readCache, this should be ok in the rare
-        // case we generate a second readCache as it won't be pointed to.
-        if (readCache == null) {
-            resetCaches();
-        }
-        else {
-            log.debug("Read cache already built, re-using existing read cache.");
-        }
+        resetCaches();
     }
 
-    /** Reset all in-memory caches. */
+    /** Reset all in-memory caches, rebuilding them with the cache sizes of the runtime. */
     public void resetCaches()
     {
-        readCache = Caffeine.<Long, ILogUnitEntry>newBuilder()
-                .<Long, ILogUnitEntry>weigher((k,v) -> v.getSizeEstimate())
-                .maximumWeight(runtime.getMaxCacheSize())
-                .build(new CacheLoader<Long, ILogUnitEntry>() {
-                    @Override
-                    public ILogUnitEntry load(Long aLong) throws Exception {
-                        return cacheFetch(aLong);
-                    }
-
-                    @Override
-                    public Map<Long, ILogUnitEntry> loadAll(Iterable<? extends Long> keys) throws Exception {
-                        return cacheFetch((Iterable<Long>) keys);
-                    }
-                });
-
-        streamAddressCache = Caffeine.newBuilder()
-                .build(this::getStream);
+        if (cache != null) {
+            cache.invalidateAll();
+            emptyCache.invalidateAll();
+        }
+        cache = new AddressSpaceCache(runtime);
+        emptyCache = new EmptyResultCache(runtime);
     }
 
     /** Learn about a stream for the first time.
@@ -95,7 +76,7 @@ public class AddressSpaceView extends AbstractView {
                                 .getReplicationView(l, s.getReplicationMode(), s);
                         Map<Long, ILogUnitEntry> r = v.read(streamID);
                         if (!runtime.cacheDisabled) {
-                            readCache.putAll(r);
+                            r.forEach(cache::put);
                         }
                         rSet.addAll(r.keySet());
                     }
@@ -118,7 +99,7 @@ public class AddressSpaceView extends AbstractView {
                         .getReplicationView(l, s.getReplicationMode(), s);
                 Map<Long, ILogUnitEntry> r = v.read(streamID);
                 if (!runtime.cacheDisabled) {
-                    readCache.putAll(r);
+                    r.forEach(cache::put);
                 }
                 rMap.putAll(r);
             }
@@ -140,7 +121,33 @@ public class AddressSpaceView extends AbstractView {
         int numBytes = layoutHelper(l -> AbstractReplicationView.getReplicationView(l, l.getReplicationMode(address),
                 l.getSegment(address))
                    .write(address, stream, data, backpointerMap));
+        cacheWrite(address, stream, data, backpointerMap, numBytes);
+    }
+
+    /**
+     * Asynchronously write the given object to an address and streams, without blocking the
+     * calling thread while the write is replicated.
+     *
+     * @param address       An address to write to.
+     * @param stream        The streams which will belong on this entry.
+     * @param data          The data to write.
+     * @param backpointerMap The map of backpointers to write.
+     * @return              A future which completes once the write is replicated, or exceptionally
+     *                      with an OverwriteException if the address was already written.
+     */
+    public CompletableFuture<Void> writeAsync(long address, Set<UUID> stream, Object data,
+                                              Map<UUID, Long> backpointerMap)
+    {
+        Layout l = getCurrentLayout();
+        return AbstractReplicationView.getReplicationView(l, l.getReplicationMode(address), l.getSegment(address))
+                .writeAsync(address, stream, data, backpointerMap)
+                .thenAccept(numBytes -> cacheWrite(address, stream, data, backpointerMap, numBytes));
+    }
 
+    /** Insert an entry which was written into the local cache. */
+    private void cacheWrite(long address, Set<UUID> stream, Object data, Map<UUID, Long> backpointerMap,
+                            int numBytes)
+    {
         // Must generate a cached entry as it is used by some entry types before write.
         AbstractReplicationView.CachedLogUnitEntry cachedEntry =
                 new AbstractReplicationView.CachedLogUnitEntry(LogUnitReadResponseMsg.ReadResultType.DATA,
@@ -155,7 +162,8 @@ public class AddressSpaceView extends AbstractView {
 
         // Insert this write to our local cache.
         if (!runtime.isCacheDisabled()) {
-            readCache.put(address, cachedEntry);
+            cache.put(address, cachedEntry);
+            emptyCache.written(getCurrentLayout(), address);
         }
     }
 
@@ -168,7 +176,11 @@ public class AddressSpaceView extends AbstractView {
     public ILogUnitEntry read(long address)
     {
         if (!runtime.isCacheDisabled()) {
-            return readCache.get(address);
+            ILogUnitEntry entry = cache.get(address);
+            if (entry != null) {
+                return entry;
+            }
+            return isKnownEmpty(address) ? emptyResult(address) : cacheFetch(address);
         }
         return fetch(address);
     }
@@ -183,9 +195,9 @@ public class AddressSpaceView extends AbstractView {
     {
 
         if (!runtime.isCacheDisabled()) {
-            return readCache.getAll(Utils.discretizeRangeSet(addresses));
+            return cachedRead(Utils.rangeSetStream(addresses).iterator());
         }
-        return this.cacheFetch(Utils.discretizeRangeSet(addresses));
+        return this.cacheFetch(addresses);
     }
 
     /**
@@ -198,57 +210,124 @@ public class AddressSpaceView extends AbstractView {
     {
 
         if (!runtime.isCacheDisabled()) {
-            return readCache.getAll(streamAddressCache.get(stream));
+            return cachedRead(cache.getStreamCache().get(stream, this::getStream).stream()
+                    .mapToLong(Long::longValue).iterator());
         }
         return fetchStream(stream);
     }
 
+    /**
+     * Read addresses through the cache, fetching the addresses which are not cached together.
+     *
+     * @param addresses The addresses to read.
+     * @return          A map of the results, by address.
+     */
+    private Map<Long, ILogUnitEntry> cachedRead(PrimitiveIterator.OfLong addresses)
+    {
+        Map<Long, ILogUnitEntry> result = new HashMap<>();
+        // Misses are kept as ranges, so that a run of uncached addresses is fetched as a single range.
+        RangeSet<Long> misses = TreeRangeSet.create();
+        while (addresses.hasNext()) {
+            long a = addresses.nextLong();
+            ILogUnitEntry entry = cache.get(a);
+            if (entry == null) {
+                if (isKnownEmpty(a)) {
+                    result.put(a, emptyResult(a));
+                } else {
+                    misses.add(Range.closedOpen(a, a + 1));
+                }
+            } else {
+                result.put(a, entry);
+            }
+        }
+        if (!misses.isEmpty()) {
+            result.putAll(cacheFetch(misses));
+        }
+        return result;
+    }
+
+
+    /**
+     * Check whether an address is above the tail of its stripe, and so need not be read.
+     * @param address An address to read from.
+     * @return        True, if the address is known to be empty.
+     */
+    private boolean isKnownEmpty(long address)
+    {
+        return emptyCache.isEmpty(getCurrentLayout(), address, emptyDuration);
+    }
 
     /**
-     * Fetch an address for insertion into the cache.
+     * Create an empty result for an address which is known to be empty.
      * @param address An address to read from.
-     * @return        A result to be cached. If the readresult is empty,
-     *                This entry will be scheduled to self invalidate.
+     * @return        An empty result.
+     */
+    private ILogUnitEntry emptyResult(long address)
+    {
+        LogUnitReadResponseMsg.ReadResult result = new LogUnitReadResponseMsg.ReadResult(
+                new LogUnitReadResponseMsg(LogUnitReadResponseMsg.ReadResultType.EMPTY));
+        result.setAddress(address);
+        return result.setRuntime(runtime);
+    }
+
+    /**
+     * Fetch an address and insert it into the cache.
+     * @param address An address to read from.
+     * @return        The result, which is cached unless it is empty.
      */
     private ILogUnitEntry cacheFetch(long address)
     {
         log.trace("Cache miss @ {}, fetching.", address);
         ILogUnitEntry result = fetch(address);
-        if (result.getResultType() == LogUnitReadResponseMsg.ReadResultType.EMPTY)
+        cacheResult(address, result);
+        return result;
+    }
+
+    /** Insert a fetched result into the cache. Empty results are not cached, as the address may be written
+     * at any time: reads of empty addresses are answered by the tail of their stripe instead.
+     */
+    private void cacheResult(long address, ILogUnitEntry result)
+    {
+        if (result.getResultType() != LogUnitReadResponseMsg.ReadResultType.EMPTY)
         {
-            //schedule an eviction
-            CompletableFuture.runAsync(() -> {
-                log.trace("Evicting empty entry at {}.", address);
-                CFUtils.runAfter(emptyDuration, () -> {
-                    readCache.invalidate(address);
-                });
-            });
+            cache.put(address, result);
+            emptyCache.written(getCurrentLayout(), address);
+        }
+    }
+
+    /**
+     * Fetch addresses and insert them into the cache.
+     * @param addresses The addresses to read from.
+     * @return        The results, which are cached unless they are empty.
+     */
+    private Map<Long, ILogUnitEntry> cacheFetch(RangeSet<Long> addresses)
+    {
+        Map<Long, ILogUnitEntry> result = fetchAll(addresses);
+        if (!runtime.isCacheDisabled()) {
+            result.forEach(this::cacheResult);
         }
         return result;
     }
 
     /**
-     * Fetch an address for insertion into the cache.
-     * @param addresses An address to read from.
-     * @return        A result to be cached. If the readresult is empty,
-     *                This entry will be scheduled to self invalidate.
+     * Fetch addresses, grouped by the segment whose replication view serves them.
+     * @param addresses The addresses to read from.
+     * @return        The results, by address.
      */
-    private Map<Long, ILogUnitEntry> cacheFetch(Iterable<Long> addresses)
+    private Map<Long, ILogUnitEntry> fetchAll(RangeSet<Long> addresses)
     {
-        // for each address, figure out which replication group it goes to.
-        Map<AbstractReplicationView, RangeSet<Long>> groupMap = new ConcurrentHashMap<>();
         return layoutHelper(l -> {
-                    for (Long a : addresses) {
-                        AbstractReplicationView v = AbstractReplicationView
-                                .getReplicationView(l, l.getReplicationMode(a), l.getSegment(a));
-                        groupMap.computeIfAbsent(v, x -> TreeRangeSet.<Long>create())
-                                .add(Range.singleton(a));
-                    }
                     Map<Long, ILogUnitEntry> result =
                             new ConcurrentHashMap<Long, ILogUnitEntry>();
-                    for (AbstractReplicationView vk : groupMap.keySet())
+                    for (Layout.LayoutSegment ls : l.getSegments())
                     {
-                        result.putAll(vk.read(groupMap.get(vk)));
+                        RangeSet<Long> segmentAddresses = addresses.subRangeSet(ls.getEnd() == -1
+                                ? Range.atLeast(ls.getStart()) : Range.closedOpen(ls.getStart(), ls.getEnd()));
+                        if (!segmentAddresses.isEmpty()) {
+                            result.putAll(AbstractReplicationView
+                                    .getReplicationView(l, ls.getReplicationMode(), ls)
+                                    .read(segmentAddresses));
+                        }
                     }
                     return result;
                 }
@@ -1,25 +1,26 @@
 package org.corfudb.runtime.view;
 
+import com.google.common.collect.DiscreteDomain;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeSet;
 import com.google.common.collect.TreeRangeSet;
-import io.netty.buffer.ByteBufAllocator;
 import lombok.extern.slf4j.Slf4j;
 import org.corfudb.protocols.wireprotocol.ILogUnitEntry;
 import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
 import org.corfudb.runtime.clients.LogUnitClient;
 import org.corfudb.runtime.exceptions.OverwriteException;
-import org.corfudb.util.AutoCloseableByteBuf;
 import org.corfudb.util.CFUtils;
-import org.corfudb.util.Utils;
-import org.corfudb.util.serializer.Serializers;
 
 import java.util.AbstractMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /** A view of an address implemented by chain replication.
  *
@@ -39,9 +40,56 @@ import java.util.stream.Collectors;
 @Slf4j
 public class ChainReplicationView extends AbstractReplicationView {
 
+    /** Whether writes are pipelined. A pipelined chain writes the head of the chain first, which decides
+     * whether the write overwrites another, and then writes the rest of the chain concurrently, so a write
+     * costs two round trips regardless of the length of the chain. Reads are still served by the tail,
+     * which is only written once the head has accepted the write.
+     */
+    final boolean pipelined;
+
     public ChainReplicationView(Layout l, Layout.LayoutSegment ls)
+    {
+        this(l, ls, false);
+    }
+
+    public ChainReplicationView(Layout l, Layout.LayoutSegment ls, boolean pipelined)
     {
         super(l, ls);
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Apply a write operation to every unit in the chain of an address. The head is always written first,
+     * and the operation fails without touching the rest of the chain if the head rejects it. The remaining
+     * units are written in order, or concurrently if the chain is pipelined.
+     *
+     * @param address   The address to write to.
+     * @param op        The operation, which is given the client of a unit in the chain.
+     * @return          A future which completes once every unit in the chain has been written.
+     */
+    CompletableFuture<Boolean> writeChain(long address, Function<LogUnitClient, CompletableFuture<Boolean>> op)
+    {
+        int numUnits = getLayout().getSegmentLength(address);
+        log.trace("Write[{}]: chain head 1/{}", address, numUnits);
+        CompletableFuture<Boolean> chain = op.apply(getLayout().getLogUnitClient(address, 0));
+        if (pipelined) {
+            return chain.thenCompose(r -> {
+                CompletableFuture<?>[] rest = IntStream.range(1, numUnits)
+                        .mapToObj(i -> op.apply(getLayout().getLogUnitClient(address, i)))
+                        .toArray(CompletableFuture[]::new);
+                log.trace("Write[{}]: pipelined to {} units", address, rest.length);
+                return CompletableFuture.allOf(rest).thenApply(v -> true);
+            });
+        }
+        for (int i = 1; i < numUnits; i++)
+        {
+            final int unit = i;
+            chain = chain.thenCompose(r -> {
+                log.trace("Write[{}]: chain {}/{}", address, unit + 1, numUnits);
+                return op.apply(getLayout().getLogUnitClient(address, unit));
+            });
+        }
+        return chain;
     }
 
     /**
@@ -54,25 +102,28 @@ public class ChainReplicationView extends AbstractReplicationView {
     @Override
     public int write(long address, Set<UUID> stream, Object data, Map<UUID, Long> backpointerMap)
     throws OverwriteException {
-        int numUnits = getLayout().getSegmentLength(address);
-        int payloadBytes = 0;
-        // To reduce the overhead of serialization, we serialize only the first time we write, saving
-        // when we go down the chain.
-        try (AutoCloseableByteBuf b =
-                     new AutoCloseableByteBuf(ByteBufAllocator.DEFAULT.directBuffer())) {
-            Serializers.getSerializer(Serializers.SerializerType.CORFU)
-                    .serialize(data, b);
-            payloadBytes = b.readableBytes();
-                for (int i = 0; i < numUnits; i++)
-                {
-                    log.trace("Write[{}]: chain {}/{}", address, i+1, numUnits);
-                    // In chain replication, we write synchronously to every unit in the chain.
-                        CFUtils.getUninterruptibly(
-                                getLayout().getLogUnitClient(address, i)
-                                        .write(getLayout().getLocalAddress(address), stream, 0L, data, backpointerMap), OverwriteException.class);
-                }
-        }
-        return payloadBytes;
+        return CFUtils.getUninterruptibly(writeAsync(address, stream, data, backpointerMap),
+                OverwriteException.class);
+    }
+
+    /**
+     * Asynchronously write the given object to an address and streams. Each unit in the chain is written
+     * once the previous unit acknowledges its write (or once the head acknowledges it, if the chain is
+     * pipelined), without blocking the calling thread.
+     *
+     * @param address An address to write to.
+     * @param stream  The streams which will belong on this entry.
+     * @param data    The data to write.
+     * @return A future which completes with the number of bytes written once every unit has been written.
+     */
+    @Override
+    public CompletableFuture<Integer> writeAsync(long address, Set<UUID> stream, Object data,
+                                                 Map<UUID, Long> backpointerMap) {
+        // To reduce the overhead of serialization, we serialize only once, rather than for every unit.
+        int payloadBytes = getPayloadBytes(data);
+        long localAddress = getLayout().getLocalAddress(address);
+        return writeChain(address, client -> client.write(localAddress, stream, 0L, data, backpointerMap))
+                .thenApply(r -> payloadBytes);
     }
 
     /**
@@ -83,12 +134,11 @@ public class ChainReplicationView extends AbstractReplicationView {
      */
     @Override
     public ILogUnitEntry read(long address) {
-        int numUnits = getLayout().getSegmentLength(address);
-        log.trace("Read[{}]: chain {}/{}", address, numUnits, numUnits);
-        // In chain replication, we read from the last unit, though we can optimize if we
-        // know where the committed tail is.
-        return CFUtils.getUninterruptibly(getLayout()
-                        .getLogUnitClient(address, numUnits - 1).read(getLayout().getLocalAddress(address)))
+        log.trace("Read[{}]: chain of {}", address, getLayout().getSegmentLength(address));
+        // In chain replication, we read from the last unit, or from any unit which is known to
+        // hold the address once the committed tail has passed it.
+        return CFUtils.getUninterruptibly(getLayout().getRuntime().getReplicaSelector()
+                        .read(getLayout().getStripe(address).getLogServers(), getLayout().getLocalAddress(address)))
                             .setAddress(address);
     }
 
@@ -100,32 +150,48 @@ public class ChainReplicationView extends AbstractReplicationView {
      */
     @Override
     public Map<Long, ILogUnitEntry> read(RangeSet<Long> addresses) {
-        // Generate a new range set for every stripe.
-        ConcurrentHashMap<Layout.LayoutStripe, RangeSet<Long>> rangeMap = new ConcurrentHashMap<>();
-        ConcurrentHashMap<Layout.LayoutStripe, Long> eMap = new ConcurrentHashMap<>();
-        Set<Long> total = Utils.discretizeRangeSet(addresses);
-        total.parallelStream()
-                .forEach(l-> {
-            rangeMap.computeIfAbsent(layout.getStripe(l), k -> TreeRangeSet.create())
-                    .add(Range.singleton(layout.getLocalAddress(l)));
-                    eMap.computeIfAbsent(layout.getStripe(l), k->l);
-        });
+        // The addresses of a range in each stripe form a range of local addresses, so a range set is read from
+        // the tail of each stripe without visiting the addresses.
+        List<Layout.LayoutStripe> stripes = segment.getStripes();
+        int numStripes = stripes.size();
         ConcurrentHashMap<Long, ILogUnitEntry> resultMap = new ConcurrentHashMap<>();
-        rangeMap.entrySet().parallelStream()
-                .forEach(x -> {
-                                    CFUtils.getUninterruptibly(
-                                            layout.getLogUnitClient(eMap.get(x.getKey()), layout.getSegmentLength(eMap.get(x.getKey()))-1)
-                                    .readRange(x.getValue()))
-                                    .entrySet().parallelStream()
-                                    .forEach(ex ->{
-                                            long globalAddress = layout.getGlobalAddress(x.getKey(),ex.getKey());
-                                            ex.getValue().setAddress(globalAddress);
-                                            resultMap.put(globalAddress, ex.getValue());
-                                    });
+        IntStream.range(0, numStripes).parallel()
+                .forEach(i -> {
+                    RangeSet<Long> localRanges = TreeRangeSet.create();
+                    for (Range<Long> r : addresses.asRanges()) {
+                        Range<Long> c = r.canonical(DiscreteDomain.longs());
+                        long from = firstLocalAddress(c.lowerEndpoint(), i, numStripes);
+                        long to = firstLocalAddress(c.upperEndpoint(), i, numStripes);
+                        if (from < to) {
+                            localRanges.add(Range.closedOpen(from, to));
+                        }
+                    }
+                    if (localRanges.isEmpty()) {
+                        return;
+                    }
+                    List<String> servers = stripes.get(i).getLogServers();
+                    CFUtils.getUninterruptibly(layout.getRuntime().getRouter(servers.get(servers.size() - 1))
+                            .getClient(LogUnitClient.class).readRange(localRanges))
+                            .forEach((localAddress, e) -> {
+                                long globalAddress = localAddress * numStripes + i;
+                                e.setAddress(globalAddress);
+                                resultMap.put(globalAddress, e);
+                            });
                 });
         return resultMap;
     }
 
+    /** Get the lowest local address of a stripe whose global address is at least the given address.
+     *
+     * @param globalAddress The global address.
+     * @param stripe        The index of the stripe in its segment.
+     * @param stripes       The number of stripes in the segment.
+     * @return              The lowest local address of the stripe at or above the global address.
+     */
+    static long firstLocalAddress(long globalAddress, int stripe, int stripes) {
+        return -Math.floorDiv(stripe - globalAddress, stripes);
+    }
+
     /**
      * Read a stream prefix, using the replication method given.
      *
@@ -164,13 +230,8 @@ public class ChainReplicationView extends AbstractReplicationView {
      */
     @Override
     public void fillHole(long address) throws OverwriteException {
-        int numUnits = getLayout().getSegmentLength(address);
-        for (int i = 0; i < numUnits; i++)
-        {
-            log.trace("fillHole[{}]: chain {}/{}", address, i+1, numUnits);
-            // In chain replication, we write synchronously to every unit in the chain.
-            CFUtils.getUninterruptibly(getLayout().getLogUnitClient(address, i)
-                    .fillHole(address), OverwriteException.class);
-        }
+        // Hole fills follow the same order as writes, so the head decides between a write and a hole fill.
+        CFUtils.getUninterruptibly(writeChain(address, client -> client.fillHole(address)),
+                OverwriteException.class);
     }
 }
@@ -0,0 +1,156 @@
+package org.corfudb.runtime.view;
+
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.runtime.CorfuRuntime;
+import org.corfudb.runtime.clients.LogUnitClient;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Answers reads of addresses which are known to be empty, without reading them from the log units.
+ *
+ * Rather than caching each EMPTY result, which must then be evicted once the address is written, the cache
+ * tracks the highest address written to each stripe, as learned from its log units with GET_CONTIGUOUS_TAIL and
+ * from the writes and reads of this runtime. Every address above it is empty, so a reader which polls the tail
+ * of the log is answered locally until the tail moves. The highest address of a stripe is learned again once it
+ * is older than the given maximum age, with a single request to each log unit of the stripe no matter how many
+ * readers need it. The request is made in the background: until it completes, reads are not answered locally
+ * but sent to the log units, so a stale tail never adds a round trip to a read.
+ */
+@Slf4j
+public class EmptyResultCache {
+
+    /** The highest address written to a stripe, in the address space of the stripe. */
+    static class StripeTail {
+
+        /** The highest address known to be written, or -1 if none is. */
+        final AtomicLong maxAddress = new AtomicLong(-1L);
+
+        /** Whether the highest address has been learned from the log units. */
+        volatile boolean learned = false;
+
+        /** When the highest address was last requested from the log units, by System.nanoTime. */
+        volatile long learnedAt = 0L;
+
+        /** The request to the log units in flight, or null if there is none. */
+        final AtomicReference<CompletableFuture<Long>> refresh = new AtomicReference<>();
+    }
+
+    final CorfuRuntime runtime;
+
+    /** The tails of each stripe, by the log units of the stripe. */
+    final Map<List<String>, StripeTail> tails = new ConcurrentHashMap<>();
+
+    /** The number of requests made to learn the tail of a stripe. */
+    final AtomicLong refreshes = new AtomicLong();
+
+    public EmptyResultCache(CorfuRuntime runtime) {
+        this.runtime = runtime;
+    }
+
+    StripeTail getTail(Layout layout, long address) {
+        return tails.computeIfAbsent(layout.getStripe(address).getLogServers(), k -> new StripeTail());
+    }
+
+    /** Check whether an address is known to be empty.
+     *
+     * @param layout    The layout to read the address with.
+     * @param address   The global address to read.
+     * @param maxAge    How long the tail of the stripe may be used before it is learned again.
+     * @return          True, if the address is above the tail of its stripe, which was learned within the
+     *                  maximum age. False, if it may have been written or the tail is not fresh, in which
+     *                  case the tail is learned again in the background.
+     */
+    public boolean isEmpty(Layout layout, long address, Duration maxAge) {
+        StripeTail t = getTail(layout, address);
+        long localAddress = layout.getLocalAddress(address);
+        if (localAddress <= t.maxAddress.get()) {
+            return false;
+        }
+        if (!isFresh(t, maxAge)) {
+            refresh(layout.getStripe(address).getLogServers(), t).exceptionally(e -> {
+                log.debug("Failed to learn tail of stripe containing {}", address, e);
+                return null;
+            });
+            // The tail may have been learned at once, otherwise the address is read from the log units.
+            if (!isFresh(t, maxAge)) {
+                return false;
+            }
+        }
+        return localAddress > t.maxAddress.get();
+    }
+
+    /** Check whether the tail of a stripe was learned within the maximum age. */
+    boolean isFresh(StripeTail t, Duration maxAge) {
+        return t.learned && System.nanoTime() - t.learnedAt <= maxAge.toNanos();
+    }
+
+    /** Record that an address is written, so that it is never reported empty.
+     *
+     * @param layout    The layout the address was written or read with.
+     * @param address   The global address which was written.
+     */
+    public void written(Layout layout, long address) {
+        StripeTail t = getTail(layout, address);
+        long localAddress = layout.getLocalAddress(address);
+        if (localAddress > t.maxAddress.get()) {
+            t.maxAddress.accumulateAndGet(localAddress, Math::max);
+        }
+    }
+
+    /** Learn the highest address written to a stripe, joining a request which is already in flight.
+     *
+     * @param servers   The log units of the stripe.
+     * @param t         The tail of the stripe.
+     * @return          A future which completes with the highest address written to the stripe.
+     */
+    CompletableFuture<Long> refresh(List<String> servers, StripeTail t) {
+        while (true) {
+            CompletableFuture<Long> inFlight = t.refresh.get();
+            if (inFlight != null) {
+                return inFlight;
+            }
+            CompletableFuture<Long> cf = new CompletableFuture<>();
+            if (t.refresh.compareAndSet(null, cf)) {
+                refreshes.incrementAndGet();
+                long start = System.nanoTime();
+                @SuppressWarnings("unchecked")
+                CompletableFuture<LogUnitClient.ContiguousTailData>[] requests = servers.stream()
+                        .map(s -> runtime.getRouter(s).getClient(LogUnitClient.class).getContiguousTail(null))
+                        .toArray(CompletableFuture[]::new);
+                CompletableFuture.allOf(requests).whenComplete((v, ex) -> {
+                    if (ex == null) {
+                        // Under quorum replication an address may only be held by some of the log units.
+                        for (CompletableFuture<LogUnitClient.ContiguousTailData> r : requests) {
+                            t.maxAddress.accumulateAndGet(r.join().getMaxAddress(), Math::max);
+                        }
+                        t.learnedAt = start;
+                        t.learned = true;
+                    }
+                    t.refresh.set(null);
+                    if (ex == null) {
+                        cf.complete(t.maxAddress.get());
+                    } else {
+                        cf.completeExceptionally(ex);
+                    }
+                });
+                return cf;
+            }
+        }
+    }
+
+    /** Get the number of requests made to learn the tail of a stripe. */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /** Forget the tail of every stripe. */
+    public void invalidateAll() {
+        tails.clear();
+    }
+}
@@ -12,6 +12,7 @@ import org.corfudb.util.CFUtils;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 import java.util.stream.Stream;
 
 /**
@@ -27,6 +28,12 @@ public class Layout implements Cloneable {
     /** A list of sequencers in the layout. */
     @Getter
     List<String> sequencers;
+    /** Whether streams are partitioned across the sequencers. If they are not, every token is issued by the
+     * first sequencer.
+     */
+    @Getter
+    @Setter
+    boolean sequencersPartitioned;
     /** A list of the segments in the layout. */
     @Getter
     List<LayoutSegment> segments;
@@ -124,6 +131,30 @@ public class Layout implements Cloneable {
         }
     }
 
+    /** Get the index of the sequencer which issues the tokens of a stream. When the sequencers are partitioned,
+     * streams hash to a sequencer, and the sequencer at index i issues the tokens congruent to i modulo the
+     * number of sequencers.
+     *
+     * @param stream    The stream to look up.
+     * @return          The index of the sequencer of the stream.
+     */
+    public int getSequencerIndex(UUID stream)
+    {
+        if (!sequencersPartitioned) {
+            return 0;
+        }
+        return (stream.hashCode() & Integer.MAX_VALUE) % sequencers.size();
+    }
+
+    /** Return the sequencer client which issues the tokens of a stream.
+     * @param stream    The stream to return a sequencer client for.
+     * @return          The sequencer client of the stream.
+     */
+    public SequencerClient getSequencer(UUID stream)
+    {
+        return getSequencer(getSequencerIndex(stream));
+    }
+
     public long getLocalAddress(long globalAddress)
     {
         for (LayoutSegment ls : segments)
@@ -226,8 +257,11 @@ public class Layout implements Cloneable {
 
     /** Get a layout from a JSON string. */
     public static Layout fromJSONString(String json) {
-        return parser.fromJson(json, Layout.class);
+        Layout l = parser.fromJson(json, Layout.class);
+        l.checkSegments();
+        return l;
     }
+
     public Layout(List<String> layoutServers, List<String> sequencers, List<LayoutSegment> segments, long epoch)
     {
         this.layoutServers = layoutServers;
@@ -235,6 +269,34 @@ public class Layout implements Cloneable {
         this.segments = segments;
         this.epoch = epoch;
         this.valid = true;
+        checkSegments();
+    }
+
+    /** Check that the segments of the layout can be replicated.
+     *
+     * Quorum replication requires an odd number of replicas in each stripe: with an even number, an address
+     * which is split evenly between data and a hole never reaches a decision, and is never repaired.
+     *
+     * @throws IllegalArgumentException If a quorum replicated stripe has an even number of replicas.
+     */
+    void checkSegments()
+    {
+        if (segments == null) {
+            return;
+        }
+        for (LayoutSegment ls : segments)
+        {
+            if (ls.getReplicationMode() != ReplicationMode.QUORUM_REPLICATION) {
+                continue;
+            }
+            for (LayoutStripe stripe : ls.getStripes())
+            {
+                if (stripe.getLogServers().size() % 2 == 0) {
+                    throw new IllegalArgumentException("Quorum replication requires an odd number of replicas, "
+                            + "but a stripe has " + stripe.getLogServers().size() + ": " + stripe.getLogServers());
+                }
+            }
+        }
     }
 
     /**
@@ -305,6 +367,7 @@ public class Layout implements Cloneable {
 
     public enum ReplicationMode {
         CHAIN_REPLICATION,
+        PIPELINED_CHAIN_REPLICATION,
         QUORUM_REPLICATION,
         NO_REPLICATION
     }
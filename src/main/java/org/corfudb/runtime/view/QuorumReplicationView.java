@@ -0,0 +1,345 @@
+package org.corfudb.runtime.view;
+
+import io.netty.buffer.ByteBuf;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.protocols.wireprotocol.ILogUnitEntry;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg.ReadResult;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg.ReadResultType;
+import org.corfudb.runtime.clients.LogUnitClient;
+import org.corfudb.runtime.exceptions.OverwriteException;
+import org.corfudb.util.CFUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/** A view of an address implemented by quorum replication.
+ *
+ * Writes are sent to every replica of an address in parallel, and complete once a majority of the replicas
+ * has accepted them, so a slow replica does not delay writes as it would in a chain. Since every log unit is
+ * write-once, a replica accepts the first write or hole fill it receives for an address, and the value held by
+ * a majority of the replicas is the value of the address. A write which a majority rejects fails with an
+ * OverwriteException, as it would have if it had lost at the head of a chain.
+ *
+ * Reads are also sent to every replica, and complete once the responses decide the value of the address: once a
+ * majority holds data, once enough replicas hold a hole that the data can no longer reach a majority, or once
+ * neither can happen, in which case the address is returned as empty and can be hole filled.
+ *
+ * Reads repair the replicas which missed the decided value. Missing data is written with a rank of 1, which
+ * replaces a hole (of rank 0) that a replica may hold, while a replica which missed a hole is hole filled.
+ * A log unit rejects a ranked write to an address which already holds an entry of an equal or higher rank with
+ * ERROR_RANK, and never replaces data, which is durable.
+ *
+ * Each stripe must have an odd number of replicas, which the layout enforces: with an even number, an address
+ * split evenly between data and a hole would never be decided, and neither side would be repaired.
+ */
+@Slf4j
+public class QuorumReplicationView extends AbstractReplicationView {
+
+    /** The rank of writes which repair a replica. */
+    static final long REPAIR_RANK = 1L;
+
+    public QuorumReplicationView(Layout l, Layout.LayoutSegment ls)
+    {
+        super(l, ls);
+    }
+
+    /** Get the number of replicas which make up a majority for an address.
+     *
+     * @param address   The address.
+     * @return          The size of a majority of the replicas of the address.
+     */
+    int getQuorum(long address)
+    {
+        return getLayout().getSegmentLength(address) / 2 + 1;
+    }
+
+    /** Wait for a quorum of futures to complete.
+     *
+     * @param futures   The futures to wait for.
+     * @param quorum    The number of futures which must complete normally.
+     * @return          A future which completes once a quorum of the futures completes normally, or exceptionally
+     *                  once so many have failed that a quorum can no longer complete. It fails with an
+     *                  OverwriteException if every failure was an overwrite.
+     */
+    static <T> CompletableFuture<Void> quorum(List<CompletableFuture<T>> futures, int quorum)
+    {
+        CompletableFuture<Void> cf = new CompletableFuture<>();
+        int maxFailures = futures.size() - quorum;
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        futures.forEach(f -> f.whenComplete((r, ex) -> {
+            if (ex == null) {
+                if (completed.incrementAndGet() == quorum) {
+                    cf.complete(null);
+                }
+                return;
+            }
+            Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+            if (!(cause instanceof OverwriteException)) {
+                error.compareAndSet(null, cause);
+            }
+            if (failed.incrementAndGet() == maxFailures + 1) {
+                cf.completeExceptionally(error.get() == null ? cause : error.get());
+            }
+        }));
+        return cf;
+    }
+
+    /**
+     * Write the given object to an address and streams, using the replication method given.
+     *
+     * @param address An address to write to.
+     * @param stream  The streams which will belong on this entry.
+     * @param data    The data to write.
+     */
+    @Override
+    public int write(long address, Set<UUID> stream, Object data, Map<UUID, Long> backpointerMap)
+            throws OverwriteException {
+        return CFUtils.getUninterruptibly(writeAsync(address, stream, data, backpointerMap),
+                OverwriteException.class);
+    }
+
+    /**
+     * Asynchronously write the given object to an address and streams. The write is sent to every replica at
+     * once, and completes once a majority has accepted it.
+     *
+     * @param address An address to write to.
+     * @param stream  The streams which will belong on this entry.
+     * @param data    The data to write.
+     * @return A future which completes with the number of bytes written once a majority has been written.
+     */
+    @Override
+    public CompletableFuture<Integer> writeAsync(long address, Set<UUID> stream, Object data,
+                                                 Map<UUID, Long> backpointerMap) {
+        int payloadBytes = getPayloadBytes(data);
+        long localAddress = getLayout().getLocalAddress(address);
+        log.trace("Write[{}]: quorum {}/{}", address, getQuorum(address), getLayout().getSegmentLength(address));
+        List<CompletableFuture<Boolean>> writes = IntStream.range(0, getLayout().getSegmentLength(address))
+                .mapToObj(i -> getLayout().getLogUnitClient(address, i)
+                        .write(localAddress, stream, 0L, data, backpointerMap))
+                .collect(Collectors.toList());
+        return quorum(writes, getQuorum(address)).thenApply(v -> payloadBytes);
+    }
+
+    /**
+     * Read the given object from an address, using the replication method given.
+     *
+     * @param address The address to read from.
+     * @return The result of the read.
+     */
+    @Override
+    public ILogUnitEntry read(long address) {
+        return CFUtils.getUninterruptibly(readAsync(address)).setAddress(address);
+    }
+
+    /** Read an address from every replica, completing once the responses decide the value of the address.
+     * Replicas which respond without the decided value, before or after it is decided, are repaired.
+     *
+     * The caller may release decided data as soon as the read completes, so the read holds its own reference to
+     * the data until every replica has responded, and each repair holds another until its write completes. Every
+     * response other than the decided one is released once it has been used to decide and repair.
+     *
+     * @param address   The address to read from.
+     * @return          A future which completes with the decided result of the read.
+     */
+    CompletableFuture<ReadResult> readAsync(long address) {
+        int numUnits = getLayout().getSegmentLength(address);
+        int quorum = getQuorum(address);
+        long localAddress = getLayout().getLocalAddress(address);
+        CompletableFuture<ReadResult> cf = new CompletableFuture<>();
+        List<ReadResult> responses = new ArrayList<>();
+        List<Integer> responders = new ArrayList<>();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger answered = new AtomicInteger();
+        AtomicReference<ByteBuf> held = new AtomicReference<>();
+        for (int i = 0; i < numUnits; i++)
+        {
+            final int unit = i;
+            getLayout().getLogUnitClient(address, unit).read(localAddress).whenComplete((r, ex) -> {
+                synchronized (responses) {
+                    try {
+                        if (cf.isDone()) {
+                            if (ex == null) {
+                                if (!cf.isCompletedExceptionally()) {
+                                    repair(address, cf.join(), held.get(), r, unit);
+                                }
+                                r.release();
+                            }
+                            return;
+                        }
+                        if (ex != null) {
+                            if (failed.incrementAndGet() == numUnits - quorum + 1) {
+                                cf.completeExceptionally(ex instanceof CompletionException ? ex.getCause() : ex);
+                                responses.forEach(ReadResult::release);
+                                return;
+                            }
+                        } else {
+                            responses.add(r);
+                            responders.add(unit);
+                        }
+                        ReadResult decided = decide(responses, numUnits - responses.size() - failed.get(), quorum,
+                                numUnits);
+                        if (decided != null) {
+                            if (decided.getResultType() == ReadResultType.DATA) {
+                                // Taken before the read completes, since the caller may release the data from then on.
+                                held.set(decided.getBuffer().duplicate().retain());
+                            }
+                            cf.complete(decided);
+                            for (int j = 0; j < responses.size(); j++)
+                            {
+                                repair(address, decided, held.get(), responses.get(j), responders.get(j));
+                                if (responses.get(j) != decided) {
+                                    responses.get(j).release();
+                                }
+                            }
+                        }
+                    } finally {
+                        // Once every replica has responded, no more repairs need the data.
+                        if (answered.incrementAndGet() == numUnits && held.get() != null) {
+                            held.get().release();
+                        }
+                    }
+                }
+            });
+        }
+        return cf;
+    }
+
+    /** Decide the value of an address from the responses to a read.
+     *
+     * @param responses The responses received so far.
+     * @param pending   The number of replicas which may still respond.
+     * @param quorum    The size of a majority of the replicas.
+     * @param numUnits  The number of replicas.
+     * @return          The decided result, an empty result if no value can be decided, or null if the
+     *                  pending responses could still decide the value.
+     */
+    static ReadResult decide(List<ReadResult> responses, int pending, int quorum, int numUnits) {
+        ReadResult data = null;
+        ReadResult hole = null;
+        ReadResult empty = null;
+        int dataCount = 0;
+        int holeCount = 0;
+        for (ReadResult r : responses)
+        {
+            switch (r.getResultType())
+            {
+                case TRIMMED:
+                    return r;
+                case DATA:
+                    data = r;
+                    dataCount++;
+                    break;
+                case FILLED_HOLE:
+                    hole = r;
+                    holeCount++;
+                    break;
+                default:
+                    empty = r;
+            }
+        }
+        if (dataCount >= quorum) {
+            return data;
+        }
+        // Once this many replicas hold a hole, the data can no longer reach a majority.
+        if (holeCount >= numUnits - quorum + 1) {
+            return hole;
+        }
+        if (dataCount + pending < quorum && holeCount + pending < numUnits - quorum + 1) {
+            return empty != null ? empty
+                    : new ReadResult(new LogUnitReadResponseMsg(ReadResultType.EMPTY));
+        }
+        return null;
+    }
+
+    /** Repair a replica which responded to a read without its decided value.
+     *
+     * @param address       The address which was read.
+     * @param decided       The decided result of the read.
+     * @param data          The reference to the decided data held by the read, if data was decided.
+     * @param response      The response of the replica.
+     * @param unit          The index of the replica.
+     */
+    void repair(long address, ReadResult decided, ByteBuf data, ReadResult response, int unit) {
+        ReadResultType type = response.getResultType();
+        if (type == decided.getResultType() || type == ReadResultType.TRIMMED) {
+            return;
+        }
+        LogUnitClient client = getLayout().getLogUnitClient(address, unit);
+        CompletableFuture<Boolean> repaired;
+        if (decided.getResultType() == ReadResultType.DATA) {
+            log.debug("Read[{}]: repairing data on replica {}", address, unit);
+            ByteBuf repairData = data.duplicate().retain();
+            repaired = client.write(getLayout().getLocalAddress(address), decided.getStreams(), REPAIR_RANK,
+                    repairData, decided.getBackpointerMap());
+            repaired.whenComplete((r, ex) -> repairData.release());
+        } else if (decided.getResultType() == ReadResultType.FILLED_HOLE && type == ReadResultType.EMPTY) {
+            log.debug("Read[{}]: repairing hole on replica {}", address, unit);
+            repaired = client.fillHole(getLayout().getLocalAddress(address));
+        } else {
+            // Nothing is repaired if nothing was decided, and data which lost to a hole is durable.
+            return;
+        }
+        repaired.exceptionally(ex -> {
+            log.debug("Read[{}]: failed to repair replica {}", address, unit, ex);
+            return false;
+        });
+    }
+
+    /**
+     * Read a stream prefix, using the replication method given. The addresses of the stream are learned from
+     * every replica, and each address is then read from a quorum.
+     *
+     * @param stream the stream to read from.
+     * @return A map containing the results of the read.
+     */
+    @Override
+    public Map<Long, ILogUnitEntry> read(UUID stream) {
+        Set<Long> addresses = ConcurrentHashMap.newKeySet();
+        segment.getStripes().parallelStream()
+                .forEach(s -> s.getLogServers().forEach(server -> {
+                    LogUnitClient luc = layout.getRuntime().getRouter(server).getClient(LogUnitClient.class);
+                    CFUtils.getUninterruptibly(luc.readStream(stream)).keySet()
+                            .forEach(a -> addresses.add(layout.getGlobalAddress(s, a)));
+                }));
+        Map<Long, ILogUnitEntry> resultMap = new ConcurrentHashMap<>();
+        addresses.parallelStream()
+                .forEach(a -> {
+                    ILogUnitEntry r = read(a);
+                    if (r.getResultType() == ReadResultType.DATA) {
+                        resultMap.put(a, r);
+                    }
+                });
+        return resultMap;
+    }
+
+    /**
+     * Fill a hole at an address, using the replication method given. Every replica is hole filled, and the
+     * address is then read, which fails the hole fill with an OverwriteException if data was decided instead.
+     *
+     * @param address The address to hole fill at.
+     */
+    @Override
+    public void fillHole(long address) throws OverwriteException {
+        long localAddress = getLayout().getLocalAddress(address);
+        List<CompletableFuture<Boolean>> fills = IntStream.range(0, getLayout().getSegmentLength(address))
+                .mapToObj(i -> getLayout().getLogUnitClient(address, i).fillHole(localAddress))
+                .collect(Collectors.toList());
+        CFUtils.getUninterruptibly(quorum(fills, getQuorum(address)), OverwriteException.class);
+        if (read(address).getResultType() == ReadResultType.DATA) {
+            throw new OverwriteException();
+        }
+    }
+}
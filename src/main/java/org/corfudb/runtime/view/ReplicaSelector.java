@@ -0,0 +1,259 @@
+package org.corfudb.runtime.view;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg.ReadResult;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg.ReadResultType;
+import org.corfudb.runtime.CorfuRuntime;
+import org.corfudb.runtime.clients.LogUnitClient;
+import org.corfudb.util.CFUtils;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/** Selects the replica of a chain which serves a read.
+ *
+ * In chain replication, an address is committed once the tail of the chain holds it, and every other replica
+ * of the chain then holds it too. The selector learns the contiguous tail of each log unit (the address up to
+ * which it holds every entry) from GET_CONTIGUOUS_TAIL, and spreads the reads of committed addresses over every
+ * replica which holds them, so that read throughput grows with the length of the chain. Addresses which are not
+ * known to be committed are read from the tail, as before. A learned tail expires after TAIL_EXPIRY_NANOS, and is
+ * replaced by the next one learned, so that a log unit which lost entries (for example, one which was replaced)
+ * is not read from for long.
+ *
+ * Among the replicas which hold an address, the selector picks the faster of two random replicas by their
+ * average read latency. If the read has not completed once the latency percentile of that replica given by
+ * hedgePercentile has passed, the read is also sent to another replica, and the first response is used. The hedge
+ * is cancelled if the read completes first.
+ */
+@Slf4j
+public class ReplicaSelector {
+
+    /** The number of read latencies kept for each log unit. */
+    static final int LATENCY_SAMPLES = 128;
+
+    /** The weight of each new latency in the average latency of a log unit. */
+    static final double LATENCY_WEIGHT = 0.1;
+
+    /** The minimum interval between two requests for the contiguous tail of a log unit. */
+    static final long TAIL_REFRESH_NANOS = Duration.ofMillis(100).toNanos();
+
+    /** The time after which a learned contiguous tail is no longer used. */
+    static final long TAIL_EXPIRY_NANOS = Duration.ofSeconds(1).toNanos();
+
+    /** The read statistics of a log unit. */
+    static class ReplicaStats {
+
+        /** The contiguous tail of the log unit, as last learned. */
+        volatile long contiguousTail = -1L;
+
+        /** When the contiguous tail was learned. */
+        volatile long tailLearned = 0L;
+
+        /** When the contiguous tail was last requested. */
+        volatile long lastTailRequest = 0L;
+
+        /** Whether a request for the contiguous tail is in flight. */
+        final AtomicBoolean tailRequested = new AtomicBoolean();
+
+        /** The average read latency, in nanoseconds. */
+        volatile double averageLatency = 0.0;
+
+        /** The most recent read latencies, in nanoseconds. */
+        final long[] latencies = new long[LATENCY_SAMPLES];
+
+        /** The number of read latencies recorded. */
+        long samples = 0;
+
+        /** The latency after which a read from this log unit is hedged, in nanoseconds. */
+        volatile long hedgeDelay = Long.MAX_VALUE;
+
+        synchronized void recordLatency(long nanos, double percentile) {
+            averageLatency = samples == 0 ? nanos : averageLatency + LATENCY_WEIGHT * (nanos - averageLatency);
+            latencies[(int) (samples++ % LATENCY_SAMPLES)] = nanos;
+            // The percentile is recomputed once the samples have been replaced.
+            if (samples % LATENCY_SAMPLES == 0) {
+                long[] sorted = latencies.clone();
+                Arrays.sort(sorted);
+                hedgeDelay = sorted[(int) Math.min(LATENCY_SAMPLES - 1, percentile * LATENCY_SAMPLES)];
+            }
+        }
+    }
+
+    final CorfuRuntime runtime;
+
+    /** The statistics of each log unit, by endpoint. */
+    final Map<String, ReplicaStats> stats = new ConcurrentHashMap<>();
+
+    /** Whether reads of committed addresses are spread over every replica, rather than served by the tail. */
+    @Getter
+    @Setter
+    boolean replicaReadsEnabled = true;
+
+    /** Whether reads are hedged. */
+    @Getter
+    @Setter
+    boolean hedgingEnabled = true;
+
+    /** The percentile of the read latency of a log unit after which a read is hedged. */
+    @Getter
+    @Setter
+    double hedgePercentile = 0.95;
+
+    /** The minimum delay before a read is hedged. */
+    @Getter
+    @Setter
+    Duration minimumHedgeDelay = Duration.ofMillis(1);
+
+    public ReplicaSelector(CorfuRuntime runtime) {
+        this.runtime = runtime;
+    }
+
+    ReplicaStats getStats(String endpoint) {
+        return stats.computeIfAbsent(endpoint, k -> new ReplicaStats());
+    }
+
+    /** Get the contiguous tail of a log unit, as last learned.
+     *
+     * @param endpoint  The endpoint of the log unit.
+     * @return          The contiguous tail, or -1 if it is unknown or has expired.
+     */
+    public long getContiguousTail(String endpoint) {
+        ReplicaStats s = getStats(endpoint);
+        return System.nanoTime() - s.tailLearned > TAIL_EXPIRY_NANOS ? -1L : s.contiguousTail;
+    }
+
+    /** Learn the contiguous tail of a log unit, unless it was requested recently.
+     *
+     * @param endpoint  The endpoint of the log unit.
+     */
+    void refreshTail(String endpoint) {
+        ReplicaStats s = getStats(endpoint);
+        if (System.nanoTime() - s.lastTailRequest < TAIL_REFRESH_NANOS
+                || !s.tailRequested.compareAndSet(false, true)) {
+            return;
+        }
+        s.lastTailRequest = System.nanoTime();
+        runtime.getRouter(endpoint).getClient(LogUnitClient.class).getContiguousTail(null)
+                .whenComplete((t, ex) -> {
+                    if (ex == null) {
+                        // Only one request is in flight, so the tail learned replaces the last one.
+                        s.contiguousTail = t.getContiguousTail();
+                        s.tailLearned = System.nanoTime();
+                    } else {
+                        log.debug("Failed to learn contiguous tail of {}", endpoint, ex);
+                    }
+                    s.tailRequested.set(false);
+                });
+    }
+
+    /** Read an address of a chain from a replica which holds it.
+     *
+     * @param servers       The log units of the chain, ending with its tail.
+     * @param localAddress  The address to read, in the address space of the chain.
+     * @return              A future which completes with the result of the read.
+     */
+    public CompletableFuture<ReadResult> read(List<String> servers, long localAddress) {
+        String tail = servers.get(servers.size() - 1);
+        if (!replicaReadsEnabled || servers.size() == 1) {
+            return readFrom(tail, localAddress);
+        }
+        servers.stream()
+                .filter(s -> getContiguousTail(s) < localAddress)
+                .forEach(this::refreshTail);
+        if (getContiguousTail(tail) < localAddress) {
+            return readFrom(tail, localAddress);
+        }
+        List<String> candidates = servers.stream()
+                .filter(s -> getContiguousTail(s) >= localAddress)
+                .collect(Collectors.toList());
+
+        String first = pick(candidates, null);
+        CompletableFuture<ReadResult> cf = new CompletableFuture<>();
+        readInto(cf, first, tail, localAddress);
+        if (hedgingEnabled && candidates.size() > 1) {
+            long delay = Math.max(minimumHedgeDelay.toNanos(), getStats(first).hedgeDelay);
+            if (delay != Long.MAX_VALUE) {
+                ScheduledFuture<?> hedge = CFUtils.runAfter(Duration.ofNanos(delay), () -> {
+                    if (!cf.isDone()) {
+                        String second = pick(candidates, first);
+                        log.trace("Read[{}]: hedging read from {} to {}", localAddress, first, second);
+                        readInto(cf, second, tail, localAddress);
+                    }
+                });
+                cf.whenComplete((r, ex) -> hedge.cancel(false));
+            }
+        }
+        return cf;
+    }
+
+    /** Pick the faster of two random replicas.
+     *
+     * @param candidates    The replicas which hold the address.
+     * @param exclude       A replica which must not be picked, or null.
+     * @return              The replica to read from.
+     */
+    String pick(List<String> candidates, String exclude) {
+        List<String> eligible = exclude == null ? candidates
+                : candidates.stream().filter(s -> !s.equals(exclude)).collect(Collectors.toList());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String a = eligible.get(random.nextInt(eligible.size()));
+        String b = eligible.get(random.nextInt(eligible.size()));
+        return getStats(a).averageLatency <= getStats(b).averageLatency ? a : b;
+    }
+
+    /** Read an address from a replica into a future, falling back to the tail if the replica does not hold it.
+     * A result which is not used, because another read completed the future first, is released.
+     */
+    void readInto(CompletableFuture<ReadResult> cf, String endpoint, String tail, long localAddress) {
+        readFrom(endpoint, localAddress).whenComplete((r, ex) -> {
+            if (ex == null && (r.getResultType() != ReadResultType.EMPTY || endpoint.equals(tail))) {
+                completeOrRelease(cf, r);
+                return;
+            }
+            if (ex == null) {
+                r.release();
+            }
+            if (!cf.isDone()) {
+                if (endpoint.equals(tail)) {
+                    cf.completeExceptionally(ex);
+                } else {
+                    readFrom(tail, localAddress).whenComplete((tr, tex) -> {
+                        if (tex == null) {
+                            completeOrRelease(cf, tr);
+                        } else {
+                            cf.completeExceptionally(tex);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /** Complete a read with a result, releasing the result if the read was already completed. */
+    void completeOrRelease(CompletableFuture<ReadResult> cf, ReadResult r) {
+        if (!cf.complete(r)) {
+            r.release();
+        }
+    }
+
+    /** Read an address from a log unit, recording the latency of the read. */
+    CompletableFuture<ReadResult> readFrom(String endpoint, long localAddress) {
+        long start = System.nanoTime();
+        return runtime.getRouter(endpoint).getClient(LogUnitClient.class).read(localAddress)
+                .whenComplete((r, ex) -> {
+                    if (ex == null) {
+                        getStats(endpoint).recordLatency(System.nanoTime() - start, hedgePercentile);
+                    }
+                });
+    }
+}
@@ -1,29 +1,201 @@
 package org.corfudb.runtime.view;
 
+import com.google.common.collect.ImmutableRangeSet;
+import com.google.common.collect.Range;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.protocols.wireprotocol.ILogUnitEntry;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
 import org.corfudb.runtime.CorfuRuntime;
 import org.corfudb.runtime.clients.SequencerClient;
+import org.corfudb.runtime.exceptions.OverwriteException;
 import org.corfudb.util.CFUtils;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
 
 /**
  * Created by mwei on 12/10/15.
  */
+@Slf4j
 public class SequencerView extends AbstractView {
 
+    /** The number of addresses read at a time while reconstructing tails. */
+    static final int RECOVERY_BATCH_SIZE = 1000;
+
     public SequencerView(CorfuRuntime runtime)
     {
         super(runtime);
     }
 
     /** Return the next token in the sequence for a particular stream.
+     *
+     * If the sequencers of the layout are partitioned, the request is routed to the sequencer of its streams.
+     * When multiple tokens are requested from a partitioned sequencer, they are spaced by the number of
+     * sequencers, since the tokens in between belong to the other sequencers.
      *
      * @param streamIDs      The stream IDs to retrieve from.
      * @param numTokens      The number of tokens to reserve.
      * @return               The first token retrieved.
      */
     public SequencerClient.TokenResponse nextToken(Set<UUID> streamIDs, int numTokens) {
-        return layoutHelper(l -> CFUtils.getUninterruptibly(l.getSequencer(0).nextToken(streamIDs, numTokens)));
+        return layoutHelper(l -> {
+            if (!l.isSequencersPartitioned() || l.getSequencers().size() == 1) {
+                return CFUtils.getUninterruptibly(l.getSequencer(0).nextToken(streamIDs, numTokens));
+            }
+            return partitionedToken(l, streamIDs, numTokens);
+        });
+    }
+
+    /** Asynchronously get a token from the sequencer responsible for the given streams. Requests which
+     * must be pinned across several partitioned sequencers are completed on another thread.
+     *
+     * @param streamIDs The streams to acquire the token for.
+     * @param numTokens The number of tokens to acquire, or 0 to query the latest token.
+     * @return          A future which completes with the token response.
+     */
+    public CompletableFuture<SequencerClient.TokenResponse> nextTokenAsync(Set<UUID> streamIDs, int numTokens) {
+        Layout l = getCurrentLayout();
+        if (!l.isSequencersPartitioned() || l.getSequencers().size() == 1) {
+            return l.getSequencer(0).nextToken(streamIDs, numTokens);
+        }
+        Set<Integer> shards = streamIDs.stream().map(l::getSequencerIndex).collect(Collectors.toSet());
+        if (numTokens > 0 && shards.size() == 1) {
+            return l.getSequencer(shards.iterator().next()).nextToken(streamIDs, numTokens);
+        }
+        return CompletableFuture.supplyAsync(() -> nextToken(streamIDs, numTokens));
+    }
+
+    /** Get a token from partitioned sequencers.
+     *
+     * Queries are sent to the sequencers of each stream, or to every sequencer if there are no streams, and
+     * answered with the latest token. A request whose streams all belong to one sequencer is sent to it, and
+     * a request without streams is sent to any sequencer.
+     *
+     * A request for streams of several sequencers falls back to pinning: the token is issued by the sequencer
+     * with the lowest index, then pinned on the sequencers of the other streams, which return their backpointers.
+     * If a sequencer rejects the pin because it already issued a later token to one of its streams, the token
+     * is rolled back on the sequencers which issued or pinned it, the token is hole filled, the first sequencer
+     * is moved past the later token, and the request is retried.
+     */
+    SequencerClient.TokenResponse partitionedToken(Layout l, Set<UUID> streamIDs, int numTokens) {
+        TreeMap<Integer, Set<UUID>> byShard = streamIDs.stream()
+                .collect(Collectors.groupingBy(l::getSequencerIndex, TreeMap::new, Collectors.toSet()));
+
+        if (numTokens == 0) {
+            long latest = -1L;
+            if (byShard.isEmpty()) {
+                for (int i = 0; i < l.getSequencers().size(); i++)
+                {
+                    latest = Math.max(latest, CFUtils.getUninterruptibly(
+                            l.getSequencer(i).nextToken(streamIDs, 0)).getToken());
+                }
+            }
+            for (Map.Entry<Integer, Set<UUID>> e : byShard.entrySet())
+            {
+                latest = Math.max(latest, CFUtils.getUninterruptibly(
+                        l.getSequencer(e.getKey()).nextToken(e.getValue(), 0)).getToken());
+            }
+            return new SequencerClient.TokenResponse(latest, Collections.emptyMap());
+        }
+
+        if (byShard.size() <= 1) {
+            int shard = byShard.isEmpty() ? ThreadLocalRandom.current().nextInt(l.getSequencers().size())
+                    : byShard.keySet().iterator().next();
+            return CFUtils.getUninterruptibly(l.getSequencer(shard).nextToken(streamIDs, numTokens));
+        }
+
+        Map.Entry<Integer, Set<UUID>> first = byShard.entrySet().iterator().next();
+        while (true) {
+            SequencerClient.TokenResponse issued = CFUtils.getUninterruptibly(
+                    l.getSequencer(first.getKey()).nextToken(first.getValue(), numTokens));
+            long last = issued.getToken() + (long) (numTokens - 1) * l.getSequencers().size();
+            Map<UUID, Long> backpointers = new HashMap<>(issued.getBackpointerMap());
+            // The backpointers returned by each sequencer which recorded the token, so it can be rolled back.
+            Map<Integer, Map<UUID, Long>> accepted = new TreeMap<>();
+            accepted.put(first.getKey(), issued.getBackpointerMap());
+            Long rejectedBy = null;
+            for (Map.Entry<Integer, Set<UUID>> e : byShard.tailMap(first.getKey(), false).entrySet())
+            {
+                SequencerClient.TokenResponse pinned = CFUtils.getUninterruptibly(
+                        l.getSequencer(e.getKey()).pinToken(e.getValue(), last));
+                if (pinned.getToken() != last) {
+                    rejectedBy = pinned.getToken();
+                    break;
+                }
+                accepted.put(e.getKey(), pinned.getBackpointerMap());
+                backpointers.putAll(pinned.getBackpointerMap());
+            }
+            if (rejectedBy == null) {
+                return new SequencerClient.TokenResponse(issued.getToken(), backpointers);
+            }
+
+            log.debug("Token {} rejected by a sequencer which issued {}, retrying.", last, rejectedBy);
+            // The token will be hole filled, so the sequencers which issued or pinned it must not hand it out
+            // as a backpointer.
+            for (Map.Entry<Integer, Map<UUID, Long>> e : accepted.entrySet())
+            {
+                CFUtils.getUninterruptibly(l.getSequencer(e.getKey()).unpinToken(last, e.getValue()));
+            }
+            for (long token = issued.getToken(); token <= last; token += l.getSequencers().size())
+            {
+                try {
+                    runtime.getAddressSpaceView().fillHole(token);
+                } catch (OverwriteException oe) {
+                    log.trace("Hole fill at {} completed by remote client.", token);
+                }
+            }
+            CFUtils.getUninterruptibly(l.getSequencer(first.getKey())
+                    .recoverTails(rejectedBy, Collections.emptyMap()));
+        }
+    }
+
+    /** Reconstruct the tails of the log and its streams from the log units, and merge them into every sequencer.
+     *
+     * A sequencer which fails over recovers from its last checkpoint, so it does not know of the tokens issued
+     * after it. The log is read from the global tail of the sequencer, a batch at a time, until a batch with no
+     * entries is found, and the highest address of each stream written there is sent to the sequencers.
+     *
+     * @return  The highest address found in the log.
+     */
+    public long recoverTails() {
+        long tail = nextToken(Collections.emptySet(), 0).getToken();
+        Map<UUID, Long> streamTails = new HashMap<>();
+        for (long start = tail + 1; ; start += RECOVERY_BATCH_SIZE)
+        {
+            Map<Long, ILogUnitEntry> entries = runtime.getAddressSpaceView()
+                    .read(ImmutableRangeSet.of(Range.closedOpen(start, start + RECOVERY_BATCH_SIZE)));
+            boolean found = false;
+            for (Map.Entry<Long, ILogUnitEntry> e : entries.entrySet())
+            {
+                if (e.getValue().getResultType() == LogUnitReadResponseMsg.ReadResultType.EMPTY) {
+                    continue;
+                }
+                found = true;
+                tail = Math.max(tail, e.getKey());
+                if (e.getValue().getResultType() == LogUnitReadResponseMsg.ReadResultType.DATA) {
+                    e.getValue().getStreams().forEach(id -> streamTails.merge(id, e.getKey(), Math::max));
+                }
+            }
+            if (!found) {
+                break;
+            }
+        }
+
+        final long logTail = tail;
+        layoutHelper(l -> {
+            for (int i = 0; i < l.getSequencers().size(); i++)
+            {
+                CFUtils.getUninterruptibly(l.getSequencer(i).recoverTails(logTail, streamTails));
+            }
+            return null;
+        });
+        return logTail;
     }
 }
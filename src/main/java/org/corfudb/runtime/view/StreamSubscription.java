@@ -0,0 +1,98 @@
+package org.corfudb.runtime.view;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.protocols.wireprotocol.ILogUnitEntry;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg.ReadResult;
+import org.corfudb.runtime.CorfuRuntime;
+import org.corfudb.runtime.clients.LogUnitClient;
+import org.corfudb.runtime.clients.LogUnitSubscription;
+import org.corfudb.util.CFUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/** A subscription to the new entries of a stream, which log units push as they are written.
+ *
+ * The subscription is opened on the log units of every stripe of the last segment of the layout: on the tail of
+ * each chain, which holds every committed entry of its stripe, or on every replica under quorum replication, in
+ * which case an entry pushed by several replicas is only delivered once. Entries are delivered to the listener one
+ * at a time, in the order each log unit wrote them.
+ *
+ * A subscription is closed by a log unit if the listener falls too far behind, which completes the future returned
+ * by {@link #getClosed()}. The consumer should then catch up by reading the stream. A log unit also closes the
+ * subscription if the connection it was opened on is lost, so it does not survive a reconnection.
+ */
+@Slf4j
+public class StreamSubscription implements AutoCloseable {
+
+    /** The number of addresses remembered to deliver entries pushed by several replicas once. */
+    static final int DELIVERED_ADDRESSES = 65_536;
+
+    final CorfuRuntime runtime;
+
+    final Consumer<ILogUnitEntry> listener;
+
+    /** The subscriptions on each log unit. */
+    final List<LogUnitSubscription> subscriptions = new ArrayList<>();
+
+    /** The addresses recently delivered, or null if each entry is only pushed by one log unit. */
+    final Cache<Long, Boolean> delivered;
+
+    StreamSubscription(CorfuRuntime runtime, UUID streamID, Layout.LayoutSegment segment, int window,
+                       Consumer<ILogUnitEntry> listener) {
+        this.runtime = runtime;
+        this.listener = listener;
+        boolean allReplicas = segment.getReplicationMode() == Layout.ReplicationMode.QUORUM_REPLICATION;
+        delivered = allReplicas ? Caffeine.newBuilder().maximumSize(DELIVERED_ADDRESSES).build() : null;
+
+        List<CompletableFuture<LogUnitSubscription>> futures = new ArrayList<>();
+        for (Layout.LayoutStripe stripe : segment.getStripes()) {
+            List<String> servers = stripe.getLogServers();
+            for (String server : allReplicas ? servers : servers.subList(servers.size() - 1, servers.size())) {
+                futures.add(runtime.getRouter(server).getClient(LogUnitClient.class)
+                        .subscribe(streamID, window, this::deliver));
+            }
+        }
+        try {
+            for (CompletableFuture<LogUnitSubscription> f : futures) {
+                subscriptions.add(CFUtils.getUninterruptibly(f));
+            }
+        } catch (RuntimeException re) {
+            // Close the subscriptions which were opened, including those which are still being opened.
+            futures.forEach(f -> f.thenAccept(LogUnitSubscription::close));
+            throw re;
+        }
+        log.debug("Subscribe[{}]: subscribed on {} log units", streamID, subscriptions.size());
+    }
+
+    /** Deliver an entry pushed by a log unit to the listener. */
+    synchronized void deliver(ReadResult entry) {
+        if (delivered != null && delivered.asMap().putIfAbsent(entry.getAddress(), true) != null) {
+            return;
+        }
+        entry.setRuntime(runtime);
+        listener.accept(entry);
+    }
+
+    /** Get a future which completes once the subscription on any log unit is closed, after which entries
+     * may be missed.
+     *
+     * @return  A future which completes once the subscription is closed.
+     */
+    public CompletableFuture<Object> getClosed() {
+        return CompletableFuture.anyOf(subscriptions.stream()
+                .map(LogUnitSubscription::getClosed)
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /** Close the subscription on every log unit. */
+    @Override
+    public void close() {
+        subscriptions.forEach(LogUnitSubscription::close);
+    }
+}
@@ -1,5 +1,10 @@
 package org.corfudb.runtime.view;
 
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
 import lombok.Getter;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
@@ -9,12 +14,17 @@ import org.corfudb.protocols.wireprotocol.ILogUnitEntry;
 import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
 import org.corfudb.runtime.CorfuRuntime;
 import org.corfudb.protocols.wireprotocol.IMetadata;
+import org.corfudb.runtime.clients.LogUnitClient;
 import org.corfudb.runtime.clients.SequencerClient;
 import org.corfudb.runtime.exceptions.OverwriteException;
+import org.corfudb.util.CFUtils;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -57,6 +67,9 @@ public class StreamView implements AutoCloseable {
         /** A pointer to the log. */
         final AtomicLong logPointer;
 
+        /** The highest address which has been prefetched into the cache. */
+        long prefetchedTo = -1L;
+
         public StreamContext(UUID contextID, long maxAddress) {
             this.contextID = contextID;
             this.maxAddress = maxAddress;
@@ -75,12 +88,73 @@ public class StreamView implements AutoCloseable {
         return streamContexts.first();
     }
 
+    /** The number of backpointers a reader follows without reaching its position in a stream before the
+     * addresses of the stream are resolved from the stream index of the log units instead.
+     */
+    static final long BULK_RESOLVE_THRESHOLD = 32L;
+
+    /** The maximum number of resolved addresses read into the cache by each batched read. */
+    static final int PREFETCH_BATCH = 1024;
+
+    /** The number of entries each log unit pushes to a subscriber ahead of its listener, by default. */
+    public static final int DEFAULT_SUBSCRIPTION_WINDOW = 256;
+
+    /** The window of asynchronous writes this stream may have in flight. */
+    final WriteWindow writeWindow;
+
+    /** Protects lastWrite, so that asynchronous writes complete in the order they were issued. */
+    final Object writeOrderLock = new Object();
+
+    /** A future which completes once the last asynchronous write issued, and every write before it, completes. */
+    CompletableFuture<Long> lastWrite = CompletableFuture.completedFuture(-1L);
+
+    /** A semaphore whose number of permits can be changed while permits are held. */
+    static class WriteWindow extends Semaphore {
+
+        int size;
+
+        WriteWindow(int size) {
+            super(size);
+            this.size = size;
+        }
+
+        synchronized void resize(int newSize) {
+            if (newSize > size) {
+                release(newSize - size);
+            } else {
+                reducePermits(size - newSize);
+            }
+            size = newSize;
+        }
+    }
+
     public StreamView(CorfuRuntime runtime, UUID streamID)
     {
         this.runtime = runtime;
         this.streamID = streamID;
         this.streamContexts = new ConcurrentSkipListSet<>();
         this.streamContexts.add(new StreamContext(streamID, Long.MAX_VALUE));
+        this.writeWindow = new WriteWindow(runtime.getWriteWindow());
+    }
+
+    /** Get the number of asynchronous writes this stream may have in flight.
+     *
+     * @return          The size of the write window.
+     */
+    public int getWriteWindow() {
+        return writeWindow.size;
+    }
+
+    /** Set the number of asynchronous writes this stream may have in flight. Writes already in
+     * flight are not affected, but no new write is issued until fewer writes than the new window are in flight.
+     *
+     * @param window    The size of the write window, which must be positive.
+     */
+    public void setWriteWindow(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("The write window must be positive.");
+        }
+        writeWindow.resize(window);
     }
 
     /** Write an object to this stream, returning the physical address it
@@ -147,6 +221,106 @@ public class StreamView implements AutoCloseable {
         }
     }
 
+    /** Asynchronously write an object to this stream, returning a future which completes with
+     * the physical address it was written at.
+     *
+     * The calling thread only blocks if the write window of this stream is full, until one of the writes
+     * in flight completes. The futures returned complete in the order the writes were issued, so callbacks
+     * registered on them observe writes in order, even if the writes themselves complete out of order.
+     *
+     * @param object    The object to write to the stream.
+     * @return          A future which completes with the address the object was written at.
+     */
+    public CompletableFuture<Long> writeAsync(Object object)
+    {
+        writeWindow.acquireUninterruptibly();
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        CompletableFuture<Long> write;
+        CompletableFuture<Long> previous;
+        synchronized (writeOrderLock) {
+            try {
+                write = acquireAndWriteAsync(object);
+            } catch (RuntimeException re) {
+                writeWindow.release();
+                throw re;
+            }
+            previous = lastWrite;
+            lastWrite = result;
+        }
+        write.whenComplete((address, ex) -> {
+            writeWindow.release();
+            previous.whenComplete((p, pex) -> {
+                if (ex != null) {
+                    result.completeExceptionally(ex);
+                } else {
+                    result.complete(address);
+                }
+            });
+        });
+        return result;
+    }
+
+    /** Acquire a token and write an object to it asynchronously, acquiring another
+     * token if the write was overwritten.
+     *
+     * @param object    The object to write to the stream.
+     * @return          A future which completes with the address the object was written at.
+     */
+    CompletableFuture<Long> acquireAndWriteAsync(Object object)
+    {
+        CompletableFuture<Long> cf = new CompletableFuture<>();
+        runtime.getSequencerView().nextTokenAsync(Collections.singleton(streamID), 1)
+                .thenCompose(tokenResponse -> {
+                    long token = tokenResponse.getToken();
+                    log.trace("WriteAsync[{}]: acquired token = {}", streamID, token);
+                    return runtime.getAddressSpaceView().writeAsync(token, Collections.singleton(streamID),
+                            object, tokenResponse.getBackpointerMap())
+                            .thenApply(v -> token);
+                })
+                .whenComplete((token, ex) -> {
+                    Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+                    if (cause == null) {
+                        cf.complete(token);
+                    } else if (cause instanceof OverwriteException) {
+                        log.debug("Overwrite occurred during asynchronous write, retrying.");
+                        acquireAndWriteAsync(object).whenComplete((t, e) -> {
+                            if (e != null) {
+                                cf.completeExceptionally(e);
+                            } else {
+                                cf.complete(t);
+                            }
+                        });
+                    } else {
+                        cf.completeExceptionally(cause);
+                    }
+                });
+        return cf;
+    }
+
+    /** Subscribe to the new entries of this stream, which the log units push to the listener as they are
+     * written, without polling the sequencer. See {@link StreamSubscription}.
+     *
+     * @param listener  The listener which consumes the entries.
+     * @return          The subscription, which must be closed once it is no longer needed.
+     */
+    public StreamSubscription subscribe(Consumer<ILogUnitEntry> listener)
+    {
+        return subscribe(listener, DEFAULT_SUBSCRIPTION_WINDOW);
+    }
+
+    /** Subscribe to the new entries of this stream, which the log units push to the listener as they are
+     * written, without polling the sequencer. See {@link StreamSubscription}.
+     *
+     * @param listener  The listener which consumes the entries.
+     * @param window    The maximum number of entries each log unit pushes ahead of the listener.
+     * @return          The subscription, which must be closed once it is no longer needed.
+     */
+    public StreamSubscription subscribe(Consumer<ILogUnitEntry> listener, int window)
+    {
+        List<Layout.LayoutSegment> segments = runtime.getLayoutView().getLayout().getSegments();
+        return new StreamSubscription(runtime, streamID, segments.get(segments.size() - 1), window, listener);
+    }
+
     /** Returns the last issued token for this stream.
      *
      * @return  The last issued token for this stream.
@@ -167,9 +341,97 @@ public class StreamView implements AutoCloseable {
         {
             return new ConcurrentSkipListSet<>();
         }
+        if (latestToken - read >= BULK_RESOLVE_THRESHOLD) {
+            NavigableSet<Long> followed = followBackpointers(streamID, read, latestToken, BULK_RESOLVE_THRESHOLD);
+            if (followed != null) {
+                return followed;
+            }
+            NavigableSet<Long> indexed = resolveFromStreamIndex(streamID, read, latestToken);
+            if (indexed != null) {
+                return indexed;
+            }
+        }
+        return followBackpointers(streamID, read, latestToken, Long.MAX_VALUE);
+    }
+
+    /** Resolve the addresses of a stream from the stream index of the log units, with one request to each log
+     * unit instead of one read per backpointer. A log unit only indexes the addresses up to its contiguous tail,
+     * so the addresses above the lowest contiguous tail are resolved by following backpointers.
+     *
+     * @param streamID      The stream to resolve.
+     * @param read          The lowest address to resolve.
+     * @param latestToken   The latest token issued for the stream.
+     * @return              The addresses of the stream from read to latestToken, or null if they span more than
+     *                      one segment of the layout.
+     */
+    NavigableSet<Long> resolveFromStreamIndex(UUID streamID, long read, long latestToken) {
+        Layout l = runtime.getLayoutView().getLayout();
+        Layout.LayoutSegment segment = l.getSegment(read);
+        if (segment != l.getSegment(latestToken)) {
+            return null;
+        }
+        int stripes = segment.getNumberOfStripes();
+        boolean allReplicas = segment.getReplicationMode() == Layout.ReplicationMode.QUORUM_REPLICATION;
+        List<List<CompletableFuture<LogUnitClient.ContiguousTailData>>> requests = new ArrayList<>();
+        for (Layout.LayoutStripe stripe : segment.getStripes()) {
+            List<String> servers = stripe.getLogServers();
+            List<CompletableFuture<LogUnitClient.ContiguousTailData>> stripeRequests = new ArrayList<>();
+            for (String server : allReplicas ? servers : servers.subList(servers.size() - 1, servers.size())) {
+                stripeRequests.add(runtime.getRouter(server).getClient(LogUnitClient.class)
+                        .getContiguousTail(streamID));
+            }
+            requests.add(stripeRequests);
+        }
+
+        NavigableSet<Long> resolved = new ConcurrentSkipListSet<>();
+        // The highest address up to which every stripe has indexed every address.
+        long indexedTo = latestToken;
+        Range<Long> localRange = Range.closed(read / stripes, latestToken / stripes);
+        for (int i = 0; i < stripes; i++) {
+            long stripeTail = -1L;
+            for (CompletableFuture<LogUnitClient.ContiguousTailData> request : requests.get(i)) {
+                LogUnitClient.ContiguousTailData data;
+                try {
+                    data = CFUtils.getUninterruptibly(request);
+                } catch (RuntimeException re) {
+                    log.debug("Read[{}]: failed to read stream index, following backpointers", streamID, re);
+                    return null;
+                }
+                stripeTail = Math.max(stripeTail, data.getContiguousTail());
+                for (Range<Long> r : data.getRange().subRangeSet(localRange).asRanges()) {
+                    for (long local : ContiguousSet.create(r, DiscreteDomain.longs())) {
+                        long global = local * stripes + i;
+                        if (global >= read && global <= latestToken) {
+                            resolved.add(global);
+                        }
+                    }
+                }
+            }
+            indexedTo = Math.min(indexedTo, (stripeTail + 1) * stripes + i - 1);
+        }
+        log.trace("Read[{}]: resolved {} addresses from stream index up to {}", streamID, resolved.size(),
+                indexedTo);
+        if (indexedTo < latestToken) {
+            resolved.addAll(followBackpointers(streamID, Math.max(read, indexedTo + 1), latestToken,
+                    Long.MAX_VALUE));
+        }
+        return resolved;
+    }
+
+    /** Resolve the addresses of a stream by following backpointers from the latest token.
+     *
+     * @param streamID      The stream to resolve.
+     * @param read          The lowest address to resolve.
+     * @param latestToken   The latest token issued for the stream.
+     * @param maxHops       The maximum number of backpointers to follow.
+     * @return              A list of entries that we have resolved for reading, or null if read was not reached
+     *                      within maxHops backpointers.
+     */
+    NavigableSet<Long> followBackpointers(UUID streamID, long read, long latestToken, long maxHops) {
         NavigableSet<Long> resolvedBackpointers = new ConcurrentSkipListSet<>();
         boolean hitStreamStart = false;
         boolean hitBeforeRead = false;
+        long hops = 0;
         if (!runtime.backpointersDisabled) {
             resolvedBackpointers.add(latestToken);
             ILogUnitEntry r = runtime.getAddressSpaceView().read(latestToken);
@@ -199,6 +461,11 @@ public class StreamView implements AutoCloseable {
                 }
 
                 // following backpointers...
+                if (++hops >= maxHops) {
+                    log.trace("Read[{}]: still at {} after {} backpointers, reading at {}", streamID,
+                            backPointer, hops, read);
+                    return null;
+                }
                 log.trace("Following backpointer to {}", backPointer);
                 r = runtime.getAddressSpaceView().read(backPointer);
             }
@@ -262,6 +529,7 @@ public class StreamView implements AutoCloseable {
             }
 
             getCurrentContext().logPointer.set(thisRead+1);
+            prefetch(getCurrentContext(), thisRead);
 
             log.trace("Read[{}]: reading at {}", streamID, thisRead);
             ILogUnitEntry r = runtime.getAddressSpaceView().read(thisRead);
@@ -302,6 +570,31 @@ public class StreamView implements AutoCloseable {
         }
     }
 
+    /** Read the next batch of resolved addresses into the cache with a single batched read, once the reader
+     * reaches an address which has not been prefetched, so that a reader which is far behind is not bound by
+     * one round trip per entry.
+     *
+     * @param context   The context being read.
+     * @param thisRead  The address being read.
+     */
+    void prefetch(StreamContext context, long thisRead) {
+        if (runtime.isCacheDisabled() || thisRead <= context.prefetchedTo
+                || context.currentBackpointerList.isEmpty()) {
+            return;
+        }
+        RangeSet<Long> batch = TreeRangeSet.create();
+        batch.add(Range.closedOpen(thisRead, thisRead + 1));
+        long last = thisRead;
+        Iterator<Long> addresses = context.currentBackpointerList.iterator();
+        for (int i = 1; i < PREFETCH_BATCH && addresses.hasNext(); i++) {
+            last = addresses.next();
+            batch.add(Range.closedOpen(last, last + 1));
+        }
+        log.trace("Read[{}]: prefetching addresses {} to {}", streamID, thisRead, last);
+        runtime.getAddressSpaceView().read(batch);
+        context.prefetchedTo = last;
+    }
+
     public synchronized ILogUnitEntry[] readTo(long pos) {
         long latestToken = pos;
         boolean max = false;
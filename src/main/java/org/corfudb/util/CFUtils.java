@@ -91,12 +91,12 @@ public class CFUtils {
     }
 
     /** Schedules a runnable after a given time
-     * @param duration  The duration to timeout after.
-     * @return          A completable future that will time out.
+     * @param duration  The duration to wait before running.
+     * @param toRun     The runnable to run.
+     * @return          A future which can be used to cancel the runnable before it runs.
      */
-    public static void runAfter(Duration duration, Runnable toRun) {
-        final CompletableFuture<Void> promise = new CompletableFuture<>();
-        scheduler.schedule(toRun::run, duration.toMillis(), TimeUnit.MILLISECONDS);
+    public static ScheduledFuture<?> runAfter(Duration duration, Runnable toRun) {
+        return scheduler.schedule(toRun::run, duration.toNanos(), TimeUnit.NANOSECONDS);
     }
 
     /** Takes a completable future, and ensures that it completes within a certain duration. If it does
@@ -113,11 +113,16 @@ public class CFUtils {
         return future.applyToEither(timeout, Function.identity());
     }
 
-    private static final ScheduledExecutorService scheduler =
-            Executors.newScheduledThreadPool(
+    private static final ScheduledThreadPoolExecutor scheduler =
+            new ScheduledThreadPoolExecutor(
                     1,
                     new ThreadFactoryBuilder()
                             .setDaemon(true)
                             .setNameFormat("failAfter-%d")
                             .build());
+
+    static {
+        // Runnables which are cancelled before they run are removed at once, rather than when they are due.
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
 }
@@ -0,0 +1,84 @@
+package org.corfudb.util;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ThreadFactory;
+
+/** The Netty transports which servers and clients can use.
+ *
+ * The native epoll transport avoids the selector of NIO and the garbage it creates, but is only available on
+ * Linux. A transport is obtained with {@link #get(String)}, which falls back to NIO where epoll is unavailable.
+ */
+@Slf4j
+public enum NettyTransport {
+    NIO {
+        @Override
+        public EventLoopGroup getEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new NioEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> getServerChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> getChannelClass() {
+            return NioSocketChannel.class;
+        }
+    },
+    EPOLL {
+        @Override
+        public EventLoopGroup getEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new EpollEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> getServerChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> getChannelClass() {
+            return EpollSocketChannel.class;
+        }
+    };
+
+    /** Create the event loops which service the I/O of this transport.
+     *
+     * @param threads       The number of event loops.
+     * @param threadFactory The factory for the threads of the event loops.
+     * @return              A new event loop group.
+     */
+    public abstract EventLoopGroup getEventLoopGroup(int threads, ThreadFactory threadFactory);
+
+    /** Get the class of the channel which accepts connections on this transport. */
+    public abstract Class<? extends ServerChannel> getServerChannelClass();
+
+    /** Get the class of the channel which connects to a server on this transport. */
+    public abstract Class<? extends SocketChannel> getChannelClass();
+
+    /** Get a transport by name, falling back to NIO if it is not available on this platform.
+     *
+     * @param name  The name of the transport, nio or epoll, in any case.
+     * @return      The transport.
+     */
+    public static NettyTransport get(String name) {
+        NettyTransport transport = valueOf(name.toUpperCase());
+        if (transport == EPOLL && !Epoll.isAvailable()) {
+            log.warn("The epoll transport is not available, using NIO instead", Epoll.unavailabilityCause());
+            return NIO;
+        }
+        return transport;
+    }
+}
@@ -1,6 +1,6 @@
 package org.corfudb.util;
 
-import com.google.common.collect.Range;
+import com.google.common.collect.DiscreteDomain;
 import com.google.common.collect.RangeSet;
 import jdk.internal.org.objectweb.asm.ClassReader;
 import jdk.internal.org.objectweb.asm.tree.AbstractInsnNode;
@@ -21,7 +21,7 @@ import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.LongStream;
 
 /**
  * Created by crossbach on 5/22/15.
@@ -154,32 +154,16 @@ public class Utils
         return getOption(optionsMap, option, type, null);
     }
 
-    /** Turn a range into a set of discrete longs.
+    /** Stream the addresses of a set of ranges in ascending order, as primitive longs, so that the addresses
+     * of a large range are never materialized.
      *
-     * @param range The range to discretize.
-     * @return      A set containing all the longs in that range.
+     * @param ranges    A set of bounded ranges.
+     * @return          A stream of all the longs in that rangeset.
      */
-    public static Set<Long> discretizeRange(Range<Long> range) {
-        Set<Long> s = new HashSet<>();
-        for (long l = range.lowerEndpoint(); l <= range.upperEndpoint(); l++)
-        {
-            if (range.contains(l)) {s.add(l);}
-        }
-        return s;
-    }
-
-    /** Turn a set of ranges into a discrete set.
-     *
-     * @param ranges    A set of ranges to discretize.
-     * @return          A set containing all the longs in that rangeset.
-     */
-    public static Set<Long> discretizeRangeSet(RangeSet<Long> ranges) {
-        Set<Long> total = Collections.newSetFromMap(new ConcurrentHashMap<>());
-        for (Range<Long> r : ranges.asRanges())
-        {
-            total.addAll(Utils.discretizeRange(r));
-        }
-        return total;
+    public static LongStream rangeSetStream(RangeSet<Long> ranges) {
+        return ranges.asRanges().stream()
+                .map(r -> r.canonical(DiscreteDomain.longs()))
+                .flatMapToLong(r -> LongStream.range(r.lowerEndpoint(), r.upperEndpoint()));
     }
 
     /** Convert to byte string representation.
@@ -25,9 +25,9 @@ public class LogUnitServerAssertions extends AbstractAssert<LogUnitServerAsserti
     public LogUnitServerAssertions hasContiguousTailAt(long address) {
         isNotNull();
 
-        if (actual.contiguousTail != address)
+        if (actual.getContiguousTail() != address)
         {
-            failWithMessage("Expected contiguous tail to be at <%d> but was at <%d>!", address, actual.contiguousTail);
+            failWithMessage("Expected contiguous tail to be at <%d> but was at <%d>!", address, actual.getContiguousTail());
         }
 
         return this;
@@ -36,7 +36,7 @@ public class LogUnitServerAssertions extends AbstractAssert<LogUnitServerAsserti
     public LogUnitServerAssertions hasContiguousStreamEntryAt(UUID stream, long address) {
         isNotNull();
 
-        if (!actual.streamCache.get(stream).contains(address))
+        if (!actual.streamIndex.contains(stream, address))
         {
             failWithMessage("Expected contiguous stream <%s> to contain <%d> but it did not!",
                     stream, address);
@@ -48,7 +48,7 @@ public class LogUnitServerAssertions extends AbstractAssert<LogUnitServerAsserti
     public LogUnitServerAssertions doestNotHaveContiguousStreamEntryAt(UUID stream, long address) {
         isNotNull();
 
-        if (actual.streamCache.get(stream).contains(address))
+        if (actual.streamIndex.contains(stream, address))
         {
             failWithMessage("Expected contiguous stream <%s> to not contain <%d> but it did!",
                     stream, address);
@@ -1,19 +1,27 @@
 package org.corfudb.infrastructure;
 
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Files;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import org.corfudb.protocols.wireprotocol.CorfuMsg;
 import org.corfudb.protocols.wireprotocol.LayoutRankMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitFillHoleMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitReadRequestMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitTrimMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitWriteMsg;
 import org.corfudb.runtime.CorfuRuntime;
+import org.corfudb.runtime.exceptions.OverwriteException;
 import org.corfudb.runtime.view.Layout;
 import org.junit.Test;
 
+import java.io.File;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.corfudb.infrastructure.LogUnitServerAssertions.assertThat;
@@ -128,6 +136,320 @@ public class LogUnitServerTest extends AbstractServerTest {
                 .matchesDataAtAddress(10000000, "10000000".getBytes());
     }
 
+    @Test
+    public void checkThatIndexIsUsedForColdReads()
+            throws Exception
+    {
+        String serviceDir = getTempDir();
+        final int num_entries = 5000;
+
+        LogUnitServer s1 = new LogUnitServer(new ImmutableMap.Builder<String,Object>()
+                .put("--log-path", serviceDir)
+                .put("--memory", false)
+                .put("--single", false)
+                .put("--sync", true)
+                .put("--max-cache", 1000000)
+                .build());
+        this.router.setServerUnderTest(s1);
+        for (int i = 0; i < num_entries; i++) {
+            LogUnitWriteMsg m = new LogUnitWriteMsg(i);
+            m.setStreams(Collections.singleton(CorfuRuntime.getStreamID("a")));
+            m.setRank(0L);
+            m.setBackpointerMap(Collections.emptyMap());
+            m.setPayload(Integer.toString(i).getBytes());
+            sendMessage(m);
+        }
+        s1.shutdown();
+
+        // Cold reads, served through the persisted index.
+        LogUnitServer s2 = new LogUnitServer(new ImmutableMap.Builder<String,Object>()
+                .put("--log-path", serviceDir)
+                .put("--memory", false)
+                .put("--single", false)
+                .put("--sync", true)
+                .put("--max-cache", 1000000)
+                .build());
+        long startTime = System.currentTimeMillis();
+        for (int i = num_entries - 1; i >= 0; i--) {
+            assertThat(s2.getDataCache().get((long) i))
+                    .isNotNull();
+        }
+        calculateRequestsPerSecond("Indexed", num_entries, startTime);
+        assertThat(s2)
+                .matchesDataAtAddress(0, "0".getBytes())
+                .matchesDataAtAddress(num_entries - 1, Integer.toString(num_entries - 1).getBytes());
+
+        // Writes after a restart must be appended after the existing entries.
+        this.router.setServerUnderTest(s2);
+        LogUnitWriteMsg m = new LogUnitWriteMsg(num_entries);
+        m.setStreams(Collections.singleton(CorfuRuntime.getStreamID("a")));
+        m.setRank(0L);
+        m.setBackpointerMap(Collections.emptyMap());
+        m.setPayload("last".getBytes());
+        sendMessage(m);
+        s2.shutdown();
+
+        // Cold reads, after the index was lost and rebuilt from the log file.
+        File index = new File(serviceDir + File.separator + "log0.index");
+        assertThat(index.delete())
+                .isTrue();
+        LogUnitServer s3 = new LogUnitServer(new ImmutableMap.Builder<String,Object>()
+                .put("--log-path", serviceDir)
+                .put("--memory", false)
+                .put("--single", false)
+                .put("--sync", true)
+                .put("--max-cache", 1000000)
+                .build());
+        startTime = System.currentTimeMillis();
+        for (int i = num_entries - 1; i >= 0; i--) {
+            assertThat(s3.getDataCache().get((long) i))
+                    .isNotNull();
+        }
+        calculateRequestsPerSecond("Rebuilt", num_entries, startTime);
+        assertThat(s3)
+                .matchesDataAtAddress(0, "0".getBytes())
+                .matchesDataAtAddress(num_entries, "last".getBytes());
+        assertThat(index.length())
+                .isEqualTo((num_entries + 1) * MappedLogUnitStorage.INDEX_RECORD_SIZE);
+        s3.shutdown();
+    }
+
+    @Test
+    public void checkThatEntriesSpanningMapWindowsArePersisted()
+            throws Exception
+    {
+        String serviceDir = getTempDir();
+        // Entries of increasing size, the largest of which are bigger than a window.
+        final int num_entries = 40;
+
+        LogUnitServer s1 = new LogUnitServer(new ImmutableMap.Builder<String,Object>()
+                .put("--log-path", serviceDir)
+                .put("--memory", false)
+                .put("--single", false)
+                .put("--sync", true)
+                .put("--max-cache", 1000000)
+                .put("--map-window", 1024L)
+                .build());
+        this.router.setServerUnderTest(s1);
+        for (int i = 0; i < num_entries; i++) {
+            LogUnitWriteMsg m = new LogUnitWriteMsg(i);
+            m.setStreams(Collections.singleton(CorfuRuntime.getStreamID("a")));
+            m.setRank(0L);
+            m.setBackpointerMap(Collections.emptyMap());
+            m.setPayload(Strings.repeat(Integer.toString(i), i * 10).getBytes());
+            sendMessage(m);
+        }
+        s1.shutdown();
+
+        LogUnitServer s2 = new LogUnitServer(new ImmutableMap.Builder<String,Object>()
+                .put("--log-path", serviceDir)
+                .put("--memory", false)
+                .put("--single", false)
+                .put("--sync", true)
+                .put("--max-cache", 1000000)
+                .put("--map-window", 1024L)
+                .build());
+        for (int i = 0; i < num_entries; i++) {
+            assertThat(s2)
+                    .matchesDataAtAddress(i, Strings.repeat(Integer.toString(i), i * 10).getBytes());
+        }
+        s2.shutdown();
+    }
+
+    @Test
+    public void checkThatSyncWritesAreGroupCommitted()
+            throws Exception
+    {
+        final int num_entries = 100;
+        LogUnitServer s1 = new LogUnitServer(new ImmutableMap.Builder<String,Object>()
+                .put("--log-path", getTempDir())
+                .put("--memory", false)
+                .put("--single", false)
+                .put("--sync", true)
+                .put("--max-cache", 1000000)
+                .put("--commit-window", 100_000L)
+                .build());
+        this.router.setServerUnderTest(s1);
+
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < num_entries; i++) {
+            LogUnitWriteMsg m = new LogUnitWriteMsg(i);
+            m.setStreams(Collections.singleton(CorfuRuntime.getStreamID("a")));
+            m.setRank(0L);
+            m.setBackpointerMap(Collections.emptyMap());
+            m.setPayload(Integer.toString(i).getBytes());
+            sendMessage(m);
+        }
+        for (int i = 0; i < 100 && getResponseMessages().size() < num_entries; i++) {
+            Thread.sleep(50);
+        }
+        calculateRequestsPerSecond("WPS", num_entries, startTime);
+
+        assertThat(getResponseMessages())
+                .hasSize(num_entries)
+                .extracting("msgType")
+                .containsOnly(CorfuMsg.CorfuMsgType.ERROR_OK);
+        assertThat(((MappedLogUnitStorage) s1.getStorage()).groupCommitter.getCommitCount().get())
+                .isEqualTo(num_entries);
+        assertThat(((MappedLogUnitStorage) s1.getStorage()).groupCommitter.getBatchCount().get())
+                .isLessThan(num_entries);
+        s1.shutdown();
+    }
+
+    @Test
+    public void checkThatTailAndStreamsAreRecovered()
+            throws Exception
+    {
+        String serviceDir = getTempDir();
+        LogUnitServer s1 = new LogUnitServer(new ImmutableMap.Builder<String,Object>()
+                .put("--log-path", serviceDir)
+                .put("--memory", false)
+                .put("--single", false)
+                .put("--sync", true)
+                .put("--max-cache", 1000000)
+                .build());
+        this.router.setServerUnderTest(s1);
+        for (long i : new long[]{0L, 1L, 2L, 10001L, 10000L, 20000L}) {
+            LogUnitWriteMsg m = new LogUnitWriteMsg(i);
+            m.setStreams(Collections.singleton(CorfuRuntime.getStreamID(i % 2 == 0 ? "a" : "b")));
+            m.setRank(0L);
+            m.setBackpointerMap(Collections.emptyMap());
+            m.setPayload(Long.toString(i).getBytes());
+            sendMessage(m);
+        }
+        s1.shutdown();
+
+        LogUnitServer s2 = new LogUnitServer(new ImmutableMap.Builder<String,Object>()
+                .put("--log-path", serviceDir)
+                .put("--memory", false)
+                .put("--single", false)
+                .put("--sync", true)
+                .put("--max-cache", 1000000)
+                .build());
+        assertThat(s2)
+                .hasContiguousTailAt(2L)
+                .hasContiguousStreamEntryAt(CorfuRuntime.getStreamID("a"), 0L)
+                .hasContiguousStreamEntryAt(CorfuRuntime.getStreamID("b"), 1L)
+                .hasContiguousStreamEntryAt(CorfuRuntime.getStreamID("a"), 2L)
+                .doestNotHaveContiguousStreamEntryAt(CorfuRuntime.getStreamID("a"), 10000L);
+        s2.shutdown();
+    }
+
+    @Test
+    public void checkThatTrimmedLogFilesAreCompacted()
+            throws Exception
+    {
+        String serviceDir = getTempDir();
+        ImmutableMap<String,Object> opts = new ImmutableMap.Builder<String,Object>()
+                .put("--log-path", serviceDir)
+                .put("--memory", false)
+                .put("--single", false)
+                .put("--sync", true)
+                .put("--commit-window", 10L)
+                .put("--max-cache", 1000000)
+                .build();
+        LogUnitServer s1 = new LogUnitServer(opts);
+        this.router.setServerUnderTest(s1);
+        for (long i = 0; i <= 10010L; i++) {
+            LogUnitWriteMsg m = new LogUnitWriteMsg(i);
+            m.setStreams(Collections.singleton(CorfuRuntime.getStreamID("a")));
+            m.setRank(0L);
+            m.setBackpointerMap(Collections.emptyMap());
+            m.setPayload(Long.toString(i).getBytes());
+            sendMessage(m);
+        }
+        s1.compactTail();
+        long fileSize = ((MappedLogUnitStorage) s1.getStorage()).getChannelForAddress(0L).getFilePointer().get();
+
+        sendMessage(new LogUnitTrimMsg(7499L, CorfuRuntime.getStreamID("a")));
+        s1.handleGC();
+
+        File log0 = new File(serviceDir + File.separator + "log0");
+        assertThat(new File(log0.getPath() + ".index").length())
+                .isEqualTo(2500L * MappedLogUnitStorage.INDEX_RECORD_SIZE);
+        assertThat(((MappedLogUnitStorage) s1.getStorage()).getChannelForAddress(0L).getFilePointer().get())
+                .isLessThan(fileSize / 2);
+        MappedLogUnitStorage storage = (MappedLogUnitStorage) s1.getStorage();
+        assertThat(storage.readStreams(storage.getChannelForAddress(8000L), 8000L))
+                .containsExactly(CorfuRuntime.getStreamID("a"));
+        assertThat(s1.isTrimmed(10L))
+                .isTrue();
+        assertThat(s1)
+                .matchesDataAtAddress(8000L, "8000".getBytes());
+        s1.shutdown();
+
+        LogUnitServer s2 = new LogUnitServer(opts);
+        assertThat(s2.getContiguousTail())
+                .isEqualTo(10010L);
+        assertThat(s2.isTrimmed(7499L))
+                .isTrue();
+        assertThat(s2.isTrimmed(7500L))
+                .isFalse();
+        assertThat(s2.trimMap)
+                .containsEntry(CorfuRuntime.getStreamID("a"), 7499L);
+        assertThat(s2)
+                .matchesDataAtAddress(8000L, "8000".getBytes())
+                .matchesDataAtAddress(10010L, "10010".getBytes());
+        s2.shutdown();
+    }
+
+    @Test
+    public void checkThatDeletedLogFilesAreNotRecreatedByReads()
+            throws Exception
+    {
+        String serviceDir = getTempDir();
+        ImmutableMap<String,Object> opts = new ImmutableMap.Builder<String,Object>()
+                .put("--log-path", serviceDir)
+                .put("--memory", false)
+                .put("--single", false)
+                .put("--sync", true)
+                .put("--commit-window", 10L)
+                .put("--max-cache", 1000000)
+                .build();
+        LogUnitServer s1 = new LogUnitServer(opts);
+        this.router.setServerUnderTest(s1);
+        for (long i = 0; i <= 10010L; i++) {
+            LogUnitWriteMsg m = new LogUnitWriteMsg(i);
+            m.setStreams(Collections.singleton(CorfuRuntime.getStreamID("a")));
+            m.setRank(0L);
+            m.setBackpointerMap(Collections.emptyMap());
+            m.setPayload(Long.toString(i).getBytes());
+            sendMessage(m);
+        }
+        s1.compactTail();
+
+        // Every entry of the first log file is trimmed, so the file is deleted.
+        sendMessage(new LogUnitTrimMsg(9999L, CorfuRuntime.getStreamID("a")));
+        s1.handleGC();
+        File log0 = new File(serviceDir + File.separator + "log0");
+        assertThat(log0.exists())
+                .isFalse();
+
+        // Reads of its addresses find no entries, and do not recreate the file or its index.
+        MappedLogUnitStorage storage = (MappedLogUnitStorage) s1.getStorage();
+        assertThat(storage.read(5L))
+                .isNull();
+        assertThat(storage.readAll(Arrays.asList(5L, 6L)))
+                .isEmpty();
+        assertThat(log0.exists())
+                .isFalse();
+        assertThat(new File(log0.getPath() + ".index").exists())
+                .isFalse();
+        assertThat(s1.isTrimmed(5L))
+                .isTrue();
+        assertThat(s1)
+                .matchesDataAtAddress(10010L, "10010".getBytes());
+        s1.shutdown();
+
+        // After a restart, the deleted file's addresses are trimmed rather than a gap before the tail.
+        LogUnitServer s2 = new LogUnitServer(opts);
+        assertThat(s2.getContiguousTail())
+                .isEqualTo(10010L);
+        assertThat(s2.isTrimmed(5L))
+                .isTrue();
+        s2.shutdown();
+    }
+
     @Test
     public void checkThatContiguousStreamIsCorrectlyCalculated()
             throws Exception
@@ -232,5 +554,249 @@ public class LogUnitServerTest extends AbstractServerTest {
 
         s1.shutdown();
     }
-}
 
+    @Test
+    public void checkThatFailedAppendsDoNotAdvanceTail()
+            throws Exception
+    {
+        LogUnitServer s1 = new LogUnitServer(new ImmutableMap.Builder<String,Object>()
+                .put("--memory", true)
+                .put("--single", false)
+                .put("--max-cache", 1000000)
+                .build());
+        // An engine which fails to append at address 1, as if it were out of space.
+        s1.storage = new InMemoryLogUnitStorage(1000000, address -> {}) {
+            @Override
+            public void append(long address, LogUnitServer.LogUnitEntry entry)
+                    throws OverwriteException {
+                if (address == 1L) {
+                    throw new IllegalStateException("Out of space");
+                }
+                super.append(address, entry);
+            }
+        };
+
+        this.router.setServerUnderTest(s1);
+        for (long address = 0L; address < 3L; address++) {
+            LogUnitWriteMsg m = new LogUnitWriteMsg(address);
+            m.setStreams(Collections.singleton(CorfuRuntime.getStreamID("a")));
+            m.setRank(0L);
+            m.setBackpointerMap(Collections.emptyMap());
+            m.setPayload(Long.toString(address).getBytes());
+            sendMessage(m);
+        }
+        s1.compactTail();
+        assertThat(s1)
+                .hasContiguousTailAt(0L);
+
+        s1.shutdown();
+    }
+
+    @Test
+    public void checkThatContiguousTailIsAdvancedOnConcurrentWrites()
+            throws Exception
+    {
+        // More addresses than fit in the tracker, written out of order, so some must overflow.
+        final int num_threads = 8;
+        final int num_entries = TailTracker.DEFAULT_CAPACITY * 2;
+        LogUnitServer s1 = new LogUnitServer(new ImmutableMap.Builder<String,Object>()
+                .put("--memory", true)
+                .put("--single", false)
+                .put("--max-cache", 100000000)
+                .build());
+        this.router.setServerUnderTest(s1);
+
+        scheduleConcurrently(num_threads, t -> {
+            for (long i = num_entries - num_threads + t; i >= 0; i -= num_threads) {
+                LogUnitWriteMsg m = new LogUnitWriteMsg(i);
+                m.setStreams(Collections.singleton(CorfuRuntime.getStreamID(i % 2 == 0 ? "a" : "b")));
+                m.setRank(0L);
+                m.setBackpointerMap(Collections.emptyMap());
+                m.setPayload(Long.toString(i).getBytes());
+                sendMessage(m);
+            }
+        });
+        long startTime = System.currentTimeMillis();
+        executeScheduled(num_threads, 60, TimeUnit.SECONDS);
+        calculateRequestsPerSecond("Writes", num_entries, startTime);
+
+        // The tail is up to date without compaction.
+        assertThat(s1)
+                .hasContiguousTailAt(num_entries - 1)
+                .hasContiguousStreamEntryAt(CorfuRuntime.getStreamID("a"), 0L)
+                .hasContiguousStreamEntryAt(CorfuRuntime.getStreamID("b"), num_entries - 1)
+                .doestNotHaveContiguousStreamEntryAt(CorfuRuntime.getStreamID("a"), num_entries - 1);
+        assertThat(s1.tailTracker.getPendingCount())
+                .isEqualTo(0L);
+        s1.shutdown();
+    }
+
+    @Test
+    public void checkThatStreamIndexSurvivesEviction()
+            throws Exception
+    {
+        String serviceDir = getTempDir();
+        final int num_streams = 500;
+        final int num_entries = 5000;
+        ImmutableMap<String,Object> opts = new ImmutableMap.Builder<String,Object>()
+                .put("--log-path", serviceDir)
+                .put("--memory", false)
+                .put("--single", false)
+                .put("--sync", true)
+                .put("--commit-window", 10L)
+                .put("--max-cache", 1000000)
+                .put("--stream-cache", 4096L)
+                .build();
+        LogUnitServer s1 = new LogUnitServer(opts);
+        this.router.setServerUnderTest(s1);
+        // Every stream has a run of addresses, and gaps between runs, so that it needs several runs.
+        for (long i = 0; i < num_entries; i++) {
+            LogUnitWriteMsg m = new LogUnitWriteMsg(i);
+            m.setStreams(Collections.singleton(CorfuRuntime.getStreamID(Long.toString((i / 2) % num_streams))));
+            m.setRank(0L);
+            m.setBackpointerMap(Collections.emptyMap());
+            m.setPayload(Long.toString(i).getBytes());
+            sendMessage(m);
+        }
+        assertThat(s1)
+                .hasContiguousTailAt(num_entries - 1)
+                .hasContiguousStreamEntryAt(CorfuRuntime.getStreamID("0"), 0L)
+                .hasContiguousStreamEntryAt(CorfuRuntime.getStreamID("0"), 1L)
+                .hasContiguousStreamEntryAt(CorfuRuntime.getStreamID("0"), 1000L)
+                .doestNotHaveContiguousStreamEntryAt(CorfuRuntime.getStreamID("0"), 2L);
+        assertThat(s1.streamIndex.getAddresses(CorfuRuntime.getStreamID("1")).asRanges())
+                .hasSize(num_entries / (num_streams * 2));
+        s1.shutdown();
+
+        LogUnitServer s2 = new LogUnitServer(opts);
+        assertThat(s2)
+                .hasContiguousStreamEntryAt(CorfuRuntime.getStreamID("1"), 2L)
+                .hasContiguousStreamEntryAt(CorfuRuntime.getStreamID("499"), num_entries - 1)
+                .doestNotHaveContiguousStreamEntryAt(CorfuRuntime.getStreamID("499"), 0L);
+        s2.shutdown();
+    }
+
+    @Test
+    public void checkThatInMemoryUnitTrimsOldestEntriesWhenFull()
+            throws Exception
+    {
+        LogUnitServer s1 = new LogUnitServer(new ImmutableMap.Builder<String,Object>()
+                .put("--memory", true)
+                .put("--single", false)
+                .put("--max-cache", 100)
+                .build());
+        this.router.setServerUnderTest(s1);
+        for (long i = 0; i < 20; i++) {
+            LogUnitWriteMsg m = new LogUnitWriteMsg(i);
+            m.setStreams(Collections.singleton(CorfuRuntime.getStreamID("a")));
+            m.setRank(0L);
+            m.setBackpointerMap(Collections.emptyMap());
+            m.setPayload(Strings.repeat("x", 10).getBytes());
+            sendMessage(m);
+        }
+
+        assertThat(s1.isTrimmed(0L))
+                .isTrue();
+        assertThat(s1.isTrimmed(19L))
+                .isFalse();
+        sendMessage(new LogUnitReadRequestMsg(0L));
+        assertThat(getLastMessageAs(LogUnitReadResponseMsg.class).getResult())
+                .isEqualTo(LogUnitReadResponseMsg.ReadResultType.TRIMMED);
+        assertThat(s1)
+                .hasContiguousTailAt(19L);
+
+        // The lost entries are invalidated outside of the cache writer.
+        s1.lossExecutor.submit(() -> {}).get();
+        assertThat(s1.getDataCache().getIfPresent(0L))
+                .isNull();
+        s1.shutdown();
+    }
+
+    @Test
+    public void checkThatReadResponsesHoldReferenceToCachedData()
+            throws Exception
+    {
+        LogUnitServer s1 = new LogUnitServer(new ImmutableMap.Builder<String,Object>()
+                .put("--log-path", getTempDir())
+                .put("--memory", false)
+                .put("--single", false)
+                .put("--sync", true)
+                .put("--max-cache", 1000000)
+                .build());
+        this.router.setServerUnderTest(s1);
+        LogUnitWriteMsg m = new LogUnitWriteMsg(0L);
+        m.setStreams(Collections.singleton(CorfuRuntime.getStreamID("a")));
+        m.setRank(0L);
+        m.setBackpointerMap(Collections.emptyMap());
+        m.setPayload("0".getBytes());
+        sendMessage(m);
+
+        ByteBuf cached = s1.getDataCache().get(0L).getBuffer();
+        assertThat(cached.isDirect())
+                .isTrue();
+        sendMessage(new LogUnitReadRequestMsg(0L));
+        LogUnitReadResponseMsg r = getLastMessageAs(LogUnitReadResponseMsg.class);
+        assertThat(cached.refCnt())
+                .isEqualTo(2);
+        assertThat(s1.getCacheStats().hitCount())
+                .isGreaterThan(0L);
+
+        // The response can still be sent after the entry is evicted, and frees the data once it has been sent.
+        s1.getDataCache().invalidate(0L);
+        assertThat(r.getData().readableBytes())
+                .isEqualTo(cached.readableBytes());
+        r.release();
+        // The eviction listener runs asynchronously.
+        for (int i = 0; i < 100 && cached.refCnt() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(cached.refCnt())
+                .isEqualTo(0);
+        s1.shutdown();
+    }
+
+    @Test
+    public void rankedWritesReplaceHolesButNotData()
+            throws Exception
+    {
+        LogUnitServer s1 = new LogUnitServer(new ImmutableMap.Builder<String,Object>()
+                .put("--memory", true)
+                .put("--single", false)
+                .put("--max-cache", 1000000)
+                .build());
+        this.router.setServerUnderTest(s1);
+
+        // A write of rank 0 does not replace a hole.
+        sendMessage(new LogUnitFillHoleMsg(0L));
+        sendMessage(rankedWrite(0L, 0L));
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsg.CorfuMsgType.ERROR_OVERWRITE);
+
+        // A write of a higher rank does.
+        sendMessage(rankedWrite(0L, 1L));
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsg.CorfuMsgType.ERROR_OK);
+        assertThat(s1)
+                .matchesDataAtAddress(0L, "0".getBytes());
+
+        // But data is never replaced, whatever the rank.
+        sendMessage(rankedWrite(0L, 1L));
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsg.CorfuMsgType.ERROR_RANK);
+        sendMessage(rankedWrite(1L, 0L));
+        sendMessage(rankedWrite(1L, 2L));
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsg.CorfuMsgType.ERROR_OVERWRITE);
+        s1.shutdown();
+    }
+
+    LogUnitWriteMsg rankedWrite(long address, long rank)
+    {
+        LogUnitWriteMsg m = new LogUnitWriteMsg(address);
+        m.setStreams(Collections.singleton(CorfuRuntime.getStreamID("a")));
+        m.setRank(rank);
+        m.setBackpointerMap(Collections.emptyMap());
+        m.setPayload("0".getBytes());
+        return m;
+    }
+}
@@ -1,14 +1,24 @@
 package org.corfudb.infrastructure;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Files;
+import org.corfudb.protocols.wireprotocol.TokenBatchRequestMsg;
+import org.corfudb.protocols.wireprotocol.TokenBatchResponseMsg;
 import org.corfudb.protocols.wireprotocol.TokenRequestMsg;
 import org.corfudb.protocols.wireprotocol.TokenResponseMsg;
 import org.corfudb.runtime.CorfuRuntime;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.corfudb.infrastructure.SequencerServerAssertions.assertThat;
@@ -106,6 +116,65 @@ public class SequencerServerTest extends AbstractServerTest {
         }
     }
 
+    @Test
+    public void batchedRequestsAreServedInOrder()
+    {
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        sendMessage(new TokenBatchRequestMsg(Arrays.asList(
+                new TokenRequestMsg(Collections.singleton(streamA), 1),
+                new TokenRequestMsg(Collections.emptySet(), 2),
+                new TokenRequestMsg(Collections.singleton(streamA), 1),
+                new TokenRequestMsg(Collections.singleton(streamA), 0))));
+        List<TokenResponseMsg> responses = getLastMessageAs(TokenBatchResponseMsg.class).getResponses();
+        assertThat(responses)
+                .extracting(TokenResponseMsg::getToken)
+                .containsExactly(0L, 1L, 3L, 3L);
+        assertThat(responses.get(2).getBackpointerMap().get(streamA))
+                .isEqualTo(0L);
+    }
+
+    @Test
+    public void concurrentRequestsKeepBackpointersConsistent()
+            throws Exception
+    {
+        SequencerServer s = new SequencerServer(defaultOptionsMap());
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("streamB".getBytes());
+        Set<UUID> both = ImmutableSet.of(streamA, streamB);
+        Map<Long, Long> backpointersA = new ConcurrentHashMap<>();
+        Map<Long, Long> backpointersB = new ConcurrentHashMap<>();
+
+        scheduleConcurrently(8, t -> {
+            for (int i = 0; i < 1000; i++)
+            {
+                Set<UUID> streams = i % 3 == 0 ? both : Collections.singleton(i % 3 == 1 ? streamA : streamB);
+                TokenResponseMsg r = s.issueTokens(streams, 1);
+                if (r.getBackpointerMap().containsKey(streamA)) {
+                    backpointersA.put(r.getToken(), r.getBackpointerMap().get(streamA));
+                }
+                if (r.getBackpointerMap().containsKey(streamB)) {
+                    backpointersB.put(r.getToken(), r.getBackpointerMap().get(streamB));
+                }
+                s.issueTokens(Collections.emptySet(), 1);
+            }
+        });
+        executeScheduled(8, 30, TimeUnit.SECONDS);
+
+        // Each token of a stream must point back to the token issued to the stream before it.
+        for (Map<Long, Long> backpointers : Arrays.asList(backpointersA, backpointersB))
+        {
+            long previous = -1L;
+            for (long token : new TreeSet<>(backpointers.keySet()))
+            {
+                assertThat(backpointers.get(token))
+                        .isEqualTo(previous);
+                previous = token;
+            }
+        }
+        assertThat(s.globalIndex.get())
+                .isEqualTo(16000L);
+    }
+
     @Test
     public void checkSequencerCheckpointingWorks()
             throws Exception
@@ -138,4 +207,92 @@ public class SequencerServerTest extends AbstractServerTest {
                 .tokenIsAt(2);
     }
 
+    @Test
+    public void checkStreamTailsAreRecoveredFromCheckpoint()
+            throws Exception
+    {
+        String serviceDir = getTempDir();
+        UUID streamA = CorfuRuntime.getStreamID("a");
+        UUID streamB = CorfuRuntime.getStreamID("b");
+
+        SequencerServer s1 = new SequencerServer(new ImmutableMap.Builder<String,Object>()
+                .put("--initial-token", "0")
+                .put("--log-path", serviceDir)
+                .put("--memory", false)
+                .put("--checkpoint", 60)
+                .build());
+        this.router.setServerUnderTest(s1);
+        sendMessage(new TokenRequestMsg(Collections.singleton(streamA), 1));
+        sendMessage(new TokenRequestMsg(Collections.singleton(streamB), 1));
+        s1.checkpointState();
+        long checkpointSize = s1.streamChannel.size();
+        assertThat(checkpointSize)
+                .isEqualTo(2L * SequencerServer.STREAM_RECORD_SIZE);
+
+        // Only the streams issued tokens since the last checkpoint are appended.
+        sendMessage(new TokenRequestMsg(Collections.singleton(streamA), 1));
+        sendMessage(new TokenRequestMsg(Collections.emptySet(), 1));
+        s1.checkpointState();
+        assertThat(s1.streamChannel.size())
+                .isEqualTo(checkpointSize + SequencerServer.STREAM_RECORD_SIZE);
+        s1.shutdown();
+
+        SequencerServer s2 = new SequencerServer(new ImmutableMap.Builder<String,Object>()
+                .put("--initial-token", -1)
+                .put("--log-path", serviceDir)
+                .put("--memory", false)
+                .put("--checkpoint", 60)
+                .build());
+        this.router.setServerUnderTest(s2);
+        assertThat(s2)
+                .tokenIsAt(4);
+        sendMessage(new TokenRequestMsg(Collections.singleton(streamA), 1));
+        assertThat(getLastMessageAs(TokenResponseMsg.class).getBackpointerMap())
+                .containsEntry(streamA, 2L);
+        sendMessage(new TokenRequestMsg(Collections.singleton(streamB), 1));
+        assertThat(getLastMessageAs(TokenResponseMsg.class).getBackpointerMap())
+                .containsEntry(streamB, 1L);
+        s2.shutdown();
+    }
+
+    @Test
+    public void checkUnpinnedStreamTailsAreCheckpointed()
+            throws Exception
+    {
+        String serviceDir = getTempDir();
+        UUID streamA = CorfuRuntime.getStreamID("a");
+        UUID streamB = CorfuRuntime.getStreamID("b");
+        SequencerServer s1 = new SequencerServer(new ImmutableMap.Builder<String,Object>()
+                .put("--initial-token", "0")
+                .put("--log-path", serviceDir)
+                .put("--memory", false)
+                .put("--checkpoint", 60)
+                .build());
+        this.router.setServerUnderTest(s1);
+        sendMessage(new TokenRequestMsg(Collections.singleton(streamB), 1));
+        s1.pinToken(Collections.singleton(streamA), 5L);
+        s1.checkpointState();
+
+        // Stream A had no token before the pin, and the checkpoint which already holds the pin is rewritten.
+        s1.unpinToken(5L, Collections.singletonMap(streamA, -1L));
+        s1.checkpointState();
+        assertThat(s1.streamChannel.size())
+                .isEqualTo(SequencerServer.STREAM_RECORD_SIZE);
+        s1.shutdown();
+
+        SequencerServer s2 = new SequencerServer(new ImmutableMap.Builder<String,Object>()
+                .put("--initial-token", -1)
+                .put("--log-path", serviceDir)
+                .put("--memory", false)
+                .put("--checkpoint", 60)
+                .build());
+        this.router.setServerUnderTest(s2);
+        sendMessage(new TokenRequestMsg(Collections.singleton(streamA), 1));
+        assertThat(getLastMessageAs(TokenResponseMsg.class).getBackpointerMap())
+                .containsEntry(streamA, -1L);
+        sendMessage(new TokenRequestMsg(Collections.singleton(streamB), 1));
+        assertThat(getLastMessageAs(TokenResponseMsg.class).getBackpointerMap())
+                .containsEntry(streamB, 0L);
+        s2.shutdown();
+    }
 }
@@ -6,6 +6,7 @@ import lombok.Setter;
 import org.corfudb.protocols.wireprotocol.CorfuMsg;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -36,7 +37,7 @@ public class TestServerRouter implements IServerRouter {
 
     public void reset()
     {
-        this.responseMessages = new ArrayList<>();
+        this.responseMessages = Collections.synchronizedList(new ArrayList<>());
         this.requestCounter = new AtomicLong();
     }
 
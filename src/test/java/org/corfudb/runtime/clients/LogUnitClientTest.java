@@ -1,19 +1,26 @@
 package org.corfudb.runtime.clients;
 
 import com.google.common.collect.*;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import org.corfudb.infrastructure.IServer;
 import org.corfudb.infrastructure.LogUnitServer;
+import org.corfudb.protocols.wireprotocol.LogUnitReadRangeResponseMsg;
 import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
 import org.corfudb.runtime.CorfuRuntime;
 import org.corfudb.runtime.exceptions.OverwriteException;
 import org.corfudb.util.Utils;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
@@ -196,4 +203,101 @@ public class LogUnitClientTest extends AbstractClientTest {
                    .isEqualTo(Integer.toString(i).getBytes());
        }
     }
+
+    @Test
+    public void canReadRangeSpanningSeveralChunks()
+            throws Exception
+    {
+        // Leave every tenth address unwritten, so that the chunks do not line up with the range.
+        final int num_addresses = LogUnitServer.READ_RANGE_CHUNK * 3;
+        int written = 0;
+        for (int i = 0; i < num_addresses; i++) {
+            if (i % 10 != 0) {
+                client.write(i, Collections.<UUID>emptySet(), 0,
+                        Integer.toString(i).getBytes(), Collections.emptyMap()).get();
+                written++;
+            }
+        }
+
+        RangeSet<Long> ranges = TreeRangeSet.create();
+        ranges.add(Range.closedOpen(0L, (long) num_addresses));
+        Map<Long, LogUnitReadResponseMsg.ReadResult> rm = client.readRange(ranges).get();
+        assertThat(rm)
+                .hasSize(written);
+        for (int i = 0; i < num_addresses; i++)
+        {
+            if (i % 10 != 0) {
+                assertThat(rm.get((long) i).getPayload())
+                        .isEqualTo(Integer.toString(i).getBytes());
+            }
+        }
+    }
+
+    @Test
+    public void abandonedRangeReadsReleaseTheirChunks()
+            throws Exception
+    {
+        RangeSet<Long> ranges = TreeRangeSet.create();
+        ranges.add(Range.closed(0L, 100L));
+        router.setDropAllMessagesClientToServer(true);
+        long requestID = router.requestID.get();
+        CompletableFuture<Map<Long, LogUnitReadResponseMsg.ReadResult>> read = client.readRange(ranges);
+
+        // A chunk arrives, but the connection is lost before the last chunk.
+        LogUnitReadResponseMsg response = new LogUnitReadResponseMsg(LogUnitReadResponseMsg.ReadResultType.DATA);
+        response.setData(Unpooled.directBuffer().writeLong(0L));
+        ByteBuf data = response.getData();
+        LogUnitReadRangeResponseMsg chunk =
+                new LogUnitReadRangeResponseMsg(Collections.singletonMap(0L, response), false);
+        chunk.setRequestID(requestID);
+        client.handleMessage(chunk, null);
+        assertThat(client.rangeReads.asMap())
+                .containsKey(requestID);
+
+        router.completeExceptionally(requestID, new Exception("Disconnected"));
+        assertThatThrownBy(read::get)
+                .isInstanceOf(ExecutionException.class);
+        assertThat(client.rangeReads.asMap())
+                .isEmpty();
+        assertThat(data.refCnt())
+                .isEqualTo(0);
+    }
+
+    @Test
+    public void subscriptionPushesWithinWindow()
+            throws Exception
+    {
+        UUID streamA = CorfuRuntime.getStreamID("stream A");
+        List<Long> received = Collections.synchronizedList(new ArrayList<>());
+        Semaphore consume = new Semaphore(0);
+        LogUnitSubscription s = client.subscribe(streamA, 2, r -> {
+            consume.acquireUninterruptibly();
+            received.add(r.getAddress());
+        }).get();
+
+        // Entries of other streams are not pushed, and a blocked listener holds at most its window.
+        client.write(0, Collections.singleton(CorfuRuntime.getStreamID("stream B")), 0,
+                "b".getBytes(), Collections.emptyMap()).get();
+        for (int i = 1; i <= 10; i++) {
+            client.write(i, Collections.singleton(streamA), 0,
+                    Integer.toString(i).getBytes(), Collections.emptyMap()).get();
+        }
+        assertThat(s.entries.size())
+                .isLessThanOrEqualTo(2);
+
+        // Once the listener consumes entries, the rest are pushed in order.
+        consume.release(10);
+        for (int i = 0; i < 500 && received.size() < 10; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(received)
+                .containsExactly(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L);
+
+        s.close();
+        client.write(11, Collections.singleton(streamA), 0, "11".getBytes(), Collections.emptyMap()).get();
+        assertThat(s.getClosed().isDone())
+                .isTrue();
+        assertThat(client.subscriptions)
+                .isEmpty();
+    }
 }
@@ -1,16 +1,20 @@
 package org.corfudb.runtime.clients;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
-import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.util.concurrent.DefaultEventExecutorGroup;
@@ -20,13 +24,23 @@ import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.corfudb.AbstractCorfuTest;
 import org.corfudb.infrastructure.BaseServer;
+import org.corfudb.infrastructure.CorfuServer;
+import org.corfudb.infrastructure.LogUnitServer;
 import org.corfudb.infrastructure.NettyServerRouter;
+import org.corfudb.protocols.wireprotocol.CorfuMsg;
+import org.corfudb.protocols.wireprotocol.IMetadata;
+import org.corfudb.protocols.wireprotocol.LogUnitPayloadMsg;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
 import org.corfudb.protocols.wireprotocol.NettyCorfuMessageDecoder;
 import org.corfudb.protocols.wireprotocol.NettyCorfuMessageEncoder;
+import org.corfudb.protocols.wireprotocol.NettyFlushConsolidationHandler;
+import org.corfudb.util.NettyTransport;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.util.EnumMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
@@ -71,6 +85,124 @@ public class NettyCommTest extends AbstractCorfuTest {
         });
     }
 
+    @Test
+    public void nettyServerClientPingableOnEventLoop() throws Exception {
+        // Epoll is used where it is available, and NIO elsewhere.
+        NettyTransport transport = NettyTransport.get("epoll");
+        NettyServerRouter nsr = new NettyServerRouter();
+        nsr.addServer(new BaseServer(nsr));
+        int port = findRandomOpenPort();
+
+        EventLoopGroup bossGroup = transport.getEventLoopGroup(1, Executors.defaultThreadFactory());
+        EventLoopGroup workerGroup = transport.getEventLoopGroup(2, Executors.defaultThreadFactory());
+        NettyClientRouter ncr = new NettyClientRouter("localhost", port);
+        ncr.setTransport(transport);
+        ncr.setHandlersOnEventLoop(true);
+        try {
+            CorfuServer.configureBootstrap(nsr, transport, bossGroup, workerGroup, null).bind(port).sync();
+            ncr.addClient(new BaseClient());
+            ncr.start();
+            assertThat(ncr.ee)
+                    .isNull();
+            assertThat(ncr.getClient(BaseClient.class).pingSync())
+                    .isTrue();
+        } finally {
+            ncr.stop();
+            ncr.workerGroup.shutdownGracefully();
+            bossGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void nettyFlushesAreConsolidated() throws Exception {
+        NettyFlushConsolidationHandler.FlushStats stats = new NettyFlushConsolidationHandler.FlushStats();
+        EmbeddedChannel ch = new EmbeddedChannel(new NettyFlushConsolidationHandler(8, 0, stats),
+                new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                        ctx.writeAndFlush(msg);
+                    }
+                });
+
+        // Responses to a read burst are flushed at the end of the burst, or once the limit is reached.
+        for (int i = 0; i < 10; i++) {
+            ch.pipeline().fireChannelRead(i);
+        }
+        assertThat(ch.outboundMessages())
+                .hasSize(8);
+        ch.pipeline().fireChannelReadComplete();
+        assertThat(ch.outboundMessages())
+                .hasSize(10);
+
+        // Messages sent outside of a read burst are flushed once the queued tasks have run.
+        for (int i = 0; i < 5; i++) {
+            ch.writeAndFlush(i);
+        }
+        assertThat(ch.outboundMessages())
+                .hasSize(10);
+        ch.runPendingTasks();
+        assertThat(ch.outboundMessages())
+                .hasSize(15);
+
+        assertThat(stats.getMessages())
+                .isEqualTo(15);
+        assertThat(stats.getFlushes())
+                .isEqualTo(3);
+    }
+
+    @Test
+    public void nettyEncoderAddsLargePayloadsWithoutCopying() throws Exception {
+        ByteBuf payload = PooledByteBufAllocator.DEFAULT.directBuffer();
+        for (int i = 0; i < LogUnitPayloadMsg.ZERO_COPY_THRESHOLD * 4; i++) {
+            payload.writeByte(i);
+        }
+        LogUnitServer.LogUnitEntry entry = new LogUnitServer.LogUnitEntry(0L, payload,
+                new EnumMap<>(IMetadata.LogUnitMetadataType.class), false);
+        EmbeddedChannel out = new EmbeddedChannel(new NettyCorfuMessageEncoder());
+        out.writeOutbound(new LogUnitReadResponseMsg(entry));
+
+        // The frame holds a reference to the payload instead of a copy of it.
+        ByteBuf frame = (ByteBuf) out.readOutbound();
+        assertThat(frame)
+                .isInstanceOf(CompositeByteBuf.class);
+        assertThat(payload.refCnt())
+                .isEqualTo(2);
+
+        EmbeddedChannel in = new EmbeddedChannel(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4),
+                new NettyCorfuMessageDecoder());
+        in.writeInbound(frame);
+        LogUnitReadResponseMsg m = (LogUnitReadResponseMsg) in.readInbound();
+        assertThat(m.getData())
+                .isEqualTo(payload);
+        m.release();
+        assertThat(payload.refCnt())
+                .isEqualTo(1);
+        payload.release();
+    }
+
+    @Test
+    public void nettyEncoderCopiesSmallMessages() throws Exception {
+        ByteBuf payload = PooledByteBufAllocator.DEFAULT.directBuffer();
+        payload.writeLong(0L);
+        LogUnitServer.LogUnitEntry entry = new LogUnitServer.LogUnitEntry(0L, payload,
+                new EnumMap<>(IMetadata.LogUnitMetadataType.class), false);
+        EmbeddedChannel out = new EmbeddedChannel(new NettyCorfuMessageEncoder());
+        out.writeOutbound(new CorfuMsg(CorfuMsg.CorfuMsgType.PING));
+        out.writeOutbound(new LogUnitReadResponseMsg(entry));
+
+        // Neither a message without a payload nor one with a small payload is encoded into a composite buffer.
+        for (int i = 0; i < 2; i++) {
+            ByteBuf frame = (ByteBuf) out.readOutbound();
+            assertThat(frame)
+                    .isNotInstanceOf(CompositeByteBuf.class);
+            frame.release();
+        }
+        assertThat(payload.refCnt())
+                .isEqualTo(1);
+        payload.release();
+    }
+
     @Data
     public class NettyServerData {
         ServerBootstrap b;
@@ -130,7 +262,6 @@ public class NettyCommTest extends AbstractCorfuTest {
                         .childHandler(new ChannelInitializer<SocketChannel>() {
                             @Override
                             public void initChannel(io.netty.channel.socket.SocketChannel ch) throws Exception {
-                                ch.pipeline().addLast(new LengthFieldPrepender(4));
                                 ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4));
                                 ch.pipeline().addLast(ee, new NettyCorfuMessageDecoder());
                                 ch.pipeline().addLast(ee, new NettyCorfuMessageEncoder());
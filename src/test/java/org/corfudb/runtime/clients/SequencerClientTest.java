@@ -9,8 +9,13 @@ import org.junit.Test;
 
 import javax.sound.midi.Sequencer;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -81,4 +86,56 @@ public class SequencerClientTest extends AbstractClientTest {
         assertThat(tokenA3)
                 .isEqualTo(tokenA2);
     }
+
+    @Test
+    public void requestsQueuedWhileOutstandingAreBatched()
+            throws Exception {
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        // Hold the client as if a request was outstanding, so that the next requests are queued.
+        client.outstanding.set(true);
+        CompletableFuture<SequencerClient.TokenResponse> first = client.nextToken(Collections.singleton(streamA), 1);
+        CompletableFuture<SequencerClient.TokenResponse> second = client.nextToken(Collections.singleton(streamA), 2);
+        CompletableFuture<SequencerClient.TokenResponse> query = client.nextToken(Collections.singleton(streamA), 0);
+        assertThat(first.isDone())
+                .isFalse();
+
+        client.outstanding.set(false);
+        client.sendPending();
+        assertThat(first.get().getToken())
+                .isEqualTo(0L);
+        assertThat(first.get().getBackpointerMap().get(streamA))
+                .isEqualTo(-1L);
+        assertThat(second.get().getToken())
+                .isEqualTo(1L);
+        assertThat(second.get().getBackpointerMap().get(streamA))
+                .isEqualTo(0L);
+        assertThat(query.get().getToken())
+                .isEqualTo(2L);
+    }
+
+    @Test
+    public void concurrentRequestsGetDistinctTokens()
+            throws Exception {
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        Map<Long, Long> backpointers = new ConcurrentHashMap<>();
+        scheduleConcurrently(8, t -> {
+            for (int i = 0; i < 100; i++)
+            {
+                SequencerClient.TokenResponse r = client.nextToken(Collections.singleton(streamA), 1).get();
+                assertThat(backpointers.put(r.getToken(), r.getBackpointerMap().get(streamA)))
+                        .isNull();
+            }
+        });
+        executeScheduled(8, 30, TimeUnit.SECONDS);
+
+        long previous = -1L;
+        for (long token : new TreeSet<>(backpointers.keySet()))
+        {
+            assertThat(backpointers.get(token))
+                    .isEqualTo(previous);
+            previous = token;
+        }
+        assertThat(backpointers)
+                .hasSize(800);
+    }
 }
@@ -283,6 +283,7 @@ public class TestClientRouter implements IClientRouter, IServerRouter {
         /* simulate serialization/deserialization */
         ByteBuf oBuf = ByteBufAllocator.DEFAULT.buffer();
         message.serialize(oBuf);
+        message.release();
         oBuf.resetReaderIndex();
         return CorfuMsg.deserialize(oBuf);
     }
@@ -42,6 +42,86 @@ public class AddressSpaceViewTest extends AbstractViewTest {
                 .isEqualTo(LogUnitReadResponseMsg.ReadResultType.FILLED_HOLE);
     }
 
+    @Test
+    public void emptyReadsAreAnsweredByStripeTail()
+            throws Exception
+    {
+        CorfuRuntime r = getDefaultRuntime().setCacheDisabled(false).connect();
+        AddressSpaceView asv = r.getAddressSpaceView();
+        asv.setEmptyDuration(Duration.ofMinutes(1));
+
+        // Once the tail is learned, polling above it does not reach the log units, and caches nothing.
+        assertThat(asv.read(0).getResultType())
+                .isEqualTo(LogUnitReadResponseMsg.ReadResultType.EMPTY);
+        long refreshes = asv.getEmptyCache().getRefreshes();
+        for (int i = 0; i < 100; i++) {
+            assertThat(asv.read(0).getResultType())
+                    .isEqualTo(LogUnitReadResponseMsg.ReadResultType.EMPTY);
+        }
+        assertThat(asv.getEmptyCache().getRefreshes())
+                .isEqualTo(refreshes);
+        assertThat(asv.getCache().getMetadataSize())
+                .isEqualTo(0);
+
+        // A write by another client is seen once the tail is learned again.
+        r.getLayoutView().getLayout().getLogUnitClient(0, 0).write(0, Collections.emptySet(), 0L,
+                "hello world".getBytes(), Collections.emptyMap()).get();
+        asv.setEmptyDuration(Duration.ZERO);
+        assertThat(asv.read(0).getPayload())
+                .isEqualTo("hello world".getBytes());
+
+        // Writes of this runtime are never reported empty.
+        asv.setEmptyDuration(Duration.ofMinutes(1));
+        asv.write(1, Collections.emptySet(), "1".getBytes(), Collections.emptyMap());
+        asv.getCache().invalidate(1);
+        assertThat(asv.read(1).getPayload())
+                .isEqualTo("1".getBytes());
+    }
+
+    @Test
+    public void cacheTiersArePerRuntimeAndSpillOffHeap()
+            throws Exception
+    {
+        CorfuRuntime r = getDefaultRuntime().setCacheDisabled(false)
+                .setCacheSizes(50, 1_000_000L, 1_000_000L, 1_000_000L);
+        r.getAddressSpaceView().resetCaches();
+        AddressSpaceCache cache = r.getAddressSpaceView().getCache();
+        UUID streamA = CorfuRuntime.getStreamID("stream A");
+
+        // Another runtime has its own cache, with its own sizes.
+        assertThat(new CorfuRuntime().getAddressSpaceView().getCache())
+                .isNotSameAs(cache);
+
+        // Entries which carry data overflow the payload tier into the off-heap tier.
+        for (int i = 0; i < 10; i++) {
+            r.getAddressSpaceView().write(i, Collections.singleton(streamA),
+                    ("payload " + i).getBytes(), Collections.emptyMap());
+        }
+        cache.payloadCache.cleanUp();
+        for (int i = 0; i < 100 && cache.getOffHeapSize() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(cache.getOffHeapSize())
+                .isGreaterThan(0);
+        for (int i = 0; i < 10; i++) {
+            assertThat(r.getAddressSpaceView().read(i).getPayload())
+                    .isEqualTo(("payload " + i).getBytes());
+        }
+        assertThat(cache.getOffHeapStats().hitCount())
+                .isGreaterThan(0);
+
+        // Holes are kept in the metadata tier, where they cannot evict data.
+        r.getLayoutView().getLayout().getLogUnitClient(10, 0).fillHole(10).get();
+        assertThat(r.getAddressSpaceView().read(10).getResultType())
+                .isEqualTo(LogUnitReadResponseMsg.ReadResultType.FILLED_HOLE);
+        assertThat(cache.getMetadataSize())
+                .isEqualTo(1);
+        assertThat(r.getAddressSpaceView().read(10).getResultType())
+                .isEqualTo(LogUnitReadResponseMsg.ReadResultType.FILLED_HOLE);
+        assertThat(cache.getMetadataStats().hitCount())
+                .isEqualTo(1);
+    }
+
     @Test
     @SuppressWarnings("unchecked")
     public void ensureStripingWorks()
@@ -248,4 +328,21 @@ public class AddressSpaceViewTest extends AbstractViewTest {
                 .contains(3L)
                 .doesNotContain(2L);
     }
+
+    @Test
+    public void staleTailsAreLearnedInTheBackground()
+    {
+        CorfuRuntime r = getDefaultRuntime().setCacheDisabled(false).connect();
+        EmptyResultCache emptyCache = r.getAddressSpaceView().getEmptyCache();
+        Layout layout = r.getLayoutView().getLayout();
+
+        // The log units do not answer, so the tail is not learned, but the read does not wait for it.
+        getTestRouterForEndpoint(getDefaultEndpoint()).setDropAllMessagesClientToServer(true);
+        assertThat(emptyCache.isEmpty(layout, 0L, Duration.ofMinutes(1)))
+                .isFalse();
+        assertThat(emptyCache.isEmpty(layout, 0L, Duration.ofMinutes(1)))
+                .isFalse();
+        assertThat(emptyCache.getRefreshes())
+                .isEqualTo(1L);
+    }
 }
@@ -1,19 +1,26 @@
 package org.corfudb.runtime.view;
 
 import com.google.common.collect.ImmutableList;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import lombok.Getter;
 import org.corfudb.infrastructure.LayoutServer;
 import org.corfudb.infrastructure.LogUnitServer;
 import org.corfudb.protocols.wireprotocol.IMetadata;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
 import org.corfudb.runtime.CorfuRuntime;
+import org.corfudb.runtime.clients.LogUnitClient;
+import org.corfudb.runtime.exceptions.OverwriteException;
 import org.junit.Test;
 
 import java.util.Collections;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.corfudb.infrastructure.LogUnitServerAssertions.assertThat;
 
 /**
@@ -201,4 +208,168 @@ public class ChainReplicationViewTest extends AbstractViewTest {
         assertThat(l9002)
             .matchesDataAtAddress(0, testPayload);
     }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void pipelinedChainWritesAllUnitsAndPreservesOverwrites()
+            throws Exception
+    {
+        addServerForTest(getEndpoint(9000),
+                new LayoutServer(defaultOptionsMap(), getServerRouterForEndpoint(getEndpoint(9000))));
+
+        LogUnitServer l9000 = new LogUnitServer(defaultOptionsMap());
+        LogUnitServer l9001 = new LogUnitServer(defaultOptionsMap());
+        LogUnitServer l9002 = new LogUnitServer(defaultOptionsMap());
+
+        addServerForTest(getEndpoint(9000), l9000);
+        addServerForTest(getEndpoint(9001), l9001);
+        addServerForTest(getEndpoint(9002), l9002);
+        wireRouters();
+
+        getServerRouterForEndpoint(getEndpoint(9001)).setServerEpoch(1L);
+        getServerRouterForEndpoint(getEndpoint(9002)).setServerEpoch(1L);
+
+        CorfuRuntime r = getRuntime().connect();
+        setLayout(new Layout(
+                Collections.singletonList(getEndpoint(9000)),
+                Collections.singletonList(getEndpoint(9000)),
+                Collections.singletonList(new Layout.LayoutSegment(
+                        Layout.ReplicationMode.PIPELINED_CHAIN_REPLICATION,
+                        0L,
+                        -1L,
+                        Collections.singletonList(
+                                new Layout.LayoutStripe(
+                                        ImmutableList.<String>builder()
+                                                .add(getEndpoint(9000))
+                                                .add(getEndpoint(9001))
+                                                .add(getEndpoint(9002))
+                                                .build()
+                                )
+                        )
+                )),
+                1L
+        ));
+
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        byte[] testPayload = "hello world".getBytes();
+
+        r.getAddressSpaceView().write(0, Collections.singleton(streamA),
+                testPayload, Collections.emptyMap());
+
+        assertThat(l9000)
+                .matchesDataAtAddress(0, testPayload);
+        assertThat(l9001)
+                .matchesDataAtAddress(0, testPayload);
+        assertThat(l9002)
+                .matchesDataAtAddress(0, testPayload);
+
+        // A write which is rejected by the head must not reach the rest of the chain.
+        r.getRouter(getEndpoint(9000)).getClient(LogUnitClient.class)
+                .write(1, Collections.singleton(streamA), 0L, testPayload, Collections.emptyMap()).get();
+        assertThatThrownBy(() -> r.getAddressSpaceView().write(1, Collections.singleton(streamA),
+                "overwrite".getBytes(), Collections.emptyMap()))
+                .isInstanceOf(OverwriteException.class);
+        assertThat(l9001)
+                .isEmptyAtAddress(1);
+        assertThat(l9002)
+                .isEmptyAtAddress(1);
+    }
+
+    @Test
+    public void committedReadsAreSpreadOverReplicas()
+            throws Exception
+    {
+        addServerForTest(getEndpoint(9000),
+                new LayoutServer(defaultOptionsMap(), getServerRouterForEndpoint(getEndpoint(9000))));
+
+        LogUnitServer l9000 = new LogUnitServer(defaultOptionsMap());
+        LogUnitServer l9001 = new LogUnitServer(defaultOptionsMap());
+        LogUnitServer l9002 = new LogUnitServer(defaultOptionsMap());
+
+        addServerForTest(getEndpoint(9000), l9000);
+        addServerForTest(getEndpoint(9001), l9001);
+        addServerForTest(getEndpoint(9002), l9002);
+        wireRouters();
+
+        getServerRouterForEndpoint(getEndpoint(9001)).setServerEpoch(1L);
+        getServerRouterForEndpoint(getEndpoint(9002)).setServerEpoch(1L);
+
+        CorfuRuntime r = getRuntime().connect();
+        r.setCacheDisabled(true);
+        setLayout(new Layout(
+                Collections.singletonList(getEndpoint(9000)),
+                Collections.singletonList(getEndpoint(9000)),
+                Collections.singletonList(new Layout.LayoutSegment(
+                        Layout.ReplicationMode.CHAIN_REPLICATION,
+                        0L,
+                        -1L,
+                        Collections.singletonList(
+                                new Layout.LayoutStripe(
+                                        ImmutableList.<String>builder()
+                                                .add(getEndpoint(9000))
+                                                .add(getEndpoint(9001))
+                                                .add(getEndpoint(9002))
+                                                .build()
+                                )
+                        )
+                )),
+                1L
+        ));
+
+        final int numberRecords = 200;
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        for (int i = 0; i < numberRecords; i++) {
+            r.getAddressSpaceView().write(i, Collections.singleton(streamA),
+                    Integer.toString(i).getBytes(), Collections.emptyMap());
+        }
+
+        // The first read learns the contiguous tails, and later reads of committed addresses use every replica.
+        long[] writeRequests = {l9000.getCacheStats().requestCount(), l9001.getCacheStats().requestCount(),
+                l9002.getCacheStats().requestCount()};
+        for (int i = 0; i < numberRecords; i++) {
+            assertThat(r.getAddressSpaceView().read(i).getPayload())
+                    .isEqualTo(Integer.toString(i).getBytes());
+        }
+        assertThat(r.getReplicaSelector().getContiguousTail(getEndpoint(9002)))
+                .isEqualTo(numberRecords - 1);
+        assertThat(l9000.getCacheStats().requestCount())
+                .isGreaterThan(writeRequests[0]);
+        assertThat(l9001.getCacheStats().requestCount())
+                .isGreaterThan(writeRequests[1]);
+        assertThat(l9002.getCacheStats().requestCount())
+                .isGreaterThan(writeRequests[2]);
+
+        // An expired tail is not used, and the next tail learned replaces it, even if it is lower.
+        ReplicaSelector.ReplicaStats stats = r.getReplicaSelector().getStats(getEndpoint(9002));
+        stats.contiguousTail = numberRecords * 2;
+        stats.tailLearned = System.nanoTime() - ReplicaSelector.TAIL_EXPIRY_NANOS - 1;
+        stats.lastTailRequest = 0L;
+        assertThat(r.getReplicaSelector().getContiguousTail(getEndpoint(9002)))
+                .isEqualTo(-1L);
+        assertThat(r.getAddressSpaceView().read(0).getPayload())
+                .isEqualTo("0".getBytes());
+        assertThat(r.getReplicaSelector().getContiguousTail(getEndpoint(9002)))
+                .isEqualTo(numberRecords - 1);
+    }
+
+    @Test
+    public void hedgedReadsReleaseTheLosingResult()
+    {
+        ReplicaSelector selector = new ReplicaSelector(getRuntime());
+        CompletableFuture<LogUnitReadResponseMsg.ReadResult> cf = new CompletableFuture<>();
+        LogUnitReadResponseMsg first = new LogUnitReadResponseMsg(LogUnitReadResponseMsg.ReadResultType.DATA);
+        first.setData(Unpooled.directBuffer().writeLong(0L));
+        LogUnitReadResponseMsg second = new LogUnitReadResponseMsg(LogUnitReadResponseMsg.ReadResultType.DATA);
+        ByteBuf data = Unpooled.directBuffer().writeLong(0L);
+        second.setData(data);
+
+        // The first result completes the read, and the second, which lost the race, is released.
+        selector.completeOrRelease(cf, new LogUnitReadResponseMsg.ReadResult(first));
+        selector.completeOrRelease(cf, new LogUnitReadResponseMsg.ReadResult(second));
+        assertThat(cf.join().getBuffer().refCnt())
+                .isEqualTo(1);
+        assertThat(data.refCnt())
+                .isEqualTo(0);
+        cf.join().release();
+    }
 }
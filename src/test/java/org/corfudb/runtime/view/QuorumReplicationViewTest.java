@@ -0,0 +1,259 @@
+package org.corfudb.runtime.view;
+
+import com.google.common.collect.ImmutableList;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import lombok.Getter;
+import org.corfudb.infrastructure.LayoutServer;
+import org.corfudb.infrastructure.LogUnitServer;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
+import org.corfudb.protocols.wireprotocol.CorfuMsg;
+import org.corfudb.runtime.CorfuRuntime;
+import org.corfudb.runtime.clients.IClient;
+import org.corfudb.runtime.clients.IClientRouter;
+import org.corfudb.runtime.clients.LogUnitClient;
+import org.corfudb.runtime.clients.TestClientRouter;
+import org.corfudb.runtime.exceptions.OverwriteException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.corfudb.infrastructure.LogUnitServerAssertions.assertThat;
+
+public class QuorumReplicationViewTest extends AbstractViewTest {
+
+    @Getter
+    final String defaultConfigurationString = getDefaultEndpoint();
+
+    LogUnitServer l9000;
+    LogUnitServer l9001;
+    LogUnitServer l9002;
+
+    /** Start three log units, and a layout which replicates every address to all of them by quorum. */
+    CorfuRuntime getQuorumRuntime()
+            throws Exception
+    {
+        addServerForTest(getEndpoint(9000),
+                new LayoutServer(defaultOptionsMap(), getServerRouterForEndpoint(getEndpoint(9000))));
+
+        l9000 = new LogUnitServer(defaultOptionsMap());
+        l9001 = new LogUnitServer(defaultOptionsMap());
+        l9002 = new LogUnitServer(defaultOptionsMap());
+
+        addServerForTest(getEndpoint(9000), l9000);
+        addServerForTest(getEndpoint(9001), l9001);
+        addServerForTest(getEndpoint(9002), l9002);
+        wireRouters();
+
+        getServerRouterForEndpoint(getEndpoint(9001)).setServerEpoch(1L);
+        getServerRouterForEndpoint(getEndpoint(9002)).setServerEpoch(1L);
+
+        CorfuRuntime r = getRuntime().connect();
+        setLayout(new Layout(
+                Collections.singletonList(getEndpoint(9000)),
+                Collections.singletonList(getEndpoint(9000)),
+                Collections.singletonList(new Layout.LayoutSegment(
+                        Layout.ReplicationMode.QUORUM_REPLICATION,
+                        0L,
+                        -1L,
+                        Collections.singletonList(
+                                new Layout.LayoutStripe(
+                                        ImmutableList.<String>builder()
+                                                .add(getEndpoint(9000))
+                                                .add(getEndpoint(9001))
+                                                .add(getEndpoint(9002))
+                                                .build()
+                                )
+                        )
+                )),
+                1L
+        ));
+        return r;
+    }
+
+    LogUnitClient getLogUnit(CorfuRuntime r, int port)
+    {
+        return r.getRouter(getEndpoint(port)).getClient(LogUnitClient.class);
+    }
+
+    AbstractReplicationView getReplicationView(CorfuRuntime r)
+    {
+        Layout l = r.getLayoutView().getLayout();
+        return AbstractReplicationView.getReplicationView(l, l.getReplicationMode(0L), l.getSegment(0L));
+    }
+
+    @Test
+    public void canReadWriteToQuorum()
+            throws Exception
+    {
+        CorfuRuntime r = getQuorumRuntime();
+        UUID streamA = CorfuRuntime.getStreamID("stream A");
+        byte[] testPayload = "hello world".getBytes();
+
+        r.getAddressSpaceView().write(0, Collections.singleton(streamA),
+                testPayload, Collections.emptyMap());
+
+        assertThat(getReplicationView(r).read(0L).getPayload())
+                .isEqualTo(testPayload);
+        assertThat(l9000)
+                .matchesDataAtAddress(0, testPayload);
+        assertThat(l9001)
+                .matchesDataAtAddress(0, testPayload);
+        assertThat(l9002)
+                .matchesDataAtAddress(0, testPayload);
+        assertThat(getReplicationView(r).read(streamA))
+                .containsOnlyKeys(0L);
+    }
+
+    @Test
+    public void writeSucceedsUnlessMajorityIsFilled()
+            throws Exception
+    {
+        CorfuRuntime r = getQuorumRuntime();
+        UUID streamA = CorfuRuntime.getStreamID("stream A");
+        byte[] testPayload = "hello world".getBytes();
+
+        // A hole on a single replica does not stop the write, and is repaired by a read.
+        getLogUnit(r, 9002).fillHole(0L).get();
+        r.getAddressSpaceView().write(0, Collections.singleton(streamA),
+                testPayload, Collections.emptyMap());
+        assertThat(getReplicationView(r).read(0L).getPayload())
+                .isEqualTo(testPayload);
+        assertThat(l9002)
+                .matchesDataAtAddress(0, testPayload);
+
+        // Holes on a majority do.
+        getLogUnit(r, 9000).fillHole(1L).get();
+        getLogUnit(r, 9001).fillHole(1L).get();
+        assertThatThrownBy(() -> r.getAddressSpaceView().write(1, Collections.singleton(streamA),
+                testPayload, Collections.emptyMap()))
+                .isInstanceOf(OverwriteException.class);
+        assertThat(getReplicationView(r).read(1L).getResultType())
+                .isEqualTo(LogUnitReadResponseMsg.ReadResultType.FILLED_HOLE);
+    }
+
+    @Test
+    public void holeFillLosesToDecidedData()
+            throws Exception
+    {
+        CorfuRuntime r = getQuorumRuntime();
+        UUID streamA = CorfuRuntime.getStreamID("stream A");
+        byte[] testPayload = "hello world".getBytes();
+
+        // Data on a single replica is not decided, and reads as empty until it is.
+        getLogUnit(r, 9000).write(0L, Collections.singleton(streamA), 0L, testPayload,
+                Collections.emptyMap()).get();
+        assertThat(getReplicationView(r).read(0L).getResultType())
+                .isEqualTo(LogUnitReadResponseMsg.ReadResultType.EMPTY);
+
+        // Once it is on a majority, a hole fill fails and the last replica is repaired.
+        getLogUnit(r, 9001).write(0L, Collections.singleton(streamA), 0L, testPayload,
+                Collections.emptyMap()).get();
+        assertThatThrownBy(() -> r.getAddressSpaceView().fillHole(0L))
+                .isInstanceOf(OverwriteException.class);
+        assertThat(l9002)
+                .matchesDataAtAddress(0, testPayload);
+
+        // An empty address is filled on every replica.
+        r.getAddressSpaceView().fillHole(1L);
+        assertThat(l9000)
+                .containsFilledHoleAtAddress(1L);
+        assertThat(l9002)
+                .containsFilledHoleAtAddress(1L);
+    }
+
+    @Test
+    public void repairsReleaseTheDecidedData()
+            throws Exception
+    {
+        CorfuRuntime r = getQuorumRuntime();
+        UUID streamA = CorfuRuntime.getStreamID("stream A");
+        byte[] testPayload = "hello world".getBytes();
+
+        getLogUnit(r, 9000).write(0L, Collections.singleton(streamA), 0L, testPayload,
+                Collections.emptyMap()).get();
+        getLogUnit(r, 9001).write(0L, Collections.singleton(streamA), 0L, testPayload,
+                Collections.emptyMap()).get();
+
+        // The last replica is repaired, and once every replica has responded, the read and its repairs
+        // no longer hold the data, so only the caller's reference is left to release.
+        LogUnitReadResponseMsg.ReadResult result =
+                ((QuorumReplicationView) getReplicationView(r)).readAsync(0L).get();
+        ByteBuf data = result.getBuffer();
+        int refCnt = data.refCnt();
+        assertThat(result.getPayload())
+                .isEqualTo(testPayload);
+        assertThat(data.refCnt())
+                .isEqualTo(refCnt - 1);
+        assertThat(l9002)
+                .matchesDataAtAddress(0, testPayload);
+    }
+
+    @Test
+    public void evenReplicaCountsAreRejected()
+    {
+        assertThatThrownBy(() -> new Layout(
+                Collections.singletonList(getEndpoint(9000)),
+                Collections.singletonList(getEndpoint(9000)),
+                Collections.singletonList(new Layout.LayoutSegment(
+                        Layout.ReplicationMode.QUORUM_REPLICATION,
+                        0L,
+                        -1L,
+                        Collections.singletonList(
+                                new Layout.LayoutStripe(Arrays.asList(getEndpoint(9000), getEndpoint(9001)))
+                        )
+                )),
+                1L))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void responsesWhichAreNotReturnedAreReleased()
+            throws Exception
+    {
+        CorfuRuntime r = getQuorumRuntime();
+        UUID streamA = CorfuRuntime.getStreamID("stream A");
+        byte[] testPayload = "hello world".getBytes();
+        r.getAddressSpaceView().write(0, Collections.singleton(streamA),
+                testPayload, Collections.emptyMap());
+
+        // Record the data of every read response, and its reference count when it is received.
+        Map<ByteBuf, Integer> received = new IdentityHashMap<>();
+        for (int port = 9000; port <= 9002; port++) {
+            TestClientRouter router = getTestRouterForEndpoint(getEndpoint(port));
+            IClient handler = router.handlerMap.get(CorfuMsg.CorfuMsgType.READ_RESPONSE);
+            router.handlerMap.put(CorfuMsg.CorfuMsgType.READ_RESPONSE, new IClient() {
+                @Override
+                public void setRouter(IClientRouter router) {
+                }
+
+                @Override
+                public void handleMessage(CorfuMsg msg, ChannelHandlerContext ctx) {
+                    ByteBuf data = ((LogUnitReadResponseMsg) msg).getData();
+                    received.put(data, data.refCnt());
+                    handler.handleMessage(msg, ctx);
+                }
+
+                @Override
+                public Set<CorfuMsg.CorfuMsgType> getHandledTypes() {
+                    return handler.getHandledTypes();
+                }
+            });
+        }
+
+        // Every response, the decided one included once the caller has used it, gives up its reference.
+        assertThat(((QuorumReplicationView) getReplicationView(r)).readAsync(0L).get().getPayload())
+                .isEqualTo(testPayload);
+        assertThat(received)
+                .hasSize(3);
+        received.forEach((data, refCnt) -> assertThat(data.refCnt())
+                .isEqualTo(refCnt - 1));
+    }
+}
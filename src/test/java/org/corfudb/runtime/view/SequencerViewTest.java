@@ -1,12 +1,19 @@
 package org.corfudb.runtime.view;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import lombok.Getter;
 import org.corfudb.infrastructure.LayoutServer;
+import org.corfudb.infrastructure.LogUnitServer;
 import org.corfudb.infrastructure.SequencerServer;
+import org.corfudb.protocols.wireprotocol.LogUnitReadResponseMsg;
 import org.corfudb.runtime.CorfuRuntime;
+import org.corfudb.runtime.clients.SequencerClient;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Map;
 import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -81,4 +88,189 @@ public class SequencerViewTest extends AbstractViewTest {
         assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 1).getBackpointerMap())
                 .containsEntry(streamB, 1L);
     }
+
+    @Test
+    public void tailsAreReconstructedAfterFailover() {
+        CorfuRuntime r = getDefaultRuntime();
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("stream B".getBytes());
+        byte[] testPayload = "hello world".getBytes();
+
+        r.getStreamsView().get(streamA).write(testPayload);
+        r.getStreamsView().get(streamB).write(testPayload);
+        r.getStreamsView().get(streamA).write(testPayload);
+
+        // Fail over to a sequencer which knows of none of the tokens issued.
+        getTestRouterForEndpoint(getDefaultEndpoint()).addServer(new SequencerServer(defaultOptionsMap()));
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamA), 0).getToken())
+                .isEqualTo(-1L);
+
+        assertThat(r.getSequencerView().recoverTails())
+                .isEqualTo(2L);
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamA), 0).getToken())
+                .isEqualTo(2L);
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 0).getToken())
+                .isEqualTo(1L);
+        SequencerClient.TokenResponse next = r.getSequencerView().nextToken(Collections.singleton(streamA), 1);
+        assertThat(next.getToken())
+                .isEqualTo(3L);
+        assertThat(next.getBackpointerMap())
+                .containsEntry(streamA, 2L);
+    }
+
+    @Test
+    public void partitionedSequencersRouteByStream()
+            throws Exception {
+        addServerForTest(getDefaultEndpoint(), new LayoutServer(defaultOptionsMap(),
+                getServerRouterForEndpoint(getDefaultEndpoint())));
+        addServerForTest(getDefaultEndpoint(), new LogUnitServer(defaultOptionsMap()));
+        addServerForTest(getDefaultEndpoint(), new SequencerServer(shardOptions(0)));
+        addServerForTest(getEndpoint(9001), new SequencerServer(shardOptions(1)));
+        wireRouters();
+        getServerRouterForEndpoint(getEndpoint(9001)).setServerEpoch(1L);
+
+        CorfuRuntime r = getRuntime().connect();
+        Layout l = new Layout(
+                Collections.singletonList(getDefaultEndpoint()),
+                Arrays.asList(getDefaultEndpoint(), getEndpoint(9001)),
+                Collections.singletonList(new Layout.LayoutSegment(
+                        Layout.ReplicationMode.CHAIN_REPLICATION,
+                        0L,
+                        -1L,
+                        Collections.singletonList(
+                                new Layout.LayoutStripe(
+                                        Collections.singletonList(getDefaultEndpoint())
+                                )
+                        )
+                )),
+                1L
+        );
+        l.setSequencersPartitioned(true);
+        setLayout(l);
+
+        UUID streamA = streamOfSequencer(l, 0);
+        UUID streamB = streamOfSequencer(l, 1);
+
+        // Each sequencer issues the tokens of its streams from its own interleaved addresses.
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamA), 1).getToken())
+                .isEqualTo(0L);
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 1).getToken())
+                .isEqualTo(1L);
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamA), 1).getBackpointerMap())
+                .containsEntry(streamA, 0L);
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 1).getBackpointerMap())
+                .containsEntry(streamB, 1L);
+
+        // A token for streams of both sequencers is issued by the first, and pinned on the second.
+        SequencerClient.TokenResponse both = r.getSequencerView().nextToken(ImmutableSet.of(streamA, streamB), 1);
+        assertThat(both.getToken())
+                .isEqualTo(4L);
+        assertThat(both.getBackpointerMap())
+                .containsEntry(streamA, 2L)
+                .containsEntry(streamB, 3L);
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 1).getBackpointerMap())
+                .containsEntry(streamB, 4L);
+
+        // If the second sequencer is ahead, the token is rejected and the first sequencer skips past it.
+        for (int i = 0; i < 3; i++) {
+            r.getSequencerView().nextToken(Collections.singleton(streamB), 1);
+        }
+        both = r.getSequencerView().nextToken(ImmutableSet.of(streamA, streamB), 1);
+        assertThat(both.getToken())
+                .isEqualTo(12L);
+        assertThat(both.getBackpointerMap())
+                .containsEntry(streamB, 11L);
+        assertThat(r.getAddressSpaceView().read(6L).getResultType())
+                .isEqualTo(LogUnitReadResponseMsg.ReadResultType.FILLED_HOLE);
+        assertThat(r.getSequencerView().nextToken(Collections.emptySet(), 0).getToken())
+                .isEqualTo(12L);
+    }
+
+    @Test
+    public void rejectedPinsLeaveNoBackpointersToHoles()
+            throws Exception {
+        addServerForTest(getDefaultEndpoint(), new LayoutServer(defaultOptionsMap(),
+                getServerRouterForEndpoint(getDefaultEndpoint())));
+        addServerForTest(getDefaultEndpoint(), new LogUnitServer(defaultOptionsMap()));
+        addServerForTest(getDefaultEndpoint(), new SequencerServer(shardOptions(0, 3)));
+        addServerForTest(getEndpoint(9001), new SequencerServer(shardOptions(1, 3)));
+        addServerForTest(getEndpoint(9002), new SequencerServer(shardOptions(2, 3)));
+        wireRouters();
+        getServerRouterForEndpoint(getEndpoint(9001)).setServerEpoch(1L);
+        getServerRouterForEndpoint(getEndpoint(9002)).setServerEpoch(1L);
+
+        CorfuRuntime r = getRuntime().connect();
+        Layout l = new Layout(
+                Collections.singletonList(getDefaultEndpoint()),
+                Arrays.asList(getDefaultEndpoint(), getEndpoint(9001), getEndpoint(9002)),
+                Collections.singletonList(new Layout.LayoutSegment(
+                        Layout.ReplicationMode.CHAIN_REPLICATION,
+                        0L,
+                        -1L,
+                        Collections.singletonList(
+                                new Layout.LayoutStripe(
+                                        Collections.singletonList(getDefaultEndpoint())
+                                )
+                        )
+                )),
+                1L
+        );
+        l.setSequencersPartitioned(true);
+        setLayout(l);
+
+        UUID streamA = streamOfSequencer(l, 0);
+        UUID streamB = streamOfSequencer(l, 1);
+        UUID streamC = streamOfSequencer(l, 2);
+
+        // The last sequencer is far ahead, so the token is issued by the first, pinned on the second, and
+        // rejected by the last before it is retried.
+        for (int i = 0; i < 10; i++) {
+            r.getSequencerView().nextToken(Collections.singleton(streamC), 1);
+        }
+        SequencerClient.TokenResponse all = r.getSequencerView()
+                .nextToken(ImmutableSet.of(streamA, streamB, streamC), 1);
+        assertThat(all.getBackpointerMap())
+                .containsOnlyKeys(streamA, streamB, streamC);
+        for (long backpointer : all.getBackpointerMap().values()) {
+            assertThat(backpointer)
+                    .isLessThan(all.getToken());
+            if (backpointer != -1L) {
+                assertThat(r.getAddressSpaceView().read(backpointer).getResultType())
+                        .isNotEqualTo(LogUnitReadResponseMsg.ReadResultType.FILLED_HOLE);
+            }
+        }
+        assertThat(all.getBackpointerMap())
+                .containsEntry(streamA, -1L)
+                .containsEntry(streamB, -1L);
+
+        // Every sequencer has moved past the token, and points its stream back at it.
+        for (UUID stream : Arrays.asList(streamA, streamB, streamC)) {
+            SequencerClient.TokenResponse next = r.getSequencerView().nextToken(Collections.singleton(stream), 1);
+            assertThat(next.getToken())
+                    .isGreaterThan(all.getToken());
+            assertThat(next.getBackpointerMap())
+                    .containsEntry(stream, all.getToken());
+        }
+    }
+
+    Map<String, Object> shardOptions(int shard) {
+        return shardOptions(shard, 2);
+    }
+
+    Map<String, Object> shardOptions(int shard, int shards) {
+        return new ImmutableMap.Builder<String, Object>()
+                .putAll(defaultOptionsMap())
+                .put("--sequencer-shard", Integer.toString(shard))
+                .put("--sequencer-shards", Integer.toString(shards))
+                .build();
+    }
+
+    UUID streamOfSequencer(Layout l, int index) {
+        for (int i = 0; ; i++) {
+            UUID stream = CorfuRuntime.getStreamID("stream " + i);
+            if (l.getSequencerIndex(stream) == index) {
+                return stream;
+            }
+        }
+    }
 }
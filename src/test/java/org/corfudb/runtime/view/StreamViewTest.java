@@ -10,10 +10,13 @@ import org.corfudb.runtime.clients.SequencerClient;
 import org.corfudb.runtime.collections.SMRMap;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -45,6 +48,60 @@ public class StreamViewTest extends AbstractViewTest {
                 .isEqualTo(null);
     }
 
+    @Test
+    public void laggingReaderResolvesFromStreamIndexAndPrefetches()
+            throws Exception {
+        CorfuRuntime r = getDefaultRuntime().connect();
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("stream B".getBytes());
+        StreamView writer = r.getStreamsView().get(streamA);
+        for (int i = 0; i < 100; i++) {
+            writer.write(Integer.toString(i).getBytes());
+            r.getStreamsView().get(streamB).write("other".getBytes());
+        }
+
+        // A reader on another runtime has an empty cache, so each entry is either prefetched or fetched alone.
+        CorfuRuntime reader = wireExistingRuntimeToTest(new CorfuRuntime()).setCacheDisabled(false).connect();
+        StreamView sv = reader.getStreamsView().get(streamA);
+        for (int i = 0; i < 100; i++) {
+            assertThat(sv.read().getPayload())
+                    .isEqualTo(Integer.toString(i).getBytes());
+        }
+        assertThat(sv.read())
+                .isNull();
+        assertThat(reader.getAddressSpaceView().getCache().getPayloadStats().hitCount())
+                .isGreaterThanOrEqualTo(99);
+    }
+
+    @Test
+    public void subscriberReceivesNewEntries()
+            throws Exception {
+        CorfuRuntime r = getDefaultRuntime().connect();
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("stream B".getBytes());
+
+        StreamView sv = r.getStreamsView().get(streamA);
+        sv.write("before".getBytes());
+        List<Object> received = Collections.synchronizedList(new ArrayList<>());
+        try (StreamSubscription s = sv.subscribe(e -> received.add(e.getPayload()), 4)) {
+            r.getStreamsView().get(streamB).write("other".getBytes());
+            for (int i = 0; i < 20; i++) {
+                sv.write(Integer.toString(i).getBytes());
+            }
+            for (int i = 0; i < 500 && received.size() < 20; i++) {
+                Thread.sleep(10);
+            }
+            assertThat(s.getClosed().isDone())
+                    .isFalse();
+        }
+        assertThat(received)
+                .hasSize(20);
+        for (int i = 0; i < 20; i++) {
+            assertThat(received.get(i))
+                    .isEqualTo(Integer.toString(i).getBytes());
+        }
+    }
+
     @Test
     @SuppressWarnings("unchecked")
     public void canReadWriteFromStreamConcurrent()
@@ -133,6 +190,44 @@ public class StreamViewTest extends AbstractViewTest {
                 .isEqualTo(null);
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void canWriteAsyncInOrder()
+            throws Exception {
+        CorfuRuntime r = getDefaultRuntime().connect();
+        UUID streamA = CorfuRuntime.getStreamID("stream A");
+
+        // write without reserving a token, so that the first write is retried.
+        r.getAddressSpaceView().fillHole(0);
+
+        StreamView sv = r.getStreamsView().get(streamA);
+        sv.setWriteWindow(4);
+        List<Long> completed = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Long>> writes = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            CompletableFuture<Long> cf = sv.writeAsync(("hello world " + i).getBytes());
+            cf.thenAccept(completed::add);
+            writes.add(cf);
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture[writes.size()])).join();
+
+        assertThat(completed)
+                .hasSize(100)
+                .isSorted()
+                .doesNotContain(0L);
+        assertThat(sv.writeWindow.availablePermits())
+                .isEqualTo(4);
+
+        for (int i = 0; i < 100; i++)
+        {
+            assertThat(sv.read().getPayload())
+                    .isEqualTo(("hello world " + i).getBytes());
+        }
+        assertThat(sv.read())
+                .isEqualTo(null);
+    }
+
     @Test
     @SuppressWarnings("unchecked")
     public void streamWillHoleFill()